@@ -30,8 +30,22 @@ android {
     buildFeatures {
         viewBinding = true
     }
+    // libopus for LibOpusEncoder; CMake fetches its release sources.
+    externalNativeBuild {
+        cmake {
+            path = file("src/main/cpp/CMakeLists.txt")
+            version = "3.22.1"
+        }
+    }
     testOptions {
         unitTests.isReturnDefaultValues = true
+        // ./gradlew testDebugUnitTest -Pbenchmark --tests '*Benchmark' runs the codec benchmarks.
+        unitTests.all { test ->
+            if (project.hasProperty("benchmark")) {
+                test.systemProperty("benchmark", "true")
+                test.testLogging.showStandardStreams = true
+            }
+        }
     }
 }
 
@@ -0,0 +1,74 @@
+// Bundled software Opus encoder: libopus behind a handle for
+// com.fable.wifisoundthing.audio.LibOpusEncoder, used where the platform's
+// MediaCodec Opus encoder is missing, broken, or can't do the frame size asked for.
+#include <android/log.h>
+#include <jni.h>
+#include <opus.h>
+
+#include <cstdint>
+
+#define LOG_TAG "LibOpusEncoder"
+#define LOGW(...) __android_log_print(ANDROID_LOG_WARN, LOG_TAG, __VA_ARGS__)
+
+namespace {
+
+// 20 ms of 48 kHz stereo, the largest frame the Kotlin side ever passes in.
+constexpr int kMaxFrameSamples = 960 * 2;
+
+// Comfortably above what 20 ms can take at any bitrate we ask for; below the MTU.
+constexpr int kMaxPacketBytes = 1275;
+
+OpusEncoder* encoderOf(jlong handle) {
+    return reinterpret_cast<OpusEncoder*>(handle);
+}
+
+}  // namespace
+
+extern "C" {
+
+JNIEXPORT jlong JNICALL
+Java_com_fable_wifisoundthing_audio_LibOpusEncoder_nativeCreate(
+        JNIEnv*, jclass, jint sampleRate, jint channels, jint bitrate, jint complexity) {
+    int error = OPUS_OK;
+    OpusEncoder* encoder = opus_encoder_create(sampleRate, channels, OPUS_APPLICATION_AUDIO, &error);
+    if (error != OPUS_OK || encoder == nullptr) {
+        LOGW("opus_encoder_create failed: %s", opus_strerror(error));
+        return 0;
+    }
+    opus_encoder_ctl(encoder, OPUS_SET_BITRATE(bitrate));
+    opus_encoder_ctl(encoder, OPUS_SET_COMPLEXITY(complexity));
+    return reinterpret_cast<jlong>(encoder);
+}
+
+// Samples of look-ahead, which the OpusHead announces as pre-skip.
+JNIEXPORT jint JNICALL
+Java_com_fable_wifisoundthing_audio_LibOpusEncoder_nativeLookahead(JNIEnv*, jclass, jlong handle) {
+    opus_int32 lookahead = 0;
+    if (opus_encoder_ctl(encoderOf(handle), OPUS_GET_LOOKAHEAD(&lookahead)) != OPUS_OK) return -1;
+    return lookahead;
+}
+
+// Encodes one frame of interleaved 16-bit LE PCM from pcm[offset]; returns the packet
+// size written to out, or a negative libopus error.
+JNIEXPORT jint JNICALL
+Java_com_fable_wifisoundthing_audio_LibOpusEncoder_nativeEncode(
+        JNIEnv* env, jclass, jlong handle, jbyteArray pcm, jint offset, jint frameSamples,
+        jint channels, jbyteArray out) {
+    const jint samples = frameSamples * channels;
+    if (samples > kMaxFrameSamples) return OPUS_BAD_ARG;
+    opus_int16 input[kMaxFrameSamples];
+    env->GetByteArrayRegion(pcm, offset, samples * 2, reinterpret_cast<jbyte*>(input));
+    unsigned char packet[kMaxPacketBytes];
+    const jint outSize = env->GetArrayLength(out);
+    const opus_int32 size = opus_encode(encoderOf(handle), input, frameSamples, packet,
+                                        outSize < kMaxPacketBytes ? outSize : kMaxPacketBytes);
+    if (size > 0) env->SetByteArrayRegion(out, 0, size, reinterpret_cast<const jbyte*>(packet));
+    return size;
+}
+
+JNIEXPORT void JNICALL
+Java_com_fable_wifisoundthing_audio_LibOpusEncoder_nativeDestroy(JNIEnv*, jclass, jlong handle) {
+    opus_encoder_destroy(encoderOf(handle));
+}
+
+}  // extern "C"
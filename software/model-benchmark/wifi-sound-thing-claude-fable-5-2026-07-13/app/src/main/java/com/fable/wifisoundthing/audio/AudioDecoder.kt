@@ -3,19 +3,44 @@ package com.fable.wifisoundthing.audio
 import android.media.MediaCodec
 import android.media.MediaFormat
 import android.util.Log
+import com.fable.wifisoundthing.protocol.LosslessCodec
 import com.fable.wifisoundthing.protocol.OpusCsd
 import java.io.ByteArrayOutputStream
 import java.nio.ByteBuffer
 
 /**
  * Turns wire payloads back into playable PCM. [PcmDecoder] is a passthrough;
- * [OpusDecoder] wraps Android's MediaCodec Opus decoder (mandatory since Android 5, so
- * the client side is always available).
+ * [LosslessDecoder] undoes [LosslessCodec]; [OpusDecoder] wraps Android's MediaCodec Opus
+ * decoder (mandatory since Android 5, so the client side is always available).
  */
 interface AudioDecoder {
+    /** Where [decodeTo] puts PCM; a buffer passed in is only valid during the call. */
+    interface Sink {
+        fun write(pcm: ByteArray, size: Int)
+
+        /** [size] bytes from [pcm]'s position. */
+        fun write(pcm: ByteBuffer, size: Int)
+    }
+
     /** Decodes one packet payload; may return an empty array (codec still priming). */
     fun decode(payload: ByteArray, ptsUs: Long): ByteArray
 
+    /**
+     * Decodes one packet payload into [sink], without copying where the decoder allows and
+     * without waiting on it: PCM the decoder has not finished yet comes out of a later call.
+     */
+    fun decodeTo(payload: ByteArray, ptsUs: Long, sink: Sink) {
+        val pcm = decode(payload, ptsUs)
+        if (pcm.isNotEmpty()) sink.write(pcm, pcm.size)
+    }
+
+    /** Packets fed in whose PCM has not come out yet; adds to the output delay. */
+    val pendingPackets: Int
+        get() = 0
+
+    /** Writes out everything still inside the decoder, e.g. before the stream switches codec. */
+    fun flushTo(sink: Sink) = Unit
+
     fun release()
 }
 
@@ -24,40 +49,38 @@ class PcmDecoder : AudioDecoder {
     override fun release() = Unit
 }
 
+class LosslessDecoder : AudioDecoder {
+    // A corrupt block plays as a gap, like a lost packet.
+    override fun decode(payload: ByteArray, ptsUs: Long): ByteArray =
+        LosslessCodec.decode(payload) ?: ByteArray(0)
+
+    override fun release() = Unit
+}
+
+/**
+ * [decodeTo] is the steady-state path: the codec's own output buffers go to the sink and
+ * are released right after, and it never waits on the codec, so nothing is allocated and
+ * a slow decoder delays its output by a packet rather than stalling playback.
+ */
 class OpusDecoder private constructor(private val codec: MediaCodec) : AudioDecoder {
+    private val info = MediaCodec.BufferInfo()
+
+    // Only the play thread touches the codec.
+    private var inFlight = 0
+
+    override val pendingPackets: Int get() = inFlight
 
     override fun decode(payload: ByteArray, ptsUs: Long): ByteArray {
         try {
-            val inIndex = codec.dequeueInputBuffer(10_000)
-            if (inIndex >= 0) {
-                val buf = codec.getInputBuffer(inIndex)!!
-                buf.clear()
-                buf.put(payload)
-                codec.queueInputBuffer(inIndex, 0, payload.size, ptsUs, 0)
-            }
-            val info = MediaCodec.BufferInfo()
+            queue(payload, ptsUs, 10_000)
             var out: ByteArrayOutputStream? = null
-            // First wait briefly for output (decode is fast, but give it a moment),
-            // then sweep up anything else that is already available.
-            var timeoutUs = 5_000L
-            while (true) {
-                val index = codec.dequeueOutputBuffer(info, timeoutUs)
-                if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED ||
-                    index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED
-                ) {
-                    continue
-                }
-                if (index < 0) break
-                if (info.size > 0) {
-                    if (out == null) out = ByteArrayOutputStream(info.size)
-                    val buf = codec.getOutputBuffer(index)!!
-                    val bytes = ByteArray(info.size)
-                    buf.position(info.offset)
-                    buf.get(bytes)
-                    out.write(bytes)
-                }
-                codec.releaseOutputBuffer(index, false)
-                timeoutUs = 0L
+            // Wait briefly for output (decode is fast, but give it a moment) and sweep up
+            // anything else that is already available.
+            drain(5_000) { buf, size ->
+                if (out == null) out = ByteArrayOutputStream(size)
+                val bytes = ByteArray(size)
+                buf.get(bytes)
+                out!!.write(bytes)
             }
             return out?.toByteArray() ?: EMPTY
         } catch (e: Exception) {
@@ -66,6 +89,75 @@ class OpusDecoder private constructor(private val codec: MediaCodec) : AudioDeco
         }
     }
 
+    override fun decodeTo(payload: ByteArray, ptsUs: Long, sink: AudioDecoder.Sink) {
+        try {
+            // Output first: it frees input buffers, and it was ready before this packet.
+            drain(0) { buf, size -> sink.write(buf, size) }
+            if (!queue(payload, ptsUs, 0)) {
+                drain(0) { buf, size -> sink.write(buf, size) }
+                // Every input buffer is still busy; the packet is lost like a dropped one.
+                if (!queue(payload, ptsUs, 0)) return
+            }
+            drain(0) { buf, size -> sink.write(buf, size) }
+        } catch (e: Exception) {
+            Log.w(TAG, "opus decode failed", e)
+        }
+    }
+
+    override fun flushTo(sink: AudioDecoder.Sink) {
+        try {
+            while (inFlight > 0) {
+                val before = inFlight
+                drain(FLUSH_WAIT_US) { buf, size -> sink.write(buf, size) }
+                if (inFlight == before) break // the codec holds on to it; give up
+            }
+        } catch (e: Exception) {
+            Log.w(TAG, "opus flush failed", e)
+        }
+        inFlight = 0
+    }
+
+    private fun queue(payload: ByteArray, ptsUs: Long, timeoutUs: Long): Boolean {
+        val inIndex = codec.dequeueInputBuffer(timeoutUs)
+        if (inIndex < 0) return false
+        val buf = codec.getInputBuffer(inIndex)!!
+        buf.clear()
+        buf.put(payload)
+        codec.queueInputBuffer(inIndex, 0, payload.size, ptsUs, 0)
+        inFlight++
+        return true
+    }
+
+    /**
+     * Hands every finished output buffer, positioned at its PCM, to [write] and releases it
+     * afterwards. Waits up to [firstTimeoutUs] for the first one only.
+     */
+    private inline fun drain(firstTimeoutUs: Long, write: (buf: ByteBuffer, size: Int) -> Unit) {
+        var timeoutUs = firstTimeoutUs
+        while (true) {
+            val index = codec.dequeueOutputBuffer(info, timeoutUs)
+            if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED ||
+                index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED
+            ) {
+                continue
+            }
+            if (index < 0) return
+            if (info.size > 0) {
+                val buf = codec.getOutputBuffer(index)!!
+                buf.limit(info.offset + info.size).position(info.offset)
+                try {
+                    write(buf, info.size)
+                } finally {
+                    codec.releaseOutputBuffer(index, false)
+                }
+                if (inFlight > 0) inFlight--
+            } else {
+                codec.releaseOutputBuffer(index, false)
+            }
+            timeoutUs = 0L
+        }
+    }
+
     override fun release() {
         try {
             codec.stop()
@@ -80,6 +172,7 @@ class OpusDecoder private constructor(private val codec: MediaCodec) : AudioDeco
     companion object {
         private const val TAG = "OpusDecoder"
         private val EMPTY = ByteArray(0)
+        private const val FLUSH_WAIT_US = 5_000L
 
         fun create(opusHead: ByteArray, sampleRate: Int, channels: Int): OpusDecoder? {
             return try {
@@ -1,17 +1,23 @@
 package com.fable.wifisoundthing.audio
 
 import android.media.MediaCodec
+import android.media.MediaCodecList
 import android.media.MediaFormat
+import android.os.Build
 import android.util.Log
+import com.fable.wifisoundthing.protocol.LosslessCodec
 import com.fable.wifisoundthing.protocol.OpusCsd
 import com.fable.wifisoundthing.protocol.PcmChunker
 import com.fable.wifisoundthing.protocol.Wire
 
 /**
- * Turns captured PCM blocks into wire payloads. Two implementations: [OpusEncoder]
- * (Android's MediaCodec Opus encoder, ~128 kbit/s) and [PcmEncoder] (uncompressed
- * fallback, ~1.5 Mbit/s). The host tries Opus first and falls back to PCM automatically,
- * because the platform Opus *encoder* is missing or broken on some devices.
+ * Turns captured PCM blocks into wire payloads. Four implementations: [OpusEncoder]
+ * (Android's MediaCodec Opus encoder, ~128 kbit/s), [LibOpusEncoder] (the bundled
+ * libopus, same bitrate), [LosslessEncoder] (pure Kotlin, about half of PCM) and
+ * [PcmEncoder] (uncompressed, ~1.5 Mbit/s). The host tries the platform's Opus first,
+ * then the bundled one, because the platform Opus *encoder* is missing or broken on some
+ * devices and only does 20 ms frames; lossless is the fallback when the native library
+ * can't be loaded, and PCM the user's last resort.
  */
 interface AudioEncoder {
     data class Frame(val payload: ByteArray, val ptsUs: Long)
@@ -21,18 +27,33 @@ interface AudioEncoder {
     /** Opus identification header for the decoder side; null for PCM. */
     val opusHead: ByteArray?
 
-    /** Feeds one PCM block (16-bit LE, interleaved); returns zero or more encoded frames. */
-    fun encode(pcm: ByteArray, length: Int, ptsUs: Long): List<Frame>
+    /** Duration of one encoded frame, announced in the handshake. */
+    val frameMs: Int
+        get() = Wire.FRAME_MS
+
+    /** [frameMs] exactly, for frames that aren't whole milliseconds (2.5 ms). */
+    val frameUs: Int
+        get() = frameMs * 1000
+
+    /**
+     * Feeds one PCM block (16-bit LE, interleaved) from `pcm[offset, offset + length)`;
+     * returns zero or more encoded frames.
+     */
+    fun encode(pcm: ByteArray, offset: Int, length: Int, ptsUs: Long): List<Frame>
 
     fun release()
 }
 
+/**
+ * Uncompressed PCM in [PcmChunker] slices. The host's capture loop sends the same packets
+ * through [com.fable.wifisoundthing.protocol.PcmPacketizer] instead, without copying.
+ */
 class PcmEncoder : AudioEncoder {
     override val codecId: Byte = Wire.CODEC_PCM16
     override val opusHead: ByteArray? = null
 
-    override fun encode(pcm: ByteArray, length: Int, ptsUs: Long): List<AudioEncoder.Frame> {
-        val chunks = PcmChunker.chunk(pcm, length)
+    override fun encode(pcm: ByteArray, offset: Int, length: Int, ptsUs: Long): List<AudioEncoder.Frame> {
+        val chunks = PcmChunker.chunk(pcm.copyOfRange(offset, offset + length))
         val out = ArrayList<AudioEncoder.Frame>(chunks.size)
         var offsetUs = 0L
         for (chunk in chunks) {
@@ -45,13 +66,35 @@ class PcmEncoder : AudioEncoder {
     override fun release() = Unit
 }
 
+/** [LosslessCodec] over the same 5 ms slices as PCM; runs on any device. */
+class LosslessEncoder(private val channels: Int = Wire.CHANNELS) : AudioEncoder {
+    override val codecId: Byte = Wire.CODEC_LOSSLESS
+    override val opusHead: ByteArray? = null
+
+    override fun encode(pcm: ByteArray, offset: Int, length: Int, ptsUs: Long): List<AudioEncoder.Frame> {
+        val frameBytes = channels * Wire.BYTES_PER_SAMPLE
+        val chunkBytes = (Wire.PCM_CHUNK_BYTES / frameBytes) * frameBytes
+        val out = ArrayList<AudioEncoder.Frame>((length + chunkBytes - 1) / chunkBytes)
+        var pos = 0
+        while (pos < length) {
+            val size = minOf(chunkBytes, length - pos)
+            out.add(AudioEncoder.Frame(LosslessCodec.encode(pcm, offset + pos, size, channels), ptsUs + Wire.pcmBytesToUs(pos)))
+            pos += size
+        }
+        return out
+    }
+
+    override fun release() = Unit
+}
+
 class OpusEncoder private constructor(
     private val codec: MediaCodec,
     override val opusHead: ByteArray,
+    override val frameMs: Int,
 ) : AudioEncoder {
     override val codecId: Byte = Wire.CODEC_OPUS
 
-    override fun encode(pcm: ByteArray, length: Int, ptsUs: Long): List<AudioEncoder.Frame> {
+    override fun encode(pcm: ByteArray, offset: Int, length: Int, ptsUs: Long): List<AudioEncoder.Frame> {
         val out = ArrayList<AudioEncoder.Frame>(2)
         try {
             val inIndex = codec.dequeueInputBuffer(10_000)
@@ -59,7 +102,7 @@ class OpusEncoder private constructor(
                 val buf = codec.getInputBuffer(inIndex)!!
                 buf.clear()
                 val size = minOf(length, buf.capacity())
-                buf.put(pcm, 0, size)
+                buf.put(pcm, offset, size)
                 codec.queueInputBuffer(inIndex, 0, size, ptsUs, 0)
             }
             drain(out)
@@ -73,6 +116,8 @@ class OpusEncoder private constructor(
         val info = MediaCodec.BufferInfo()
         while (true) {
             val index = codec.dequeueOutputBuffer(info, 0)
+            // A started-without-warm-up encoder announces its format with the first frames.
+            if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) continue
             if (index < 0) return
             if (info.flags and MediaCodec.BUFFER_FLAG_CODEC_CONFIG == 0 && info.size > 0) {
                 val buf = codec.getOutputBuffer(index)!!
@@ -96,51 +141,205 @@ class OpusEncoder private constructor(
         }
     }
 
+    /** What a warm-up found out about an encoder: enough to start it again without one. */
+    class WarmUp(val opusHead: ByteArray, val frameMs: Int)
+
+    /** Keeps [WarmUp]s across runs, under keys naming the OS build, encoder, rate and channels. */
+    interface WarmUpStore {
+        fun load(key: String): WarmUp?
+        fun save(key: String, warmUp: WarmUp)
+        fun remove(key: String)
+    }
+
     companion object {
         private const val TAG = "OpusEncoder"
 
+        /** Opus encoder complexity, 0 (fastest) to 10 (best); the platform default is usually 5. */
+        const val DEFAULT_COMPLEXITY = 5
+
+        /** The only frame duration the platform encoders are asked for (they can't be told another). */
+        const val FRAME_US = Wire.FRAME_MS * 1000
+
+        /** Encoded frames a candidate must produce during warm-up to be trusted. */
+        private const val PROBE_FRAMES = 3
+
+        /** Silent 20 ms blocks a remembered encoder gets to produce its first frame. */
+        private const val CHECK_BLOCKS = 10
+
         /**
-         * Creates and warms up the platform Opus encoder. Feeds silence until the codec
-         * config (OpusHead) appears so the handshake can advertise it. Returns null on any
-         * failure — the caller then falls back to [PcmEncoder].
+         * Finds a working Opus encoder. Every Opus encoder the device lists is tried in
+         * the platform's order of preference, not just the default one, since on some
+         * phones the first is broken while another works. A candidate counts as working
+         * only once its warm-up actually produces encoded frames. Returns null if none
+         * does — the caller then falls back to [LosslessEncoder].
+         *
+         * With a [store], an encoder that warmed up fine on this OS build before is tried
+         * first and started straight away with the remembered header and frame duration;
+         * the warm-up (up to a second) only runs the first time. If the remembered encoder
+         * no longer opens or stays silent, its entry is dropped and the full search runs.
          */
         fun create(
             sampleRate: Int = Wire.SAMPLE_RATE,
             channels: Int = Wire.CHANNELS,
             bitrate: Int = Wire.OPUS_BITRATE,
+            complexity: Int = DEFAULT_COMPLEXITY,
+            store: WarmUpStore? = null,
+        ): OpusEncoder? {
+            val names = try {
+                MediaCodecList(MediaCodecList.REGULAR_CODECS).codecInfos
+                    .filter { info ->
+                        info.isEncoder && !info.isAlias &&
+                            info.supportedTypes.any { it.equals(MediaFormat.MIMETYPE_AUDIO_OPUS, ignoreCase = true) }
+                    }
+                    .map { it.name }
+            } catch (e: Exception) {
+                Log.w(TAG, "could not list codecs", e)
+                emptyList()
+            }
+            if (store != null) {
+                for (name in names) {
+                    val key = warmUpKey(name, sampleRate, channels)
+                    val warmUp = store.load(key) ?: continue
+                    startWarm(name, warmUp, sampleRate, channels, bitrate, complexity)?.let { return it }
+                    store.remove(key)
+                }
+            }
+            for (name in names) {
+                create(name, sampleRate, channels, bitrate, complexity, store)?.let { return it }
+            }
+            Log.w(TAG, "no working Opus encoder among $names, falling back to lossless")
+            return null
+        }
+
+        private fun create(
+            name: String,
+            sampleRate: Int,
+            channels: Int,
+            bitrate: Int,
+            complexity: Int,
+            store: WarmUpStore?,
         ): OpusEncoder? {
             var codec: MediaCodec? = null
             try {
-                codec = MediaCodec.createEncoderByType(MediaFormat.MIMETYPE_AUDIO_OPUS)
+                codec = open(name, sampleRate, channels, bitrate, complexity)
+
+                val probe = warmUp(codec, sampleRate, channels)
+                if (probe.frames == 0) {
+                    Log.w(TAG, "$name produced no audio during warm-up")
+                    release(codec)
+                    return null
+                }
+                val head = probe.head ?: OpusCsd.defaultOpusHead(channels, sampleRate)
+                Log.i(TAG, "using $name, ${probe.frameMs} ms frames")
+                store?.save(warmUpKey(name, sampleRate, channels), WarmUp(head, probe.frameMs))
+                return OpusEncoder(codec, head, probe.frameMs)
+            } catch (e: Exception) {
+                Log.w(TAG, "Opus encoder $name unavailable", e)
+                codec?.let { release(it) }
+                return null
+            }
+        }
+
+        /** Starts [name] as it was last time, with only a quick check that it still encodes. */
+        private fun startWarm(
+            name: String,
+            warmUp: WarmUp,
+            sampleRate: Int,
+            channels: Int,
+            bitrate: Int,
+            complexity: Int,
+        ): OpusEncoder? {
+            var codec: MediaCodec? = null
+            try {
+                codec = open(name, sampleRate, channels, bitrate, complexity)
+                if (!producesFrames(codec, sampleRate, channels)) {
+                    Log.w(TAG, "remembered Opus encoder $name produced no audio")
+                    release(codec)
+                    return null
+                }
+                Log.i(TAG, "using $name, ${warmUp.frameMs} ms frames (remembered)")
+                return OpusEncoder(codec, warmUp.opusHead, warmUp.frameMs)
+            } catch (e: Exception) {
+                Log.w(TAG, "remembered Opus encoder $name unavailable", e)
+                codec?.let { release(it) }
+                return null
+            }
+        }
+
+        private fun open(name: String, sampleRate: Int, channels: Int, bitrate: Int, complexity: Int): MediaCodec {
+            val codec = MediaCodec.createByCodecName(name)
+            try {
                 val format = MediaFormat.createAudioFormat(
                     MediaFormat.MIMETYPE_AUDIO_OPUS, sampleRate, channels
                 )
                 format.setInteger(MediaFormat.KEY_BIT_RATE, bitrate)
+                format.setInteger(MediaFormat.KEY_COMPLEXITY, complexity.coerceIn(0, 10))
                 codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE)
                 codec.start()
-
-                val head = warmUp(codec, sampleRate, channels)
-                    ?: OpusCsd.defaultOpusHead(channels, sampleRate)
-                return OpusEncoder(codec, head)
+                return codec
             } catch (e: Exception) {
-                Log.w(TAG, "platform Opus encoder unavailable, falling back to PCM", e)
-                try {
-                    codec?.release()
-                } catch (_: Exception) {
+                release(codec)
+                throw e
+            }
+        }
+
+        // The build fingerprint changes with every OS update, which may change the encoder.
+        private fun warmUpKey(name: String, sampleRate: Int, channels: Int): String =
+            "${Build.FINGERPRINT}/$name/$sampleRate/$channels"
+
+        private fun release(codec: MediaCodec) {
+            try {
+                codec.release()
+            } catch (_: Exception) {
+            }
+        }
+
+        /** Feeds up to [CHECK_BLOCKS] blocks of silence; true once an encoded frame comes out. */
+        private fun producesFrames(codec: MediaCodec, sampleRate: Int, channels: Int): Boolean {
+            val blockBytes = sampleRate / 50 * channels * 2 // 20 ms
+            val info = MediaCodec.BufferInfo()
+            var ptsUs = 0L
+            repeat(CHECK_BLOCKS) {
+                val inIndex = codec.dequeueInputBuffer(20_000)
+                if (inIndex >= 0) {
+                    val buf = codec.getInputBuffer(inIndex)!!
+                    buf.clear()
+                    val size = minOf(blockBytes, buf.capacity())
+                    buf.put(ByteArray(size))
+                    codec.queueInputBuffer(inIndex, 0, size, ptsUs, 0)
+                    ptsUs += 20_000
+                }
+                var outIndex = codec.dequeueOutputBuffer(info, 20_000)
+                while (outIndex >= 0 || outIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    if (outIndex >= 0) {
+                        val frame = info.flags and MediaCodec.BUFFER_FLAG_CODEC_CONFIG == 0 && info.size > 0
+                        codec.releaseOutputBuffer(outIndex, false)
+                        if (frame) return true
+                    }
+                    outIndex = codec.dequeueOutputBuffer(info, 0)
                 }
-                return null
             }
+            return false
         }
 
-        /** Feeds silence until csd-0 shows up (max ~1 s); returns the extracted OpusHead. */
-        private fun warmUp(codec: MediaCodec, sampleRate: Int, channels: Int): ByteArray? {
+        private class Probe(val head: ByteArray?, val frames: Int, val frameMs: Int)
+
+        /**
+         * Feeds silence until csd-0 and a few encoded frames show up (max ~1 s). Returns
+         * the extracted OpusHead, how many frames came out, and their duration as told
+         * by the spacing of their timestamps.
+         */
+        private fun warmUp(codec: MediaCodec, sampleRate: Int, channels: Int): Probe {
             val blockBytes = sampleRate / 50 * channels * 2 // 20 ms
             val silence = ByteArray(blockBytes)
             val info = MediaCodec.BufferInfo()
             var ptsUs = 0L
             val deadline = System.nanoTime() + 1_000_000_000L
             var head: ByteArray? = null
-            while (System.nanoTime() < deadline && head == null) {
+            var frames = 0
+            var lastFramePtsUs = -1L
+            var frameUs = 0L
+            while (System.nanoTime() < deadline && (head == null || frames < PROBE_FRAMES)) {
                 val inIndex = codec.dequeueInputBuffer(20_000)
                 if (inIndex >= 0) {
                     val buf = codec.getInputBuffer(inIndex)!!
@@ -163,11 +362,151 @@ class OpusEncoder private constructor(
                         buf.position(info.offset)
                         buf.get(bytes)
                         head = OpusCsd.extractOpusHead(bytes)
+                    } else if (info.size > 0) {
+                        frames++
+                        if (lastFramePtsUs >= 0 && info.presentationTimeUs > lastFramePtsUs) {
+                            frameUs = info.presentationTimeUs - lastFramePtsUs
+                        }
+                        lastFramePtsUs = info.presentationTimeUs
                     }
                     codec.releaseOutputBuffer(outIndex, false)
                 }
             }
-            return head
+            val frameMs = if (frameUs > 0) ((frameUs + 500) / 1000).toInt().coerceIn(1, 120) else Wire.FRAME_MS
+            return Probe(head, frames, frameMs)
+        }
+    }
+}
+
+/** The host's Opus settings: frame duration (one of [LibOpusEncoder.FRAME_US]) and complexity. */
+data class OpusOptions(
+    val frameUs: Int = OpusEncoder.FRAME_US,
+    /** 0 (fastest) to 10 (best). */
+    val complexity: Int = OpusEncoder.DEFAULT_COMPLEXITY,
+)
+
+/**
+ * libopus, built with the app (app/src/main/cpp) and called through JNI. Unlike the
+ * platform encoders it can make 2.5, 5 or 10 ms frames as well as 20 ms, trading some
+ * bitrate efficiency for less latency on the host, and it encodes the same on every
+ * phone. Not thread-safe: [encode] and [release] come from the encoder thread.
+ */
+class LibOpusEncoder private constructor(
+    private var handle: Long,
+    private val channels: Int,
+    override val frameUs: Int,
+    override val opusHead: ByteArray,
+    sampleRate: Int,
+) : AudioEncoder {
+    override val codecId: Byte = Wire.CODEC_OPUS
+
+    // Only for listeners that read frameUs: while one that doesn't is connected, the host
+    // makes whole-millisecond frames instead (CodecPolicy.optionsFor).
+    override val frameMs: Int = (frameUs + 999) / 1000
+
+    private val frameSamples = (sampleRate.toLong() * frameUs / 1_000_000).toInt()
+    private val frameBytes = frameSamples * channels * Wire.BYTES_PER_SAMPLE
+
+    /** The start of a frame left over from the last block, when blocks aren't whole frames. */
+    private val carry = ByteArray(frameBytes)
+    private var carryBytes = 0
+    private var carryPtsUs = 0L
+    private val packet = ByteArray(MAX_PACKET_BYTES)
+
+    override fun encode(pcm: ByteArray, offset: Int, length: Int, ptsUs: Long): List<AudioEncoder.Frame> {
+        val out = ArrayList<AudioEncoder.Frame>(length / frameBytes + 1)
+        if (handle == 0L) return out
+        var pos = 0
+        if (carryBytes > 0) {
+            val size = minOf(frameBytes - carryBytes, length)
+            System.arraycopy(pcm, offset, carry, carryBytes, size)
+            carryBytes += size
+            pos = size
+            if (carryBytes < frameBytes) return out
+            encodeFrame(carry, 0, carryPtsUs, out)
+            carryBytes = 0
+        }
+        while (length - pos >= frameBytes) {
+            encodeFrame(pcm, offset + pos, ptsUs + Wire.pcmBytesToUs(pos), out)
+            pos += frameBytes
+        }
+        if (pos < length) {
+            System.arraycopy(pcm, offset + pos, carry, 0, length - pos)
+            carryBytes = length - pos
+            carryPtsUs = ptsUs + Wire.pcmBytesToUs(pos)
+        }
+        return out
+    }
+
+    private fun encodeFrame(pcm: ByteArray, offset: Int, ptsUs: Long, out: MutableList<AudioEncoder.Frame>) {
+        val size = nativeEncode(handle, pcm, offset, frameSamples, channels, packet)
+        if (size > 0) {
+            out.add(AudioEncoder.Frame(packet.copyOf(size), ptsUs))
+        } else {
+            Log.w(TAG, "opus_encode failed: $size")
+        }
+    }
+
+    override fun release() {
+        if (handle != 0L) {
+            nativeDestroy(handle)
+            handle = 0
+        }
+    }
+
+    companion object {
+        private const val TAG = "LibOpusEncoder"
+
+        /** The frame durations offered in settings: 2.5, 5, 10 and 20 ms. */
+        val FRAME_US = intArrayOf(2_500, 5_000, 10_000, 20_000)
+
+        /** libopus's own upper bound for one packet. */
+        private const val MAX_PACKET_BYTES = 1275
+
+        /** Whether the native library loaded; false e.g. for an ABI it wasn't built for. */
+        val isAvailable: Boolean by lazy {
+            try {
+                System.loadLibrary("wstopus")
+                true
+            } catch (e: UnsatisfiedLinkError) {
+                Log.w(TAG, "libopus not available", e)
+                false
+            }
+        }
+
+        /** A ready encoder, or null if the library is missing or refuses the settings. */
+        fun create(
+            sampleRate: Int = Wire.SAMPLE_RATE,
+            channels: Int = Wire.CHANNELS,
+            bitrate: Int = Wire.OPUS_BITRATE,
+            options: OpusOptions = OpusOptions(),
+        ): LibOpusEncoder? {
+            if (options.frameUs !in FRAME_US || !isAvailable) return null
+            val handle = nativeCreate(sampleRate, channels, bitrate, options.complexity.coerceIn(0, 10))
+            if (handle == 0L) return null
+            val lookahead = nativeLookahead(handle)
+            // OpusHead counts pre-skip at 48 kHz whatever the input rate.
+            val head = if (lookahead >= 0) {
+                OpusCsd.defaultOpusHead(channels, sampleRate, (lookahead.toLong() * 48_000 / sampleRate).toInt())
+            } else {
+                OpusCsd.defaultOpusHead(channels, sampleRate)
+            }
+            Log.i(TAG, "using libopus, ${options.frameUs} us frames, complexity ${options.complexity}")
+            return LibOpusEncoder(handle, channels, options.frameUs, head, sampleRate)
         }
+
+        @JvmStatic
+        private external fun nativeCreate(sampleRate: Int, channels: Int, bitrate: Int, complexity: Int): Long
+
+        @JvmStatic
+        private external fun nativeLookahead(handle: Long): Int
+
+        @JvmStatic
+        private external fun nativeEncode(
+            handle: Long, pcm: ByteArray, offset: Int, frameSamples: Int, channels: Int, out: ByteArray,
+        ): Int
+
+        @JvmStatic
+        private external fun nativeDestroy(handle: Long)
     }
 }
@@ -0,0 +1,57 @@
+package com.fable.wifisoundthing.audio
+
+import android.util.Log
+import com.fable.wifisoundthing.protocol.OpusCsd
+import com.fable.wifisoundthing.protocol.Wire
+
+/**
+ * The client's decoders, one per codec id, each created the first time a packet of that
+ * codec comes up for playback and kept until [release]. Every packet names its codec, so
+ * when the host switches mid-stream the player just picks the other decoder at that exact
+ * packet. Only the play thread uses it.
+ *
+ * [opusHead] is read when the Opus decoder is created: the host announces a new one with
+ * the switch, and the default header stands in if the packets get here first.
+ */
+class DecoderCache(
+    private val sampleRate: Int,
+    private val channels: Int,
+    private val opusHead: () -> ByteArray?,
+) {
+    private val decoders = HashMap<Byte, AudioDecoder>()
+    private val unavailable = HashSet<Byte>()
+
+    /** The decoder for [codec], or null if this phone can't decode it (tried once only). */
+    fun get(codec: Byte): AudioDecoder? {
+        decoders[codec]?.let { return it }
+        if (codec in unavailable) return null
+        val decoder = create(codec)
+        if (decoder == null) {
+            Log.w(TAG, "no decoder for ${Wire.codecName(codec)}")
+            unavailable.add(codec)
+        } else {
+            decoders[codec] = decoder
+        }
+        return decoder
+    }
+
+    private fun create(codec: Byte): AudioDecoder? = when (codec) {
+        Wire.CODEC_OPUS -> OpusDecoder.create(
+            opusHead() ?: OpusCsd.defaultOpusHead(channels, sampleRate),
+            sampleRate,
+            channels,
+        )
+        Wire.CODEC_PCM16 -> PcmDecoder()
+        Wire.CODEC_LOSSLESS -> LosslessDecoder()
+        else -> null
+    }
+
+    fun release() {
+        for (decoder in decoders.values) decoder.release()
+        decoders.clear()
+    }
+
+    companion object {
+        private const val TAG = "DecoderCache"
+    }
+}
@@ -77,6 +77,7 @@ class ClientService : Service() {
                 "safe" -> 120
                 else -> 60
             },
+            udpControl = prefs.udpControl,
         ).also { it.start() }
 
         if (notificationJob == null) {
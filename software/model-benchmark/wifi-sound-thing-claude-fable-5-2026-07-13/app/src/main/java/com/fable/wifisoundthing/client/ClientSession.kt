@@ -2,54 +2,63 @@ package com.fable.wifisoundthing.client
 
 import android.media.AudioAttributes
 import android.media.AudioFormat
+import android.media.AudioTimestamp
 import android.media.AudioTrack
 import android.os.SystemClock
 import android.util.Log
 import com.fable.wifisoundthing.audio.AudioDecoder
-import com.fable.wifisoundthing.audio.OpusDecoder
-import com.fable.wifisoundthing.audio.PcmDecoder
+import com.fable.wifisoundthing.audio.DecoderCache
 import com.fable.wifisoundthing.protocol.AudioPacket
+import com.fable.wifisoundthing.protocol.ClockSync
 import com.fable.wifisoundthing.protocol.ControlMessage
 import com.fable.wifisoundthing.protocol.JitterBuffer
-import com.fable.wifisoundthing.protocol.OpusCsd
+import com.fable.wifisoundthing.protocol.PlayoutSync
 import com.fable.wifisoundthing.protocol.Wire
 import com.fable.wifisoundthing.state.ClientPhase
 import com.fable.wifisoundthing.state.ClientStateHolder
-import java.io.BufferedReader
-import java.io.BufferedWriter
 import java.io.IOException
-import java.io.InputStreamReader
-import java.io.OutputStreamWriter
 import java.net.ConnectException
 import java.net.DatagramPacket
 import java.net.DatagramSocket
 import java.net.InetSocketAddress
 import java.net.NoRouteToHostException
-import java.net.Socket
+import java.net.PortUnreachableException
 import java.net.SocketTimeoutException
+import java.net.UnknownHostException
+import java.nio.ByteBuffer
 import java.util.concurrent.atomic.AtomicBoolean
 import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicReference
 import kotlin.concurrent.thread
 import kotlin.math.max
 import kotlin.math.min
 
 /**
- * One client connection lifecycle, including automatic reconnection: TCP handshake, UDP
- * audio reception into a [JitterBuffer], decoding, and low-latency [AudioTrack] playback.
- * Publishes live status to [ClientStateHolder].
+ * One client connection lifecycle, including automatic reconnection: control handshake,
+ * UDP audio reception into a [JitterBuffer], decoding, and low-latency [AudioTrack]
+ * playback. Publishes live status to [ClientStateHolder].
+ *
+ * With [udpControl] the control messages travel on the audio socket itself
+ * ([UdpControlLink]) instead of a separate TCP connection ([TcpControlLink]).
+ *
+ * If the host asks for synchronized playout ([ControlMessage.Config.playoutDelayMs]),
+ * the client keeps a [ClockSync] estimate of the host clock over the control channel
+ * and lets [PlayoutSync] hold, stretch or drop packets so each one is heard at its
+ * capture time plus that delay — the same moment on every listening phone.
  */
 class ClientSession(
     private val hostAddress: String,
     private val hostPort: Int,
     private val deviceName: String,
     private val targetBufferMs: Int,
+    private val udpControl: Boolean = false,
 ) {
     @Volatile
     private var running = false
     private var mainThread: Thread? = null
 
     @Volatile
-    private var currentSocket: Socket? = null
+    private var currentLink: ControlLink? = null
 
     @Volatile
     private var currentUdp: DatagramSocket? = null
@@ -61,13 +70,13 @@ class ClientSession(
 
     fun stop() {
         running = false
-        try {
-            currentSocket?.close()
-        } catch (_: Exception) {
-        }
-        try {
-            currentUdp?.close()
-        } catch (_: Exception) {
+        currentLink?.close()
+        // A UDP link still says bye on the socket before the session closes it.
+        if (!udpControl) {
+            try {
+                currentUdp?.close()
+            } catch (_: Exception) {
+            }
         }
         mainThread?.join(3_000)
         ClientStateHolder.reset()
@@ -116,45 +125,40 @@ class ClientSession(
         val bytesReceived = AtomicLong(0)
         val udp = DatagramSocket()
         currentUdp = udp
-        val socket = Socket()
-        currentSocket = socket
-        var decoder: AudioDecoder? = null
+        val hostEndpoint = InetSocketAddress(hostAddress, hostPort)
+        val link: ControlLink = if (udpControl) UdpControlLink(udp) else TcpControlLink()
+        currentLink = link
+        var decoders: DecoderCache? = null
         var receiverThread: Thread? = null
         var playerThread: Thread? = null
         try {
-            socket.connect(InetSocketAddress(hostAddress, hostPort), CONNECT_TIMEOUT_MS)
-            socket.tcpNoDelay = true
-            val reader = BufferedReader(InputStreamReader(socket.getInputStream(), Charsets.UTF_8))
-            val writer = BufferedWriter(OutputStreamWriter(socket.getOutputStream(), Charsets.UTF_8))
-
-            sendLine(writer, ControlMessage.Hello(deviceName, udp.localPort))
-            socket.soTimeout = HANDSHAKE_TIMEOUT_MS
-            val config = ControlMessage.parse(
-                reader.readLine() ?: throw IOException("host closed the connection")
-            ) as? ControlMessage.Config ?: throw HandshakeException()
-
-            decoder = when (config.codec) {
-                "opus" -> OpusDecoder.create(
-                    config.opusHead ?: OpusCsd.defaultOpusHead(config.channels, config.sampleRate),
-                    config.sampleRate,
-                    config.channels,
-                ) ?: throw DecoderException()
-                "pcm16" -> PcmDecoder()
+            if (hostEndpoint.isUnresolved) throw UnknownHostException(hostAddress)
+            if (link is TcpControlLink) {
+                link.connect(hostEndpoint, CONNECT_TIMEOUT_MS)
+            } else {
+                // Only the host's datagrams reach us, and sends need no address.
+                udp.connect(hostEndpoint)
+            }
+            val hello = ControlMessage.Hello(deviceName, udp.localPort)
+            val config = when (val reply = link.handshake(hello, HANDSHAKE_TIMEOUT_MS)) {
+                is ControlMessage.Config -> reply
+                is ControlMessage.Bye -> throw ByeException(reply.reason)
                 else -> throw HandshakeException()
             }
 
+            // The host may switch codec mid-stream and announce it with a new config; the
+            // packets themselves say which decoder they need.
+            val announced = AtomicReference(config)
+            val codec = Wire.codecId(config.codec) ?: throw UnsupportedCodecException(config.codec)
+            val cache = DecoderCache(config.sampleRate, config.channels) { announced.get().opusHead }
+            decoders = cache
+            // The codec we start with must work here; a later one that doesn't plays as a gap.
+            cache.get(codec) ?: throw DecoderException()
+
             val bytesPerMs = config.sampleRate * config.channels * Wire.BYTES_PER_SAMPLE / 1000
-            val packetMs = if (config.codec == "pcm16") {
-                max(1, Wire.PCM_CHUNK_BYTES / bytesPerMs)
-            } else {
-                config.frameMs
-            }
-            val prebuffer = max(2, targetBufferMs / packetMs)
-            val jitterBuffer = JitterBuffer(
-                prebufferPackets = prebuffer,
-                maxDepthPackets = max(25, prebuffer * 8),
-                reorderWindow = 2,
-            )
+            val clockSync = if (config.playoutDelayMs > 0) ClockSync() else null
+            val jitterBuffer = JitterBuffer(reorderWindow = REORDER_WINDOW)
+            sizeBuffer(jitterBuffer, packetUs(codec, config, bytesPerMs), config, bytesPerMs)
 
             onConnected()
             ClientStateHolder.update {
@@ -167,51 +171,93 @@ class ClientSession(
             }
 
             receiverThread = thread(name = "client-udp") {
-                receiveLoop(active, udp, jitterBuffer, bytesReceived)
+                receiveLoop(active, udp, jitterBuffer, bytesReceived, link as? UdpControlLink)
             }
             playerThread = thread(name = "client-player") {
-                playLoop(active, jitterBuffer, decoder!!, config, packetMs, bytesPerMs, bytesReceived)
+                playLoop(active, jitterBuffer, cache, codec, announced, bytesPerMs, bytesReceived, clockSync)
             }
 
             // Control loop: answer for liveness. Any exception tears the session down.
-            socket.soTimeout = PING_INTERVAL_MS
+            // In sync mode clock probes replace pings: a quick burst, then one per second.
+            if (clockSync != null) link.send(ControlMessage.TimeSync(nowUs()))
+            val intervalMs = if (clockSync != null) SYNC_INTERVAL_MS else PING_INTERVAL_MS
             var lastRxMs = SystemClock.elapsedRealtime()
             while (active.get() && running) {
-                try {
-                    val line = reader.readLine() ?: throw IOException("host closed the connection")
-                    lastRxMs = SystemClock.elapsedRealtime()
-                    when (val msg = ControlMessage.parse(line)) {
-                        is ControlMessage.Bye -> throw ByeException(msg.reason)
-                        else -> {} // pong or anything else: liveness confirmed
+                when (val msg = link.receive(intervalMs)) {
+                    null -> {
+                        if (SystemClock.elapsedRealtime() - lastRxMs > LIVENESS_TIMEOUT_MS) {
+                            throw IOException("host is not responding")
+                        }
+                        link.send(if (clockSync != null) ControlMessage.TimeSync(nowUs()) else ControlMessage.Ping)
                     }
-                } catch (_: SocketTimeoutException) {
-                    if (SystemClock.elapsedRealtime() - lastRxMs > LIVENESS_TIMEOUT_MS) {
-                        throw IOException("host is not responding")
+                    is ControlMessage.Bye -> throw ByeException(msg.reason)
+                    is ControlMessage.Config -> {
+                        // The host switched codec; the player picks it up from the packets.
+                        lastRxMs = SystemClock.elapsedRealtime()
+                        announced.set(msg)
                     }
-                    sendLine(writer, ControlMessage.Ping)
+                    is ControlMessage.TimeSyncReply -> {
+                        lastRxMs = SystemClock.elapsedRealtime()
+                        if (clockSync != null) {
+                            clockSync.onReply(msg.sentUs, msg.hostUs, nowUs())
+                            if (clockSync.sampleCount < SYNC_BURST) {
+                                link.send(ControlMessage.TimeSync(nowUs()))
+                            }
+                        }
+                    }
+                    else -> lastRxMs = SystemClock.elapsedRealtime() // pong or anything else: liveness confirmed
                 }
             }
         } finally {
             active.set(false)
-            try {
-                socket.close()
-            } catch (_: Exception) {
+            if (!running && link is UdpControlLink) {
+                // No connection to close: tell the host we're gone so it stops sending now.
+                try {
+                    link.send(ControlMessage.Bye("Listener disconnected"))
+                } catch (_: Exception) {
+                }
             }
+            link.close()
             try {
                 udp.close()
             } catch (_: Exception) {
             }
             receiverThread?.join(2_000)
             playerThread?.join(2_000)
-            decoder?.release()
+            decoders?.release()
         }
     }
 
+    /**
+     * Sizes [jitterBuffer] for packets of [packetUs]. The buffer target is in milliseconds,
+     * so its packet counts are redone whenever a codec switch changes the packet duration.
+     */
+    private fun sizeBuffer(jitterBuffer: JitterBuffer, packetUs: Long, config: ControlMessage.Config, bytesPerMs: Int) {
+        val prebuffer = max(2, (targetBufferMs * 1000L / packetUs).toInt())
+        jitterBuffer.resize(
+            prebufferPackets = prebuffer,
+            // In sync mode packets wait up to the playout delay; don't trim them as overflow.
+            // Sized for the shortest packets a switch could leave queued behind the new ones.
+            maxDepthPackets = max(
+                max(25, prebuffer * 8),
+                (2_000L * config.playoutDelayMs / min(packetUs, packetUs(Wire.CODEC_PCM16, config, bytesPerMs))).toInt(),
+            ),
+        )
+    }
+
+    /**
+     * Playback time per packet: one Opus frame (as short as 2.5 ms), or a PCM_CHUNK_BYTES
+     * slice for PCM and lossless.
+     */
+    private fun packetUs(codec: Byte, config: ControlMessage.Config, bytesPerMs: Int): Long =
+        if (codec == Wire.CODEC_OPUS) config.frameUs.toLong() else max(1_000L, Wire.PCM_CHUNK_BYTES * 1_000L / bytesPerMs)
+
     private fun receiveLoop(
         active: AtomicBoolean,
         udp: DatagramSocket,
         jitterBuffer: JitterBuffer,
         bytesReceived: AtomicLong,
+        controlLink: UdpControlLink?,
     ) {
         try {
             udp.soTimeout = 1_000
@@ -223,8 +269,12 @@ class ClientSession(
             try {
                 val datagram = DatagramPacket(buf, buf.size)
                 udp.receive(datagram)
-                val packet = AudioPacket.parse(datagram.data, datagram.length) ?: continue
-                jitterBuffer.push(packet.seq, packet.payload)
+                val packet = AudioPacket.parse(datagram.data, datagram.length)
+                if (packet == null) {
+                    controlLink?.onDatagram(datagram.data, datagram.length)
+                    continue
+                }
+                jitterBuffer.push(packet.seq, packet.payload, packet.ptsUs, packet.codec)
                 bytesReceived.addAndGet(datagram.length.toLong())
             } catch (_: SocketTimeoutException) {
                 // no packets right now; keep listening while the control channel decides
@@ -237,12 +287,15 @@ class ClientSession(
     private fun playLoop(
         active: AtomicBoolean,
         jitterBuffer: JitterBuffer,
-        decoder: AudioDecoder,
-        config: ControlMessage.Config,
-        packetMs: Int,
+        decoders: DecoderCache,
+        firstCodec: Byte,
+        announced: AtomicReference<ControlMessage.Config>,
         bytesPerMs: Int,
         bytesReceived: AtomicLong,
+        clockSync: ClockSync?,
     ) {
+        // Format, rate and delay are fixed for the session; only codec and frame size change.
+        val config = announced.get()
         val channelMask = if (config.channels == 1) {
             AudioFormat.CHANNEL_OUT_MONO
         } else {
@@ -278,24 +331,84 @@ class ClientSession(
             active.set(false)
             return
         }
-        val silence = ByteArray(packetMs * bytesPerMs)
+        var codec = firstCodec
+        var decoder = decoders.get(codec)
+        var packetUs = packetUs(codec, config, bytesPerMs)
+        var packetBytes = (packetUs * bytesPerMs / 1000).toInt()
+        var silence = ByteArray(packetBytes)
+        val output = OutputPosition(track, config.sampleRate, config.channels * Wire.BYTES_PER_SAMPLE)
+        val sync = clockSync?.let { PlayoutSync(config.sampleRate, config.playoutDelayMs * 1_000L) }
+        // A packet held back by PlayoutSync until its presentation time comes up.
+        var pending: JitterBuffer.PopResult.Packet? = null
+        // Long enough for the reorder window to resolve at the stream's cadence; if nothing
+        // arrives by then the stream has stalled and we come back for stats and shutdown.
+        var waitNanos = packetUs * (REORDER_WINDOW + 1) * 1_000L
         var ptsUs = 0L
         var lastStatsMs = 0L
         var lastStatsBytes = 0L
         try {
             track.play()
             while (active.get()) {
-                when (val result = jitterBuffer.pop()) {
-                    is JitterBuffer.PopResult.Packet -> {
-                        ptsUs += packetMs * 1_000L
-                        val pcm = decoder.decode(result.payload, ptsUs)
-                        if (pcm.isNotEmpty()) track.write(pcm, 0, pcm.size)
-                    }
+                val packet = pending ?: when (val result = jitterBuffer.pop(System.nanoTime() + waitNanos)) {
+                    is JitterBuffer.PopResult.Packet -> result
                     JitterBuffer.PopResult.Missing -> {
-                        track.write(silence, 0, silence.size)
+                        // The decoder's last frames belong before the gap, not after it.
+                        decoder?.flushTo(output)
+                        output.write(silence, packetBytes)
+                        null
+                    }
+                    JitterBuffer.PopResult.Waiting -> null
+                }
+                pending = null
+                if (packet != null && packet.codec != codec) {
+                    // The host switched codec: finish the old decoder's audio, then carry on
+                    // with the new one from exactly this packet.
+                    decoder?.flushTo(output)
+                    codec = packet.codec
+                    decoder = decoders.get(codec)
+                    packetUs = packetUs(codec, announced.get(), bytesPerMs)
+                    sizeBuffer(jitterBuffer, packetUs, config, bytesPerMs)
+                    packetBytes = (packetUs * bytesPerMs / 1000).toInt()
+                    if (silence.size < packetBytes) silence = ByteArray(packetBytes)
+                    waitNanos = packetUs * (REORDER_WINDOW + 1) * 1_000L
+                    val name = Wire.codecName(codec)
+                    ClientStateHolder.update { it.copy(codec = name) }
+                }
+                if (packet != null) {
+                    val offsetUs = clockSync?.offsetUs
+                    val decision = if (sync != null && offsetUs != null) {
+                        sync.decide(
+                            ptsUs = packet.ptsUs,
+                            offsetUs = offsetUs,
+                            localNowUs = nowUs(),
+                            outputDelayUs = output.delayUs() + (decoder?.pendingPackets ?: 0) * packetUs,
+                            canDrop = jitterBuffer.depth() > 0,
+                        )
+                    } else {
+                        PlayoutSync.Decision.Play(0)
                     }
-                    JitterBuffer.PopResult.Waiting -> {
-                        SystemClock.sleep(2)
+                    when (decision) {
+                        is PlayoutSync.Decision.Wait -> {
+                            decoder?.flushTo(output)
+                            output.write(silence, min(packetBytes, decision.silenceFrames * output.frameBytes))
+                            pending = packet
+                        }
+                        PlayoutSync.Decision.Drop -> {}
+                        is PlayoutSync.Decision.Play -> {
+                            ptsUs += packetUs
+                            if (decoder == null) {
+                                // This phone can't decode what the host switched to.
+                                output.write(silence, packetBytes)
+                            } else if (decision.correctionFrames != 0 && sync != null) {
+                                // Stretching needs the PCM in hand; rare, so it may copy.
+                                val pcm = sync.stretch(
+                                    decoder.decode(packet.payload, ptsUs), config.channels, decision.correctionFrames,
+                                )
+                                if (pcm.isNotEmpty()) output.write(pcm, pcm.size)
+                            } else {
+                                decoder.decodeTo(packet.payload, ptsUs, output)
+                            }
+                        }
                     }
                 }
                 val now = SystemClock.elapsedRealtime()
@@ -311,9 +424,14 @@ class ClientSession(
                     ClientStateHolder.update {
                         it.copy(
                             lossPercent = if (total > 0) stats.lost * 100.0 / total else 0.0,
-                            bufferMs = stats.depthPackets * packetMs,
+                            bufferMs = (stats.depthPackets * packetUs / 1000).toInt(),
                             kbps = kbps,
                             packetsReceived = stats.received,
+                            syncErrorMs = if (sync != null && clockSync?.offsetUs != null) {
+                                (sync.errorUs / 1000).toInt()
+                            } else {
+                                null
+                            },
                         )
                     }
                 }
@@ -327,19 +445,59 @@ class ClientSession(
         }
     }
 
-    private fun sendLine(writer: BufferedWriter, message: ControlMessage) {
-        writer.write(message.toJson())
-        writer.write("\n")
-        writer.flush()
+    /**
+     * Tracks what has been written to [track] and, from its presentation timestamps, how
+     * long PCM written now takes to be heard. Timestamps are refreshed a few times a
+     * second and extrapolated in between. Decoders write into it directly as their sink.
+     */
+    private class OutputPosition(
+        private val track: AudioTrack,
+        private val sampleRate: Int,
+        val frameBytes: Int,
+    ) : AudioDecoder.Sink {
+        private val timestamp = AudioTimestamp()
+        private var haveTimestamp = false
+        private var lastQueryNanos = 0L
+        private var framesWritten = 0L
+
+        override fun write(pcm: ByteArray, size: Int) {
+            val written = track.write(pcm, 0, size)
+            if (written > 0) framesWritten += written / frameBytes
+        }
+
+        override fun write(pcm: ByteBuffer, size: Int) {
+            val written = track.write(pcm, size, AudioTrack.WRITE_BLOCKING)
+            if (written > 0) framesWritten += written / frameBytes
+        }
+
+        fun delayUs(): Long {
+            val now = System.nanoTime()
+            if (now - lastQueryNanos >= TIMESTAMP_INTERVAL_NS) {
+                lastQueryNanos = now
+                haveTimestamp = track.getTimestamp(timestamp) || haveTimestamp
+            }
+            // Until the first timestamp, everything written is still queued.
+            val queuedFrames = if (haveTimestamp) {
+                framesWritten - timestamp.framePosition - (now - timestamp.nanoTime) * sampleRate / 1_000_000_000L
+            } else {
+                framesWritten
+            }
+            return max(0L, queuedFrames) * 1_000_000L / sampleRate
+        }
     }
 
+    private fun nowUs(): Long = SystemClock.elapsedRealtimeNanos() / 1000
+
     private fun friendlyMessage(e: Exception): String = when (e) {
         is ByeException -> if (e.reason.isNotBlank()) e.reason else "The host ended the broadcast."
         is HandshakeException -> "Connected, but the other device did not respond like a host. " +
             "Check the address and that the host has started broadcasting."
+        is UnsupportedCodecException -> "The host sends audio in a format this version of the app " +
+            "doesn't know (${e.codec}). Update the app on this phone."
         is DecoderException -> "This phone cannot decode the host's audio format. " +
             "Ask the host to switch the codec setting to PCM."
-        is ConnectException, is NoRouteToHostException ->
+        is ConnectException, is NoRouteToHostException, is PortUnreachableException,
+        is UnknownHostException ->
             "Could not reach the host. Make sure both phones are on the same Wi-Fi network " +
                 "and the host is broadcasting."
         is SocketTimeoutException -> "The host did not respond in time."
@@ -348,6 +506,7 @@ class ClientSession(
 
     private class HandshakeException : IOException("bad handshake")
     private class DecoderException : IOException("no decoder")
+    private class UnsupportedCodecException(val codec: String) : IOException("unsupported codec $codec")
     private class ByeException(val reason: String) : IOException("bye: $reason")
 
     companion object {
@@ -356,5 +515,9 @@ class ClientSession(
         private const val HANDSHAKE_TIMEOUT_MS = 5_000
         private const val PING_INTERVAL_MS = 4_000
         private const val LIVENESS_TIMEOUT_MS = 15_000
+        private const val REORDER_WINDOW = 2
+        private const val SYNC_INTERVAL_MS = 1_000
+        private const val SYNC_BURST = 8
+        private const val TIMESTAMP_INTERVAL_NS = 250_000_000L
     }
 }
@@ -0,0 +1,153 @@
+package com.fable.wifisoundthing.client
+
+import android.os.SystemClock
+import com.fable.wifisoundthing.protocol.ControlMessage
+import com.fable.wifisoundthing.protocol.ControlPacket
+import com.fable.wifisoundthing.protocol.ReliableControl
+import java.io.BufferedReader
+import java.io.BufferedWriter
+import java.io.IOException
+import java.io.InputStreamReader
+import java.io.OutputStreamWriter
+import java.net.DatagramPacket
+import java.net.DatagramSocket
+import java.net.InetSocketAddress
+import java.net.Socket
+import java.net.SocketTimeoutException
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+import kotlin.math.min
+
+/**
+ * The client's end of the control channel: hello/config handshake, then pings, clock
+ * probes and bye. [TcpControlLink] is the default JSON-lines socket; [UdpControlLink]
+ * carries the same messages as [ControlPacket]s on the audio socket.
+ */
+internal interface ControlLink {
+    /** Sends [hello] and returns the host's first reply (normally its config). */
+    fun handshake(hello: ControlMessage.Hello, timeoutMs: Int): ControlMessage?
+
+    fun send(message: ControlMessage)
+
+    /** Next message from the host, or null if none arrived within [timeoutMs]. Throws once the link is gone. */
+    fun receive(timeoutMs: Int): ControlMessage?
+
+    /** Tears the link down from any thread; a blocked [receive] throws soon after. */
+    fun close()
+}
+
+/** Created unconnected so that [close] can abort a slow [connect]. */
+internal class TcpControlLink : ControlLink {
+    private val socket = Socket()
+    private lateinit var reader: BufferedReader
+    private lateinit var writer: BufferedWriter
+
+    fun connect(address: InetSocketAddress, timeoutMs: Int) {
+        socket.connect(address, timeoutMs)
+        socket.tcpNoDelay = true
+        reader = BufferedReader(InputStreamReader(socket.getInputStream(), Charsets.UTF_8))
+        writer = BufferedWriter(OutputStreamWriter(socket.getOutputStream(), Charsets.UTF_8))
+    }
+
+    override fun handshake(hello: ControlMessage.Hello, timeoutMs: Int): ControlMessage? {
+        send(hello)
+        socket.soTimeout = timeoutMs
+        return ControlMessage.parse(reader.readLine() ?: throw IOException("host closed the connection"))
+    }
+
+    override fun send(message: ControlMessage) {
+        writer.write(message.toJson())
+        writer.write("\n")
+        writer.flush()
+    }
+
+    override fun receive(timeoutMs: Int): ControlMessage? {
+        socket.soTimeout = timeoutMs
+        val line = try {
+            reader.readLine() ?: throw IOException("host closed the connection")
+        } catch (_: SocketTimeoutException) {
+            return null
+        }
+        return ControlMessage.parse(line)
+    }
+
+    override fun close() {
+        try {
+            socket.close()
+        } catch (_: Exception) {
+        }
+    }
+}
+
+/**
+ * Control over the audio socket [udp], which must be connected to the host. During the
+ * handshake this link reads [udp] itself; afterwards the audio receive loop owns the
+ * socket and hands every non-audio datagram to [onDatagram].
+ */
+internal class UdpControlLink(private val udp: DatagramSocket) : ControlLink {
+    private val reliable = ReliableControl(retransmitMs = RETRANSMIT_MS)
+    private val inbox = LinkedBlockingQueue<ControlMessage>()
+
+    @Volatile
+    private var closed = false
+
+    override fun handshake(hello: ControlMessage.Hello, timeoutMs: Int): ControlMessage? {
+        send(hello)
+        udp.soTimeout = RETRANSMIT_MS.toInt()
+        val deadline = SystemClock.elapsedRealtime() + timeoutMs
+        val buf = ByteArray(4096)
+        while (!closed) {
+            try {
+                val datagram = DatagramPacket(buf, buf.size)
+                udp.receive(datagram)
+                onDatagram(datagram.data, datagram.length)
+            } catch (_: SocketTimeoutException) {
+            }
+            inbox.poll()?.let { return it }
+            val now = SystemClock.elapsedRealtime()
+            if (now > deadline) throw SocketTimeoutException("no config from host")
+            resendDue(now)
+        }
+        throw IOException("link closed")
+    }
+
+    /** Feeds one received datagram that is not audio. */
+    fun onDatagram(data: ByteArray, length: Int) {
+        val packet = ControlPacket.parse(data, length) ?: return
+        val received = reliable.receive(packet)
+        received.ack?.let { transmit(it) }
+        received.message?.let { inbox.offer(it) }
+    }
+
+    override fun send(message: ControlMessage) {
+        transmit(reliable.encode(message, SystemClock.elapsedRealtime()))
+    }
+
+    override fun receive(timeoutMs: Int): ControlMessage? {
+        val deadline = SystemClock.elapsedRealtime() + timeoutMs
+        while (true) {
+            if (closed) throw IOException("link closed")
+            val now = SystemClock.elapsedRealtime()
+            resendDue(now)
+            if (now >= deadline) return null
+            // Wake up at least once per retransmit period until everything is acked.
+            inbox.poll(min(deadline - now, RETRANSMIT_MS), TimeUnit.MILLISECONDS)?.let { return it }
+        }
+    }
+
+    override fun close() {
+        closed = true
+    }
+
+    private fun resendDue(nowMs: Long) {
+        for (bytes in reliable.due(nowMs)) transmit(bytes)
+    }
+
+    private fun transmit(bytes: ByteArray) {
+        udp.send(DatagramPacket(bytes, bytes.size))
+    }
+
+    companion object {
+        private const val RETRANSMIT_MS = 200L
+    }
+}
@@ -0,0 +1,44 @@
+package com.fable.wifisoundthing.host
+
+import com.fable.wifisoundthing.audio.LibOpusEncoder
+import com.fable.wifisoundthing.audio.OpusOptions
+
+/**
+ * Which codec mode ("auto" | "pcm") the host runs: the one the user [chosen], or "pcm"
+ * while a connected listener can't play what the chosen mode produces on this phone (an
+ * app version from before lossless). The chosen mode is kept apart from the one in
+ * effect, so the broadcast goes back to it once that listener has left. The same goes
+ * for the chosen Opus [options]: frames shorter than a whole millisecond only while
+ * every listener reads their exact length.
+ */
+class CodecPolicy(chosen: String, private val options: OpusOptions = OpusOptions()) {
+    @Volatile
+    var chosen = chosen
+        private set
+
+    /** The codec [chosen] produced on this phone ("opus", "lossless", ...); null until known. */
+    @Volatile
+    var chosenCodec: String? = null
+
+    /** The user picked [mode]; what it produces is known once its encoder exists. */
+    fun choose(mode: String) {
+        chosen = mode
+        chosenCodec = null
+    }
+
+    /** The mode to run for listeners that play [clientCodecs] (one list per listener). */
+    fun modeFor(clientCodecs: List<List<String>>): String {
+        val codec = chosenCodec ?: return chosen
+        return if (clientCodecs.all { codec in it }) chosen else "pcm"
+    }
+
+    /**
+     * The Opus options to run for listeners that do or don't read `frameUs`. One that
+     * doesn't would take 2.5 ms frames for 3 ms and fall behind, so it gets the next
+     * whole-millisecond frame length (5 ms) until it leaves.
+     */
+    fun optionsFor(clientsReadFrameUs: List<Boolean>): OpusOptions {
+        if (options.frameUs % 1000 == 0 || clientsReadFrameUs.all { it }) return options
+        return options.copy(frameUs = LibOpusEncoder.FRAME_US.first { it > options.frameUs && it % 1000 == 0 })
+    }
+}
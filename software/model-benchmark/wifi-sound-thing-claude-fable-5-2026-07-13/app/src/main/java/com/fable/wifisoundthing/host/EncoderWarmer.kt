@@ -0,0 +1,104 @@
+package com.fable.wifisoundthing.host
+
+import android.util.Log
+import com.fable.wifisoundthing.audio.AudioEncoder
+import com.fable.wifisoundthing.audio.LibOpusEncoder
+import com.fable.wifisoundthing.audio.LosslessEncoder
+import com.fable.wifisoundthing.audio.OpusEncoder
+import com.fable.wifisoundthing.audio.OpusOptions
+import com.fable.wifisoundthing.audio.PcmEncoder
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+
+/**
+ * Creates the host's encoder ahead of time. The host screen calls [prepare] when it opens,
+ * so finding and warming up an Opus encoder happens while the user is still looking at the
+ * settings; [HostSession.start] then [take]s the ready encoder instead of waiting for one.
+ *
+ * Every probe runs on one thread, one after the other, and an encoder nobody took is
+ * released on that thread too, so two probes never hold a codec at the same time.
+ */
+class EncoderWarmer(
+    private val factory: (mode: String, options: OpusOptions, warmUps: OpusEncoder.WarmUpStore?) -> AudioEncoder,
+) {
+    private val prober = Executors.newSingleThreadExecutor { task ->
+        Thread(task, "encoder-warmup").apply { isDaemon = true }
+    }
+    private var mode: String? = null
+    private var options: OpusOptions? = null
+    private var pending: Future<AudioEncoder>? = null
+
+    /** Starts creating the encoder for [mode] in the background, replacing one for other settings. */
+    @Synchronized
+    fun prepare(mode: String, options: OpusOptions, warmUps: OpusEncoder.WarmUpStore?) {
+        if (mode == "pcm") {
+            discard() // nothing to warm up
+            return
+        }
+        if (pending != null && this.mode == mode && this.options == options) return
+        discard()
+        this.mode = mode
+        this.options = options
+        pending = prober.submit<AudioEncoder> { factory(mode, options, warmUps) }
+    }
+
+    /**
+     * The encoder for [mode]: the prepared one, or a new one if nothing (or one for other
+     * settings) was prepared. Waits for a probe still running, so never call it on the main
+     * thread.
+     */
+    fun take(mode: String, options: OpusOptions, warmUps: OpusEncoder.WarmUpStore?): AudioEncoder {
+        val future = synchronized(this) {
+            val prepared = pending.takeIf { this.mode == mode && this.options == options }
+            if (prepared == null) discard()
+            pending = null
+            this.mode = null
+            this.options = null
+            prepared ?: prober.submit<AudioEncoder> { factory(mode, options, warmUps) }
+        }
+        return try {
+            future.get()
+        } catch (e: ExecutionException) {
+            Log.w(TAG, "encoder setup failed", e.cause)
+            LosslessEncoder()
+        }
+    }
+
+    /** Drops whatever was prepared, e.g. when the host screen closes without starting. */
+    @Synchronized
+    fun discard() {
+        val future = pending ?: return
+        pending = null
+        mode = null
+        options = null
+        // Queued behind its own probe: runs once that is done, before any later probe.
+        prober.execute {
+            try {
+                future.get().release()
+            } catch (_: ExecutionException) {
+            }
+        }
+    }
+
+    companion object {
+        private const val TAG = "EncoderWarmer"
+
+        /** The app's warmer; process-wide because the screen and the service each come and go on their own. */
+        val shared = EncoderWarmer(::create)
+
+        /**
+         * The encoder for codec [mode] ("auto" | "pcm"): the platform's Opus if it works and
+         * [options] ask for its 20 ms frames, else the bundled libopus, else lossless.
+         */
+        fun create(mode: String, options: OpusOptions, warmUps: OpusEncoder.WarmUpStore?): AudioEncoder {
+            if (mode == "pcm") return PcmEncoder()
+            val platform = if (options.frameUs == OpusEncoder.FRAME_US) {
+                OpusEncoder.create(complexity = options.complexity, store = warmUps)
+            } else {
+                null
+            }
+            return platform ?: LibOpusEncoder.create(options = options) ?: LosslessEncoder()
+        }
+    }
+}
@@ -17,9 +17,11 @@ import android.os.PowerManager
 import androidx.core.app.NotificationCompat
 import androidx.core.app.ServiceCompat
 import com.fable.wifisoundthing.R
+import com.fable.wifisoundthing.protocol.Wire
 import com.fable.wifisoundthing.state.HostStateHolder
 import com.fable.wifisoundthing.ui.HostActivity
 import com.fable.wifisoundthing.util.Prefs
+import kotlin.concurrent.thread
 
 /**
  * Foreground service (type mediaProjection) that owns the [HostSession] so capture and
@@ -47,6 +49,11 @@ class HostService : Service() {
     override fun onStartCommand(intent: Intent?, flags: Int, startId: Int): Int {
         when (intent?.action) {
             ACTION_START -> handleStart(intent)
+            ACTION_SET_CODEC -> {
+                val current = session
+                val mode = intent.getStringExtra(EXTRA_CODEC_MODE)
+                if (current == null) stopSelf() else if (mode != null) current.switchCodec(mode)
+            }
             ACTION_STOP -> {
                 teardown()
                 HostStateHolder.reset()
@@ -98,19 +105,27 @@ class HostService : Service() {
             hostName = prefs.deviceName,
             controlPort = prefs.controlPort,
             codecMode = prefs.codecMode,
+            playoutDelayMs = if (prefs.syncPlayout) Wire.SYNC_PLAYOUT_DELAY_MS else 0,
+            opusOptions = prefs.opusOptions,
+            warmUps = prefs.opusWarmUps,
             onClientCountChanged = { count -> updateNotification(count) },
         )
-        val error = newSession.start()
+        session = newSession
+        // start() may still wait for the encoder warm-up, which must not hold up the main thread.
+        thread(name = "host-start") {
+            val error = newSession.start()
+            Handler(mainLooper).post { onSessionStarted(newSession, error) }
+        }
+    }
+
+    private fun onSessionStarted(started: HostSession, error: String?) {
+        if (session !== started) return // stopped while starting
         if (error != null) {
-            proj.unregisterCallback(projectionCallback)
-            proj.stop()
-            projection = null
-            releaseLocks()
+            teardown()
             HostStateHolder.reset(error = error)
             stopSelf()
             return
         }
-        session = newSession
         updateNotification(0)
     }
 
@@ -225,6 +240,8 @@ class HostService : Service() {
         private const val NOTIFICATION_ID = 1
         const val ACTION_START = "com.fable.wifisoundthing.host.START"
         const val ACTION_STOP = "com.fable.wifisoundthing.host.STOP"
+        const val ACTION_SET_CODEC = "com.fable.wifisoundthing.host.SET_CODEC"
+        const val EXTRA_CODEC_MODE = "codecMode"
         const val EXTRA_RESULT_CODE = "resultCode"
         const val EXTRA_RESULT_DATA = "resultData"
 
@@ -236,6 +253,15 @@ class HostService : Service() {
             context.startForegroundService(intent)
         }
 
+        /** Switches a running broadcast to codec mode "auto" or "pcm"; listeners stay connected. */
+        fun setCodec(context: Context, mode: String) {
+            context.startService(
+                Intent(context, HostService::class.java)
+                    .setAction(ACTION_SET_CODEC)
+                    .putExtra(EXTRA_CODEC_MODE, mode)
+            )
+        }
+
         fun stop(context: Context) {
             context.startService(
                 Intent(context, HostService::class.java).setAction(ACTION_STOP)
@@ -10,49 +10,114 @@ import android.os.SystemClock
 import android.util.Log
 import com.fable.wifisoundthing.audio.AudioEncoder
 import com.fable.wifisoundthing.audio.OpusEncoder
+import com.fable.wifisoundthing.audio.OpusOptions
 import com.fable.wifisoundthing.audio.PcmEncoder
 import com.fable.wifisoundthing.net.AudioSender
+import com.fable.wifisoundthing.net.AudioTargets
 import com.fable.wifisoundthing.net.ControlServer
 import com.fable.wifisoundthing.net.DiscoveryResponder
+import com.fable.wifisoundthing.net.UdpControlServer
 import com.fable.wifisoundthing.protocol.AudioPacket
 import com.fable.wifisoundthing.protocol.ControlMessage
+import com.fable.wifisoundthing.protocol.PcmPacketizer
+import com.fable.wifisoundthing.protocol.PcmRing
 import com.fable.wifisoundthing.protocol.Wire
 import com.fable.wifisoundthing.state.HostStateHolder
 import com.fable.wifisoundthing.state.HostUiState
 import com.fable.wifisoundthing.util.NetUtils
+import java.net.InetSocketAddress
+import java.nio.channels.DatagramChannel
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicReference
 import kotlin.concurrent.thread
 import kotlin.math.abs
 
 /**
  * Everything the host does while broadcasting: captures playback audio via the
- * MediaProjection-backed [AudioRecord], encodes it (Opus, or PCM fallback), unicasts the
- * packets to every connected client, runs the TCP control server and the discovery
- * responder, and publishes live status to [HostStateHolder].
+ * MediaProjection-backed [AudioRecord], hands it through a [PcmRing] to a second thread
+ * that encodes it (Opus, lossless fallback, or PCM) and unicasts the packets to every
+ * connected client, runs the control servers (TCP, and UDP on the same port number for
+ * single-socket clients) and the discovery responder, and publishes live status to
+ * [HostStateHolder].
  */
 class HostSession(
     private val projection: MediaProjection,
     private val hostName: String,
     private val controlPort: Int,
-    private val codecMode: String, // "auto" | "pcm"
+    codecMode: String, // "auto" | "pcm"
+    /** Synchronized playout delay announced to clients, 0 = each client plays on its own. */
+    private val playoutDelayMs: Int = 0,
+    /** Frame duration and complexity for Opus. */
+    opusOptions: OpusOptions = OpusOptions(),
+    /** Remembered Opus warm-ups, so starting needn't run one. */
+    private val warmUps: OpusEncoder.WarmUpStore? = null,
     private val onClientCountChanged: (Int) -> Unit,
 ) {
     private var record: AudioRecord? = null
     private var encoder: AudioEncoder? = null
+
+    /** The mode and Opus options the user chose, and what the mode produces here. */
+    private val policy = CodecPolicy(codecMode, opusOptions)
+
+    /** The mode in effect: [policy]'s choice, or "pcm" while a listener can't play it. */
+    @Volatile
+    private var codecMode = codecMode
+
+    /** The Opus options in effect: the chosen ones, or whole-millisecond frames for older listeners. */
+    @Volatile
+    private var opusOptions = opusOptions
+
+    /** Guards [codecMode] and [opusOptions] against the control threads and the UI switching at once. */
+    private val modeLock = Any()
+
+    /** Set up by [applyMode], taken over by the encoder thread at its next block. */
+    private val nextEncoder = AtomicReference<AudioEncoder?>(null)
+
+    /** Creates the encoders for [applyMode] one at a time, so the last switch asked for wins. */
+    private val codecSwitcher = Executors.newSingleThreadExecutor { task ->
+        Thread(task, "host-codec").apply { isDaemon = true }
+    }
+
+    /** When [start] was called, for the start-to-first-packet time. */
+    private var startNanos = 0L
+
+    /** What the control servers hand new listeners; replaced on a codec switch. */
+    @Volatile
+    private lateinit var config: ControlMessage.Config
     private var controlServer: ControlServer? = null
+    private var udpControlServer: UdpControlServer? = null
     private var responder: DiscoveryResponder? = null
     private val sender = AudioSender()
+    private val targets = AudioTargets()
+    private var udpChannel: DatagramChannel? = null
     private var captureThread: Thread? = null
+    private var encodeThread: Thread? = null
 
     @Volatile
     private var running = false
 
-    /** Starts everything. Returns a user-facing error message, or null on success. */
+    /** Set by [stop], which may come while [start] still waits for the encoder. */
+    private var stopRequested = false
+
+    /**
+     * Starts everything. Returns a user-facing error message, or null on success or if
+     * [stop] came first. May wait for an encoder warm-up, so call it off the main thread.
+     */
     fun start(): String? {
-        val enc = if (codecMode == "pcm") {
-            PcmEncoder()
-        } else {
-            OpusEncoder.create() ?: PcmEncoder()
+        startNanos = System.nanoTime()
+        // Usually prepared while the host screen was open.
+        val enc = EncoderWarmer.shared.take(codecMode, opusOptions, warmUps)
+        policy.chosenCodec = Wire.codecName(enc.codecId)
+        synchronized(this) {
+            if (stopRequested) {
+                enc.release()
+                return null
+            }
+            return startWith(enc)
         }
+    }
+
+    private fun startWith(enc: AudioEncoder): String? {
         encoder = enc
 
         val rec = try {
@@ -76,23 +141,30 @@ class HostSession(
             return "Audio capture could not be started on this device."
         }
 
-        val config = ControlMessage.Config(
+        config = ControlMessage.Config(
             codec = Wire.codecName(enc.codecId),
             sampleRate = Wire.SAMPLE_RATE,
             channels = Wire.CHANNELS,
-            frameMs = Wire.FRAME_MS,
+            frameMs = enc.frameMs,
             hostName = hostName,
             opusHead = enc.opusHead,
+            playoutDelayMs = playoutDelayMs,
+            frameUs = enc.frameUs,
         )
 
-        val server = ControlServer(controlPort, { config }, object : ControlServer.Listener {
+        val listener = object : ControlServer.Listener {
             override fun onClientsChanged(clients: List<ControlServer.ClientEndpoint>) {
+                // Either server may report; show the listeners of both.
+                val all = clientEndpoints()
                 HostStateHolder.update {
-                    it.copy(clientCount = clients.size, clientNames = clients.map { c -> c.name })
+                    it.copy(clientCount = all.size, clientNames = all.map { c -> c.name })
                 }
-                onClientCountChanged(clients.size)
+                onClientCountChanged(all.size)
+                // A listener that can't play the chosen codec joined, or the last one left.
+                applyMode()
             }
-        })
+        }
+        val server = ControlServer(controlPort, ::configFor, targets, listener)
         try {
             server.start()
         } catch (e: Exception) {
@@ -103,6 +175,22 @@ class HostSession(
         }
         controlServer = server
 
+        // UDP and TCP port numbers are separate, so the UDP control channel listens on the
+        // same number; its clients also get their audio from it. Not fatal if it can't
+        // bind: TCP clients work as before.
+        udpChannel = try {
+            DatagramChannel.open().apply {
+                socket().reuseAddress = true
+                bind(InetSocketAddress(controlPort))
+            }
+        } catch (e: Exception) {
+            Log.w(TAG, "UDP control port unavailable", e)
+            null
+        }
+        udpChannel?.let { channel ->
+            udpControlServer = UdpControlServer(channel, ::configFor, targets, listener).also { it.start() }
+        }
+
         responder = DiscoveryResponder({ hostName }, controlPort).also {
             try {
                 it.start()
@@ -112,9 +200,7 @@ class HostSession(
             }
         }
 
-        running = true
-        captureThread = thread(name = "host-capture") { captureLoop(rec, enc) }
-
+        // Published before the audio threads start, so their first updates land on top of it.
         HostStateHolder.update {
             HostUiState(
                 running = true,
@@ -124,19 +210,115 @@ class HostSession(
                 startedAtMs = System.currentTimeMillis(),
             )
         }
+
+        running = true
+        val ring = PcmRing(BLOCK_BYTES, RING_BLOCKS, headroom = Wire.HEADER_BYTES)
+        encodeThread = thread(name = "host-encode") { encodeLoop(ring, enc) }
+        captureThread = thread(name = "host-capture") { captureLoop(rec, ring) }
         return null
     }
 
-    private fun captureLoop(rec: AudioRecord, enc: AudioEncoder) {
-        val blockBytes = BLOCK_BYTES
-        val buf = ByteArray(blockBytes)
-        var seq = 0
-        var lastUiPush = 0L
-        var lastLoudMs = SystemClock.elapsedRealtime()
+    private fun clientEndpoints(): List<ControlServer.ClientEndpoint> =
+        controlServer?.clientEndpoints().orEmpty() + udpControlServer?.clientEndpoints().orEmpty()
+
+    /**
+     * The config for a listener that just said [hello]. One that can't play the current
+     * codec (an app version from before lossless) is told PCM, which every version plays;
+     * once it is listed, [policy] moves the whole broadcast to PCM until it leaves. Until
+     * the switch lands it drops the packets it doesn't know. One that doesn't read
+     * `frameUs` gets whole-millisecond Opus frames the same way.
+     */
+    private fun configFor(hello: ControlMessage.Hello): ControlMessage.Config {
+        val current = config
+        if (current.codec in hello.codecs) return current
+        Log.i(TAG, "${hello.name} can't play ${current.codec}, switching to PCM")
+        return current.copy(
+            codec = Wire.codecName(Wire.CODEC_PCM16),
+            frameMs = Wire.FRAME_MS,
+            opusHead = null,
+            frameUs = Wire.FRAME_MS * 1000,
+        )
+    }
+
+    /**
+     * Switches the running broadcast to [mode] ("auto" | "pcm") without anyone reconnecting.
+     * The new encoder is set up off the audio threads (probing Opus takes a moment) and
+     * takes over at the next capture block; every packet carries its codec, so listeners
+     * switch decoders at exactly that packet. Quick toggles are set up in the order asked.
+     * While a listener can't play what [mode] produces, the broadcast stays on PCM and
+     * changes to [mode] when that listener leaves.
+     */
+    fun switchCodec(mode: String) {
+        policy.choose(mode)
+        applyMode()
+    }
+
+    /** Moves the broadcast to the mode and Opus options [policy] wants for the listeners connected now. */
+    private fun applyMode() {
+        val (mode, options) = synchronized(modeLock) {
+            val clients = clientEndpoints()
+            val mode = policy.modeFor(clients.map { it.codecs })
+            val options = policy.optionsFor(clients.map { it.readsFrameUs })
+            if (!running || (mode == codecMode && options == opusOptions)) return
+            codecMode = mode
+            opusOptions = options
+            mode to options
+        }
+        codecSwitcher.execute {
+            var next = EncoderWarmer.shared.take(mode, options, warmUps)
+            if (mode == policy.chosen) policy.chosenCodec = Wire.codecName(next.codecId)
+            // Checked under the lock: a listener leaving afterwards then finds "pcm" and
+            // switches back.
+            val unplayable = synchronized(modeLock) {
+                (policy.modeFor(clientEndpoints().map { it.codecs }) != mode).also { if (it) codecMode = "pcm" }
+            }
+            if (unplayable) {
+                // A listener is connected that can't play it (see configFor).
+                Log.i(TAG, "a listener can't play ${Wire.codecName(next.codecId)}, staying on PCM")
+                next.release()
+                next = PcmEncoder()
+            }
+            nextEncoder.getAndSet(next)?.release()
+            // Stopped meanwhile: release() may already have looked.
+            if (!running) nextEncoder.getAndSet(null)?.release()
+        }
+    }
+
+    /**
+     * On the encoder thread, between blocks: retire [previous] and announce [next]. Both
+     * control servers only queue the announcement, so no client socket can stall audio.
+     */
+    private fun adopt(next: AudioEncoder, previous: AudioEncoder) {
+        encoder = next
+        previous.release()
+        val updated = config.copy(
+            codec = Wire.codecName(next.codecId),
+            frameMs = next.frameMs,
+            opusHead = next.opusHead,
+            frameUs = next.frameUs,
+        )
+        config = updated
+        controlServer?.broadcast(updated)
+        udpControlServer?.broadcast(updated)
+        HostStateHolder.update { it.copy(codec = updated.codec) }
+    }
+
+    /**
+     * Only reads: each block goes straight into a ring slot and is handed to [encodeLoop],
+     * so an encoder stall or a slow send never delays the next [AudioRecord.read]. When the
+     * ring is full the block is read anyway and dropped, and counted.
+     */
+    private fun captureLoop(rec: AudioRecord, ring: PcmRing) {
+        val spill = ByteArray(ring.blockBytes)
         var readFailures = 0
 
         while (running) {
-            val read = rec.read(buf, 0, blockBytes)
+            val slot = ring.claim()
+            val read = if (slot >= 0) {
+                rec.read(ring.buffer, ring.offsetOf(slot), ring.blockBytes)
+            } else {
+                rec.read(spill, 0, spill.size)
+            }
             if (read <= 0) {
                 if (++readFailures > 100) {
                     HostStateHolder.update {
@@ -148,13 +330,43 @@ class HostSession(
                 continue
             }
             readFailures = 0
+            if (slot >= 0) {
+                ring.publish(slot, read, SystemClock.elapsedRealtimeNanos() / 1000)
+            } else {
+                ring.overrun()
+            }
+        }
+    }
+
+    private fun encodeLoop(ring: PcmRing, first: AudioEncoder) {
+        var enc = first
+        // PCM skips the encoder: the ring slot's headroom takes the first header and the
+        // datagrams are slices of the slot itself.
+        var packetizer = packetizerFor(enc, ring)
+        val buf = ring.buffer
+        var seq = 0
+        var lastUiPush = 0L
+        var lastLoudMs = SystemClock.elapsedRealtime()
+        var firstPacketPending = true
+
+        while (running) {
+            val slot = ring.take(TAKE_TIMEOUT_NANOS)
+            if (slot < 0) continue
+            val next = nextEncoder.getAndSet(null)
+            if (next != null) {
+                adopt(next, enc)
+                enc = next
+                packetizer = packetizerFor(next, ring)
+            }
+            val base = ring.offsetOf(slot)
+            val read = ring.lengthOf(slot)
+            val ptsUs = ring.ptsUsOf(slot)
             val now = SystemClock.elapsedRealtime()
-            val ptsUs = SystemClock.elapsedRealtimeNanos() / 1000
 
             // Peak level of this block, for the UI meter and the "capturing silence" hint.
             var maxAbs = 0
-            var i = 0
-            while (i + 1 < read) {
+            var i = base
+            while (i + 1 < base + read) {
                 val sample = ((buf[i].toInt() and 0xFF) or (buf[i + 1].toInt() shl 8)).toShort().toInt()
                 val a = abs(sample)
                 if (a > maxAbs) maxAbs = a
@@ -162,10 +374,22 @@ class HostSession(
             }
             if (maxAbs > SILENCE_THRESHOLD) lastLoudMs = now
 
-            val targets = controlServer?.clientEndpoints()?.map { it.udpAddress }.orEmpty()
-            for (frame in enc.encode(buf, read, ptsUs)) {
-                val packet = AudioPacket(enc.codecId, seq++, frame.ptsUs, frame.payload).toBytes()
-                if (targets.isNotEmpty()) sender.send(packet, targets)
+            // Replaced by the control servers on join/leave only; read once per block.
+            val targets = this.targets.snapshot.targets
+            if (packetizer != null) {
+                seq = packetizer.packetize(buf, base - packetizer.pcmOffset, read, seq, ptsUs) { offset, size ->
+                    if (targets.isNotEmpty()) sender.send(buf, offset, size, targets)
+                }
+            } else {
+                for (frame in enc.encode(buf, base, read, ptsUs)) {
+                    val packet = AudioPacket(enc.codecId, seq++, frame.ptsUs, frame.payload).toBytes()
+                    if (targets.isNotEmpty()) sender.send(packet, targets)
+                }
+            }
+            ring.release()
+            if (firstPacketPending && seq > 0) {
+                firstPacketPending = false
+                reportFirstPacket(enc)
             }
 
             if (now - lastUiPush >= 500) {
@@ -177,15 +401,31 @@ class HostSession(
                         bytesSent = sender.bytesSent.get(),
                         levelPercent = level,
                         captureSilent = silent,
+                        captureQueueMaxMs = ring.highWater * Wire.FRAME_MS,
+                        captureOverruns = ring.overruns,
                     )
                 }
             }
         }
     }
 
+    /** How long Start took to produce audio: encoder setup, capture start and the first block. */
+    private fun reportFirstPacket(enc: AudioEncoder) {
+        val ms = ((System.nanoTime() - startNanos) / 1_000_000).toInt()
+        Log.i(TAG, "first ${Wire.codecName(enc.codecId)} packet $ms ms after start")
+        HostStateHolder.update { it.copy(startToFirstPacketMs = ms) }
+    }
+
+    private fun packetizerFor(enc: AudioEncoder, ring: PcmRing): PcmPacketizer? =
+        if (enc.codecId == Wire.CODEC_PCM16) PcmPacketizer(ring.blockBytes) else null
+
+    @Synchronized
     fun stop() {
+        stopRequested = true
         running = false
+        codecSwitcher.shutdown()
         captureThread?.join(1_500)
+        encodeThread?.join(1_500)
         release()
         HostStateHolder.reset()
     }
@@ -202,11 +442,19 @@ class HostSession(
         record = null
         encoder?.release()
         encoder = null
+        nextEncoder.getAndSet(null)?.release()
         controlServer?.stop()
         controlServer = null
+        udpControlServer?.stop()
+        udpControlServer = null
         responder?.stop()
         responder = null
-        sender.close()
+        targets.clear()
+        try {
+            udpChannel?.close()
+        } catch (_: Exception) {
+        }
+        udpChannel = null
     }
 
     @SuppressLint("MissingPermission") // RECORD_AUDIO is checked before the service starts
@@ -235,6 +483,12 @@ class HostSession(
         private const val BLOCK_BYTES =
             Wire.SAMPLE_RATE / (1000 / Wire.FRAME_MS) * Wire.CHANNELS * Wire.BYTES_PER_SAMPLE
 
+        /** Capture blocks the ring holds before the capture thread starts dropping them (320 ms). */
+        private const val RING_BLOCKS = 16
+
+        /** How long the encoder thread waits for a block before re-checking [running]. */
+        private const val TAKE_TIMEOUT_NANOS = 100_000_000L
+
         /** Peak sample value below which a block counts as silence (~-40 dBFS). */
         private const val SILENCE_THRESHOLD = 330
     }
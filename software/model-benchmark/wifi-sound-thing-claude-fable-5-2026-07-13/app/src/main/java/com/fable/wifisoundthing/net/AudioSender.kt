@@ -1,33 +1,27 @@
 package com.fable.wifisoundthing.net
 
-import java.net.DatagramPacket
-import java.net.DatagramSocket
-import java.net.InetSocketAddress
 import java.util.concurrent.atomic.AtomicLong
 
-/** Unicasts audio packets to every connected client over UDP. */
+/**
+ * Unicasts audio packets to every listener in an [AudioTargets] snapshot. Only the
+ * encoder thread ("host-encode") sends audio; each target copies the packet into a
+ * direct buffer of its own, so nothing is allocated per packet.
+ */
 class AudioSender {
-    private val socket = DatagramSocket()
     val bytesSent = AtomicLong(0)
     val packetsSent = AtomicLong(0)
 
-    fun send(data: ByteArray, targets: List<InetSocketAddress>) {
+    fun send(data: ByteArray, targets: Array<AudioTargets.Target>) = send(data, 0, data.size, targets)
+
+    /** Sends `data[offset, offset + length)` as is; the slice is not used after this returns. */
+    fun send(data: ByteArray, offset: Int, length: Int, targets: Array<AudioTargets.Target>) {
         for (target in targets) {
-            try {
-                socket.send(DatagramPacket(data, data.size, target))
-                bytesSent.addAndGet(data.size.toLong())
+            // Transient send failures (e.g. Wi-Fi blip) are tolerated; the control
+            // channel decides when a client is really gone.
+            if (target.send(data, offset, length)) {
+                bytesSent.addAndGet(length.toLong())
                 packetsSent.incrementAndGet()
-            } catch (_: Exception) {
-                // Transient send failures (e.g. Wi-Fi blip) are tolerated; the control
-                // channel decides when a client is really gone.
             }
         }
     }
-
-    fun close() {
-        try {
-            socket.close()
-        } catch (_: Exception) {
-        }
-    }
 }
@@ -0,0 +1,114 @@
+package com.fable.wifisoundthing.net
+
+import com.fable.wifisoundthing.protocol.Wire
+import java.net.InetSocketAddress
+import java.nio.ByteBuffer
+import java.nio.channels.DatagramChannel
+
+/**
+ * The host's fan-out table: one send handle per listener, published as an immutable
+ * [Snapshot] that the control servers replace only when someone joins or leaves. The
+ * encoder thread reads [snapshot] — one volatile read — per block and sends through the
+ * handles with no allocation and no per-packet address handling.
+ */
+class AudioTargets {
+    /** One listener's audio destination, with counters written only by the sending thread. */
+    abstract class Target(val udpAddress: InetSocketAddress) {
+        @Volatile
+        var bytesSent = 0L
+            private set
+
+        @Volatile
+        var packetsSent = 0L
+            private set
+
+        /**
+         * Where each datagram is copied before the write. A heap buffer would make the
+         * channel copy it into a temporary direct one anyway; this one is kept.
+         */
+        private var out: ByteBuffer = ByteBuffer.allocateDirect(Wire.MAX_PACKET_BYTES)
+
+        /** Sends `data[offset, offset + length)`; false if the datagram could not be sent. */
+        fun send(data: ByteArray, offset: Int, length: Int): Boolean {
+            if (out.capacity() < length) out = ByteBuffer.allocateDirect(length)
+            val buf = out
+            buf.clear()
+            buf.put(data, offset, length).flip()
+            return try {
+                write(buf)
+                bytesSent += length
+                packetsSent++
+                true
+            } catch (_: Exception) {
+                false
+            }
+        }
+
+        protected abstract fun write(buf: ByteBuffer)
+
+        internal open fun close() = Unit
+    }
+
+    /** A channel of its own, connected once, so sends skip the per-datagram address checks. */
+    private class Connected(udpAddress: InetSocketAddress) : Target(udpAddress) {
+        private val channel = DatagramChannel.open().apply { connect(udpAddress) }
+
+        override fun write(buf: ByteBuffer) {
+            channel.write(buf)
+        }
+
+        override fun close() {
+            try {
+                channel.close()
+            } catch (_: Exception) {
+            }
+        }
+    }
+
+    /**
+     * Through the host's bound control channel, for single-socket clients that only
+     * accept datagrams from the control port. The address is resolved once, here.
+     */
+    private class Shared(private val channel: DatagramChannel, udpAddress: InetSocketAddress) : Target(udpAddress) {
+        override fun write(buf: ByteBuffer) {
+            channel.send(buf, udpAddress)
+        }
+    }
+
+    class Snapshot(val targets: Array<Target>)
+
+    @Volatile
+    var snapshot = Snapshot(emptyArray())
+        private set
+
+    /** Adds a listener reached through a connected channel of its own. Throws if the channel can't be opened. */
+    fun connect(udpAddress: InetSocketAddress): Target = add(Connected(udpAddress))
+
+    /** Adds a listener reached through [channel], the host's bound control channel. */
+    fun shared(channel: DatagramChannel, udpAddress: InetSocketAddress): Target = add(Shared(channel, udpAddress))
+
+    @Synchronized
+    fun remove(target: Target) {
+        val current = snapshot.targets
+        if (target !in current) return
+        publish(current.filter { it !== target }.toTypedArray())
+        target.close()
+    }
+
+    @Synchronized
+    fun clear() {
+        val current = snapshot.targets
+        publish(emptyArray())
+        for (target in current) target.close()
+    }
+
+    @Synchronized
+    private fun add(target: Target): Target {
+        publish(snapshot.targets + target)
+        return target
+    }
+
+    private fun publish(targets: Array<Target>) {
+        snapshot = Snapshot(targets)
+    }
+}
@@ -1,5 +1,6 @@
 package com.fable.wifisoundthing.net
 
+import android.os.SystemClock
 import android.util.Log
 import com.fable.wifisoundthing.protocol.ControlMessage
 import java.io.BufferedReader
@@ -10,37 +11,57 @@ import java.net.InetSocketAddress
 import java.net.ServerSocket
 import java.net.Socket
 import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
 import java.util.concurrent.atomic.AtomicLong
 import kotlin.concurrent.thread
 
 /**
  * The host's TCP control channel. Accepts clients, performs the hello/config handshake,
- * answers pings, and tracks which UDP endpoints should receive audio. One thread per
- * client — fine for a handful of listeners on a LAN.
+ * answers pings and clock probes, and adds each client's UDP endpoint to [targets] for as
+ * long as it stays connected. One thread per client — fine for a handful of listeners
+ * on a LAN.
  */
 class ControlServer(
     private val port: Int,
-    private val configProvider: () -> ControlMessage.Config,
+    /** The config for a client that just said hello. */
+    private val configProvider: (ControlMessage.Hello) -> ControlMessage.Config,
+    private val targets: AudioTargets,
     private val listener: Listener,
 ) {
     interface Listener {
         fun onClientsChanged(clients: List<ClientEndpoint>)
     }
 
-    class ClientEndpoint(
+    /** A connected listener, where its audio goes and what it can play; shared with [UdpControlServer]. */
+    open class ClientEndpoint(
         val id: Long,
         val name: String,
         val udpAddress: InetSocketAddress,
-        internal val socket: Socket,
-        internal val writer: BufferedWriter,
-    ) {
-        internal val writeLock = Any()
+        val codecs: List<String>,
+        val readsFrameUs: Boolean,
+    )
+
+    private class Connection(
+        id: Long,
+        name: String,
+        udpAddress: InetSocketAddress,
+        codecs: List<String>,
+        readsFrameUs: Boolean,
+        val socket: Socket,
+        val writer: BufferedWriter,
+    ) : ClientEndpoint(id, name, udpAddress, codecs, readsFrameUs) {
+        val writeLock = Any()
+        var target: AudioTargets.Target? = null
     }
 
     private val serverSocket = ServerSocket()
-    private val clients = CopyOnWriteArrayList<ClientEndpoint>()
+    private val clients = CopyOnWriteArrayList<Connection>()
     private val nextId = AtomicLong(1)
 
+    /** Messages for every client; [broadcast] only queues them, "control-broadcast" writes them. */
+    private val outbox = LinkedBlockingQueue<ControlMessage>()
+
     @Volatile
     private var running = false
 
@@ -59,12 +80,13 @@ class ControlServer(
                 thread(name = "control-client", isDaemon = true) { handleClient(socket) }
             }
         }
+        thread(name = "control-broadcast", isDaemon = true) { deliverBroadcasts() }
     }
 
     fun clientEndpoints(): List<ClientEndpoint> = clients.toList()
 
     private fun handleClient(socket: Socket) {
-        var endpoint: ClientEndpoint? = null
+        var endpoint: Connection? = null
         try {
             socket.tcpNoDelay = true
             socket.soTimeout = HANDSHAKE_TIMEOUT_MS
@@ -73,23 +95,31 @@ class ControlServer(
 
             val hello = ControlMessage.parse(reader.readLine() ?: return) as? ControlMessage.Hello
                 ?: return
-            endpoint = ClientEndpoint(
+            endpoint = Connection(
                 id = nextId.getAndIncrement(),
                 name = hello.name,
                 udpAddress = InetSocketAddress(socket.inetAddress, hello.udpPort),
+                codecs = hello.codecs,
+                readsFrameUs = hello.readsFrameUs,
                 socket = socket,
                 writer = writer,
             )
-            send(endpoint, configProvider())
+            send(endpoint, configProvider(hello))
 
+            endpoint.target = targets.connect(endpoint.udpAddress)
             clients.add(endpoint)
             listener.onClientsChanged(clients.toList())
 
             socket.soTimeout = CLIENT_IDLE_TIMEOUT_MS
             while (running) {
                 val line = reader.readLine() ?: break
-                when (ControlMessage.parse(line)) {
+                when (val msg = ControlMessage.parse(line)) {
                     is ControlMessage.Ping -> send(endpoint, ControlMessage.Pong)
+                    // Same clock as the capture timestamps in the audio packets.
+                    is ControlMessage.TimeSync -> send(
+                        endpoint,
+                        ControlMessage.TimeSyncReply(msg.sentUs, SystemClock.elapsedRealtimeNanos() / 1000),
+                    )
                     is ControlMessage.Bye -> break
                     else -> {} // ignore anything unknown
                 }
@@ -97,6 +127,7 @@ class ControlServer(
         } catch (e: Exception) {
             Log.d(TAG, "client connection ended: ${e.message}")
         } finally {
+            endpoint?.target?.let { targets.remove(it) }
             if (endpoint != null && clients.remove(endpoint)) {
                 listener.onClientsChanged(clients.toList())
             }
@@ -107,7 +138,32 @@ class ControlServer(
         }
     }
 
-    private fun send(endpoint: ClientEndpoint, message: ControlMessage) {
+    /**
+     * Sends [message] to every connected client, e.g. the new config after a codec switch.
+     * Returns at once: a slow client's socket must not hold up the caller (the encoder thread).
+     */
+    fun broadcast(message: ControlMessage) {
+        outbox.add(message)
+    }
+
+    private fun deliverBroadcasts() {
+        while (running) {
+            val message = try {
+                outbox.poll(BROADCAST_POLL_MS, TimeUnit.MILLISECONDS)
+            } catch (_: InterruptedException) {
+                return
+            } ?: continue
+            for (endpoint in clients) {
+                try {
+                    send(endpoint, message)
+                } catch (_: Exception) {
+                    // Its own thread notices the broken connection and cleans up.
+                }
+            }
+        }
+    }
+
+    private fun send(endpoint: Connection, message: ControlMessage) {
         synchronized(endpoint.writeLock) {
             endpoint.writer.write(message.toJson())
             endpoint.writer.write("\n")
@@ -138,5 +194,8 @@ class ControlServer(
         private const val TAG = "ControlServer"
         private const val HANDSHAKE_TIMEOUT_MS = 5_000
         private const val CLIENT_IDLE_TIMEOUT_MS = 20_000
+
+        /** How often the broadcast thread re-checks [running] while nothing is queued. */
+        private const val BROADCAST_POLL_MS = 500L
     }
 }
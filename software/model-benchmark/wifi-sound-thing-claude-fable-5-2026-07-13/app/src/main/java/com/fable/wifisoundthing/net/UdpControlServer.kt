@@ -0,0 +1,170 @@
+package com.fable.wifisoundthing.net
+
+import android.os.SystemClock
+import android.util.Log
+import com.fable.wifisoundthing.protocol.ControlMessage
+import com.fable.wifisoundthing.protocol.ControlPacket
+import com.fable.wifisoundthing.protocol.ReliableControl
+import java.net.DatagramPacket
+import java.net.InetSocketAddress
+import java.net.SocketTimeoutException
+import java.nio.channels.DatagramChannel
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.atomic.AtomicLong
+import kotlin.concurrent.thread
+
+/**
+ * The optional single-socket control channel: the same hello/config handshake, pings,
+ * clock probes and bye as [ControlServer], but as [ControlPacket]s on the bound UDP
+ * [channel] the audio is sent from. A client is identified by the address its hello came
+ * from and gets an [AudioTargets] entry sending there through [channel], so one socket on
+ * each side carries everything.
+ *
+ * One thread serves every client; [ReliableControl] retransmits the config and bye until
+ * acked. A client that goes quiet for [CLIENT_IDLE_TIMEOUT_MS] is dropped.
+ */
+class UdpControlServer(
+    private val channel: DatagramChannel,
+    /** The config for a client that just said hello. */
+    private val configProvider: (ControlMessage.Hello) -> ControlMessage.Config,
+    private val targets: AudioTargets,
+    private val listener: ControlServer.Listener,
+) {
+    private class Client(
+        id: Long,
+        name: String,
+        udpAddress: InetSocketAddress,
+        codecs: List<String>,
+        readsFrameUs: Boolean,
+    ) : ControlServer.ClientEndpoint(id, name, udpAddress, codecs, readsFrameUs) {
+        val reliable = ReliableControl()
+        var target: AudioTargets.Target? = null
+
+        @Volatile
+        var lastHeardMs = SystemClock.elapsedRealtime()
+    }
+
+    private val socket = channel.socket()
+    private val clients = CopyOnWriteArrayList<Client>()
+
+    // Messages for every client from other threads; sent from serve(), which owns the
+    // clients' ReliableControl state.
+    private val outbox = ConcurrentLinkedQueue<ControlMessage>()
+    private val nextId = AtomicLong(1)
+
+    @Volatile
+    private var running = false
+
+    fun start() {
+        socket.soTimeout = TICK_MS
+        running = true
+        thread(name = "control-udp", isDaemon = true) { serve() }
+    }
+
+    fun clientEndpoints(): List<ControlServer.ClientEndpoint> = clients.toList()
+
+    /** Queues [message] for every client; it goes out within [TICK_MS], reliably if it is a config. */
+    fun broadcast(message: ControlMessage) {
+        outbox.add(message)
+    }
+
+    private fun serve() {
+        val buf = ByteArray(2048)
+        while (running) {
+            try {
+                val datagram = DatagramPacket(buf, buf.size)
+                socket.receive(datagram)
+                val packet = ControlPacket.parse(datagram.data, datagram.length)
+                val from = datagram.socketAddress as? InetSocketAddress
+                if (packet != null && from != null) handle(from, packet)
+            } catch (_: SocketTimeoutException) {
+                // fall through to retransmits and the idle sweep
+            } catch (e: Exception) {
+                if (running) Log.d(TAG, "control socket closed: ${e.message}")
+                break
+            }
+            tick(SystemClock.elapsedRealtime())
+        }
+    }
+
+    private fun handle(from: InetSocketAddress, packet: ControlPacket) {
+        var client = clients.firstOrNull { it.udpAddress == from }
+        if (client == null) {
+            // Only a hello opens a session; anything else is left over from an old one.
+            val hello = packet.message as? ControlMessage.Hello ?: return
+            client = Client(nextId.getAndIncrement(), hello.name, from, hello.codecs, hello.readsFrameUs)
+        }
+        client.lastHeardMs = SystemClock.elapsedRealtime()
+        val received = client.reliable.receive(packet)
+        received.ack?.let { transmit(from, it) }
+        when (val msg = received.message) {
+            is ControlMessage.Hello -> {
+                send(client, configProvider(msg))
+                if (client !in clients) {
+                    client.target = targets.shared(channel, from)
+                    clients.add(client)
+                    listener.onClientsChanged(clientEndpoints())
+                }
+            }
+            is ControlMessage.Ping -> send(client, ControlMessage.Pong)
+            // Same clock as the capture timestamps in the audio packets.
+            is ControlMessage.TimeSync -> send(
+                client,
+                ControlMessage.TimeSyncReply(msg.sentUs, SystemClock.elapsedRealtimeNanos() / 1000),
+            )
+            is ControlMessage.Bye -> remove(client)
+            else -> {} // acks and anything unknown
+        }
+    }
+
+    private fun tick(nowMs: Long) {
+        while (true) {
+            val message = outbox.poll() ?: break
+            for (client in clients) send(client, message)
+        }
+        for (client in clients) {
+            if (nowMs - client.lastHeardMs > CLIENT_IDLE_TIMEOUT_MS) {
+                remove(client)
+                continue
+            }
+            for (bytes in client.reliable.due(nowMs)) transmit(client.udpAddress, bytes)
+        }
+    }
+
+    private fun remove(client: Client) {
+        client.target?.let { targets.remove(it) }
+        if (clients.remove(client)) listener.onClientsChanged(clientEndpoints())
+    }
+
+    private fun send(client: Client, message: ControlMessage) {
+        transmit(client.udpAddress, client.reliable.encode(message, SystemClock.elapsedRealtime()))
+    }
+
+    private fun transmit(target: InetSocketAddress, bytes: ByteArray) {
+        try {
+            socket.send(DatagramPacket(bytes, bytes.size, target))
+        } catch (_: Exception) {
+            // Lost like any datagram; reliable messages are retried from tick().
+        }
+    }
+
+    /**
+     * Says bye to every client. The bye is sent once, not retried: the socket closes right
+     * after, and a client that misses it notices the silence on its next ping.
+     */
+    fun stop() {
+        running = false
+        for (client in clients) {
+            send(client, ControlMessage.Bye("Host stopped the broadcast"))
+            client.target?.let { targets.remove(it) }
+        }
+        clients.clear()
+    }
+
+    companion object {
+        private const val TAG = "UdpControlServer"
+        private const val TICK_MS = 100
+        private const val CLIENT_IDLE_TIMEOUT_MS = 20_000
+    }
+}
@@ -0,0 +1,47 @@
+package com.fable.wifisoundthing.protocol
+
+/**
+ * Estimates the offset between the host's clock and ours from
+ * [ControlMessage.TimeSync] / [ControlMessage.TimeSyncReply] round trips, NTP-style:
+ * assuming the reply was stamped halfway through the round trip,
+ * `offset = hostUs - (sentUs + receivedUs) / 2`.
+ *
+ * Wi-Fi round trips vary a lot, and a slow one skews its midpoint. Of the last [window]
+ * samples only the one with the shortest round trip is trusted, which also lets the
+ * estimate follow slow clock drift as old samples age out.
+ *
+ * Both clocks are `SystemClock.elapsedRealtimeNanos() / 1000` on their phone, the same
+ * clock the host stamps audio packets with.
+ */
+class ClockSync(private val window: Int = 8) {
+    private class Sample(val offsetUs: Long, val rttUs: Long)
+
+    private val samples = ArrayDeque<Sample>()
+
+    /** Adds one round trip: sent at [sentUs] and answered at [receivedUs] (ours), stamped [hostUs] (theirs). */
+    @Synchronized
+    fun onReply(sentUs: Long, hostUs: Long, receivedUs: Long) {
+        val rttUs = receivedUs - sentUs
+        if (rttUs < 0) return
+        samples.addLast(Sample(hostUs - (sentUs + receivedUs) / 2, rttUs))
+        while (samples.size > window) samples.removeFirst()
+    }
+
+    private fun best(): Sample? = samples.minByOrNull { it.rttUs }
+
+    /** Host clock minus our clock in microseconds, or null before the first reply. */
+    val offsetUs: Long?
+        get() = synchronized(this) { best()?.offsetUs }
+
+    /** Round trip of the sample the offset comes from; bounds its error to ± half of it. */
+    val rttUs: Long?
+        get() = synchronized(this) { best()?.rttUs }
+
+    val sampleCount: Int
+        get() = synchronized(this) { samples.size }
+
+    @Synchronized
+    fun reset() {
+        samples.clear()
+    }
+}
@@ -1,13 +1,18 @@
 package com.fable.wifisoundthing.protocol
 
+import org.json.JSONArray
 import org.json.JSONObject
 import java.util.Base64
 
 /**
- * Messages exchanged on the TCP control channel, one JSON object per line.
+ * Messages exchanged on the TCP control channel, one JSON object per line — or, on the
+ * optional UDP control channel, one per [ControlPacket].
  *
  * Handshake: client sends [Hello], host answers [Config]. Afterwards the client sends
  * [Ping] periodically and the host answers [Pong]; either side may send [Bye].
+ *
+ * When [Config.playoutDelayMs] is set (synchronized playout), the client also sends
+ * [TimeSync] and the host answers [TimeSyncReply] with its clock, for [ClockSync].
  */
 sealed class ControlMessage {
 
@@ -15,12 +20,18 @@ sealed class ControlMessage {
         val name: String,
         val udpPort: Int,
         val version: Int = Wire.PROTOCOL_VERSION,
+        /** Codecs the client can play; older clients don't send it ([Wire.LEGACY_CODECS]). */
+        val codecs: List<String> = Wire.CODECS,
+        /** Whether the client reads [Config.frameUs]; older clients only read whole milliseconds. */
+        val readsFrameUs: Boolean = true,
     ) : ControlMessage() {
         override fun toJson(): String = JSONObject()
             .put("type", "hello")
             .put("name", name)
             .put("udpPort", udpPort)
             .put("version", version)
+            .put("codecs", JSONArray(codecs))
+            .put("frameUs", readsFrameUs)
             .toString()
     }
 
@@ -31,6 +42,10 @@ sealed class ControlMessage {
         val frameMs: Int,
         val hostName: String,
         val opusHead: ByteArray? = null,
+        /** Synchronized playout: play each packet this long after its capture time (0 = off). */
+        val playoutDelayMs: Int = 0,
+        /** [frameMs] exactly; only sent when it isn't whole milliseconds, which older clients round up. */
+        val frameUs: Int = frameMs * 1000,
     ) : ControlMessage() {
         override fun toJson(): String {
             val json = JSONObject()
@@ -43,6 +58,8 @@ sealed class ControlMessage {
             if (opusHead != null) {
                 json.put("opusHead", Base64.getEncoder().encodeToString(opusHead))
             }
+            if (playoutDelayMs > 0) json.put("playoutDelayMs", playoutDelayMs)
+            if (frameUs != frameMs * 1000) json.put("frameUs", frameUs)
             return json.toString()
         }
     }
@@ -55,6 +72,20 @@ sealed class ControlMessage {
         override fun toJson(): String = """{"type":"pong"}"""
     }
 
+    /** Clock probe; [sentUs] is the client's clock, echoed back in the reply. */
+    data class TimeSync(val sentUs: Long) : ControlMessage() {
+        override fun toJson(): String =
+            JSONObject().put("type", "timeSync").put("sentUs", sentUs).toString()
+    }
+
+    data class TimeSyncReply(val sentUs: Long, val hostUs: Long) : ControlMessage() {
+        override fun toJson(): String = JSONObject()
+            .put("type", "timeSyncReply")
+            .put("sentUs", sentUs)
+            .put("hostUs", hostUs)
+            .toString()
+    }
+
     data class Bye(val reason: String) : ControlMessage() {
         override fun toJson(): String =
             JSONObject().put("type", "bye").put("reason", reason).toString()
@@ -76,18 +107,29 @@ sealed class ControlMessage {
                         name = json.optString("name", "?"),
                         udpPort = json.getInt("udpPort"),
                         version = json.optInt("version", 1),
+                        codecs = json.optJSONArray("codecs")
+                            ?.let { list -> List(list.length()) { list.getString(it) } }
+                            ?: Wire.LEGACY_CODECS,
+                        readsFrameUs = json.optBoolean("frameUs", false),
                     )
-                    "config" -> Config(
-                        codec = json.getString("codec"),
-                        sampleRate = json.getInt("sampleRate"),
-                        channels = json.getInt("channels"),
-                        frameMs = json.optInt("frameMs", Wire.FRAME_MS),
-                        hostName = json.optString("hostName", "Host"),
-                        opusHead = json.optString("opusHead", "").takeIf { it.isNotEmpty() }
-                            ?.let { Base64.getDecoder().decode(it) },
-                    )
+                    "config" -> {
+                        val frameMs = json.optInt("frameMs", Wire.FRAME_MS)
+                        Config(
+                            codec = json.getString("codec"),
+                            sampleRate = json.getInt("sampleRate"),
+                            channels = json.getInt("channels"),
+                            frameMs = frameMs,
+                            hostName = json.optString("hostName", "Host"),
+                            opusHead = json.optString("opusHead", "").takeIf { it.isNotEmpty() }
+                                ?.let { Base64.getDecoder().decode(it) },
+                            playoutDelayMs = json.optInt("playoutDelayMs", 0),
+                            frameUs = json.optInt("frameUs", frameMs * 1000),
+                        )
+                    }
                     "ping" -> Ping
                     "pong" -> Pong
+                    "timeSync" -> TimeSync(json.getLong("sentUs"))
+                    "timeSyncReply" -> TimeSyncReply(json.getLong("sentUs"), json.getLong("hostUs"))
                     "bye" -> Bye(json.optString("reason", ""))
                     else -> null
                 }
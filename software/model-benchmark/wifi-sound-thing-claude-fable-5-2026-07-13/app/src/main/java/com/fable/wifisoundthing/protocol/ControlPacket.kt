@@ -0,0 +1,56 @@
+package com.fable.wifisoundthing.protocol
+
+import java.nio.ByteBuffer
+
+/**
+ * A [ControlMessage] carried on the UDP audio port instead of the TCP control socket.
+ * Uses the audio header with codec id [Wire.TYPE_CONTROL]:
+ *
+ * ```
+ * offset 0  u16  magic "WT"
+ * offset 2  u8   protocol version
+ * offset 3  u8   0x7F (control)
+ * offset 4  u32  message sequence number, 0 = unreliable (no ack wanted)
+ * offset 8  u64  sequence number being acknowledged, 0 = none
+ * offset 16 ...  the message as JSON, UTF-8; empty for a bare ack
+ * ```
+ *
+ * See [ReliableControl] for how sequence numbers and acks are used.
+ */
+class ControlPacket(
+    val seq: Int,
+    val ack: Int,
+    val message: ControlMessage?,
+) {
+    fun toBytes(): ByteArray {
+        val json = message?.toJson()?.toByteArray(Charsets.UTF_8) ?: ByteArray(0)
+        val buf = ByteBuffer.allocate(Wire.HEADER_BYTES + json.size)
+        buf.putShort(Wire.MAGIC)
+        buf.put(Wire.PROTOCOL_VERSION.toByte())
+        buf.put(Wire.TYPE_CONTROL)
+        buf.putInt(seq)
+        buf.putLong(ack.toLong() and 0xFFFFFFFFL)
+        buf.put(json)
+        return buf.array()
+    }
+
+    companion object {
+        /** Parses a datagram; null if it is not a well-formed control packet. */
+        fun parse(data: ByteArray, length: Int = data.size): ControlPacket? {
+            if (length < Wire.HEADER_BYTES || length > data.size) return null
+            val buf = ByteBuffer.wrap(data, 0, length)
+            if (buf.short != Wire.MAGIC) return null
+            if (buf.get() != Wire.PROTOCOL_VERSION.toByte()) return null
+            if (buf.get() != Wire.TYPE_CONTROL) return null
+            val seq = buf.int
+            val ack = buf.long.toInt()
+            val message = if (length > Wire.HEADER_BYTES) {
+                ControlMessage.parse(String(data, Wire.HEADER_BYTES, length - Wire.HEADER_BYTES, Charsets.UTF_8))
+                    ?: return null
+            } else {
+                null
+            }
+            return ControlPacket(seq, ack, message)
+        }
+    }
+}
@@ -1,11 +1,16 @@
 package com.fable.wifisoundthing.protocol
 
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+
 /**
  * Reorder/jitter buffer for the UDP audio stream.
  *
  * The receiver thread calls [push] for every packet; the playback thread calls [pop] in a
- * loop. Sequence numbers are compared with wraparound-safe signed arithmetic (`a - b`),
- * so the buffer keeps working when the 32-bit counter wraps.
+ * loop — preferably the blocking `pop(deadlineNanos)`, which parks until a push can
+ * change the answer instead of polling. Sequence numbers are compared with
+ * wraparound-safe signed arithmetic (`a - b`), so the buffer keeps working when the
+ * 32-bit counter wraps.
  *
  * Behavior:
  *  - Playback starts once [prebufferPackets] consecutive-ish packets are queued.
@@ -16,15 +21,22 @@ package com.fable.wifisoundthing.protocol
  *    kept transmitting), old packets are dropped so latency snaps back to the target.
  *  - A sequence jump larger than [RESET_THRESHOLD] (host restarted) resets the buffer.
  *  - On a complete underrun the buffer re-enters the prebuffering state.
+ *
+ * Both limits count packets, so [resize] rescales them when the packet duration changes.
  */
 class JitterBuffer(
-    private val prebufferPackets: Int = 3,
-    private val maxDepthPackets: Int = 25,
+    private var prebufferPackets: Int = 3,
+    private var maxDepthPackets: Int = 25,
     private val reorderWindow: Int = 2,
 ) {
     sealed class PopResult {
-        /** A packet is ready for playback. */
-        data class Packet(val seq: Int, val payload: ByteArray) : PopResult()
+        /** A packet is ready for playback; [codec] is its own, so the stream can change codec mid-way. */
+        data class Packet(
+            val seq: Int,
+            val payload: ByteArray,
+            val ptsUs: Long = 0L,
+            val codec: Byte = Wire.CODEC_PCM16,
+        ) : PopResult()
 
         /** The next packet was lost; play concealment (silence) for one packet duration. */
         object Missing : PopResult()
@@ -42,7 +54,9 @@ class JitterBuffer(
         val depthPackets: Int,
     )
 
-    private val packets = HashMap<Int, ByteArray>()
+    private class Entry(val payload: ByteArray, val ptsUs: Long, val codec: Byte)
+
+    private val packets = HashMap<Int, Entry>()
     private var primed = false
     private var started = false
     private var nextSeq = 0
@@ -54,13 +68,24 @@ class JitterBuffer(
     private var overflowDropped = 0L
     private var resets = 0L
 
-    @Synchronized
-    fun push(seq: Int, payload: ByteArray) {
+    private val lock = ReentrantLock()
+
+    /** Signalled by every [push]: the only event that can turn [PopResult.Waiting] into something else. */
+    private val arrived = lock.newCondition()
+
+    fun push(seq: Int, payload: ByteArray, ptsUs: Long = 0L, codec: Byte = Wire.CODEC_PCM16) {
+        lock.withLock {
+            insert(seq, Entry(payload, ptsUs, codec))
+            arrived.signal()
+        }
+    }
+
+    private fun insert(seq: Int, entry: Entry) {
         if (!primed) {
             primed = true
             nextSeq = seq
             highestSeq = seq
-            packets[seq] = payload
+            packets[seq] = entry
             received++
             return
         }
@@ -71,7 +96,7 @@ class JitterBuffer(
             started = false
             nextSeq = seq
             highestSeq = seq
-            packets[seq] = payload
+            packets[seq] = entry
             resets++
             received++
             return
@@ -80,12 +105,38 @@ class JitterBuffer(
             late++
             return
         }
-        if (packets.put(seq, payload) == null) received++
+        if (packets.put(seq, entry) == null) received++
         if (seq - highestSeq > 0) highestSeq = seq
     }
 
-    @Synchronized
-    fun pop(): PopResult {
+    /** Replaces both limits, e.g. after a codec switch changed how long a packet plays. */
+    fun resize(prebufferPackets: Int, maxDepthPackets: Int) {
+        lock.withLock {
+            this.prebufferPackets = prebufferPackets
+            this.maxDepthPackets = maxDepthPackets
+        }
+    }
+
+    fun pop(): PopResult = lock.withLock { next() }
+
+    /**
+     * Like [pop], but while the answer is [PopResult.Waiting] parks until a packet is
+     * pushed or [deadlineNanos] (`System.nanoTime()`) passes. Returns [PopResult.Waiting]
+     * only at the deadline. The caller derives the deadline from the packet cadence, so a
+     * stalled stream still hands control back regularly.
+     */
+    fun pop(deadlineNanos: Long): PopResult = lock.withLock {
+        var result = next()
+        while (result === PopResult.Waiting) {
+            val remaining = deadlineNanos - System.nanoTime()
+            if (remaining <= 0) break
+            arrived.awaitNanos(remaining)
+            result = next()
+        }
+        result
+    }
+
+    private fun next(): PopResult {
         if (!primed) return PopResult.Waiting
 
         if (packets.isEmpty()) {
@@ -111,11 +162,11 @@ class JitterBuffer(
             }
         }
 
-        val payload = packets.remove(nextSeq)
-        if (payload != null) {
+        val entry = packets.remove(nextSeq)
+        if (entry != null) {
             val seq = nextSeq
             nextSeq++
-            return PopResult.Packet(seq, payload)
+            return PopResult.Packet(seq, entry.payload, entry.ptsUs, entry.codec)
         }
         return if (highestSeq - nextSeq >= reorderWindow) {
             lost++
@@ -126,21 +177,26 @@ class JitterBuffer(
         }
     }
 
-    @Synchronized
-    fun stats(): Stats = Stats(
-        received = received,
-        lost = lost,
-        late = late,
-        overflowDropped = overflowDropped,
-        resets = resets,
-        depthPackets = if (packets.isEmpty()) 0 else highestSeq - nextSeq + 1,
-    )
+    fun stats(): Stats = lock.withLock {
+        Stats(
+            received = received,
+            lost = lost,
+            late = late,
+            overflowDropped = overflowDropped,
+            resets = resets,
+            depthPackets = depth(),
+        )
+    }
+
+    /** Packets queued from the next one to play up to the newest (gaps included). */
+    fun depth(): Int = lock.withLock { if (packets.isEmpty()) 0 else highestSeq - nextSeq + 1 }
 
-    @Synchronized
     fun clear() {
-        packets.clear()
-        primed = false
-        started = false
+        lock.withLock {
+            packets.clear()
+            primed = false
+            started = false
+        }
     }
 
     companion object {
@@ -0,0 +1,362 @@
+package com.fable.wifisoundthing.protocol
+
+import kotlin.math.abs
+import kotlin.math.cos
+import kotlin.math.roundToInt
+
+/**
+ * FLAC-style lossless coding of one PCM packet (16-bit LE interleaved, normally a 5 ms
+ * [Wire.PCM_CHUNK_BYTES] block), for hosts without a working Opus encoder. Each channel
+ * is predicted from its past samples and only the prediction error is stored,
+ * Rice-coded; the decoder rebuilds the exact samples. Typical music needs about half
+ * the bits of raw PCM.
+ *
+ * Block layout, bit-packed MSB first:
+ * ```
+ * u8   channels
+ * u8   stereo mode: 0 = left/right, 1 = mid/side
+ * u16  frames
+ * then one subframe per channel:
+ *   u8   predictor: 0..4 = fixed polynomial of that order, 0x20 + n = LPC of order n,
+ *        0xFE = constant (one sample follows, e.g. digital silence), 0xFF = verbatim samples
+ *   LPC: u5 shift, n × s16 quantized coefficients
+ *   the first `order` samples verbatim (16 bits; 17 for the side channel)
+ *   u5   Rice parameter k, then the remaining residuals, zigzagged and Rice-coded
+ * ```
+ *
+ * Every candidate predictor is costed exactly and the cheapest wins, verbatim included,
+ * so a block never grows past raw PCM by more than a few bytes.
+ */
+object LosslessCodec {
+    private const val MODE_LEFT_RIGHT = 0
+    private const val MODE_MID_SIDE = 1
+    private const val TYPE_LPC = 0x20
+    private const val TYPE_CONSTANT = 0xFE
+    private const val TYPE_VERBATIM = 0xFF
+    private const val MAX_FIXED_ORDER = 4
+    private const val LPC_ORDER = 8
+    /** Residuals stay below this so their zigzagged form fits an Int. */
+    private const val MAX_RESIDUAL = 1 shl 30
+
+    fun encode(
+        pcm: ByteArray,
+        offset: Int = 0,
+        length: Int = pcm.size - offset,
+        channels: Int = Wire.CHANNELS,
+    ): ByteArray {
+        require(channels in 1..2) { "mono or stereo only" }
+        val frames = length / (channels * Wire.BYTES_PER_SAMPLE)
+        val samples = Array(channels) { IntArray(frames) }
+        var pos = offset
+        for (i in 0 until frames) {
+            for (c in 0 until channels) {
+                samples[c][i] = ((pcm[pos].toInt() and 0xFF) or (pcm[pos + 1].toInt() shl 8)).toShort().toInt()
+                pos += 2
+            }
+        }
+
+        var mode = MODE_LEFT_RIGHT
+        var coded = samples
+        var bits = IntArray(channels) { 16 }
+        if (channels == 2) {
+            val mid = IntArray(frames) { (samples[0][it] + samples[1][it]) shr 1 }
+            val side = IntArray(frames) { samples[0][it] - samples[1][it] }
+            if (roughCost(mid) + roughCost(side) < roughCost(samples[0]) + roughCost(samples[1])) {
+                mode = MODE_MID_SIDE
+                coded = arrayOf(mid, side)
+                bits = intArrayOf(16, 17)
+            }
+        }
+
+        val out = BitWriter(length + 16)
+        out.write(channels, 8)
+        out.write(mode, 8)
+        out.write(frames, 16)
+        for (c in 0 until channels) writeSubframe(out, coded[c], bits[c])
+        return out.finish()
+    }
+
+    /** Decodes one block back to 16-bit LE interleaved PCM; null if [data] is malformed. */
+    fun decode(data: ByteArray): ByteArray? = try {
+        val input = BitReader(data)
+        val channels = input.read(8)
+        val mode = input.read(8)
+        val frames = input.read(16)
+        if (channels !in 1..2 || mode > MODE_MID_SIDE || (mode == MODE_MID_SIDE && channels != 2)) {
+            null
+        } else {
+            val bits = if (mode == MODE_MID_SIDE) intArrayOf(16, 17) else IntArray(channels) { 16 }
+            val samples = Array(channels) { readSubframe(input, frames, bits[it]) }
+            if (mode == MODE_MID_SIDE) {
+                val mid = samples[0]
+                val side = samples[1]
+                for (i in 0 until frames) {
+                    val m = (mid[i] shl 1) or (side[i] and 1)
+                    mid[i] = (m + side[i]) shr 1
+                    side[i] = (m - side[i]) shr 1
+                }
+            }
+            val pcm = ByteArray(frames * channels * Wire.BYTES_PER_SAMPLE)
+            var pos = 0
+            for (i in 0 until frames) {
+                for (c in 0 until channels) {
+                    val s = samples[c][i]
+                    pcm[pos++] = s.toByte()
+                    pcm[pos++] = (s shr 8).toByte()
+                }
+            }
+            pcm
+        }
+    } catch (_: MalformedException) {
+        null
+    }
+
+    /** Sum of second-order differences: a cheap stand-in for coded size when choosing the stereo mode. */
+    private fun roughCost(x: IntArray): Long {
+        var sum = 0L
+        for (i in 2 until x.size) sum += abs(x[i] - 2 * x[i - 1] + x[i - 2])
+        return sum
+    }
+
+    private class Candidate(
+        val type: Int,
+        val order: Int,
+        val residual: IntArray,
+        val k: Int,
+        val costBits: Long,
+        val coefficients: IntArray? = null,
+        val shift: Int = 0,
+    )
+
+    private fun writeSubframe(out: BitWriter, x: IntArray, bits: Int) {
+        if (x.isNotEmpty() && x.all { it == x[0] }) {
+            out.write(TYPE_CONSTANT, 8)
+            out.write(x[0], bits)
+            return
+        }
+        var best: Candidate? = null
+        for (order in 0..minOf(MAX_FIXED_ORDER, x.size)) {
+            val c = fixedCandidate(x, order, bits)
+            if (best == null || c.costBits < best.costBits) best = c
+        }
+        val lpc = lpcCandidate(x, LPC_ORDER, bits)
+        if (lpc != null && (best == null || lpc.costBits < best.costBits)) best = lpc
+
+        if (best == null || best.costBits >= 8L + x.size.toLong() * bits) {
+            out.write(TYPE_VERBATIM, 8)
+            for (s in x) out.write(s, bits)
+            return
+        }
+        out.write(best.type, 8)
+        best.coefficients?.let { q ->
+            out.write(best.shift, 5)
+            for (c in q) out.write(c, 16)
+        }
+        for (i in 0 until best.order) out.write(x[i], bits)
+        out.write(best.k, 5)
+        for (e in best.residual) out.writeRice(zigzag(e), best.k)
+    }
+
+    private fun readSubframe(input: BitReader, frames: Int, bits: Int): IntArray {
+        val type = input.read(8)
+        val x = IntArray(frames)
+        if (type == TYPE_VERBATIM) {
+            for (i in 0 until frames) x[i] = input.readSigned(bits)
+            return x
+        }
+        if (type == TYPE_CONSTANT) {
+            x.fill(input.readSigned(bits))
+            return x
+        }
+        val lpc = type and TYPE_LPC != 0
+        val order = if (lpc) type - TYPE_LPC else type
+        if (order > frames || (!lpc && order > MAX_FIXED_ORDER) || (lpc && order !in 1..32)) {
+            throw MalformedException()
+        }
+        var shift = 0
+        var q: IntArray? = null
+        if (lpc) {
+            shift = input.read(5)
+            q = IntArray(order) { input.readSigned(16) }
+        }
+        for (i in 0 until order) x[i] = input.readSigned(bits)
+        val k = input.read(5)
+        for (i in order until frames) {
+            val e = unzigzag(input.readRice(k))
+            x[i] = e + if (q != null) lpcPredict(x, i, q, shift) else fixedPredict(x, i, order)
+        }
+        return x
+    }
+
+    private fun fixedPredict(x: IntArray, i: Int, order: Int): Int = when (order) {
+        0 -> 0
+        1 -> x[i - 1]
+        2 -> 2 * x[i - 1] - x[i - 2]
+        3 -> 3 * x[i - 1] - 3 * x[i - 2] + x[i - 3]
+        else -> 4 * x[i - 1] - 6 * x[i - 2] + 4 * x[i - 3] - x[i - 4]
+    }
+
+    private fun lpcPredict(x: IntArray, i: Int, q: IntArray, shift: Int): Int {
+        var sum = 0L
+        for (j in q.indices) sum += q[j].toLong() * x[i - 1 - j]
+        return (sum shr shift).toInt()
+    }
+
+    private fun fixedCandidate(x: IntArray, order: Int, bits: Int): Candidate {
+        val residual = IntArray(x.size - order) { x[it + order] - fixedPredict(x, it + order, order) }
+        val k = riceParameter(residual)
+        val cost = 8L + order * bits + 5 + riceBits(residual, k)
+        return Candidate(order, order, residual, k, cost)
+    }
+
+    /**
+     * Linear prediction from a Hann-windowed autocorrelation (Levinson-Durbin), with the
+     * coefficients quantized to 16 bits. Null when the block is too short or flat for it.
+     */
+    private fun lpcCandidate(x: IntArray, order: Int, bits: Int): Candidate? {
+        val n = x.size
+        if (n <= order * 4) return null
+        val w = DoubleArray(n) { x[it] * (0.5 - 0.5 * cos(2.0 * Math.PI * (it + 0.5) / n)) }
+        val r = DoubleArray(order + 1)
+        for (lag in 0..order) {
+            var sum = 0.0
+            for (i in lag until n) sum += w[i] * w[i - lag]
+            r[lag] = sum
+        }
+        if (r[0] == 0.0) return null
+
+        val a = DoubleArray(order)
+        var err = r[0]
+        for (i in 0 until order) {
+            var acc = r[i + 1]
+            for (j in 0 until i) acc -= a[j] * r[i - j]
+            val k = acc / err
+            val prev = a.copyOf(i)
+            a[i] = k
+            for (j in 0 until i) a[j] = prev[j] - k * prev[i - 1 - j]
+            err *= 1 - k * k
+            if (err <= 0) break
+        }
+
+        val maxCoef = a.maxOf { abs(it) }
+        if (maxCoef == 0.0 || maxCoef.isNaN()) return null
+        var shift = 15
+        while (shift > 0 && maxCoef * (1 shl shift) > Short.MAX_VALUE) shift--
+        // Carry each coefficient's rounding error into the next, as FLAC does.
+        val q = IntArray(order)
+        var carry = 0.0
+        for (j in 0 until order) {
+            val scaled = a[j] * (1 shl shift) + carry
+            q[j] = scaled.roundToInt().coerceIn(Short.MIN_VALUE.toInt(), Short.MAX_VALUE.toInt())
+            carry = scaled - q[j]
+        }
+
+        val residual = IntArray(n - order)
+        for (i in order until n) {
+            var sum = 0L
+            for (j in 0 until order) sum += q[j].toLong() * x[i - 1 - j]
+            val e = x[i] - (sum shr shift)
+            if (abs(e) >= MAX_RESIDUAL) return null
+            residual[i - order] = e.toInt()
+        }
+        val k = riceParameter(residual)
+        val cost = 8L + 5 + 16L * order + order * bits + 5 + riceBits(residual, k)
+        return Candidate(TYPE_LPC + order, order, residual, k, cost, q, shift)
+    }
+
+    private fun zigzag(e: Int): Int = (e shl 1) xor (e shr 31)
+
+    private fun unzigzag(v: Int): Int = (v ushr 1) xor -(v and 1)
+
+    /** Best Rice parameter near log2 of the mean zigzagged residual. */
+    private fun riceParameter(residual: IntArray): Int {
+        if (residual.isEmpty()) return 0
+        var sum = 0L
+        for (e in residual) sum += zigzag(e).toLong() and 0xFFFFFFFFL
+        val mean = sum / residual.size
+        val guess = if (mean < 1) 0 else 63 - java.lang.Long.numberOfLeadingZeros(mean)
+        var best = guess
+        var bestBits = Long.MAX_VALUE
+        for (k in maxOf(0, guess - 1)..minOf(30, guess + 1)) {
+            val bits = riceBits(residual, k)
+            if (bits < bestBits) {
+                bestBits = bits
+                best = k
+            }
+        }
+        return best
+    }
+
+    private fun riceBits(residual: IntArray, k: Int): Long {
+        var bits = residual.size.toLong() * (k + 1)
+        for (e in residual) bits += zigzag(e).toLong() and 0xFFFFFFFFL ushr k
+        return bits
+    }
+
+    private class MalformedException : RuntimeException()
+
+    private class BitWriter(capacity: Int) {
+        private var buf = ByteArray(capacity)
+        private var size = 0
+        private var acc = 0L
+        private var accBits = 0
+
+        /** Appends the low [bits] (0..32) of [value]. */
+        fun write(value: Int, bits: Int) {
+            acc = (acc shl bits) or (value.toLong() and ((1L shl bits) - 1))
+            accBits += bits
+            while (accBits >= 8) {
+                accBits -= 8
+                put((acc ushr accBits).toByte())
+            }
+        }
+
+        fun writeRice(value: Int, k: Int) {
+            var q = value ushr k
+            while (q >= 32) {
+                write(0, 32)
+                q -= 32
+            }
+            write(1, q + 1)
+            write(value, k)
+        }
+
+        fun finish(): ByteArray {
+            if (accBits > 0) put((acc shl (8 - accBits)).toByte())
+            accBits = 0
+            return buf.copyOf(size)
+        }
+
+        private fun put(b: Byte) {
+            if (size == buf.size) buf = buf.copyOf(buf.size * 2)
+            buf[size++] = b
+        }
+    }
+
+    private class BitReader(private val data: ByteArray) {
+        private var pos = 0
+        private var acc = 0L
+        private var accBits = 0
+
+        /** Reads [bits] (0..32) as an unsigned value. */
+        fun read(bits: Int): Int {
+            while (accBits < bits) {
+                if (pos >= data.size) throw MalformedException()
+                acc = (acc shl 8) or (data[pos++].toLong() and 0xFF)
+                accBits += 8
+            }
+            accBits -= bits
+            return ((acc ushr accBits) and ((1L shl bits) - 1)).toInt()
+        }
+
+        fun readSigned(bits: Int): Int = (read(bits) shl (32 - bits)) shr (32 - bits)
+
+        fun readRice(k: Int): Int {
+            var q = 0
+            while (read(1) == 0) {
+                if (++q > Int.MAX_VALUE ushr k) throw MalformedException()
+            }
+            return (q shl k) or read(k)
+        }
+    }
+}
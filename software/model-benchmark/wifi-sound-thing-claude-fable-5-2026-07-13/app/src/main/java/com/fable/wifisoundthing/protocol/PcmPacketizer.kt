@@ -0,0 +1,56 @@
+package com.fable.wifisoundthing.protocol
+
+/**
+ * Copy-free PCM mode: the capture thread reads each block straight into [buffer] at
+ * [pcmOffset], and [packetize] turns it into datagrams in place, like [PcmChunker]
+ * (frame-aligned [chunkBytes] slices) but without a single copy.
+ *
+ * The first slice's header goes in the [Wire.HEADER_BYTES] reserved in front of the
+ * PCM. Every later slice's header overwrites the last 16 bytes of the slice before it,
+ * which by then has been sent — so [emit] must be done with a datagram before it
+ * returns (synchronous sends). One buffer is reused for every block, or the caller
+ * brings its own with [pcmOffset] bytes free in front of the PCM (a [PcmRing] slot).
+ */
+class PcmPacketizer(
+    blockBytes: Int,
+    chunkBytes: Int = Wire.PCM_CHUNK_BYTES,
+    frameBytes: Int = Wire.CHANNELS * Wire.BYTES_PER_SAMPLE,
+) {
+    init {
+        require(chunkBytes >= frameBytes) { "chunk smaller than one sample frame" }
+    }
+
+    /** Payload bytes per datagram, rounded down to whole sample frames. */
+    val chunkBytes = (chunkBytes / frameBytes) * frameBytes
+
+    val pcmOffset = Wire.HEADER_BYTES
+
+    val buffer = ByteArray(pcmOffset + blockBytes)
+
+    /**
+     * Emits the [length] bytes of PCM at [pcmOffset] as datagrams `buffer[offset, offset + size)`,
+     * numbered from [firstSeq] and stamped from [ptsUs]. Returns the next sequence number.
+     */
+    inline fun packetize(length: Int, firstSeq: Int, ptsUs: Long, emit: (offset: Int, size: Int) -> Unit): Int =
+        packetize(buffer, 0, length, firstSeq, ptsUs, emit)
+
+    /** Same, for PCM at `data[base + pcmOffset]`; datagrams are emitted as offsets into [data]. */
+    inline fun packetize(
+        data: ByteArray,
+        base: Int,
+        length: Int,
+        firstSeq: Int,
+        ptsUs: Long,
+        emit: (offset: Int, size: Int) -> Unit,
+    ): Int {
+        var seq = firstSeq
+        var pos = 0
+        while (pos < length) {
+            val size = minOf(chunkBytes, length - pos)
+            AudioPacket.writeHeader(data, base + pos, Wire.CODEC_PCM16, seq++, ptsUs + Wire.pcmBytesToUs(pos))
+            emit(base + pos, Wire.HEADER_BYTES + size)
+            pos += size
+        }
+        return seq
+    }
+}
@@ -0,0 +1,111 @@
+package com.fable.wifisoundthing.protocol
+
+import java.util.concurrent.locks.LockSupport
+
+/**
+ * Single-producer, single-consumer ring of PCM blocks between the host's capture thread
+ * and its encoder thread. Everything is allocated up front: [capacity] slots of
+ * [headroom] + [blockBytes] in one [buffer], and the producer reads each block straight
+ * into its slot, so handing a block over costs two volatile writes and no lock.
+ *
+ * [headroom] bytes in front of every block are left free for the consumer, which is how
+ * [PcmPacketizer] gets room for its first header without a copy.
+ *
+ * When the consumer falls [capacity] blocks behind, [claim] fails and the producer drops
+ * the block it reads next ([overruns] counts them) rather than stall the capture.
+ */
+class PcmRing(
+    val blockBytes: Int,
+    val capacity: Int,
+    val headroom: Int = 0,
+) {
+    init {
+        require(capacity > 0) { "ring needs at least one slot" }
+    }
+
+    private val stride = headroom + blockBytes
+
+    val buffer = ByteArray(stride * capacity)
+
+    private val lengths = IntArray(capacity)
+    private val ptsUs = LongArray(capacity)
+
+    // Blocks ever published / ever released; each is written by one side only.
+    @Volatile
+    private var head = 0L
+
+    @Volatile
+    private var tail = 0L
+
+    @Volatile
+    private var consumer: Thread? = null
+
+    /** Most blocks ever waiting at once. Written by the producer. */
+    @Volatile
+    var highWater = 0
+        private set
+
+    /** Blocks dropped because the ring was full. Written by the producer. */
+    @Volatile
+    var overruns = 0L
+        private set
+
+    /** Blocks waiting for the consumer right now. */
+    val size: Int get() = (head - tail).toInt()
+
+    /** Where the block a slot holds starts; its headroom is just before this. */
+    fun offsetOf(slot: Int): Int = slot * stride + headroom
+
+    fun lengthOf(slot: Int): Int = lengths[slot]
+
+    fun ptsUsOf(slot: Int): Long = ptsUs[slot]
+
+    // ---- producer ----
+
+    /**
+     * The free slot to read the next block into, or -1 if the ring is full; the caller
+     * then reads that block somewhere else and calls [overrun].
+     */
+    fun claim(): Int = if (head - tail >= capacity) -1 else (head % capacity).toInt()
+
+    fun overrun() {
+        overruns++
+    }
+
+    /** Hands the [claim]ed slot, now holding [length] bytes stamped [pts], to the consumer. */
+    fun publish(slot: Int, length: Int, pts: Long) {
+        lengths[slot] = length
+        ptsUs[slot] = pts
+        val next = head + 1
+        head = next
+        val waiting = (next - tail).toInt()
+        if (waiting > highWater) highWater = waiting
+        consumer?.let { LockSupport.unpark(it) }
+    }
+
+    // ---- consumer ----
+
+    /**
+     * The oldest published slot, waiting up to [timeoutNanos] for one; -1 if none arrived.
+     * The slot stays the consumer's until [release].
+     */
+    fun take(timeoutNanos: Long): Int {
+        if (head == tail) {
+            consumer = Thread.currentThread()
+            val deadline = System.nanoTime() + timeoutNanos
+            while (head == tail) {
+                val left = deadline - System.nanoTime()
+                if (left <= 0) break
+                LockSupport.parkNanos(this, left)
+            }
+            consumer = null
+            if (head == tail) return -1
+        }
+        return (tail % capacity).toInt()
+    }
+
+    /** Returns the slot from [take] to the producer. */
+    fun release() {
+        tail++
+    }
+}
@@ -0,0 +1,115 @@
+package com.fable.wifisoundthing.protocol
+
+import kotlin.math.abs
+import kotlin.math.roundToInt
+
+/**
+ * Schedules packets for a presentation time common to every client: the host's capture
+ * timestamp plus a fixed [delayUs] announced in the handshake. Given where our output
+ * actually is, each packet is either played — stretched or squeezed by a fraction of a
+ * percent to pull the error back in — preceded by silence (too early), or dropped (far
+ * too late).
+ *
+ * The time-scale adjustment is plain linear resampling of each packet ([stretch]). At
+ * most [maxStretch] (1%) it shifts the pitch by less than a fifth of a semitone, which is
+ * inaudible, and corrects up to 10 ms per second of audio.
+ *
+ * All times are microseconds, on the local clock; the host's capture timestamps are
+ * mapped onto it with the offset from [ClockSync].
+ */
+class PlayoutSync(
+    private val sampleRate: Int,
+    private val delayUs: Long,
+    private val deadbandUs: Long = 1_000,
+    private val maxStretch: Double = 0.01,
+) {
+    sealed class Decision {
+        /** Play the packet, removing [correctionFrames] (adding, if negative) sample frames. */
+        data class Play(val correctionFrames: Int) : Decision()
+
+        /** Too early: play [silenceFrames] of silence first, then decide again. */
+        data class Wait(val silenceFrames: Int) : Decision()
+
+        /** So late that stretching would take too long: skip the packet. */
+        object Drop : Decision()
+    }
+
+    /** Last measured error: positive = we play after the common time. */
+    @Volatile
+    var errorUs = 0L
+        private set
+
+    /**
+     * Decides what to do with the packet captured at [ptsUs] (host clock). [offsetUs] is
+     * host minus local clock ([ClockSync.offsetUs]); [outputDelayUs] is how long PCM
+     * written now takes to be heard. Dropping is only allowed when [canDrop] — with
+     * nothing queued behind this packet it would just leave a gap without catching up.
+     */
+    fun decide(ptsUs: Long, offsetUs: Long, localNowUs: Long, outputDelayUs: Long, canDrop: Boolean): Decision {
+        val targetLocalUs = ptsUs + delayUs - offsetUs
+        val heardAtUs = localNowUs + outputDelayUs
+        val error = heardAtUs - targetLocalUs
+        errorUs = error
+        return when {
+            error < -EARLY_WAIT_US -> Decision.Wait(usToFrames(-error).coerceIn(1, usToFrames(MAX_WAIT_US)))
+            error > LATE_DROP_US && canDrop -> Decision.Drop
+            abs(error) <= deadbandUs -> Decision.Play(0)
+            // Correct a tenth of the error per packet; stretch() caps it at maxStretch.
+            else -> Decision.Play((usToFrames(error) * GAIN).roundToInt())
+        }
+    }
+
+    private fun usToFrames(us: Long): Int = (us * sampleRate / 1_000_000L).toInt()
+
+    /**
+     * Resamples [pcm] (16-bit LE, [channels] interleaved) to its length minus
+     * [correctionFrames], limited to [maxStretch] of its length. Returns [pcm] itself
+     * when there is nothing to correct.
+     */
+    fun stretch(pcm: ByteArray, channels: Int, correctionFrames: Int): ByteArray {
+        val frameBytes = channels * Wire.BYTES_PER_SAMPLE
+        val inFrames = pcm.size / frameBytes
+        val limit = (inFrames * maxStretch).toInt()
+        val correction = correctionFrames.coerceIn(-limit, limit)
+        if (correction == 0 || inFrames < 2) return pcm
+        return resample(pcm, channels, inFrames, inFrames - correction)
+    }
+
+    companion object {
+        /** Earlier than this and we insert silence rather than stretch. */
+        const val EARLY_WAIT_US = 20_000L
+
+        /** Later than this and packets are skipped while there are newer ones queued. */
+        const val LATE_DROP_US = 60_000L
+
+        /** Silence is inserted in slices so the decision is refreshed as the output drains. */
+        private const val MAX_WAIT_US = 20_000L
+
+        private const val GAIN = 0.1
+
+        /** Linear-interpolation resampling of [inFrames] interleaved frames to [outFrames]. */
+        fun resample(pcm: ByteArray, channels: Int, inFrames: Int, outFrames: Int): ByteArray {
+            val frameBytes = channels * Wire.BYTES_PER_SAMPLE
+            val out = ByteArray(outFrames * frameBytes)
+            val step = (inFrames - 1).toDouble() / (outFrames - 1).coerceAtLeast(1)
+            for (i in 0 until outFrames) {
+                val pos = i * step
+                val i0 = pos.toInt().coerceAtMost(inFrames - 1)
+                val i1 = (i0 + 1).coerceAtMost(inFrames - 1)
+                val frac = pos - i0
+                for (c in 0 until channels) {
+                    val a = sample(pcm, i0 * frameBytes + c * 2)
+                    val b = sample(pcm, i1 * frameBytes + c * 2)
+                    val v = (a + (b - a) * frac).roundToInt()
+                    val o = i * frameBytes + c * 2
+                    out[o] = v.toByte()
+                    out[o + 1] = (v shr 8).toByte()
+                }
+            }
+            return out
+        }
+
+        private fun sample(pcm: ByteArray, offset: Int): Int =
+            ((pcm[offset].toInt() and 0xFF) or (pcm[offset + 1].toInt() shl 8)).toShort().toInt()
+    }
+}
@@ -0,0 +1,86 @@
+package com.fable.wifisoundthing.protocol
+
+import kotlin.random.Random
+
+/**
+ * The tiny reliability layer of the UDP control channel, one instance per peer.
+ *
+ * Handshake and teardown messages ([ControlMessage.Hello], [ControlMessage.Config],
+ * [ControlMessage.Bye]) get a sequence number and are retransmitted every
+ * [retransmitMs] until the peer acks them, giving up after [maxAttempts] sends. Pings
+ * and clock probes are periodic anyway and go out unnumbered: a lost one is simply
+ * replaced by the next.
+ *
+ * Numbering starts at a random [firstSeq] so that a client reconnecting from the same
+ * port is not mistaken for a retransmission of its previous session. Received numbers
+ * are remembered for a while to ack duplicates without delivering them twice.
+ */
+class ReliableControl(
+    private val retransmitMs: Long = 200,
+    private val maxAttempts: Int = 10,
+    firstSeq: Int = Random.nextInt(1, Int.MAX_VALUE / 2),
+) {
+    /** What an incoming packet amounts to: the message to act on, and the ack to send back. */
+    class Received(val message: ControlMessage?, val ack: ByteArray?)
+
+    private class Outstanding(val bytes: ByteArray, var lastSentMs: Long, var attempts: Int)
+
+    private var nextSeq = firstSeq
+    private val unacked = LinkedHashMap<Int, Outstanding>()
+    private val delivered = ArrayDeque<Int>()
+
+    /** Encodes [message] for sending now; reliable messages are kept for retransmission. */
+    @Synchronized
+    fun encode(message: ControlMessage, nowMs: Long): ByteArray {
+        if (!needsAck(message)) return ControlPacket(0, 0, message).toBytes()
+        val seq = nextSeq
+        nextSeq = if (nextSeq == Int.MAX_VALUE) 1 else nextSeq + 1
+        val bytes = ControlPacket(seq, 0, message).toBytes()
+        unacked[seq] = Outstanding(bytes, nowMs, 1)
+        return bytes
+    }
+
+    @Synchronized
+    fun receive(packet: ControlPacket): Received {
+        if (packet.ack != 0) unacked.remove(packet.ack)
+        if (packet.seq == 0) return Received(packet.message, null)
+        val ack = ControlPacket(0, packet.seq, null).toBytes()
+        if (packet.seq in delivered) return Received(null, ack)
+        delivered.addLast(packet.seq)
+        while (delivered.size > DELIVERED_MEMORY) delivered.removeFirst()
+        return Received(packet.message, ack)
+    }
+
+    /** Packets whose ack is overdue, to be sent again now. */
+    @Synchronized
+    fun due(nowMs: Long): List<ByteArray> {
+        if (unacked.isEmpty()) return emptyList()
+        val resend = ArrayList<ByteArray>()
+        val it = unacked.values.iterator()
+        while (it.hasNext()) {
+            val entry = it.next()
+            if (nowMs - entry.lastSentMs < retransmitMs) continue
+            if (entry.attempts >= maxAttempts) {
+                it.remove()
+                continue
+            }
+            entry.lastSentMs = nowMs
+            entry.attempts++
+            resend.add(entry.bytes)
+        }
+        return resend
+    }
+
+    /** Reliable messages still waiting for their ack. */
+    val pending: Int
+        get() = synchronized(this) { unacked.size }
+
+    companion object {
+        private const val DELIVERED_MEMORY = 16
+
+        fun needsAck(message: ControlMessage): Boolean = when (message) {
+            is ControlMessage.Hello, is ControlMessage.Config, is ControlMessage.Bye -> true
+            else -> false
+        }
+    }
+}
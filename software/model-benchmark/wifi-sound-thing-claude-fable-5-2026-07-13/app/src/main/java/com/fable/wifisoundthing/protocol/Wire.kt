@@ -10,11 +10,14 @@ import java.nio.ByteBuffer
  * ```
  * offset 0  u16  magic "WT" (0x5754)
  * offset 2  u8   protocol version
- * offset 3  u8   codec id (0 = PCM 16-bit LE, 1 = Opus)
+ * offset 3  u8   codec id (0 = PCM 16-bit LE, 1 = Opus, 2 = lossless, see [LosslessCodec])
  * offset 4  u32  sequence number (wraps around)
  * offset 8  u64  capture timestamp, microseconds
  * offset 16 ...  payload (one encoded frame / PCM chunk)
  * ```
+ *
+ * Codec id [TYPE_CONTROL] marks a [ControlPacket] instead: the optional UDP control
+ * channel shares the audio port and header.
  */
 object Wire {
     const val PROTOCOL_VERSION = 1
@@ -22,6 +25,10 @@ object Wire {
 
     const val CODEC_PCM16: Byte = 0
     const val CODEC_OPUS: Byte = 1
+    const val CODEC_LOSSLESS: Byte = 2
+
+    /** Not a codec: the datagram is a [ControlPacket]. */
+    const val TYPE_CONTROL: Byte = 0x7F
 
     const val HEADER_BYTES = 16
 
@@ -41,15 +48,29 @@ object Wire {
 
     const val OPUS_BITRATE = 128_000
 
+    /**
+     * Synchronized playout: capture-to-speaker delay every client aims for. Covers the
+     * jitter buffer, Wi-Fi and most output paths including Bluetooth headphones.
+     */
+    const val SYNC_PLAYOUT_DELAY_MS = 400
+
+    /** Codec names this version plays, announced in its `hello`. */
+    val CODECS = listOf("pcm16", "opus", "lossless")
+
+    /** What a `hello` without a codec list means: versions from before lossless play these. */
+    val LEGACY_CODECS = listOf("pcm16", "opus")
+
     fun codecName(codec: Byte): String = when (codec) {
         CODEC_PCM16 -> "pcm16"
         CODEC_OPUS -> "opus"
+        CODEC_LOSSLESS -> "lossless"
         else -> "unknown"
     }
 
     fun codecId(name: String): Byte? = when (name) {
         "pcm16" -> CODEC_PCM16
         "opus" -> CODEC_OPUS
+        "lossless" -> CODEC_LOSSLESS
         else -> null
     }
 
@@ -65,24 +86,30 @@ class AudioPacket(
     val payload: ByteArray,
 ) {
     fun toBytes(): ByteArray {
-        val buf = ByteBuffer.allocate(Wire.HEADER_BYTES + payload.size)
-        buf.putShort(Wire.MAGIC)
-        buf.put(Wire.PROTOCOL_VERSION.toByte())
-        buf.put(codec)
-        buf.putInt(seq)
-        buf.putLong(ptsUs)
-        buf.put(payload)
-        return buf.array()
+        val out = ByteArray(Wire.HEADER_BYTES + payload.size)
+        writeHeader(out, 0, codec, seq, ptsUs)
+        payload.copyInto(out, Wire.HEADER_BYTES)
+        return out
     }
 
     companion object {
+        /** Writes the 16-byte header at [offset] of [buf], for payloads already in place behind it. */
+        fun writeHeader(buf: ByteArray, offset: Int, codec: Byte, seq: Int, ptsUs: Long) {
+            buf[offset] = (Wire.MAGIC.toInt() shr 8).toByte()
+            buf[offset + 1] = Wire.MAGIC.toByte()
+            buf[offset + 2] = Wire.PROTOCOL_VERSION.toByte()
+            buf[offset + 3] = codec
+            for (i in 0 until 4) buf[offset + 4 + i] = (seq ushr (24 - 8 * i)).toByte()
+            for (i in 0 until 8) buf[offset + 8 + i] = (ptsUs ushr (56 - 8 * i)).toByte()
+        }
+
         fun parse(data: ByteArray, length: Int = data.size): AudioPacket? {
             if (length < Wire.HEADER_BYTES || length > data.size) return null
             val buf = ByteBuffer.wrap(data, 0, length)
             if (buf.short != Wire.MAGIC) return null
             if (buf.get() != Wire.PROTOCOL_VERSION.toByte()) return null
             val codec = buf.get()
-            if (codec != Wire.CODEC_PCM16 && codec != Wire.CODEC_OPUS) return null
+            if (codec != Wire.CODEC_PCM16 && codec != Wire.CODEC_OPUS && codec != Wire.CODEC_LOSSLESS) return null
             val seq = buf.int
             val ptsUs = buf.long
             val payload = ByteArray(length - Wire.HEADER_BYTES)
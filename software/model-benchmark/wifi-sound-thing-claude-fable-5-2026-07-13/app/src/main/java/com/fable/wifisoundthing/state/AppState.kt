@@ -22,6 +22,12 @@ data class HostUiState(
     val levelPercent: Int = 0,
     /** True when capture runs but only silence arrives (source app likely blocks capture). */
     val captureSilent: Boolean = false,
+    /** Most captured audio ever queued between the capture and encoder threads. */
+    val captureQueueMaxMs: Int = 0,
+    /** Capture blocks dropped because the encoder thread fell a whole queue behind. */
+    val captureOverruns: Long = 0L,
+    /** From pressing Start to the first audio packet, or null until it is out. */
+    val startToFirstPacketMs: Int? = null,
     /** Plain-language error for the user, or null. */
     val error: String? = null,
 )
@@ -46,6 +52,8 @@ data class ClientUiState(
     val bufferMs: Int = 0,
     val kbps: Int = 0,
     val packetsReceived: Long = 0L,
+    /** Synchronized playout: how far this phone is from the common time, or null when off. */
+    val syncErrorMs: Int? = null,
     val error: String? = null,
 )
 
@@ -70,6 +70,9 @@ class ClientActivity : AppCompatActivity() {
             }
         }
 
+        binding.udpControlSwitch.isChecked = prefs.udpControl
+        binding.udpControlSwitch.setOnCheckedChangeListener { _, checked -> prefs.udpControl = checked }
+
         adapter = HostListAdapter { host ->
             prefs.lastHostAddress =
                 if (host.port == Wire.DEFAULT_CONTROL_PORT) host.address
@@ -174,6 +177,8 @@ class ClientActivity : AppCompatActivity() {
         binding.lossValue.text = String.format("%.1f %%", state.lossPercent)
         binding.bufferValue.text = getString(R.string.client_buffer_ms, state.bufferMs)
         binding.bitrateValue.text = getString(R.string.client_kbps, state.kbps)
+        binding.syncRow.visibility = if (state.syncErrorMs != null) View.VISIBLE else View.GONE
+        binding.syncValue.text = getString(R.string.client_sync_value, state.syncErrorMs ?: 0)
 
         binding.clientErrorText.visibility = if (state.error != null) View.VISIBLE else View.GONE
         binding.clientErrorText.text = state.error.orEmpty()
@@ -13,7 +13,9 @@ import androidx.lifecycle.Lifecycle
 import androidx.lifecycle.lifecycleScope
 import androidx.lifecycle.repeatOnLifecycle
 import com.fable.wifisoundthing.R
+import com.fable.wifisoundthing.audio.OpusOptions
 import com.fable.wifisoundthing.databinding.ActivityHostBinding
+import com.fable.wifisoundthing.host.EncoderWarmer
 import com.fable.wifisoundthing.host.HostService
 import com.fable.wifisoundthing.state.HostStateHolder
 import com.fable.wifisoundthing.state.HostUiState
@@ -68,12 +70,31 @@ class HostActivity : AppCompatActivity() {
         } else {
             binding.codecAuto.isChecked = true
         }
+        val opus = prefs.opusOptions
+        binding.frameGroup.check(frameButtons[opus.frameUs] ?: R.id.frame20)
+        binding.complexitySlider.value = opus.complexity.coerceIn(0, 10).toFloat()
+        binding.opusSettings.visibility = if (prefs.codecMode == "pcm") View.GONE else View.VISIBLE
+        binding.syncSwitch.isChecked = prefs.syncPlayout
+        // Find and warm up the encoder now, so Start doesn't have to.
+        if (!HostStateHolder.state.value.running) EncoderWarmer.shared.prepare(prefs.codecMode, opus, prefs.opusWarmUps)
+        binding.codecAuto.setOnCheckedChangeListener { _, checked -> if (checked) prepareEncoder() }
+        binding.codecPcm.setOnCheckedChangeListener { _, checked -> if (checked) prepareEncoder() }
+        binding.frameGroup.setOnCheckedChangeListener { _, _ -> prepareEncoder() }
+        binding.complexitySlider.addOnChangeListener { _, _, fromUser -> if (fromUser) prepareEncoder() }
 
         binding.startButton.setOnClickListener {
             saveSettings()
             ensurePermissionsThenStart()
         }
         binding.stopButton.setOnClickListener { HostService.stop(this) }
+        binding.codecSwitchButton.setOnClickListener {
+            // Listeners stay connected and follow the switch; it also becomes the saved choice.
+            val mode = if (latestState.codec == "pcm16") "auto" else "pcm"
+            prefs.codecMode = mode
+            binding.codecPcm.isChecked = mode == "pcm"
+            binding.codecAuto.isChecked = mode != "pcm"
+            HostService.setCodec(this, mode)
+        }
 
         lifecycleScope.launch {
             repeatOnLifecycle(Lifecycle.State.STARTED) {
@@ -93,10 +114,33 @@ class HostActivity : AppCompatActivity() {
         }
     }
 
+    /** Re-prepares the encoder for what the settings now say. */
+    private fun prepareEncoder() {
+        val mode = selectedCodecMode()
+        binding.opusSettings.visibility = if (mode == "pcm") View.GONE else View.VISIBLE
+        if (!latestState.running) EncoderWarmer.shared.prepare(mode, selectedOpusOptions(), prefs.opusWarmUps)
+    }
+
+    private fun selectedCodecMode(): String = if (binding.codecPcm.isChecked) "pcm" else "auto"
+
+    private fun selectedOpusOptions(): OpusOptions = OpusOptions(
+        frameUs = frameButtons.entries.firstOrNull { it.value == binding.frameGroup.checkedRadioButtonId }?.key
+            ?: OpusOptions().frameUs,
+        complexity = binding.complexitySlider.value.toInt(),
+    )
+
+    override fun onDestroy() {
+        super.onDestroy()
+        // Closed without starting: don't hold on to a codec nobody will use.
+        if (isFinishing && !HostStateHolder.state.value.running) EncoderWarmer.shared.discard()
+    }
+
     private fun saveSettings() {
         val name = binding.nameInput.text?.toString()?.trim().orEmpty()
         if (name.isNotEmpty()) prefs.deviceName = name
-        prefs.codecMode = if (binding.codecPcm.isChecked) "pcm" else "auto"
+        prefs.codecMode = selectedCodecMode()
+        prefs.opusOptions = selectedOpusOptions()
+        prefs.syncPlayout = binding.syncSwitch.isChecked
     }
 
     private fun ensurePermissionsThenStart() {
@@ -141,12 +185,16 @@ class HostActivity : AppCompatActivity() {
                 ?.let { "$it:${state.controlPort}" }
                 ?: getString(R.string.host_address_unknown)
             binding.codecValue.text = state.codec
+            binding.codecSwitchButton.text = getString(
+                if (state.codec == "pcm16") R.string.host_codec_switch_to_opus else R.string.host_codec_switch_to_pcm
+            )
             binding.clientsValue.text = if (state.clientNames.isEmpty()) {
                 state.clientCount.toString()
             } else {
                 "${state.clientCount} (${state.clientNames.joinToString()})"
             }
             binding.dataValue.text = formatBytes(state.bytesSent)
+            binding.startTimeValue.text = state.startToFirstPacketMs?.let { "$it ms" } ?: "–"
             binding.levelMeter.progress = state.levelPercent.coerceIn(0, 100)
             binding.silentHint.visibility = if (state.captureSilent) View.VISIBLE else View.GONE
         }
@@ -168,6 +216,13 @@ class HostActivity : AppCompatActivity() {
         )
     }
 
+    private val frameButtons = mapOf(
+        2_500 to R.id.frame2_5,
+        5_000 to R.id.frame5,
+        10_000 to R.id.frame10,
+        20_000 to R.id.frame20,
+    )
+
     private fun formatBytes(bytes: Long): String = when {
         bytes >= 1_000_000_000 -> String.format("%.2f GB", bytes / 1_000_000_000.0)
         bytes >= 1_000_000 -> String.format("%.1f MB", bytes / 1_000_000.0)
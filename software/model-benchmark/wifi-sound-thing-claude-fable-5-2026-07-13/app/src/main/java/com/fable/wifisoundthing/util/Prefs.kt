@@ -2,7 +2,10 @@ package com.fable.wifisoundthing.util
 
 import android.content.Context
 import android.os.Build
+import com.fable.wifisoundthing.audio.OpusEncoder
+import com.fable.wifisoundthing.audio.OpusOptions
 import com.fable.wifisoundthing.protocol.Wire
+import java.util.Base64
 
 /** Persisted settings (FR-10): last-used values survive app restarts. */
 class Prefs(context: Context) {
@@ -18,6 +21,22 @@ class Prefs(context: Context) {
         get() = sp.getString(KEY_CODEC_MODE, "auto") ?: "auto"
         set(value) = sp.edit().putString(KEY_CODEC_MODE, value).apply()
 
+    /** Host: Opus frame duration and complexity, for the bundled encoder (the platform's only does 20 ms). */
+    var opusOptions: OpusOptions
+        get() = OpusOptions(
+            frameUs = sp.getInt(KEY_OPUS_FRAME_US, OpusEncoder.FRAME_US),
+            complexity = sp.getInt(KEY_OPUS_COMPLEXITY, OpusEncoder.DEFAULT_COMPLEXITY),
+        )
+        set(value) = sp.edit()
+            .putInt(KEY_OPUS_FRAME_US, value.frameUs)
+            .putInt(KEY_OPUS_COMPLEXITY, value.complexity)
+            .apply()
+
+    /** Host: ask every listener to play in sync (adds [Wire.SYNC_PLAYOUT_DELAY_MS] of delay). */
+    var syncPlayout: Boolean
+        get() = sp.getBoolean(KEY_SYNC_PLAYOUT, false)
+        set(value) = sp.edit().putBoolean(KEY_SYNC_PLAYOUT, value).apply()
+
     var lastHostAddress: String
         get() = sp.getString(KEY_LAST_HOST, "") ?: ""
         set(value) = sp.edit().putString(KEY_LAST_HOST, value.trim()).apply()
@@ -27,6 +46,25 @@ class Prefs(context: Context) {
         get() = sp.getString(KEY_BUFFER_PRESET, "normal") ?: "normal"
         set(value) = sp.edit().putString(KEY_BUFFER_PRESET, value).apply()
 
+    /** Client: send control messages on the audio UDP socket instead of a TCP connection. */
+    var udpControl: Boolean
+        get() = sp.getBoolean(KEY_UDP_CONTROL, false)
+        set(value) = sp.edit().putBoolean(KEY_UDP_CONTROL, value).apply()
+
+    /** Host: what Opus encoder warm-ups found out, so later starts can skip them. */
+    val opusWarmUps = object : OpusEncoder.WarmUpStore {
+        override fun load(key: String): OpusEncoder.WarmUp? =
+            sp.getString(KEY_OPUS_WARM_UP_PREFIX + key, null)?.let { parseWarmUp(it) }
+
+        override fun save(key: String, warmUp: OpusEncoder.WarmUp) {
+            sp.edit().putString(KEY_OPUS_WARM_UP_PREFIX + key, serializeWarmUp(warmUp)).apply()
+        }
+
+        override fun remove(key: String) {
+            sp.edit().remove(KEY_OPUS_WARM_UP_PREFIX + key).apply()
+        }
+    }
+
     var controlPort: Int
         get() = sp.getInt(KEY_CONTROL_PORT, Wire.DEFAULT_CONTROL_PORT)
         set(value) = sp.edit().putInt(KEY_CONTROL_PORT, value).apply()
@@ -41,10 +79,30 @@ class Prefs(context: Context) {
         Build.MODEL?.takeIf { it.isNotBlank() } ?: "Android"
 
     companion object {
+        /** A stored warm-up: "<frameMs>:<base64 OpusHead>". */
+        fun serializeWarmUp(warmUp: OpusEncoder.WarmUp): String =
+            "${warmUp.frameMs}:${Base64.getEncoder().encodeToString(warmUp.opusHead)}"
+
+        /** The warm-up [serializeWarmUp] wrote, or null if [value] is damaged. */
+        fun parseWarmUp(value: String): OpusEncoder.WarmUp? {
+            val frameMs = value.substringBefore(':').toIntOrNull() ?: return null
+            val head = try {
+                Base64.getDecoder().decode(value.substringAfter(':'))
+            } catch (_: IllegalArgumentException) {
+                return null
+            }
+            return OpusEncoder.WarmUp(head, frameMs)
+        }
+
         private const val KEY_DEVICE_NAME = "deviceName"
         private const val KEY_CODEC_MODE = "codecMode"
+        private const val KEY_SYNC_PLAYOUT = "syncPlayout"
+        private const val KEY_OPUS_FRAME_US = "opusFrameUs"
+        private const val KEY_OPUS_COMPLEXITY = "opusComplexity"
         private const val KEY_LAST_HOST = "lastHostAddress"
         private const val KEY_BUFFER_PRESET = "bufferPreset"
         private const val KEY_CONTROL_PORT = "controlPort"
+        private const val KEY_UDP_CONTROL = "udpControl"
+        private const val KEY_OPUS_WARM_UP_PREFIX = "opusWarmUp/"
     }
 }
@@ -0,0 +1,63 @@
+package com.fable.wifisoundthing.host
+
+import com.fable.wifisoundthing.audio.OpusOptions
+import com.fable.wifisoundthing.protocol.Wire
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+class CodecPolicyTest {
+
+    private val modern = Wire.CODECS
+    private val older = Wire.LEGACY_CODECS
+
+    @Test
+    fun `an older listener joining and leaving moves to PCM and back`() {
+        val policy = CodecPolicy("auto")
+        policy.chosenCodec = "lossless" // no working Opus on this phone
+        val clients = mutableListOf(modern)
+        assertEquals("auto", policy.modeFor(clients))
+        clients.add(older)
+        assertEquals("pcm", policy.modeFor(clients))
+        clients.add(modern)
+        assertEquals("pcm", policy.modeFor(clients))
+        clients.remove(older)
+        assertEquals("auto", policy.modeFor(clients))
+    }
+
+    @Test
+    fun `older listeners play Opus, so nothing changes for them`() {
+        val policy = CodecPolicy("auto")
+        policy.chosenCodec = "opus"
+        assertEquals("auto", policy.modeFor(listOf(modern, older)))
+    }
+
+    @Test
+    fun `a new choice is tried before its codec is known`() {
+        val policy = CodecPolicy("pcm")
+        policy.chosenCodec = "pcm16"
+        policy.choose("auto")
+        // Unknown until its encoder exists; the host checks again once it does.
+        assertEquals("auto", policy.modeFor(listOf(older)))
+        policy.chosenCodec = "lossless"
+        assertEquals("pcm", policy.modeFor(listOf(older)))
+        assertEquals("auto", policy.modeFor(emptyList()))
+    }
+
+    @Test
+    fun `a listener that only reads whole milliseconds gets 5 ms frames until it leaves`() {
+        val chosen = OpusOptions(frameUs = 2_500, complexity = 5)
+        val policy = CodecPolicy("auto", chosen)
+        val clients = mutableListOf(true)
+        assertEquals(chosen, policy.optionsFor(clients))
+        clients.add(false)
+        assertEquals(OpusOptions(frameUs = 5_000, complexity = 5), policy.optionsFor(clients))
+        clients.remove(false)
+        assertEquals(chosen, policy.optionsFor(clients))
+    }
+
+    @Test
+    fun `whole-millisecond frames suit every listener`() {
+        val chosen = OpusOptions(frameUs = 10_000)
+        assertEquals(chosen, CodecPolicy("auto", chosen).optionsFor(listOf(false, true)))
+    }
+}
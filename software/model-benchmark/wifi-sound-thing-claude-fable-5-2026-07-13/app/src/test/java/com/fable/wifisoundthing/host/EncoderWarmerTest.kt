@@ -0,0 +1,121 @@
+package com.fable.wifisoundthing.host
+
+import com.fable.wifisoundthing.audio.AudioEncoder
+import com.fable.wifisoundthing.audio.OpusOptions
+import com.fable.wifisoundthing.protocol.Wire
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertSame
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.atomic.AtomicInteger
+
+class EncoderWarmerTest {
+
+    private class FakeEncoder(val options: OpusOptions) : AudioEncoder {
+        override val codecId: Byte = Wire.CODEC_OPUS
+        override val opusHead: ByteArray? = null
+
+        @Volatile
+        var released = false
+
+        override fun encode(pcm: ByteArray, offset: Int, length: Int, ptsUs: Long): List<AudioEncoder.Frame> =
+            emptyList()
+
+        override fun release() {
+            released = true
+        }
+    }
+
+    /** Counts probes and how many ever ran at once; each takes [probeMs]. */
+    private class FakeFactory(private val probeMs: Long = 0) {
+        val made = CopyOnWriteArrayList<FakeEncoder>()
+        private val running = AtomicInteger()
+        val mostAtOnce = AtomicInteger()
+
+        fun create(mode: String, options: OpusOptions): AudioEncoder {
+            mostAtOnce.accumulateAndGet(running.incrementAndGet(), ::maxOf)
+            Thread.sleep(probeMs)
+            // An encoder still held by an earlier probe counts as running too.
+            val live = made.count { !it.released }
+            mostAtOnce.accumulateAndGet(live + 1, ::maxOf)
+            running.decrementAndGet()
+            return FakeEncoder(options).also { made.add(it) }
+        }
+    }
+
+    private val fast = OpusOptions(frameUs = 10_000)
+    private val slow = OpusOptions(frameUs = 20_000)
+
+    private fun warmer(factory: FakeFactory) = EncoderWarmer { mode, options, _ -> factory.create(mode, options) }
+
+    @Test
+    fun `take hands out the prepared encoder without probing again`() {
+        val factory = FakeFactory()
+        val warmer = warmer(factory)
+        warmer.prepare("auto", fast, null)
+        warmer.prepare("auto", fast, null) // same settings: kept
+        val encoder = warmer.take("auto", fast, null)
+        assertEquals(1, factory.made.size)
+        assertSame(factory.made[0], encoder)
+        assertFalse(factory.made[0].released)
+    }
+
+    @Test
+    fun `preparing other settings releases the first encoder`() {
+        val factory = FakeFactory()
+        val warmer = warmer(factory)
+        warmer.prepare("auto", fast, null)
+        warmer.prepare("auto", slow, null)
+        val encoder = warmer.take("auto", slow, null) as FakeEncoder
+        assertEquals(slow, encoder.options)
+        assertEquals(2, factory.made.size)
+        assertTrue(factory.made[0].released)
+        assertFalse(encoder.released)
+    }
+
+    @Test
+    fun `take with other settings than prepared makes a new encoder`() {
+        val factory = FakeFactory()
+        val warmer = warmer(factory)
+        warmer.prepare("auto", fast, null)
+        val encoder = warmer.take("auto", slow, null) as FakeEncoder
+        assertEquals(slow, encoder.options)
+        assertTrue(factory.made[0].released)
+    }
+
+    @Test
+    fun `discard releases the prepared encoder and take starts over`() {
+        val factory = FakeFactory()
+        val warmer = warmer(factory)
+        warmer.discard() // nothing prepared: no-op
+        warmer.prepare("auto", fast, null)
+        warmer.discard()
+        val encoder = warmer.take("auto", fast, null)
+        assertEquals(2, factory.made.size)
+        assertTrue(factory.made[0].released)
+        assertSame(factory.made[1], encoder)
+    }
+
+    @Test
+    fun `pcm needs no warm-up`() {
+        val factory = FakeFactory()
+        val warmer = warmer(factory)
+        warmer.prepare("pcm", fast, null)
+        warmer.take("auto", fast, null)
+        assertEquals(1, factory.made.size)
+    }
+
+    @Test
+    fun `probes never overlap or run beside an abandoned encoder`() {
+        val factory = FakeFactory(probeMs = 30)
+        val warmer = warmer(factory)
+        warmer.prepare("auto", fast, null)
+        warmer.prepare("auto", slow, null)
+        warmer.prepare("auto", fast, null)
+        warmer.take("auto", slow, null)
+        assertEquals(4, factory.made.size)
+        assertEquals(1, factory.mostAtOnce.get())
+    }
+}
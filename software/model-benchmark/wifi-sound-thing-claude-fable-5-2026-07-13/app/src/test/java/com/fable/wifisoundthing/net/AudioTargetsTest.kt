@@ -0,0 +1,39 @@
+package com.fable.wifisoundthing.net
+
+import com.fable.wifisoundthing.protocol.Wire
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import java.net.DatagramPacket
+import java.net.DatagramSocket
+import java.net.InetAddress
+import java.net.InetSocketAddress
+
+class AudioTargetsTest {
+
+    @Test
+    fun `each send delivers exactly the slice, also after a larger one`() {
+        DatagramSocket(0, InetAddress.getLoopbackAddress()).use { socket ->
+            socket.soTimeout = 2_000
+            val targets = AudioTargets()
+            val target = targets.connect(InetSocketAddress(InetAddress.getLoopbackAddress(), socket.localPort))
+            val sender = AudioSender()
+            val big = ByteArray(Wire.MAX_PACKET_BYTES + 100) { it.toByte() }
+            val small = byteArrayOf(9, 8, 7, 6, 5)
+
+            sender.send(big, targets.snapshot.targets)
+            sender.send(small, 1, 3, targets.snapshot.targets)
+
+            val received = ByteArray(big.size)
+            val packet = DatagramPacket(received, received.size)
+            socket.receive(packet)
+            assertArrayEquals(big, received.copyOf(packet.length))
+            packet.length = received.size
+            socket.receive(packet)
+            assertArrayEquals(byteArrayOf(8, 7, 6), received.copyOf(packet.length))
+            assertEquals(2L, target.packetsSent)
+            assertEquals(big.size + 3L, sender.bytesSent.get())
+            targets.clear()
+        }
+    }
+}
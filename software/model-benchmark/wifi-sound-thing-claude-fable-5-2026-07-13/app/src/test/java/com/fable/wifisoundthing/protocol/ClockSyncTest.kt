@@ -0,0 +1,48 @@
+package com.fable.wifisoundthing.protocol
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Test
+
+class ClockSyncTest {
+
+    @Test
+    fun `no offset before the first reply`() {
+        assertNull(ClockSync().offsetUs)
+    }
+
+    @Test
+    fun `symmetric round trip gives the exact offset`() {
+        val sync = ClockSync()
+        // Host clock is 5 s ahead; 2 ms each way.
+        sync.onReply(sentUs = 1_000_000, hostUs = 6_002_000, receivedUs = 1_004_000)
+        assertEquals(5_000_000L, sync.offsetUs)
+        assertEquals(4_000L, sync.rttUs)
+    }
+
+    @Test
+    fun `the fastest round trip in the window wins`() {
+        val sync = ClockSync()
+        sync.onReply(1_000_000, 6_030_000, 1_050_000) // slow and skewed: offset 5.005 s
+        sync.onReply(2_000_000, 7_002_000, 2_004_000) // fast: offset 5 s
+        sync.onReply(3_000_000, 8_001_000, 3_040_000) // slow the other way
+        assertEquals(5_000_000L, sync.offsetUs)
+    }
+
+    @Test
+    fun `old samples age out of the window`() {
+        val sync = ClockSync(window = 2)
+        sync.onReply(0, 5_001_000, 2_000) // best, but will be pushed out
+        sync.onReply(10_000, 5_020_000, 30_000)
+        sync.onReply(45_000, 5_060_000, 55_000)
+        assertEquals(2, sync.sampleCount)
+        assertEquals(5_010_000L, sync.offsetUs)
+    }
+
+    @Test
+    fun `a reply from before the request is ignored`() {
+        val sync = ClockSync()
+        sync.onReply(sentUs = 2_000, hostUs = 0, receivedUs = 1_000)
+        assertNull(sync.offsetUs)
+    }
+}
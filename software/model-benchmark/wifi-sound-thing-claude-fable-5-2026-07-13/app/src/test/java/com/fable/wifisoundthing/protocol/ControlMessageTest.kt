@@ -1,7 +1,9 @@
 package com.fable.wifisoundthing.protocol
 
+import org.json.JSONObject
 import org.junit.Assert.assertArrayEquals
 import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
 import org.junit.Assert.assertNull
 import org.junit.Assert.assertTrue
 import org.junit.Test
@@ -17,6 +19,26 @@ class ControlMessageTest {
         assertEquals(Wire.PROTOCOL_VERSION, parsed.version)
     }
 
+    @Test
+    fun `hello lists the codecs the client plays`() {
+        val json = ControlMessage.Hello(name = "Tablet", udpPort = 1).toJson()
+        assertEquals(Wire.CODECS, (ControlMessage.parse(json) as ControlMessage.Hello).codecs)
+        // Clients from before lossless send no list.
+        val old = JSONObject(json).apply { remove("codecs") }.toString()
+        val parsed = ControlMessage.parse(old) as ControlMessage.Hello
+        assertEquals(Wire.LEGACY_CODECS, parsed.codecs)
+        assertFalse("lossless" in parsed.codecs)
+    }
+
+    @Test
+    fun `hello says whether the client reads frameUs`() {
+        val json = ControlMessage.Hello(name = "Tablet", udpPort = 1).toJson()
+        assertTrue((ControlMessage.parse(json) as ControlMessage.Hello).readsFrameUs)
+        // Clients from before 2.5 ms frames only read frameMs.
+        val old = JSONObject(json).apply { remove("frameUs") }.toString()
+        assertFalse((ControlMessage.parse(old) as ControlMessage.Hello).readsFrameUs)
+    }
+
     @Test
     fun `config roundtrip with opus head`() {
         val head = OpusCsd.defaultOpusHead(2, 48_000)
@@ -51,6 +73,46 @@ class ControlMessageTest {
         assertNull(parsed.opusHead)
     }
 
+    @Test
+    fun `config carries the synchronized playout delay`() {
+        val config = ControlMessage.Config(
+            codec = "opus",
+            sampleRate = 48_000,
+            channels = 2,
+            frameMs = 20,
+            hostName = "Host",
+            playoutDelayMs = 400,
+        )
+        assertEquals(400, (ControlMessage.parse(config.toJson()) as ControlMessage.Config).playoutDelayMs)
+        val plain = config.copy(playoutDelayMs = 0)
+        assertEquals(0, (ControlMessage.parse(plain.toJson()) as ControlMessage.Config).playoutDelayMs)
+    }
+
+    @Test
+    fun `config carries frames shorter than a millisecond step`() {
+        val config = ControlMessage.Config(
+            codec = "opus",
+            sampleRate = 48_000,
+            channels = 2,
+            frameMs = 3,
+            hostName = "Host",
+            frameUs = 2_500,
+        )
+        val json = config.toJson()
+        assertEquals(2_500, (ControlMessage.parse(json) as ControlMessage.Config).frameUs)
+        // Without the field (an older host) the frame is whole milliseconds.
+        val old = JSONObject(json).apply { remove("frameUs") }.toString()
+        assertEquals(3_000, (ControlMessage.parse(old) as ControlMessage.Config).frameUs)
+    }
+
+    @Test
+    fun `time sync roundtrip`() {
+        val sync = ControlMessage.parse(ControlMessage.TimeSync(123_456_789L).toJson())
+        assertEquals(ControlMessage.TimeSync(123_456_789L), sync)
+        val reply = ControlMessage.parse(ControlMessage.TimeSyncReply(1L, 9_000_000_000L).toJson())
+        assertEquals(ControlMessage.TimeSyncReply(1L, 9_000_000_000L), reply)
+    }
+
     @Test
     fun `ping pong bye roundtrip`() {
         assertTrue(ControlMessage.parse(ControlMessage.Ping.toJson()) is ControlMessage.Ping)
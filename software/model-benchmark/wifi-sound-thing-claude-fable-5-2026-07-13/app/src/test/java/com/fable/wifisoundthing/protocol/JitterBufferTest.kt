@@ -142,4 +142,78 @@ class JitterBufferTest {
         val result = buffer.pop() as JitterBuffer.PopResult.Packet
         assertArrayEquals(data, result.payload)
     }
+
+    @Test
+    fun `capture timestamps travel with their packets`() {
+        val buffer = JitterBuffer(prebufferPackets = 2)
+        buffer.push(0, payload(0), ptsUs = 0)
+        buffer.push(1, payload(1), ptsUs = 20_000)
+        assertEquals(2, buffer.depth())
+        assertEquals(0L, (buffer.pop() as JitterBuffer.PopResult.Packet).ptsUs)
+        assertEquals(20_000L, (buffer.pop() as JitterBuffer.PopResult.Packet).ptsUs)
+        assertEquals(0, buffer.depth())
+    }
+
+    @Test
+    fun `blocking pop returns Waiting once the deadline passes`() {
+        val buffer = JitterBuffer(prebufferPackets = 2)
+        buffer.push(0, payload(0))
+        val start = System.nanoTime()
+        assertEquals(JitterBuffer.PopResult.Waiting, buffer.pop(start + 30_000_000))
+        assertTrue(System.nanoTime() - start >= 30_000_000)
+    }
+
+    @Test
+    fun `blocking pop wakes up as soon as a packet is pushed`() {
+        val buffer = JitterBuffer(prebufferPackets = 2)
+        buffer.push(0, payload(0))
+        val pusher = Thread {
+            Thread.sleep(20)
+            buffer.push(1, payload(1))
+        }
+        pusher.start()
+        val start = System.nanoTime()
+        val result = buffer.pop(start + 5_000_000_000L)
+        val waitedMs = (System.nanoTime() - start) / 1_000_000
+        pusher.join()
+        assertEquals(0, (result as JitterBuffer.PopResult.Packet).seq)
+        assertTrue("waited $waitedMs ms", waitedMs < 1_000)
+    }
+
+    @Test
+    fun `blocking pop returns ready packets without waiting`() {
+        val buffer = JitterBuffer(prebufferPackets = 1)
+        buffer.push(0, payload(0))
+        assertEquals(0, (buffer.pop(0L) as JitterBuffer.PopResult.Packet).seq)
+    }
+
+    @Test
+    fun `each packet keeps its own codec across a switch`() {
+        val buffer = JitterBuffer(prebufferPackets = 1)
+        buffer.push(0, payload(0), codec = Wire.CODEC_OPUS)
+        buffer.push(1, payload(1), codec = Wire.CODEC_PCM16)
+        assertEquals(Wire.CODEC_OPUS, (buffer.pop() as JitterBuffer.PopResult.Packet).codec)
+        assertEquals(Wire.CODEC_PCM16, (buffer.pop() as JitterBuffer.PopResult.Packet).codec)
+    }
+
+    @Test
+    fun `resizing applies the new limits from the next pop`() {
+        // 20 ms Opus frames: a 60 ms target is 3 packets.
+        val buffer = JitterBuffer(prebufferPackets = 3, maxDepthPackets = 25)
+        for (seq in 0 until 3) buffer.push(seq, payload(seq))
+        for (seq in 0 until 3) assertEquals(seq, popSeq(buffer))
+        assertEquals(JitterBuffer.PopResult.Waiting, buffer.pop()) // underrun: buffering again
+
+        // Switched to 5 ms PCM slices: the same 60 ms is 12 packets.
+        buffer.resize(prebufferPackets = 12, maxDepthPackets = 96)
+        for (seq in 3 until 14) buffer.push(seq, payload(seq))
+        assertEquals(JitterBuffer.PopResult.Waiting, buffer.pop())
+        buffer.push(14, payload(14))
+        assertEquals(3, popSeq(buffer))
+
+        // A backlog the old limit would have trimmed is kept.
+        for (seq in 15 until 60) buffer.push(seq, payload(seq))
+        assertEquals(4, popSeq(buffer))
+        assertEquals(0L, buffer.stats().overflowDropped)
+    }
 }
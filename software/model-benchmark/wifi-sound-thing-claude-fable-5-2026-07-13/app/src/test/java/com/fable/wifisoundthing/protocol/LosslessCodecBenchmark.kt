@@ -0,0 +1,59 @@
+package com.fable.wifisoundthing.protocol
+
+import org.junit.Assume.assumeTrue
+import org.junit.Test
+
+/**
+ * JMH-style microbenchmark for [LosslessCodec]: warm-up, then timed iterations over
+ * 5 ms blocks, reporting ns per block for encode and decode and the compression ratio.
+ * Skipped unless run with `./gradlew testDebugUnitTest -Pbenchmark --tests '*Benchmark'`.
+ *
+ * A block must encode well under its 5 ms of audio (5,000,000 ns) to keep up in real time.
+ */
+class LosslessCodecBenchmark {
+
+    @Test
+    fun music() = run("music", TestSignals.music(10.0))
+
+    @Test
+    fun speech() = run("speech", TestSignals.speech(10.0))
+
+    private fun run(name: String, pcm: ByteArray) {
+        assumeTrue("benchmarks run with -Pbenchmark", System.getProperty("benchmark") != null)
+        val blocks = (0 until pcm.size / Wire.PCM_CHUNK_BYTES).map { i ->
+            pcm.copyOfRange(i * Wire.PCM_CHUNK_BYTES, (i + 1) * Wire.PCM_CHUNK_BYTES)
+        }
+        val coded = blocks.map { LosslessCodec.encode(it) }
+
+        val encodeNs = measure(blocks.size) { for (b in blocks) sink += LosslessCodec.encode(b).size }
+        val decodeNs = measure(blocks.size) { for (c in coded) sink += LosslessCodec.decode(c)!!.size }
+        val ratio = coded.sumOf { it.size }.toDouble() / blocks.sumOf { it.size }
+        println(
+            String.format(
+                "LosslessCodec %-6s  encode %,8d ns/block  decode %,8d ns/block  ratio %.3f  (%.0f kbit/s)",
+                name, encodeNs, decodeNs, ratio, ratio * Wire.SAMPLE_RATE * Wire.CHANNELS * 16 / 1000,
+            )
+        )
+    }
+
+    /** Median ns per block over [ITERATIONS] timed passes after [WARMUP] untimed ones. */
+    private fun measure(blocksPerPass: Int, pass: () -> Unit): Long {
+        repeat(WARMUP) { pass() }
+        val samples = LongArray(ITERATIONS) {
+            val start = System.nanoTime()
+            pass()
+            (System.nanoTime() - start) / blocksPerPass
+        }
+        samples.sort()
+        return samples[ITERATIONS / 2]
+    }
+
+    private companion object {
+        const val WARMUP = 5
+        const val ITERATIONS = 10
+
+        /** Keeps results observable so the JIT can't drop the work. */
+        @JvmStatic
+        var sink = 0L
+    }
+}
@@ -0,0 +1,92 @@
+package com.fable.wifisoundthing.protocol
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import kotlin.random.Random
+
+class LosslessCodecTest {
+
+    /** Codes [pcm] block by block; asserts every block comes back bit-exact and returns coded/raw size. */
+    private fun roundtrip(pcm: ByteArray, channels: Int = 2): Double {
+        var coded = 0
+        var pos = 0
+        while (pos < pcm.size) {
+            val size = minOf(Wire.PCM_CHUNK_BYTES, pcm.size - pos)
+            val block = LosslessCodec.encode(pcm, pos, size, channels)
+            assertTrue("block grew to ${block.size}", block.size <= Wire.MAX_PACKET_BYTES - Wire.HEADER_BYTES)
+            assertArrayEquals("block at $pos", pcm.copyOfRange(pos, pos + size), LosslessCodec.decode(block))
+            coded += block.size
+            pos += size
+        }
+        return coded.toDouble() / pcm.size
+    }
+
+    @Test
+    fun `music is exact and about half the size`() {
+        val ratio = roundtrip(TestSignals.music(2.0))
+        assertTrue("ratio $ratio", ratio < 0.6)
+    }
+
+    @Test
+    fun `speech is exact and compresses well`() {
+        val ratio = roundtrip(TestSignals.speech(2.0))
+        assertTrue("ratio $ratio", ratio < 0.5)
+    }
+
+    @Test
+    fun `silence shrinks to a few bytes per block`() {
+        val block = LosslessCodec.encode(ByteArray(Wire.PCM_CHUNK_BYTES))
+        assertTrue("size ${block.size}", block.size < 20)
+        assertArrayEquals(ByteArray(Wire.PCM_CHUNK_BYTES), LosslessCodec.decode(block))
+    }
+
+    @Test
+    fun `white noise and full-scale extremes stay exact and bounded`() {
+        val random = Random(3)
+        roundtrip(random.nextBytes(48_000))
+        val extremes = ByteArray(Wire.PCM_CHUNK_BYTES)
+        for (i in extremes.indices step 4) {
+            val l = if ((i / 4) % 2 == 0) Short.MAX_VALUE.toInt() else Short.MIN_VALUE.toInt()
+            val r = -l - 1
+            extremes[i] = l.toByte(); extremes[i + 1] = (l shr 8).toByte()
+            extremes[i + 2] = r.toByte(); extremes[i + 3] = (r shr 8).toByte()
+        }
+        roundtrip(extremes)
+    }
+
+    @Test
+    fun `mono and short blocks`() {
+        roundtrip(TestSignals.music(0.1).copyOf(2_000), channels = 1)
+        roundtrip(TestSignals.music(0.01).copyOf(12))
+        assertArrayEquals(ByteArray(0), LosslessCodec.decode(LosslessCodec.encode(ByteArray(0))))
+    }
+
+    @Test
+    fun `encode respects offset and length`() {
+        val pcm = TestSignals.speech(0.1)
+        val block = LosslessCodec.encode(pcm, 960, 960)
+        assertArrayEquals(pcm.copyOfRange(960, 1920), LosslessCodec.decode(block))
+    }
+
+    @Test
+    fun `malformed input decodes to null`() {
+        val block = LosslessCodec.encode(TestSignals.music(0.01).copyOf(Wire.PCM_CHUNK_BYTES))
+        assertNull(LosslessCodec.decode(ByteArray(0)))
+        assertNull(LosslessCodec.decode(block.copyOf(block.size / 2)))
+        assertNull(LosslessCodec.decode(byteArrayOf(3, 0, 0, 1)))
+        val badType = block.copyOf()
+        badType[4] = 9
+        assertNull(LosslessCodec.decode(badType))
+    }
+
+    @Test
+    fun `codec id round trips through the wire`() {
+        assertEquals("lossless", Wire.codecName(Wire.CODEC_LOSSLESS))
+        assertEquals(Wire.CODEC_LOSSLESS, Wire.codecId("lossless"))
+        val packet = AudioPacket(Wire.CODEC_LOSSLESS, 1, 0L, ByteArray(4)).toBytes()
+        assertEquals(Wire.CODEC_LOSSLESS, AudioPacket.parse(packet)!!.codec)
+    }
+}
@@ -0,0 +1,56 @@
+package com.fable.wifisoundthing.protocol
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+class PcmPacketizerTest {
+
+    private fun packetize(packetizer: PcmPacketizer, pcm: ByteArray, firstSeq: Int, ptsUs: Long): Pair<List<AudioPacket>, Int> {
+        pcm.copyInto(packetizer.buffer, packetizer.pcmOffset)
+        val packets = ArrayList<AudioPacket>()
+        val next = packetizer.packetize(pcm.size, firstSeq, ptsUs) { offset, size ->
+            // Parse right away: the next header overwrites the end of this slice.
+            packets.add(AudioPacket.parse(packetizer.buffer.copyOfRange(offset, offset + size))!!)
+        }
+        return packets to next
+    }
+
+    @Test
+    fun `produces the same packets as PcmChunker`() {
+        val block = ByteArray(3840) { (it * 7).toByte() }
+        val packetizer = PcmPacketizer(block.size)
+        val (packets, next) = packetize(packetizer, block, 100, 1_000_000L)
+
+        val chunks = PcmChunker.chunk(block)
+        assertEquals(chunks.size, packets.size)
+        assertEquals(100 + chunks.size, next)
+        var ptsUs = 1_000_000L
+        for ((i, chunk) in chunks.withIndex()) {
+            assertEquals(100 + i, packets[i].seq)
+            assertEquals(Wire.CODEC_PCM16, packets[i].codec)
+            assertEquals(ptsUs, packets[i].ptsUs)
+            assertArrayEquals(chunk, packets[i].payload)
+            ptsUs += Wire.pcmBytesToUs(chunk.size)
+        }
+    }
+
+    @Test
+    fun `short read ends with a partial, frame-aligned slice`() {
+        val packetizer = PcmPacketizer(blockBytes = 3840)
+        val (packets, _) = packetize(packetizer, ByteArray(1000) { it.toByte() }, 0, 0L)
+        assertEquals(listOf(960, 40), packets.map { it.payload.size })
+        assertEquals(5_000L, packets[1].ptsUs)
+    }
+
+    @Test
+    fun `buffer is reused across blocks`() {
+        val packetizer = PcmPacketizer(blockBytes = 1920)
+        val buffer = packetizer.buffer
+        val (_, next) = packetize(packetizer, ByteArray(1920) { 1 }, 0, 0L)
+        val (packets, _) = packetize(packetizer, ByteArray(1920) { 2 }, next, 10_000L)
+        assertEquals(buffer, packetizer.buffer)
+        assertEquals(listOf(2, 3), packets.map { it.seq })
+        assertArrayEquals(ByteArray(960) { 2 }, packets[0].payload)
+    }
+}
@@ -0,0 +1,97 @@
+package com.fable.wifisoundthing.protocol
+
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import kotlin.concurrent.thread
+
+class PcmRingTest {
+
+    private fun PcmRing.put(value: Int, pts: Long = value.toLong()): Boolean {
+        val slot = claim()
+        if (slot < 0) {
+            overrun()
+            return false
+        }
+        buffer.fill(value.toByte(), offsetOf(slot), offsetOf(slot) + blockBytes)
+        publish(slot, blockBytes, pts)
+        return true
+    }
+
+    @Test
+    fun `blocks come out in order with their length and timestamp`() {
+        val ring = PcmRing(blockBytes = 4, capacity = 3, headroom = 2)
+        ring.put(1, pts = 100)
+        ring.put(2, pts = 200)
+
+        val first = ring.take(0)
+        assertEquals(1, ring.buffer[ring.offsetOf(first)].toInt())
+        assertEquals(4, ring.lengthOf(first))
+        assertEquals(100L, ring.ptsUsOf(first))
+        ring.release()
+
+        val second = ring.take(0)
+        assertEquals(2, ring.buffer[ring.offsetOf(second) + 3].toInt())
+        assertEquals(200L, ring.ptsUsOf(second))
+        ring.release()
+
+        assertEquals(-1, ring.take(0))
+    }
+
+    @Test
+    fun `headroom in front of a block is left untouched`() {
+        val ring = PcmRing(blockBytes = 4, capacity = 2, headroom = 2)
+        repeat(2) { ring.put(7) }
+        assertEquals(0, ring.buffer[ring.offsetOf(0) - 1].toInt())
+        assertEquals(0, ring.buffer[ring.offsetOf(1) - 2].toInt())
+    }
+
+    @Test
+    fun `a full ring drops new blocks and counts them`() {
+        val ring = PcmRing(blockBytes = 2, capacity = 2)
+        assertEquals(true, ring.put(1))
+        assertEquals(true, ring.put(2))
+        assertEquals(false, ring.put(3))
+        assertEquals(1L, ring.overruns)
+        assertEquals(2, ring.highWater)
+
+        ring.take(0)
+        ring.release()
+        assertEquals(true, ring.put(4))
+        assertEquals(2, ring.ptsUsOf(ring.take(0)).toInt())
+    }
+
+    @Test
+    fun `take wakes up when the producer publishes`() {
+        val ring = PcmRing(blockBytes = 2, capacity = 4)
+        val producer = thread {
+            Thread.sleep(50)
+            ring.put(9)
+        }
+        val slot = ring.take(5_000_000_000L)
+        producer.join()
+        assertEquals(9L, ring.ptsUsOf(slot))
+    }
+
+    @Test
+    fun `every block crosses threads exactly once`() {
+        val ring = PcmRing(blockBytes = 8, capacity = 4)
+        val total = 20_000
+        val producer = thread {
+            var next = 0
+            while (next < total) {
+                if (ring.put(next and 0x7F, pts = next.toLong())) next++ else Thread.yield()
+            }
+        }
+        var expected = 0L
+        while (expected < total) {
+            val slot = ring.take(1_000_000_000L)
+            if (slot < 0) continue
+            assertEquals(expected, ring.ptsUsOf(slot))
+            assertEquals((expected and 0x7F).toInt(), ring.buffer[ring.offsetOf(slot) + 7].toInt())
+            ring.release()
+            expected++
+        }
+        producer.join()
+        assertEquals(0, ring.size)
+    }
+}
@@ -0,0 +1,74 @@
+package com.fable.wifisoundthing.protocol
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertSame
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class PlayoutSyncTest {
+
+    // 400 ms playout delay at 48 kHz; host clock 1 s ahead of ours.
+    private val sync = PlayoutSync(sampleRate = 48_000, delayUs = 400_000)
+    private val offsetUs = 1_000_000L
+
+    /** Decision for a packet captured at host time 10 s that would be heard at [heardAtUs] (our clock). */
+    private fun decideHeardAt(heardAtUs: Long, canDrop: Boolean = true) = sync.decide(
+        ptsUs = 10_000_000,
+        offsetUs = offsetUs,
+        localNowUs = heardAtUs - 50_000,
+        outputDelayUs = 50_000,
+        canDrop = canDrop,
+    )
+
+    // Common presentation time on our clock: 10 s + 0.4 s - 1 s.
+    private val targetUs = 9_400_000L
+
+    @Test
+    fun `on time plays unchanged`() {
+        assertEquals(PlayoutSync.Decision.Play(0), decideHeardAt(targetUs + 500))
+        assertEquals(500L, sync.errorUs)
+    }
+
+    @Test
+    fun `slightly late squeezes the packet`() {
+        val decision = decideHeardAt(targetUs + 5_000) as PlayoutSync.Decision.Play
+        assertEquals(24, decision.correctionFrames) // a tenth of 240 frames (5 ms)
+    }
+
+    @Test
+    fun `slightly early stretches the packet`() {
+        val decision = decideHeardAt(targetUs - 5_000) as PlayoutSync.Decision.Play
+        assertEquals(-24, decision.correctionFrames)
+    }
+
+    @Test
+    fun `far too early waits with silence in slices`() {
+        val decision = decideHeardAt(targetUs - 300_000) as PlayoutSync.Decision.Wait
+        assertEquals(960, decision.silenceFrames) // one 20 ms slice, then decide again
+    }
+
+    @Test
+    fun `far too late drops only while newer packets are queued`() {
+        assertSame(PlayoutSync.Decision.Drop, decideHeardAt(targetUs + 100_000))
+        assertTrue(decideHeardAt(targetUs + 100_000, canDrop = false) is PlayoutSync.Decision.Play)
+    }
+
+    @Test
+    fun `stretch is capped at one percent`() {
+        val pcm = ByteArray(960 * 4) // 20 ms stereo
+        assertEquals((960 - 9) * 4, sync.stretch(pcm, channels = 2, correctionFrames = 500).size)
+        assertEquals((960 + 9) * 4, sync.stretch(pcm, channels = 2, correctionFrames = -500).size)
+        assertSame(pcm, sync.stretch(pcm, channels = 2, correctionFrames = 0))
+    }
+
+    @Test
+    fun `resampling keeps the end points and interpolates between them`() {
+        // Mono ramp 0, 100, 200, 300 resampled to 7 frames: steps of 50.
+        val ramp = byteArrayOf(0, 0, 100, 0, 200.toByte(), 0, 44, 1)
+        val out = PlayoutSync.resample(ramp, channels = 1, inFrames = 4, outFrames = 7)
+        val expected = shortArrayOf(0, 50, 100, 150, 200, 250, 300)
+        val samples = ShortArray(7) { i -> ((out[2 * i].toInt() and 0xFF) or (out[2 * i + 1].toInt() shl 8)).toShort() }
+        assertArrayEquals(expected, samples)
+    }
+}
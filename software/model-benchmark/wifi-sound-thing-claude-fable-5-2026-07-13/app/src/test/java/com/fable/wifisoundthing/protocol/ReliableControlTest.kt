@@ -0,0 +1,95 @@
+package com.fable.wifisoundthing.protocol
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class ReliableControlTest {
+
+    private fun parse(bytes: ByteArray) = ControlPacket.parse(bytes)!!
+
+    @Test
+    fun `control packet roundtrip`() {
+        val bytes = ControlPacket(42, 7, ControlMessage.Hello("Pixel", 50000)).toBytes()
+        assertEquals(Wire.TYPE_CONTROL, bytes[3])
+        val parsed = parse(bytes)
+        assertEquals(42, parsed.seq)
+        assertEquals(7, parsed.ack)
+        assertEquals(ControlMessage.Hello("Pixel", 50000), parsed.message)
+    }
+
+    @Test
+    fun `bare ack is just a header`() {
+        val bytes = ControlPacket(0, 9, null).toBytes()
+        assertEquals(Wire.HEADER_BYTES, bytes.size)
+        assertNull(parse(bytes).message)
+    }
+
+    @Test
+    fun `audio and control packets do not parse as each other`() {
+        val audio = AudioPacket(Wire.CODEC_OPUS, 1, 0L, ByteArray(10)).toBytes()
+        assertNull(ControlPacket.parse(audio))
+        assertNull(AudioPacket.parse(ControlPacket(0, 0, ControlMessage.Ping).toBytes()))
+    }
+
+    @Test
+    fun `pings go out unnumbered and are never retransmitted`() {
+        val sender = ReliableControl(firstSeq = 1)
+        val packet = parse(sender.encode(ControlMessage.Ping, nowMs = 0))
+        assertEquals(0, packet.seq)
+        assertEquals(0, sender.pending)
+        assertTrue(sender.due(10_000).isEmpty())
+    }
+
+    @Test
+    fun `reliable message is retransmitted until acked`() {
+        val sender = ReliableControl(retransmitMs = 200, firstSeq = 1)
+        val receiver = ReliableControl(firstSeq = 100)
+        val hello = sender.encode(ControlMessage.Hello("a", 1), nowMs = 0)
+
+        assertTrue(sender.due(100).isEmpty())
+        val resent = sender.due(200)
+        assertEquals(1, resent.size)
+        assertArrayEquals(hello, resent[0])
+
+        val received = receiver.receive(parse(hello))
+        assertEquals(ControlMessage.Hello("a", 1), received.message)
+        sender.receive(parse(received.ack!!))
+        assertEquals(0, sender.pending)
+        assertTrue(sender.due(1_000).isEmpty())
+    }
+
+    @Test
+    fun `duplicate is acked again but delivered once`() {
+        val sender = ReliableControl(firstSeq = 1)
+        val receiver = ReliableControl(firstSeq = 100)
+        val bye = parse(sender.encode(ControlMessage.Bye("done"), nowMs = 0))
+
+        assertNotNull(receiver.receive(bye).message)
+        val again = receiver.receive(bye)
+        assertNull(again.message)
+        assertEquals(bye.seq, parse(again.ack!!).ack)
+    }
+
+    @Test
+    fun `gives up after max attempts`() {
+        val sender = ReliableControl(retransmitMs = 100, maxAttempts = 3, firstSeq = 1)
+        sender.encode(ControlMessage.Bye(""), nowMs = 0)
+        assertEquals(1, sender.due(100).size)
+        assertEquals(1, sender.due(200).size)
+        assertTrue(sender.due(300).isEmpty())
+        assertEquals(0, sender.pending)
+    }
+
+    @Test
+    fun `new session from the same peer is not taken for a duplicate`() {
+        val receiver = ReliableControl(firstSeq = 100)
+        val first = ReliableControl(firstSeq = 1)
+        val second = ReliableControl(firstSeq = 5_000)
+        assertNotNull(receiver.receive(parse(first.encode(ControlMessage.Hello("a", 1), 0))).message)
+        assertNotNull(receiver.receive(parse(second.encode(ControlMessage.Hello("a", 1), 0))).message)
+    }
+}
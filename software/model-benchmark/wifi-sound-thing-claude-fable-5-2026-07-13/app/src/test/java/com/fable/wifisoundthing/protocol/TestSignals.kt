@@ -0,0 +1,83 @@
+package com.fable.wifisoundthing.protocol
+
+import kotlin.math.PI
+import kotlin.math.exp
+import kotlin.math.sin
+import kotlin.random.Random
+
+/** Deterministic 48 kHz stereo 16-bit LE test material, standing in for real recordings. */
+object TestSignals {
+    private const val RATE = Wire.SAMPLE_RATE
+
+    /** A chord of decaying harmonic notes, panned apart, over a faint noise floor. */
+    fun music(seconds: Double, seed: Int = 1): ByteArray {
+        val random = Random(seed)
+        val notes = doubleArrayOf(220.0, 277.18, 329.63, 440.0, 554.37)
+        return render(seconds) { i ->
+            val t = i.toDouble() / RATE
+            var left = 0.0
+            var right = 0.0
+            for ((n, f) in notes.withIndex()) {
+                val onset = n * 0.15
+                val local = (t - onset).mod(1.2)
+                val env = exp(-3.0 * local)
+                var v = 0.0
+                for (h in 1..6) v += sin(2 * PI * f * h * t + n) / (h * h)
+                val pan = n / (notes.size - 1.0)
+                left += v * env * (1 - 0.6 * pan)
+                right += v * env * (0.4 + 0.6 * pan)
+            }
+            val noise = random.nextDouble(-1.0, 1.0) * 20
+            (left * 4_500 + noise) to (right * 4_500 + noise)
+        }
+    }
+
+    /** A 120 Hz pulse train through two formant resonators, in syllables with pauses; same on both channels. */
+    fun speech(seconds: Double, seed: Int = 2): ByteArray {
+        val random = Random(seed)
+        val f1 = Resonator(700.0, 130.0)
+        val f2 = Resonator(1_220.0, 200.0)
+        return render(seconds) { i ->
+            val t = i.toDouble() / RATE
+            val syllable = t.mod(0.25)
+            val voiced = syllable < 0.18 && t.mod(2.0) < 1.5
+            val pulse = if (voiced && i % (RATE / 120) == 0) 1.0 else 0.0
+            val breath = random.nextDouble(-1.0, 1.0) * 0.002
+            val v = f1.next(pulse + breath) * 0.6 + f2.next(pulse + breath) * 0.4
+            val s = v * 9_000 * sin(PI * syllable / 0.18).coerceAtLeast(0.05)
+            s to s
+        }
+    }
+
+    private class Resonator(freq: Double, bandwidth: Double) {
+        private val r = exp(-PI * bandwidth / RATE)
+        private val a1 = 2 * r * kotlin.math.cos(2 * PI * freq / RATE)
+        private val a2 = -r * r
+        private var y1 = 0.0
+        private var y2 = 0.0
+
+        fun next(x: Double): Double {
+            val y = x + a1 * y1 + a2 * y2
+            y2 = y1
+            y1 = y
+            return y
+        }
+    }
+
+    private fun render(seconds: Double, sample: (Int) -> Pair<Double, Double>): ByteArray {
+        val frames = (seconds * RATE).toInt()
+        val out = ByteArray(frames * 4)
+        for (i in 0 until frames) {
+            val (l, r) = sample(i)
+            put(out, i * 4, l)
+            put(out, i * 4 + 2, r)
+        }
+        return out
+    }
+
+    private fun put(out: ByteArray, pos: Int, value: Double) {
+        val s = value.toInt().coerceIn(Short.MIN_VALUE.toInt(), Short.MAX_VALUE.toInt())
+        out[pos] = s.toByte()
+        out[pos + 1] = (s shr 8).toByte()
+    }
+}
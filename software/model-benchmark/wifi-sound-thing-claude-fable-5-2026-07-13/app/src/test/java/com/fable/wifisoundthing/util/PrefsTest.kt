@@ -0,0 +1,27 @@
+package com.fable.wifisoundthing.util
+
+import com.fable.wifisoundthing.audio.OpusEncoder
+import com.fable.wifisoundthing.protocol.OpusCsd
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Test
+
+class PrefsTest {
+
+    @Test
+    fun `warm-up roundtrip`() {
+        val head = OpusCsd.defaultOpusHead(2, 48_000)
+        val value = Prefs.serializeWarmUp(OpusEncoder.WarmUp(head, 20))
+        val parsed = Prefs.parseWarmUp(value)!!
+        assertEquals(20, parsed.frameMs)
+        assertArrayEquals(head, parsed.opusHead)
+    }
+
+    @Test
+    fun `damaged warm-ups are ignored`() {
+        assertNull(Prefs.parseWarmUp(""))
+        assertNull(Prefs.parseWarmUp("x:AAAA"))
+        assertNull(Prefs.parseWarmUp("20:not base64!"))
+    }
+}
@@ -30,6 +30,12 @@ android {
     buildFeatures {
         viewBinding = true
     }
+    externalNativeBuild {
+        cmake {
+            path = file("src/main/cpp/CMakeLists.txt")
+            version = "3.22.1"
+        }
+    }
 }
 
 dependencies {
@@ -39,3 +45,29 @@ dependencies {
 
     testImplementation("junit:junit:4.13.2")
 }
+
+// Host-side tests of the native audio code (src/test/cpp), run on the build machine.
+// They need CMake, CTest and a C++17 compiler on the PATH (the SDK's CMake isn't), so
+// `check` only runs them when asked: ./gradlew check -PnativeHostTest
+val nativeHostTestDir = layout.buildDirectory.dir("native-host-test")
+
+val configureNativeHostTest by tasks.registering(Exec::class) {
+    commandLine("cmake", "-S", file("src/test/cpp").path, "-B", nativeHostTestDir.get().asFile.path)
+}
+
+val buildNativeHostTest by tasks.registering(Exec::class) {
+    dependsOn(configureNativeHostTest)
+    commandLine("cmake", "--build", nativeHostTestDir.get().asFile.path)
+}
+
+val nativeHostTest by tasks.registering(Exec::class) {
+    group = "verification"
+    description = "Builds and runs the native host tests in src/test/cpp."
+    dependsOn(buildNativeHostTest)
+    workingDir(nativeHostTestDir.get().asFile)
+    commandLine("ctest", "--output-on-failure")
+}
+
+if (providers.gradleProperty("nativeHostTest").isPresent) {
+    tasks.named("check") { dependsOn(nativeHostTest) }
+}
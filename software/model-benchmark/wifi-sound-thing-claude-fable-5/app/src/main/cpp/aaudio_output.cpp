@@ -0,0 +1,168 @@
+// Native playback backend: an AAudio output stream in low-latency mode,
+// exclusive (MMAP) where the device grants it, pulling PCM from a lock-free
+// PcmRing that the Kotlin decoder thread fills through JNI.
+// See app.wifisoundthing.audio.NativeOutput for the Kotlin side.
+#include <aaudio/AAudio.h>
+#include <android/log.h>
+#include <jni.h>
+
+#include <atomic>
+#include <cstring>
+#include <ctime>
+#include <memory>
+
+#include "pcm_ring.h"
+
+#define LOG_TAG "NativeOutput"
+#define LOGI(...) __android_log_print(ANDROID_LOG_INFO, LOG_TAG, __VA_ARGS__)
+#define LOGW(...) __android_log_print(ANDROID_LOG_WARN, LOG_TAG, __VA_ARGS__)
+
+namespace {
+
+// Device bursts of audio the ring may hold: enough to ride out a late write,
+// and no more, since everything queued there is latency.
+constexpr int32_t kRingBursts = 2;
+
+struct Output {
+    Output(int32_t rate, int32_t channels, size_t ringSamples) : sampleRate(rate), channelCount(channels), ring(ringSamples) {}
+
+    const int32_t sampleRate;
+    const int32_t channelCount;
+    wst::PcmRing ring;
+    AAudioStream* stream = nullptr;
+    std::atomic<int64_t> underrunFrames{0};
+};
+
+int64_t nowNanos() {
+    timespec ts{};
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return static_cast<int64_t>(ts.tv_sec) * 1000000000LL + ts.tv_nsec;
+}
+
+// Real-time callback: copy what the ring has, pad the rest with silence.
+aaudio_data_callback_result_t onAudioReady(AAudioStream*, void* userData, void* audioData, int32_t numFrames) {
+    auto* out = static_cast<Output*>(userData);
+    auto* dst = static_cast<int16_t*>(audioData);
+    const size_t wanted = static_cast<size_t>(numFrames) * out->channelCount;
+    const size_t got = out->ring.read(dst, wanted);
+    if (got < wanted) {
+        std::memset(dst + got, 0, (wanted - got) * sizeof(int16_t));
+        out->underrunFrames.fetch_add(static_cast<int64_t>((wanted - got) / out->channelCount), std::memory_order_relaxed);
+    }
+    return AAUDIO_CALLBACK_RESULT_CONTINUE;
+}
+
+void onError(AAudioStream*, void*, aaudio_result_t error) {
+    // Device change or disconnect: the Kotlin side notices via isOpen() and reopens.
+    LOGW("Stream error: %s", AAudio_convertResultToText(error));
+}
+
+AAudioStream* openStream(Output* out, aaudio_sharing_mode_t sharing) {
+    AAudioStreamBuilder* builder = nullptr;
+    if (AAudio_createStreamBuilder(&builder) != AAUDIO_OK) return nullptr;
+    AAudioStreamBuilder_setDirection(builder, AAUDIO_DIRECTION_OUTPUT);
+    AAudioStreamBuilder_setSampleRate(builder, out->sampleRate);
+    AAudioStreamBuilder_setChannelCount(builder, out->channelCount);
+    AAudioStreamBuilder_setFormat(builder, AAUDIO_FORMAT_PCM_I16);
+    AAudioStreamBuilder_setPerformanceMode(builder, AAUDIO_PERFORMANCE_MODE_LOW_LATENCY);
+    AAudioStreamBuilder_setSharingMode(builder, sharing);
+    AAudioStreamBuilder_setUsage(builder, AAUDIO_USAGE_MEDIA);
+    AAudioStreamBuilder_setContentType(builder, AAUDIO_CONTENT_TYPE_MUSIC);
+    AAudioStreamBuilder_setDataCallback(builder, onAudioReady, out);
+    AAudioStreamBuilder_setErrorCallback(builder, onError, out);
+    AAudioStream* stream = nullptr;
+    const aaudio_result_t result = AAudioStreamBuilder_openStream(builder, &stream);
+    AAudioStreamBuilder_delete(builder);
+    if (result != AAUDIO_OK) {
+        LOGW("openStream failed: %s", AAudio_convertResultToText(result));
+        return nullptr;
+    }
+    return stream;
+}
+
+Output* fromHandle(jlong handle) { return reinterpret_cast<Output*>(handle); }
+
+}  // namespace
+
+extern "C" {
+
+JNIEXPORT jlong JNICALL
+Java_app_wifisoundthing_audio_NativeOutput_nativeOpen(JNIEnv*, jclass, jint sampleRate, jint channelCount, jint ringSamples) {
+    auto out = std::make_unique<Output>(sampleRate, channelCount, static_cast<size_t>(ringSamples));
+    // Exclusive mode gets the MMAP path (no mixer) on devices that support it.
+    out->stream = openStream(out.get(), AAUDIO_SHARING_MODE_EXCLUSIVE);
+    if (out->stream == nullptr) out->stream = openStream(out.get(), AAUDIO_SHARING_MODE_SHARED);
+    if (out->stream == nullptr) return 0;
+    if (AAudioStream_getSampleRate(out->stream) != sampleRate) {
+        // No resampling here: let the caller fall back to AudioTrack.
+        AAudioStream_close(out->stream);
+        return 0;
+    }
+    LOGI("Opened %s stream, burst %d frames",
+         AAudioStream_getSharingMode(out->stream) == AAUDIO_SHARING_MODE_EXCLUSIVE ? "exclusive" : "shared",
+         AAudioStream_getFramesPerBurst(out->stream));
+    // Two bursts of device buffer: lowest latency that usually survives scheduling hiccups.
+    const int32_t burst = AAudioStream_getFramesPerBurst(out->stream);
+    AAudioStream_setBufferSizeInFrames(out->stream, burst * 2);
+    if (burst > 0) out->ring.setLimit(static_cast<size_t>(burst) * kRingBursts * channelCount);
+    return reinterpret_cast<jlong>(out.release());
+}
+
+JNIEXPORT jboolean JNICALL
+Java_app_wifisoundthing_audio_NativeOutput_nativeStart(JNIEnv*, jclass, jlong handle) {
+    return AAudioStream_requestStart(fromHandle(handle)->stream) == AAUDIO_OK;
+}
+
+// Copies [offset, offset + length) bytes of 16-bit PCM into the ring; returns
+// how many bytes fit. Critical access avoids a JNI copy of the array, and the
+// ring copy under it is short and never blocks.
+JNIEXPORT jint JNICALL
+Java_app_wifisoundthing_audio_NativeOutput_nativeWrite(JNIEnv* env, jclass, jlong handle, jbyteArray pcm, jint offset, jint length) {
+    auto* bytes = static_cast<jbyte*>(env->GetPrimitiveArrayCritical(pcm, nullptr));
+    if (bytes == nullptr) return 0;
+    const auto* samples = reinterpret_cast<const int16_t*>(bytes + offset);
+    const size_t written = fromHandle(handle)->ring.write(samples, static_cast<size_t>(length) / sizeof(int16_t));
+    env->ReleasePrimitiveArrayCritical(pcm, bytes, JNI_ABORT);
+    return static_cast<jint>(written * sizeof(int16_t));
+}
+
+// Nanoseconds until a sample written now is heard: what is queued in the ring,
+// plus the distance between the frames handed to the device and the frame
+// presented at the last hardware timestamp. -1 until the stream reports one.
+JNIEXPORT jlong JNICALL
+Java_app_wifisoundthing_audio_NativeOutput_nativeLatencyNanos(JNIEnv*, jclass, jlong handle) {
+    Output* out = fromHandle(handle);
+    int64_t framePosition = 0;
+    int64_t frameTime = 0;
+    if (AAudioStream_getTimestamp(out->stream, CLOCK_MONOTONIC, &framePosition, &frameTime) != AAUDIO_OK) return -1;
+    const int64_t written = AAudioStream_getFramesWritten(out->stream);
+    const int64_t presentAt = frameTime + (written - framePosition) * 1000000000LL / out->sampleRate;
+    const int64_t queued = static_cast<int64_t>(out->ring.available() / out->channelCount) * 1000000000LL / out->sampleRate;
+    return (presentAt - nowNanos()) + queued;
+}
+
+JNIEXPORT jboolean JNICALL
+Java_app_wifisoundthing_audio_NativeOutput_nativeIsExclusive(JNIEnv*, jclass, jlong handle) {
+    return AAudioStream_getSharingMode(fromHandle(handle)->stream) == AAUDIO_SHARING_MODE_EXCLUSIVE;
+}
+
+JNIEXPORT jboolean JNICALL
+Java_app_wifisoundthing_audio_NativeOutput_nativeIsOpen(JNIEnv*, jclass, jlong handle) {
+    const aaudio_stream_state_t state = AAudioStream_getState(fromHandle(handle)->stream);
+    return state != AAUDIO_STREAM_STATE_DISCONNECTED && state != AAUDIO_STREAM_STATE_CLOSED;
+}
+
+JNIEXPORT jlong JNICALL
+Java_app_wifisoundthing_audio_NativeOutput_nativeUnderrunFrames(JNIEnv*, jclass, jlong handle) {
+    return fromHandle(handle)->underrunFrames.load(std::memory_order_relaxed);
+}
+
+JNIEXPORT void JNICALL
+Java_app_wifisoundthing_audio_NativeOutput_nativeClose(JNIEnv*, jclass, jlong handle) {
+    Output* out = fromHandle(handle);
+    AAudioStream_requestStop(out->stream);
+    AAudioStream_close(out->stream); // waits for the callback to return
+    delete out;
+}
+
+}  // extern "C"
@@ -0,0 +1,74 @@
+// Lock-free single-producer/single-consumer ring of 16-bit PCM samples.
+//
+// Free-running read/write sample counters (never wrapped), capacity a power
+// of two, so `write - read` is always the fill level; writes stop at a limit
+// that may be set below the capacity. The producer (JNI write from the
+// decoder thread) publishes with a release store, the consumer (AAudio
+// real-time callback) acquires it; neither blocks, allocates or takes a lock,
+// so the callback is real-time safe.
+#pragma once
+
+#include <algorithm>
+#include <atomic>
+#include <cstddef>
+#include <cstdint>
+#include <vector>
+
+namespace wst {
+
+class PcmRing {
+public:
+    explicit PcmRing(size_t capacitySamples) : capacity_(roundUp(capacitySamples)), mask_(capacity_ - 1), samples_(capacity_), limit_(capacity_) {}
+
+    size_t size() const { return capacity_; }
+
+    // Caps the fill level, so the ring holds no more audio (latency) than needed.
+    void setLimit(size_t samples) { limit_.store(std::min(samples, capacity_), std::memory_order_relaxed); }
+
+    size_t available() const {
+        return static_cast<size_t>(write_.load(std::memory_order_acquire) - read_.load(std::memory_order_acquire));
+    }
+
+    size_t free() const { return room(available()); }
+
+    // Producer: copies up to `length` samples; returns how many fit.
+    size_t write(const int16_t* src, size_t length) {
+        const uint64_t w = write_.load(std::memory_order_relaxed);
+        const uint64_t r = read_.load(std::memory_order_acquire);
+        const size_t count = std::min(length, room(static_cast<size_t>(w - r)));
+        for (size_t i = 0; i < count; ++i) samples_[(w + i) & mask_] = src[i];
+        write_.store(w + count, std::memory_order_release);
+        return count;
+    }
+
+    // Consumer: copies up to `length` samples into `dst`; returns how many were available.
+    size_t read(int16_t* dst, size_t length) {
+        const uint64_t r = read_.load(std::memory_order_relaxed);
+        const uint64_t w = write_.load(std::memory_order_acquire);
+        const size_t count = std::min(length, static_cast<size_t>(w - r));
+        for (size_t i = 0; i < count; ++i) dst[i] = samples_[(r + i) & mask_];
+        read_.store(r + count, std::memory_order_release);
+        return count;
+    }
+
+private:
+    size_t room(size_t fill) const {
+        const size_t limit = limit_.load(std::memory_order_relaxed);
+        return fill >= limit ? 0 : limit - fill;
+    }
+
+    static size_t roundUp(size_t n) {
+        size_t c = 2;
+        while (c < n) c <<= 1;
+        return c;
+    }
+
+    const size_t capacity_;
+    const size_t mask_;
+    std::vector<int16_t> samples_;
+    std::atomic<size_t> limit_;
+    std::atomic<uint64_t> write_{0};
+    std::atomic<uint64_t> read_{0};
+};
+
+}  // namespace wst
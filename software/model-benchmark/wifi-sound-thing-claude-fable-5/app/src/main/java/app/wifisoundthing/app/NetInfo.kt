@@ -1,5 +1,16 @@
 package app.wifisoundthing.app
 
+import android.content.BroadcastReceiver
+import android.content.Context
+import android.content.Intent
+import android.content.IntentFilter
+import android.net.ConnectivityManager
+import android.net.LinkProperties
+import android.net.Network
+import android.net.NetworkRequest
+import android.os.Handler
+import android.os.Looper
+import androidx.core.content.ContextCompat
 import app.wifisoundthing.core.NetUtils
 import java.net.Inet4Address
 import java.net.NetworkInterface
@@ -19,4 +30,75 @@ object NetInfo {
         }
         return NetUtils.pickDisplayAddress(candidates)
     }
+
+    /**
+     * Reports [displayAddress] once on [start] and again only when the network
+     * configuration changes: a connectivity callback covers Wi-Fi joins, roams and
+     * address changes, the hotspot state broadcast covers the host's own hotspot
+     * (which is not a ConnectivityManager network). [onChange] runs on the main
+     * thread and only when the address actually differs.
+     */
+    class AddressMonitor(context: Context, private val onChange: (String?) -> Unit) {
+        private val appContext = context.applicationContext
+        private val connectivity = appContext.getSystemService(ConnectivityManager::class.java)
+        private val handler = Handler(Looper.getMainLooper())
+        private var last: String? = null
+        private var started = false
+
+        private val refresh = Runnable {
+            val address = displayAddress()
+            if (address != last) {
+                last = address
+                onChange(address)
+            }
+        }
+
+        private val networkCallback = object : ConnectivityManager.NetworkCallback() {
+            override fun onAvailable(network: Network) = schedule()
+            override fun onLost(network: Network) = schedule()
+            override fun onLinkPropertiesChanged(network: Network, linkProperties: LinkProperties) = schedule()
+        }
+
+        private val hotspotReceiver = object : BroadcastReceiver() {
+            override fun onReceive(context: Context, intent: Intent) = schedule()
+        }
+
+        fun start() {
+            if (started) return
+            started = true
+            last = displayAddress()
+            onChange(last)
+            connectivity.registerNetworkCallback(NetworkRequest.Builder().build(), networkCallback)
+            ContextCompat.registerReceiver(
+                appContext,
+                hotspotReceiver,
+                IntentFilter(ACTION_WIFI_AP_STATE_CHANGED),
+                ContextCompat.RECEIVER_NOT_EXPORTED,
+            )
+        }
+
+        fun stop() {
+            if (!started) return
+            started = false
+            handler.removeCallbacks(refresh)
+            try {
+                connectivity.unregisterNetworkCallback(networkCallback)
+            } catch (_: Exception) {
+            }
+            try {
+                appContext.unregisterReceiver(hotspotReceiver)
+            } catch (_: Exception) {
+            }
+        }
+
+        /** Coalesces bursts of callbacks (a roam fires several) into one interface scan. */
+        private fun schedule() {
+            handler.removeCallbacks(refresh)
+            handler.postDelayed(refresh, SETTLE_MS)
+        }
+    }
+
+    /** Not in the public SDK, but sent by the system on every hotspot state change. */
+    private const val ACTION_WIFI_AP_STATE_CHANGED = "android.net.wifi.WIFI_AP_STATE_CHANGED"
+    private const val SETTLE_MS = 300L
 }
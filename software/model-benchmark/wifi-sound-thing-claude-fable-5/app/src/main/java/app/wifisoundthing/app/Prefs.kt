@@ -2,7 +2,10 @@ package app.wifisoundthing.app
 
 import android.content.Context
 import android.content.SharedPreferences
+import app.wifisoundthing.core.CodecProfile
 import app.wifisoundthing.core.JitterBuffer
+import app.wifisoundthing.core.KnownHost
+import app.wifisoundthing.core.KnownHosts
 
 /**
  * Persists the last-used configuration across app restarts (FR-10).
@@ -21,25 +24,79 @@ class Prefs(context: Context) {
         get() = prefs.getInt(KEY_BITRATE, DEFAULT_BITRATE)
         set(value) = prefs.edit().putInt(KEY_BITRATE, value).apply()
 
-    /** Client: jitter buffer depth in packets (~21 ms each). */
+    /** Host: codec profile, trading compression efficiency for delay. */
+    var hostCodec: CodecProfile
+        get() = CodecProfile.forCodecId(prefs.getInt(KEY_CODEC, CodecProfile.AAC_LC.codecId)) ?: CodecProfile.AAC_LC
+        set(value) = prefs.edit().putInt(KEY_CODEC, value.codecId).apply()
+
+    /** Host: also encode a reduced-bitrate tier for clients on weak links. */
+    var hostSimulcast: Boolean
+        get() = prefs.getBoolean(KEY_SIMULCAST, false)
+        set(value) = prefs.edit().putBoolean(KEY_SIMULCAST, value).apply()
+
+    /** Host: stop sending while nothing is playing (DTX). */
+    var hostDtx: Boolean
+        get() = prefs.getBoolean(KEY_DTX, true)
+        set(value) = prefs.edit().putBoolean(KEY_DTX, value).apply()
+
+    /** Host: save a copy of the broadcast to Music/WiFi Sound Thing. */
+    var hostRecord: Boolean
+        get() = prefs.getBoolean(KEY_RECORD, false)
+        set(value) = prefs.edit().putBoolean(KEY_RECORD, value).apply()
+
+    /** Client: jitter buffer depth in AAC-LC packets (~21 ms each), scaled for shorter frames. */
     var jitterDepth: Int
         get() = prefs.getInt(KEY_JITTER_DEPTH, JitterBuffer.DEFAULT_TARGET_DEPTH)
         set(value) = prefs.edit().putInt(KEY_JITTER_DEPTH, value).apply()
 
+    /** Client: also serve the stream to other clients (relay mode). */
+    var clientRelay: Boolean
+        get() = prefs.getBoolean(KEY_RELAY, false)
+        set(value) = prefs.edit().putBoolean(KEY_RELAY, value).apply()
+
+    /** Client: play through AAudio (exclusive/MMAP where available) instead of AudioTrack. */
+    var clientNativeOutput: Boolean
+        get() = prefs.getBoolean(KEY_NATIVE_OUTPUT, false)
+        set(value) = prefs.edit().putBoolean(KEY_NATIVE_OUTPUT, value).apply()
+
     /** Client: last manually entered host address ("ip" or "ip:port"). */
     var lastManualAddress: String
         get() = prefs.getString(KEY_MANUAL_ADDRESS, "") ?: ""
         set(value) = prefs.edit().putString(KEY_MANUAL_ADDRESS, value).apply()
 
+    /** Client: hosts connected to recently, most recent first (probed at startup). */
+    var knownHosts: List<KnownHost>
+        get() = KnownHosts.decode(prefs.getString(KEY_KNOWN_HOSTS, "") ?: "")
+        set(value) = prefs.edit().putString(KEY_KNOWN_HOSTS, KnownHosts.encode(value)).apply()
+
+    fun rememberHost(host: KnownHost) {
+        knownHosts = KnownHosts.remember(knownHosts, host)
+    }
+
     companion object {
         private const val KEY_ROLE = "last_role"
         private const val KEY_BITRATE = "host_bitrate"
+        private const val KEY_CODEC = "host_codec"
+        private const val KEY_SIMULCAST = "host_simulcast"
+        private const val KEY_DTX = "host_dtx"
+        private const val KEY_RECORD = "host_record"
         private const val KEY_JITTER_DEPTH = "jitter_depth"
+        private const val KEY_RELAY = "client_relay"
+        private const val KEY_NATIVE_OUTPUT = "client_native_output"
         private const val KEY_MANUAL_ADDRESS = "manual_address"
+        private const val KEY_KNOWN_HOSTS = "known_hosts"
 
         const val DEFAULT_BITRATE = 160_000
 
         val BITRATE_OPTIONS = intArrayOf(96_000, 160_000, 256_000)
+        val CODEC_OPTIONS = listOf(CodecProfile.AAC_LC, CodecProfile.AAC_ELD, CodecProfile.HE_AAC, CodecProfile.HE_AAC_V2)
+
+        /** Bitrate of the reduced simulcast tier that accompanies [primary]. */
+        fun simulcastReducedBitrate(primary: Int): Int = when {
+            primary > 96_000 -> 96_000
+            primary > 64_000 -> 64_000
+            else -> primary * 3 / 4 // HE-AAC profiles already run at 48–64 kbps
+        }
         val JITTER_OPTIONS = intArrayOf(3, 5, 10) // ~64 ms / ~107 ms / ~213 ms of buffer
     }
 }
@@ -1,51 +1,85 @@
 package app.wifisoundthing.app
 
+import app.wifisoundthing.core.TelemetryBus
 import app.wifisoundthing.net.ClientEngine
 
+/** Immutable snapshot of the host pipeline, published by HostService. */
+data class HostTelemetry(
+    val state: HostSession.State = HostSession.State.IDLE,
+    val startedAtMs: Long = 0,
+    val clientCount: Int = 0,
+    val totalBytesSent: Long = 0,
+    val bitsPerSecond: Long = 0,
+    val controlPort: Int = 0,
+    /** Simulcast, indexed by tier: encoder load (share of one core), µs per block, listeners. */
+    val tierEncodeLoad: List<Double> = emptyList(),
+    val tierEncodeMicros: List<Long> = emptyList(),
+    val tierClients: List<Int> = emptyList(),
+    /** DTX: sending is paused because nothing is playing; share of time paused so far. */
+    val dtxSilent: Boolean = false,
+    val dtxSuppressedRatio: Double = 0.0,
+    /** Codec in use, its algorithmic delay and the measured encoder delay (primary tier). */
+    val codecLabel: String? = null,
+    val codecAlgorithmicMs: Double = 0.0,
+    val encodeLatencyMicros: Long = 0,
+    /** Timing jitter of encoder output vs. paced sending (primary tier), in µs. */
+    val encoderJitterMicros: Long = 0,
+    val sendJitterMicros: Long = 0,
+    /** Recording the broadcast (no re-encode): bytes written and frames dropped because storage lagged. */
+    val recording: Boolean = false,
+    val recordedBytes: Long = 0,
+    val recordDroppedFrames: Long = 0,
+    /** Monotonically increasing so the UI can detect and show new errors once. */
+    val errorSerial: Long = 0,
+    val lastError: String? = null,
+)
+
+/** Immutable snapshot of the client pipeline, published by ClientService. */
+data class ClientTelemetry(
+    val state: ClientEngine.State = ClientEngine.State.STOPPED,
+    val stateDetail: String? = null,
+    val hostLabel: String? = null,
+    val stats: ClientEngine.Stats? = null,
+    /** Relay mode: hop we serve as (0 = not relaying), downstream listeners, latency they see added. */
+    val relayHops: Int = 0,
+    val relayClients: Int = 0,
+    val relayDelayMs: Int = 0,
+    val errorSerial: Long = 0,
+    val lastError: String? = null,
+)
+
 /**
  * In-process state shared between the foreground services and the activities.
- * Activities poll these on a short interval (simple and lifecycle-safe) and
- * additionally read [lastError] to surface problems in plain language (FR-12).
+ * The services publish snapshots on [bus]; activities and the notification
+ * subscribe and redraw only what changed. [lastError] surfaces problems in
+ * plain language (FR-12).
  */
 object HostSession {
     enum class State { IDLE, RUNNING }
 
-    @Volatile var state: State = State.IDLE
-    @Volatile var startedAtMs: Long = 0
-    @Volatile var clientCount: Int = 0
-    @Volatile var totalBytesSent: Long = 0
-    @Volatile var bitsPerSecond: Long = 0
-    @Volatile var displayAddress: String? = null
-    @Volatile var controlPort: Int = 0
+    val bus = TelemetryBus(HostTelemetry())
 
-    /** Monotonically increasing so the UI can detect and show new errors once. */
-    @Volatile var errorSerial: Long = 0
-    @Volatile var lastError: String? = null
+    val current: HostTelemetry get() = bus.current
 
-    fun postError(message: String) {
-        lastError = message
-        errorSerial++
+    fun update(transform: (HostTelemetry) -> HostTelemetry) {
+        bus.update(transform)
     }
 
-    fun resetStats() {
-        startedAtMs = 0
-        clientCount = 0
-        totalBytesSent = 0
-        bitsPerSecond = 0
+    fun postError(message: String) {
+        bus.update { it.copy(lastError = message, errorSerial = it.errorSerial + 1) }
     }
 }
 
 object ClientSession {
-    @Volatile var state: ClientEngine.State = ClientEngine.State.STOPPED
-    @Volatile var stateDetail: String? = null
-    @Volatile var hostLabel: String? = null
-    @Volatile var stats: ClientEngine.Stats? = null
+    val bus = TelemetryBus(ClientTelemetry())
 
-    @Volatile var errorSerial: Long = 0
-    @Volatile var lastError: String? = null
+    val current: ClientTelemetry get() = bus.current
+
+    fun update(transform: (ClientTelemetry) -> ClientTelemetry) {
+        bus.update(transform)
+    }
 
     fun postError(message: String) {
-        lastError = message
-        errorSerial++
+        bus.update { it.copy(lastError = message, errorSerial = it.errorSerial + 1) }
     }
 }
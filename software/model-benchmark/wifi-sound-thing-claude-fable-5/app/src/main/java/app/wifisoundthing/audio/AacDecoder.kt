@@ -2,11 +2,13 @@ package app.wifisoundthing.audio
 
 import android.media.MediaCodec
 import android.media.MediaFormat
+import app.wifisoundthing.core.LatencyProbe
 import java.nio.ByteBuffer
 
 /**
- * AAC-LC decoder wrapped around [MediaCodec] in synchronous mode.
- * Configured from the AudioSpecificConfig received in the WELCOME handshake.
+ * AAC decoder wrapped around [MediaCodec] in synchronous mode.
+ * Configured from the AudioSpecificConfig received in the WELCOME handshake,
+ * which also selects the object type (AAC-LC, AAC-ELD, HE-AAC v1/v2).
  * Not thread-safe; drive it from the playback thread only.
  */
 class AacDecoder(
@@ -16,6 +18,9 @@ class AacDecoder(
 ) {
     private val codec: MediaCodec = MediaCodec.createDecoderByType(MediaFormat.MIMETYPE_AUDIO_AAC)
 
+    /** Measured time from a frame going in to its PCM coming out. */
+    val latency = LatencyProbe()
+
     init {
         val format = MediaFormat.createAudioFormat(MediaFormat.MIMETYPE_AUDIO_AAC, sampleRate, channelCount).apply {
             setByteBuffer("csd-0", ByteBuffer.wrap(csd))
@@ -30,6 +35,7 @@ class AacDecoder(
      * cannot accept within the timeout is dropped (better than stalling playback).
      */
     fun decode(frame: ByteArray, ptsUs: Long, onPcm: (pcm: ByteArray) -> Unit) {
+        latency.markInput(ptsUs, System.nanoTime())
         val inIndex = codec.dequeueInputBuffer(INPUT_TIMEOUT_US)
         if (inIndex >= 0) {
             val inBuf = codec.getInputBuffer(inIndex)!!
@@ -51,6 +57,7 @@ class AacDecoder(
                         val pcm = ByteArray(info.size)
                         outBuf.position(info.offset)
                         outBuf.get(pcm)
+                        latency.markOutput(info.presentationTimeUs, System.nanoTime())
                         onPcm(pcm)
                     }
                     codec.releaseOutputBuffer(outIndex, false)
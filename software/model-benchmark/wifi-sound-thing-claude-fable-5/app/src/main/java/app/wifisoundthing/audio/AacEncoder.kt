@@ -3,21 +3,34 @@ package app.wifisoundthing.audio
 import android.media.MediaCodec
 import android.media.MediaCodecInfo
 import android.media.MediaFormat
+import app.wifisoundthing.core.CodecProfile
+import app.wifisoundthing.core.LatencyProbe
 
 /**
- * Hardware/system AAC-LC encoder wrapped around [MediaCodec] in synchronous mode.
+ * Hardware/system AAC encoder (AAC-LC, AAC-ELD or HE-AAC v1/v2, see [CodecProfile]) wrapped
+ * around [MediaCodec] in synchronous mode.
  * One instance per capture session; not thread-safe, drive it from a single thread.
  */
 class AacEncoder(
     sampleRate: Int,
     channelCount: Int,
     bitrate: Int,
+    profile: CodecProfile = CodecProfile.AAC_LC,
 ) {
     private val codec: MediaCodec = MediaCodec.createEncoderByType(MediaFormat.MIMETYPE_AUDIO_AAC)
 
+    /** Measured time from PCM going in to the encoded frame containing it coming out. */
+    val latency = LatencyProbe()
+
     init {
+        val aacProfile = when (profile) {
+            CodecProfile.AAC_LC -> MediaCodecInfo.CodecProfileLevel.AACObjectLC
+            CodecProfile.AAC_ELD -> MediaCodecInfo.CodecProfileLevel.AACObjectELD
+            CodecProfile.HE_AAC -> MediaCodecInfo.CodecProfileLevel.AACObjectHE
+            CodecProfile.HE_AAC_V2 -> MediaCodecInfo.CodecProfileLevel.AACObjectHE_PS
+        }
         val format = MediaFormat.createAudioFormat(MediaFormat.MIMETYPE_AUDIO_AAC, sampleRate, channelCount).apply {
-            setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC)
+            setInteger(MediaFormat.KEY_AAC_PROFILE, aacProfile)
             setInteger(MediaFormat.KEY_BIT_RATE, bitrate)
             setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, 65536)
         }
@@ -32,6 +45,7 @@ class AacEncoder(
      * (the AudioSpecificConfig is derived analytically, see AacCsd).
      */
     fun encode(pcm: ByteArray, length: Int, ptsUs: Long, onFrame: (frame: ByteArray, ptsUs: Long) -> Unit) {
+        latency.markInput(ptsUs, System.nanoTime())
         var offset = 0
         var stalls = 0
         while (offset < length) {
@@ -65,6 +79,7 @@ class AacEncoder(
                         val frame = ByteArray(info.size)
                         outBuf.position(info.offset)
                         outBuf.get(frame)
+                        latency.markOutput(info.presentationTimeUs, System.nanoTime())
                         onFrame(frame, info.presentationTimeUs)
                     }
                     codec.releaseOutputBuffer(outIndex, false)
@@ -7,12 +7,23 @@ import android.media.AudioPlaybackCaptureConfiguration
 import android.media.AudioRecord
 import android.media.projection.MediaProjection
 import android.util.Log
+import app.wifisoundthing.core.CodecProfile
+import app.wifisoundthing.core.CostMeter
+import app.wifisoundthing.core.DtxGate
 import kotlin.concurrent.thread
 
 /**
  * Captures the device's media playback audio via [AudioPlaybackCaptureConfiguration]
- * (Android 10+), encodes it to AAC-LC and delivers encoded frames on a dedicated
- * capture thread.
+ * (Android 10+), encodes it to AAC ([profile]) and delivers encoded frames on a
+ * dedicated capture thread.
+ *
+ * One [AacEncoder] runs per entry of [bitrates] (simulcast tiers), all fed from
+ * the same PCM block; frames are delivered tagged with their tier index. The
+ * time each tier's encoder takes is recorded in [encodeCost].
+ *
+ * With [dtx] enabled, blocks of (near-)silence are not encoded at all once the
+ * [DtxGate] hangover has passed; [onSilence] is called instead at a low rate so
+ * the caller can send a keepalive marker.
  *
  * Only audio with usage MEDIA / GAME / UNKNOWN can be captured, and only from
  * apps that have not opted out of playback capture (`allowAudioPlaybackCapture`).
@@ -22,16 +33,29 @@ class CaptureEngine(
     private val mediaProjection: MediaProjection,
     private val sampleRate: Int,
     private val channelCount: Int,
-    private val bitrate: Int,
-    private val onFrame: (frame: ByteArray, ptsUs: Long) -> Unit,
+    private val bitrates: IntArray,
+    private val profile: CodecProfile,
+    private val onFrame: (tier: Int, frame: ByteArray, ptsUs: Long) -> Unit,
     private val onError: (message: String) -> Unit,
+    dtx: Boolean = false,
+    private val onSilence: (ptsUs: Long) -> Unit = {},
 ) {
     @Volatile
     private var running = false
     private var audioRecord: AudioRecord? = null
-    private var encoder: AacEncoder? = null
+    @Volatile
+    private var encoders: List<AacEncoder> = emptyList()
     private var captureThread: Thread? = null
 
+    /** Encoding cost per tier, indexed like [bitrates]. */
+    val encodeCost: List<CostMeter> = List(bitrates.size) { CostMeter() }
+
+    /** Measured encoder latency of the primary tier, in microseconds. */
+    val encodeLatencyMicros: Long get() = encoders.firstOrNull()?.latency?.averageMicros ?: 0
+
+    /** Silence gate, or null when DTX is off. */
+    val dtxGate: DtxGate? = if (dtx) DtxGate() else null
+
     @SuppressLint("MissingPermission") // RECORD_AUDIO is checked by HostActivity before start
     fun start() {
         val channelMask = if (channelCount == 2) AudioFormat.CHANNEL_IN_STEREO else AudioFormat.CHANNEL_IN_MONO
@@ -65,9 +89,19 @@ class CaptureEngine(
             return
         }
 
-        val enc = AacEncoder(sampleRate, channelCount, bitrate)
+        val encs = bitrates.map { AacEncoder(sampleRate, channelCount, it, profile) }
+        // Time spent inside onFrame (packetizing/sending) is excluded from the encode cost.
+        val sendNanos = LongArray(encs.size)
+        val sinks = encs.indices.map { tier ->
+            { frame: ByteArray, ptsUs: Long ->
+                val t0 = System.nanoTime()
+                onFrame(tier, frame, ptsUs)
+                sendNanos[tier] += System.nanoTime() - t0
+            }
+        }
         audioRecord = record
-        encoder = enc
+        encoders = encs
+        encodeCost.forEach { it.reset() }
         running = true
 
         captureThread = thread(name = "audio-capture", priority = Thread.MAX_PRIORITY) {
@@ -75,7 +109,7 @@ class CaptureEngine(
             var totalPcmFrames = 0L
             val buffer = ByteArray(CHUNK_BYTES)
             try {
-                enc.start()
+                encs.forEach { it.start() }
                 record.startRecording()
                 while (running) {
                     val read = record.read(buffer, 0, buffer.size)
@@ -87,8 +121,22 @@ class CaptureEngine(
                         break
                     }
                     val ptsUs = totalPcmFrames * 1_000_000L / sampleRate
+                    val blockUs = (read / bytesPerFrame) * 1_000_000L / sampleRate
                     totalPcmFrames += read / bytesPerFrame
-                    enc.encode(buffer, read, ptsUs, onFrame)
+                    when (dtxGate?.process(buffer, read, blockUs)) {
+                        DtxGate.Decision.MARKER -> {
+                            onSilence(ptsUs)
+                            continue
+                        }
+                        DtxGate.Decision.SKIP -> continue
+                        else -> {}
+                    }
+                    for (tier in encs.indices) {
+                        sendNanos[tier] = 0
+                        val t0 = System.nanoTime()
+                        encs[tier].encode(buffer, read, ptsUs, sinks[tier])
+                        encodeCost[tier].record(System.nanoTime() - t0 - sendNanos[tier], blockUs)
+                    }
                 }
             } catch (e: Exception) {
                 if (running) onError("Audio capture failed: ${e.message}")
@@ -98,7 +146,7 @@ class CaptureEngine(
                 } catch (_: Exception) {
                 }
                 record.release()
-                enc.release()
+                encs.forEach { it.release() }
             }
         }
     }
@@ -109,13 +157,13 @@ class CaptureEngine(
         captureThread?.join(2000)
         captureThread = null
         audioRecord = null
-        encoder = null
+        encoders = emptyList()
     }
 
     companion object {
         private const val TAG = "CaptureEngine"
 
-        /** PCM chunk read per loop: 1024 samples * 2ch * 2B = one AAC frame's worth. */
+        /** PCM chunk read per loop: 1024 samples * 2ch * 2B = one AAC-LC frame's (two AAC-ELD frames') worth. */
         const val CHUNK_BYTES = 4096
     }
 }
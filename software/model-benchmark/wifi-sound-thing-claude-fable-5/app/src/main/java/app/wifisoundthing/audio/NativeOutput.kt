@@ -0,0 +1,97 @@
+package app.wifisoundthing.audio
+
+import android.util.Log
+import app.wifisoundthing.core.AudioConfig
+import app.wifisoundthing.core.NativeHandle
+
+/**
+ * Low-latency output through AAudio (`src/main/cpp/aaudio_output.cpp`). The
+ * stream is opened in exclusive mode, which gets the MMAP path straight into
+ * the audio HAL's buffer on devices that support it, and falls back to a
+ * shared low-latency stream otherwise. The AAudio callback pulls PCM from a
+ * lock-free ring (`pcm_ring.h`); [write] fills it from the decoder thread.
+ * The ring holds at most two device bursts, so it adds only a few
+ * milliseconds on top of the device buffer.
+ *
+ * The stats thread reads [latencyMicros] while the decoder thread writes and
+ * may [release]; every JNI call goes through one [NativeHandle], so none can
+ * reach a stream that has been closed.
+ *
+ * Unlike AudioTrack there is no playback-rate control, so callers that need
+ * to change speed fall back to dropping or repeating frames.
+ */
+class NativeOutput private constructor(handle: Long) {
+    private val handle = NativeHandle(handle) { nativeClose(it) }
+
+    /** True if the device granted an exclusive (MMAP) stream. */
+    val isExclusive: Boolean = nativeIsExclusive(handle)
+
+    /** False once the stream has been disconnected (e.g. headphones unplugged) or released. */
+    val isOpen: Boolean get() = handle.use(false) { nativeIsOpen(it) }
+
+    /** Time until a sample written now is heard, or -1 before the first hardware timestamp. */
+    val latencyMicros: Long
+        get() = handle.use(-1L) { nativeLatencyNanos(it) }.let { if (it < 0) -1 else it / 1000 }
+
+    /** Frames of silence the callback had to play because the ring ran dry. */
+    val underrunFrames: Long get() = handle.use(0L) { nativeUnderrunFrames(it) }
+
+    fun start(): Boolean = handle.use(false) { nativeStart(it) }
+
+    /**
+     * Writes [length] bytes of 16-bit PCM, waiting while the ring is full the
+     * way a blocking AudioTrack.write() does, so it paces the playback loop.
+     */
+    fun write(pcm: ByteArray, offset: Int, length: Int) {
+        var done = 0
+        while (done < length) {
+            if (!isOpen) throw IllegalStateException("Audio output disconnected")
+            // The lock is held per call, never across the sleep.
+            done += handle.use(0) { nativeWrite(it, pcm, offset + done, length - done) }
+            if (done < length) Thread.sleep(WAIT_MS)
+        }
+    }
+
+    fun release() = handle.close()
+
+    companion object {
+        private const val TAG = "NativeOutput"
+
+        /** Ring storage; once the stream is open its fill is capped at two bursts, a few ms. */
+        private const val RING_MS = 100
+
+        /** Shorter than a burst on most devices, so the small ring is topped up in time. */
+        private const val WAIT_MS = 1L
+
+        /** Whether the native library could be loaded (absent on builds without the NDK part). */
+        val isAvailable: Boolean by lazy {
+            try {
+                System.loadLibrary("wstaudio")
+                true
+            } catch (e: UnsatisfiedLinkError) {
+                Log.w(TAG, "Native audio unavailable: ${e.message}")
+                false
+            }
+        }
+
+        /** Opens and returns an output for [config], or null if AAudio can't serve it. */
+        fun open(config: AudioConfig): NativeOutput? {
+            if (!isAvailable) return null
+            val ringSamples = config.sampleRate * config.channelCount * RING_MS / 1000
+            val handle = nativeOpen(config.sampleRate, config.channelCount, ringSamples)
+            if (handle == 0L) return null
+            return NativeOutput(handle).also {
+                Log.i(TAG, "AAudio output for ${config.sampleRate} Hz, exclusive=${it.isExclusive}")
+            }
+        }
+
+        @JvmStatic private external fun nativeOpen(sampleRate: Int, channelCount: Int, ringSamples: Int): Long
+        @JvmStatic private external fun nativeStart(handle: Long): Boolean
+        @JvmStatic private external fun nativeWrite(handle: Long, pcm: ByteArray, offset: Int, length: Int): Int
+        @JvmStatic private external fun nativeLatencyNanos(handle: Long): Long
+        @JvmStatic private external fun nativeIsExclusive(handle: Long): Boolean
+        @JvmStatic private external fun nativeIsOpen(handle: Long): Boolean
+        @JvmStatic private external fun nativeUnderrunFrames(handle: Long): Long
+        @JvmStatic private external fun nativeClose(handle: Long)
+    }
+}
@@ -1,17 +1,27 @@
 package app.wifisoundthing.audio
 
-import android.media.AudioAttributes
-import android.media.AudioFormat
-import android.media.AudioManager
-import android.media.AudioTrack
 import app.wifisoundthing.core.AudioConfig
 import app.wifisoundthing.core.JitterBuffer
+import app.wifisoundthing.core.TimeShiftRing
+import java.util.concurrent.atomic.AtomicReference
 import kotlin.concurrent.thread
 
 /**
  * Pulls frames from the [JitterBuffer] at playback rate, decodes them and
- * writes PCM to an [AudioTrack]. The blocking AudioTrack.write() paces the
- * loop; while the jitter buffer refills we sleep one frame duration per poll.
+ * writes PCM to the [PlaybackOutput] — an AudioTrack, or the AAudio
+ * [NativeOutput] with [nativeOutput]. The blocking write paces the loop;
+ * while the jitter buffer refills (or the host is silent, DTX) we sleep one
+ * frame duration per poll.
+ *
+ * If the jitter buffer starts shallower than its target (fast start), the
+ * output plays at [GROW_SPEED] until the buffer has grown to the target depth,
+ * which adds the missing frames without an audible gap.
+ *
+ * With a [timeShift] ring every played frame is also appended to it, and the
+ * listener can [rewind] into it. While behind live, frames are played from
+ * the ring (the jitter buffer keeps filling the ring at its target depth);
+ * [catchUp] plays at [CATCH_UP_SPEED] — or drops every third frame where the
+ * device can't change speed — until live is reached, [goLive] jumps there.
  *
  * Routed through the device's current audio output, including Bluetooth.
  */
@@ -20,67 +30,165 @@ class PlaybackEngine(
     private val jitterBuffer: JitterBuffer,
     private val onStateChanged: (buffering: Boolean) -> Unit,
     private val onError: (message: String) -> Unit,
+    /** Output created ahead of time for [config]; taken over (and released) by this engine. */
+    private val prepared: PlaybackOutput? = null,
+    private val timeShift: TimeShiftRing? = null,
+    /** Prefer the AAudio output when this engine builds its own [PlaybackOutput]. */
+    private val nativeOutput: Boolean = false,
 ) {
+    private sealed class ShiftRequest {
+        class Rewind(val us: Long) : ShiftRequest()
+        object CatchUp : ShiftRequest()
+        object Live : ShiftRequest()
+    }
+
+    private val shiftRequest = AtomicReference<ShiftRequest?>(null)
+
+    /** How far playback is behind live, in microseconds (0 = live). */
+    @Volatile
+    var behindLiveUs = 0L
+        private set
+
     @Volatile
     private var running = false
     private var playbackThread: Thread? = null
 
+    @Volatile
+    private var output: PlaybackOutput? = null
+
+    /** Measured decoder latency in microseconds (0 until the first frame is decoded). */
+    val decodeLatencyMicros: Long get() = output?.decoder?.latency?.averageMicros ?: 0
+
+    /** Measured write-to-speaker latency in microseconds (0 while unknown). */
+    val outputLatencyMicros: Long get() = output?.outputLatencyMicros ?: 0
+
+    /** Whether PCM is going out through AAudio rather than an AudioTrack. */
+    val isNativeOutput: Boolean get() = output?.isNative ?: false
+
+    /** Moves playback [us] further back in time (as far as the ring reaches). */
+    fun rewind(us: Long) {
+        if (timeShift != null) shiftRequest.set(ShiftRequest.Rewind(us))
+    }
+
+    /** Plays faster until playback is back at live. */
+    fun catchUp() {
+        shiftRequest.set(ShiftRequest.CatchUp)
+    }
+
+    fun goLive() {
+        shiftRequest.set(ShiftRequest.Live)
+    }
+
     fun start() {
         running = true
         playbackThread = thread(name = "audio-playback", priority = Thread.MAX_PRIORITY) {
-            val channelMask = if (config.channelCount == 2) AudioFormat.CHANNEL_OUT_STEREO else AudioFormat.CHANNEL_OUT_MONO
-            val minBuffer = AudioTrack.getMinBufferSize(config.sampleRate, channelMask, AudioFormat.ENCODING_PCM_16BIT)
-            val frameBytes = SAMPLES_PER_AAC_FRAME * 2 * config.channelCount
-            val silence = ByteArray(frameBytes)
-            val frameDurationMs = SAMPLES_PER_AAC_FRAME * 1000L / config.sampleRate
-
-            var track: AudioTrack? = null
-            var decoder: AacDecoder? = null
+            val frameDurationMs = (config.frameSamples * 1000L / config.sampleRate).coerceAtLeast(1)
+
+            var output: PlaybackOutput? = prepared?.takeIf { it.config == config }
+            if (output == null) prepared?.release()
             try {
-                track = AudioTrack.Builder()
-                    .setAudioAttributes(
-                        AudioAttributes.Builder()
-                            .setUsage(AudioAttributes.USAGE_MEDIA)
-                            .setContentType(AudioAttributes.CONTENT_TYPE_MUSIC)
-                            .build(),
-                    )
-                    .setAudioFormat(
-                        AudioFormat.Builder()
-                            .setEncoding(AudioFormat.ENCODING_PCM_16BIT)
-                            .setSampleRate(config.sampleRate)
-                            .setChannelMask(channelMask)
-                            .build(),
-                    )
-                    .setBufferSizeInBytes(maxOf(minBuffer, frameBytes * 4))
-                    .setTransferMode(AudioTrack.MODE_STREAM)
-                    .setPerformanceMode(AudioTrack.PERFORMANCE_MODE_LOW_LATENCY)
-                    .build()
-                decoder = AacDecoder(config.sampleRate, config.channelCount, config.csd)
-                decoder.start()
-                track.play()
+                if (output == null) output = PlaybackOutput(config, nativeOutput)
+                this.output = output
+                val decoder = output.decoder
+                // Frame size comes from the WELCOME handshake (1024 for AAC-LC, 512/480 for AAC-ELD).
+                val silence = ByteArray(output.frameBytes)
+                output.play()
 
+                var growing = jitterBuffer.startDepth < jitterBuffer.targetDepth
+                var slowed = false
                 var wasBuffering = true
+                // Time shift (playback thread only): next ring entry to play, or LIVE.
+                var cursor = LIVE
+                var catchingUp = false
+                var dropEvery = 0
+                var played = 0L
+
+                fun goLive() {
+                    if (catchingUp && dropEvery == 0) output.setSpeed(1f)
+                    cursor = LIVE
+                    catchingUp = false
+                    dropEvery = 0
+                    behindLiveUs = 0
+                }
+
                 onStateChanged(true)
                 while (running) {
+                    val ring = timeShift
+                    when (val request = shiftRequest.getAndSet(null)) {
+                        null -> {}
+                        is ShiftRequest.Rewind -> if (ring != null && !ring.isEmpty) {
+                            val from = if (cursor == LIVE) ring.ptsOf(ring.nextEntry - 1) else ring.ptsOf(cursor)
+                            cursor = ring.entryFor(from - request.us)
+                            if (growing && slowed) output.setSpeed(1f)
+                            growing = false
+                        }
+                        ShiftRequest.CatchUp -> if (cursor != LIVE && !catchingUp) {
+                            catchingUp = true
+                            dropEvery = if (output.setSpeed(CATCH_UP_SPEED)) 0 else 3
+                        }
+                        ShiftRequest.Live -> goLive()
+                    }
+
+                    if (ring != null && cursor != LIVE) {
+                        // Keep the live stream flowing into the ring while we're behind it.
+                        while (jitterBuffer.depth > jitterBuffer.targetDepth) {
+                            val live = jitterBuffer.poll()
+                            if (live is JitterBuffer.Event.Frame) ring.append(live.seq, live.ptsUs, live.payload)
+                        }
+                        val packet = ring.read(cursor)
+                        if (packet == null) {
+                            // Evicted while paused behind, or nothing newer yet.
+                            if (cursor < ring.firstEntry) cursor = ring.firstEntry else goLive()
+                            continue
+                        }
+                        cursor++
+                        if (dropEvery > 0 && ++played % dropEvery == 0L) continue
+                        decoder.decode(packet.payload, packet.ptsUs) { pcm ->
+                            output.write(pcm)
+                        }
+                        behindLiveUs = ring.ptsOf(ring.nextEntry - 1) - packet.ptsUs
+                        if (cursor >= ring.nextEntry) goLive()
+                        continue
+                    }
+
                     when (val event = jitterBuffer.poll()) {
                         is JitterBuffer.Event.Frame -> {
+                            ring?.append(event.seq, event.ptsUs, event.payload)
                             if (wasBuffering) {
                                 wasBuffering = false
                                 onStateChanged(false)
                             }
+                            if (growing) {
+                                if (jitterBuffer.depth >= jitterBuffer.targetDepth) {
+                                    if (slowed) output.setSpeed(1f)
+                                    growing = false
+                                } else if (!slowed) {
+                                    slowed = output.setSpeed(GROW_SPEED)
+                                    growing = slowed
+                                }
+                            }
                             decoder.decode(event.payload, event.ptsUs) { pcm ->
-                                track.write(pcm, 0, pcm.size)
+                                output.write(pcm)
                             }
                         }
                         JitterBuffer.Event.Gap -> {
                             // Lost packet: one frame of silence keeps timing intact.
-                            track.write(silence, 0, silence.size)
+                            output.write(silence)
+                        }
+                        JitterBuffer.Event.Silence -> {
+                            // Host paused on purpose: not a buffering problem, keep the state.
+                            Thread.sleep(frameDurationMs)
                         }
                         JitterBuffer.Event.Buffering -> {
                             if (!wasBuffering) {
                                 wasBuffering = true
                                 onStateChanged(true)
                             }
+                            // Re-buffering fills to the full target; growing is no longer needed.
+                            if (growing) {
+                                if (slowed) output.setSpeed(1f)
+                                growing = false
+                            }
                             Thread.sleep(frameDurationMs)
                         }
                     }
@@ -90,12 +198,8 @@ class PlaybackEngine(
             } catch (e: Exception) {
                 if (running) onError("Audio playback failed: ${e.message}")
             } finally {
-                try {
-                    track?.stop()
-                } catch (_: Exception) {
-                }
-                track?.release()
-                decoder?.release()
+                this.output = null
+                output?.release()
             }
         }
     }
@@ -108,7 +212,12 @@ class PlaybackEngine(
     }
 
     companion object {
-        /** AAC-LC always encodes 1024 PCM samples per frame. */
-        const val SAMPLES_PER_AAC_FRAME = 1024
+        /** 3% slow: one extra frame every ~33 frames, inaudible without pitch change. */
+        const val GROW_SPEED = 0.97f
+
+        /** Catching up to live after a rewind: 1 minute behind takes 2 minutes. */
+        const val CATCH_UP_SPEED = 1.5f
+
+        private const val LIVE = -1L
     }
 }
@@ -0,0 +1,138 @@
+package app.wifisoundthing.audio
+
+import android.media.AudioAttributes
+import android.media.AudioFormat
+import android.media.AudioTimestamp
+import android.media.AudioTrack
+import app.wifisoundthing.core.AudioConfig
+import app.wifisoundthing.core.OutputLatency
+
+/**
+ * The decoder and AudioTrack for one stream [config], created and started
+ * but not yet playing. Building them takes tens of milliseconds (codec
+ * allocation, audio HAL stream setup), so the client creates one for the
+ * config it expects while the TCP handshake is still in flight and hands it
+ * to [PlaybackEngine]; an output built for a different config is released.
+ *
+ * With [preferNative] the PCM goes to an AAudio [NativeOutput] instead of an
+ * AudioTrack when the device can open one for [config]; [isNative] tells which
+ * one was built.
+ *
+ * While playing, the AudioTrack's presentation timestamp is sampled every
+ * [TIMESTAMP_INTERVAL_NS] to measure how long written PCM takes to reach the
+ * speaker ([outputLatencyMicros]); the native output measures it itself.
+ *
+ * Owned by exactly one party at a time: whoever holds it must [release] it.
+ */
+class PlaybackOutput(val config: AudioConfig, preferNative: Boolean = false) {
+    /** Bytes of 16-bit PCM per codec frame (1024 samples for AAC-LC, 512/480 for AAC-ELD, …). */
+    val frameBytes = config.frameSamples * 2 * config.channelCount
+
+    private val native: NativeOutput? = if (preferNative) NativeOutput.open(config) else null
+    private val track: AudioTrack?
+    val decoder: AacDecoder
+
+    val isNative: Boolean get() = native != null
+
+    private val latency = OutputLatency(config.sampleRate)
+    private val timestamp = AudioTimestamp()
+    private var framesWritten = 0L
+    private var lastTimestampNanos = 0L
+
+    /** The AudioTrack's playback speed, set by [setSpeed] from the playback thread. */
+    private var speed = 1f
+
+    init {
+        track = if (native == null) buildTrack() else null
+        decoder = try {
+            AacDecoder(config.sampleRate, config.channelCount, config.csd).also { it.start() }
+        } catch (e: Exception) {
+            track?.release()
+            native?.release()
+            throw e
+        }
+    }
+
+    /** Time from writing a sample to hearing it, in microseconds, or 0 while unknown. */
+    val outputLatencyMicros: Long get() = native?.latencyMicros?.coerceAtLeast(0) ?: latency.micros
+
+    fun play() {
+        if (native != null) {
+            if (!native.start()) throw IllegalStateException("AAudio stream did not start")
+        } else {
+            track!!.play()
+        }
+    }
+
+    /** Writes 16-bit PCM, blocking while the output buffer is full. Playback thread only. */
+    fun write(pcm: ByteArray, offset: Int = 0, length: Int = pcm.size - offset) {
+        if (native != null) {
+            native.write(pcm, offset, length)
+            return
+        }
+        val track = track!!
+        val written = track.write(pcm, offset, length)
+        if (written <= 0) return
+        framesWritten += written / (2 * config.channelCount)
+        val now = System.nanoTime()
+        if (now - lastTimestampNanos >= TIMESTAMP_INTERVAL_NS) {
+            lastTimestampNanos = now
+            // False until the HAL has presented the first frames.
+            if (track.getTimestamp(timestamp)) {
+                latency.onTimestamp(framesWritten, timestamp.framePosition, timestamp.nanoTime, now, speed)
+            }
+        }
+    }
+
+    private fun buildTrack(): AudioTrack {
+        val channelMask = if (config.channelCount == 2) AudioFormat.CHANNEL_OUT_STEREO else AudioFormat.CHANNEL_OUT_MONO
+        val minBuffer = AudioTrack.getMinBufferSize(config.sampleRate, channelMask, AudioFormat.ENCODING_PCM_16BIT)
+        return AudioTrack.Builder()
+            .setAudioAttributes(
+                AudioAttributes.Builder()
+                    .setUsage(AudioAttributes.USAGE_MEDIA)
+                    .setContentType(AudioAttributes.CONTENT_TYPE_MUSIC)
+                    .build(),
+            )
+            .setAudioFormat(
+                AudioFormat.Builder()
+                    .setEncoding(AudioFormat.ENCODING_PCM_16BIT)
+                    .setSampleRate(config.sampleRate)
+                    .setChannelMask(channelMask)
+                    .build(),
+            )
+            .setBufferSizeInBytes(maxOf(minBuffer, frameBytes * 4))
+            .setTransferMode(AudioTrack.MODE_STREAM)
+            .setPerformanceMode(AudioTrack.PERFORMANCE_MODE_LOW_LATENCY)
+            .build()
+    }
+
+    /**
+     * Sets the playback speed (pitch unchanged) used to grow the jitter buffer
+     * after a fast start. Returns false if the output doesn't support it
+     * (the native output never does).
+     */
+    fun setSpeed(speed: Float): Boolean = try {
+        val track = track ?: return false
+        track.playbackParams = track.playbackParams.setSpeed(speed).setPitch(1f)
+        this.speed = speed
+        true
+    } catch (e: Exception) {
+        false
+    }
+
+    fun release() {
+        native?.release()
+        try {
+            track?.stop()
+        } catch (_: Exception) {
+        }
+        track?.release()
+        decoder.release()
+    }
+
+    private companion object {
+        /** getTimestamp() goes to the HAL; a few samples a second are plenty. */
+        const val TIMESTAMP_INTERVAL_NS = 250_000_000L
+    }
+}
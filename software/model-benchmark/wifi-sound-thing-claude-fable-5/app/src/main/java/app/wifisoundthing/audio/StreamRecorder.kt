@@ -0,0 +1,117 @@
+package app.wifisoundthing.audio
+
+import android.media.MediaCodec
+import android.media.MediaFormat
+import android.media.MediaMuxer
+import android.util.Log
+import app.wifisoundthing.core.AudioConfig
+import app.wifisoundthing.core.DroppingQueue
+import java.io.FileDescriptor
+import java.nio.ByteBuffer
+import kotlin.concurrent.thread
+
+/**
+ * Records the broadcast into an `.m4a` file without encoding it again: the
+ * AAC frames [CaptureEngine] already produced for the primary tier are muxed
+ * as they are (MediaMuxer, MPEG-4), with the stream's AudioSpecificConfig as
+ * the track's csd-0.
+ *
+ * [offer] is called on the capture thread and never blocks; frames wait in a
+ * bounded [DroppingQueue] for the writer thread, and frames that don't fit
+ * (storage stalled) are dropped and counted in [droppedFrames].
+ *
+ * Pauses skipped by DTX are not filled in: the recording simply continues
+ * with the next frame's timestamp.
+ */
+class StreamRecorder(
+    private val output: FileDescriptor,
+    private val config: AudioConfig,
+    private val bitrate: Int,
+) {
+    private class Frame(val data: ByteArray, val ptsUs: Long)
+
+    private val queue = DroppingQueue<Frame>(QUEUE_FRAMES)
+
+    @Volatile
+    private var running = false
+    private var writerThread: Thread? = null
+
+    @Volatile
+    var framesWritten = 0L
+        private set
+
+    @Volatile
+    var bytesWritten = 0L
+        private set
+
+    val droppedFrames: Long get() = queue.dropped
+
+    @Throws(Exception::class)
+    fun start() {
+        val muxer = MediaMuxer(output, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4)
+        val format = MediaFormat.createAudioFormat(MediaFormat.MIMETYPE_AUDIO_AAC, config.sampleRate, config.channelCount).apply {
+            setByteBuffer("csd-0", ByteBuffer.wrap(config.csd))
+            setInteger(MediaFormat.KEY_BIT_RATE, bitrate)
+        }
+        val track = try {
+            muxer.addTrack(format).also { muxer.start() }
+        } catch (e: Exception) {
+            muxer.release()
+            throw e
+        }
+        running = true
+        writerThread = thread(name = "host-recorder") { writeLoop(muxer, track) }
+    }
+
+    /** Queues one encoded frame; drops it if the writer is too far behind. */
+    fun offer(frame: ByteArray, ptsUs: Long) {
+        if (running) queue.offer(Frame(frame, ptsUs))
+    }
+
+    /** Writes what is still queued, finalises the file and returns. */
+    fun stop() {
+        running = false
+        writerThread?.join(STOP_TIMEOUT_MS)
+        writerThread = null
+    }
+
+    private fun writeLoop(muxer: MediaMuxer, track: Int) {
+        val info = MediaCodec.BufferInfo()
+        var firstPtsUs = -1L
+        var lastPtsUs = -1L
+        try {
+            while (true) {
+                val frame = if (running) queue.poll(POLL_MS) ?: continue else queue.poll() ?: break
+                if (firstPtsUs < 0) firstPtsUs = frame.ptsUs
+                val ptsUs = frame.ptsUs - firstPtsUs
+                if (ptsUs <= lastPtsUs) continue // MPEG-4 needs increasing timestamps
+                lastPtsUs = ptsUs
+                info.set(0, frame.data.size, ptsUs, MediaCodec.BUFFER_FLAG_KEY_FRAME)
+                muxer.writeSampleData(track, ByteBuffer.wrap(frame.data), info)
+                framesWritten++
+                bytesWritten += frame.data.size
+            }
+        } catch (e: InterruptedException) {
+            // stopping
+        } catch (e: Exception) {
+            Log.e(TAG, "Recording failed", e)
+            running = false
+        } finally {
+            try {
+                muxer.stop() // throws if no sample was written
+            } catch (e: Exception) {
+                Log.w(TAG, "Recording not finalised: ${e.message}")
+            }
+            muxer.release()
+        }
+    }
+
+    private companion object {
+        const val TAG = "StreamRecorder"
+
+        /** ~10 s of AAC-LC frames; only fills if storage stalls. */
+        const val QUEUE_FRAMES = 512
+        const val POLL_MS = 100L
+        const val STOP_TIMEOUT_MS = 3000L
+    }
+}
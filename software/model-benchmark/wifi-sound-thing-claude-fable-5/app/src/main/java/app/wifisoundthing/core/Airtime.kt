@@ -0,0 +1,71 @@
+package app.wifisoundthing.core
+
+import java.util.Locale
+
+/**
+ * Estimates the share of Wi-Fi airtime the audio stream occupies.
+ *
+ * The host sends every datagram once per listener (unicast), and at audio
+ * bitrates the fixed cost of each 802.11 frame (contention, preambles, ACK)
+ * is as large as the payload itself — so a profile that sends fewer, smaller
+ * datagrams (HE-AAC: 2048-sample frames at 48–64 kbps) saves far more airtime
+ * than its bitrate alone suggests. Used to compare codec profiles for a
+ * given number of listeners.
+ */
+object Airtime {
+    /** IPv4 + UDP headers. */
+    const val UDP_IP_OVERHEAD = 28
+
+    /** 802.11 MAC header + LLC/SNAP + FCS. */
+    const val MAC_OVERHEAD = 36
+
+    /**
+     * Fixed time per unicast frame on 2.4 GHz 802.11g/n: DIFS, mean backoff
+     * (CWmin 15 × 9 µs / 2), data and ACK preambles, SIFS + signal extension, ACK.
+     */
+    const val PER_FRAME_US = 150.0
+
+    /** A conservative PHY rate for a phone hotspot with listeners across the room. */
+    const val DEFAULT_PHY_RATE_BPS = 54_000_000L
+
+    class Estimate(
+        val profile: CodecProfile,
+        val bitrate: Int,
+        val clients: Int,
+        val packetsPerSecond: Double,
+        val datagramBytes: Int,
+        /** Fraction of the channel's time spent on this stream (1.0 = fully busy). */
+        val share: Double,
+    )
+
+    fun estimate(
+        profile: CodecProfile,
+        requestedBitrate: Int,
+        clients: Int,
+        sampleRate: Int = 48_000,
+        phyRateBps: Long = DEFAULT_PHY_RATE_BPS,
+    ): Estimate {
+        val bitrate = profile.bitrateFor(requestedBitrate)
+        val packetsPerSecond = sampleRate.toDouble() / profile.frameSamples
+        val payload = Math.round(bitrate / 8.0 / packetsPerSecond).toInt()
+        val datagram = payload + AudioPacketCodec.HEADER_SIZE + UDP_IP_OVERHEAD
+        val frameUs = PER_FRAME_US + (datagram + MAC_OVERHEAD) * 8 * 1_000_000.0 / phyRateBps
+        val share = frameUs * packetsPerSecond * clients / 1_000_000.0
+        return Estimate(profile, bitrate, clients, packetsPerSecond, datagram, share)
+    }
+
+    /** One line per profile, e.g. "HE-AAC    64 kbps  23.4 pkt/s  6 clients: 3.0% airtime". */
+    fun report(
+        clients: Int,
+        requestedBitrate: Int,
+        sampleRate: Int = 48_000,
+        phyRateBps: Long = DEFAULT_PHY_RATE_BPS,
+    ): List<String> = CodecProfile.entries.map { profile ->
+        val e = estimate(profile, requestedBitrate, clients, sampleRate, phyRateBps)
+        String.format(
+            Locale.US,
+            "%-10s %3d kbps %5.1f pkt/s %2d clients: %5.1f%% airtime",
+            profile.label, e.bitrate / 1000, e.packetsPerSecond, clients, e.share * 100,
+        )
+    }
+}
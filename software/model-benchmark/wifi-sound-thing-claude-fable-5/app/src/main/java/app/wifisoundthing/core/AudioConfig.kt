@@ -4,14 +4,16 @@ package app.wifisoundthing.core
  * Describes the encoded audio stream. Sent from host to client in the WELCOME
  * handshake so the client can configure its decoder before the first packet.
  *
- * @param csd codec-specific data; for AAC-LC this is the 2-byte
- *            AudioSpecificConfig (fed to the decoder as "csd-0").
+ * @param csd codec-specific data; for AAC this is the AudioSpecificConfig
+ *            (fed to the decoder as "csd-0").
+ * @param frameSamples PCM samples per channel in one encoded frame (one datagram).
  */
 class AudioConfig(
     val sampleRate: Int,
     val channelCount: Int,
     val codec: Int,
     val csd: ByteArray,
+    val frameSamples: Int = AacCsd.LC_FRAME_SAMPLES,
 ) {
     override fun equals(other: Any?): Boolean {
         if (this === other) return true
@@ -19,7 +21,8 @@ class AudioConfig(
         return sampleRate == other.sampleRate &&
             channelCount == other.channelCount &&
             codec == other.codec &&
-            csd.contentEquals(other.csd)
+            csd.contentEquals(other.csd) &&
+            frameSamples == other.frameSamples
     }
 
     override fun hashCode(): Int {
@@ -27,11 +30,12 @@ class AudioConfig(
         result = 31 * result + channelCount
         result = 31 * result + codec
         result = 31 * result + csd.contentHashCode()
+        result = 31 * result + frameSamples
         return result
     }
 
     override fun toString(): String =
-        "AudioConfig(rate=$sampleRate, ch=$channelCount, codec=$codec, csd=${csd.size}B)"
+        "AudioConfig(rate=$sampleRate, ch=$channelCount, codec=$codec, csd=${csd.size}B, frame=$frameSamples)"
 }
 
 /**
@@ -40,8 +44,20 @@ class AudioConfig(
  *
  * Layout (16 bits): 5 bits audioObjectType, 4 bits samplingFrequencyIndex,
  * 4 bits channelConfiguration, 3 bits padding (frameLength/depends/extension = 0).
+ *
+ * AAC-ELD (object type 39) uses the escaped object type and an
+ * ELDSpecificConfig instead, see [eldAudioSpecificConfig]; HE-AAC v1/v2 use
+ * explicit hierarchical SBR/PS signalling, see [heAacAudioSpecificConfig].
  */
 object AacCsd {
+    /** AAC-LC always encodes 1024 PCM samples per frame. */
+    const val LC_FRAME_SAMPLES = 1024
+
+    private const val AOT_AAC_LC = 2
+    private const val AOT_SBR = 5
+    private const val AOT_PS = 29
+    private const val AOT_ER_AAC_ELD = 39
+
     private val FREQ_TABLE = intArrayOf(
         96000, 88200, 64000, 48000, 44100, 32000,
         24000, 22050, 16000, 12000, 11025, 8000, 7350,
@@ -55,9 +71,86 @@ object AacCsd {
 
     fun audioSpecificConfig(sampleRate: Int, channelCount: Int): ByteArray {
         require(channelCount in 1..7) { "Unsupported channel count: $channelCount" }
-        val objectType = 2 // AAC-LC
         val freqIdx = frequencyIndex(sampleRate)
-        val bits = (objectType shl 11) or (freqIdx shl 7) or (channelCount shl 3)
+        val bits = (AOT_AAC_LC shl 11) or (freqIdx shl 7) or (channelCount shl 3)
         return byteArrayOf(((bits shr 8) and 0xFF).toByte(), (bits and 0xFF).toByte())
     }
+
+    /**
+     * AudioSpecificConfig for AAC-ELD without SBR, 30 bits padded to 4 bytes:
+     * 5 bits escape (31) + 6 bits (objectType - 32), 4 bits frequency index,
+     * 4 bits channels, ELDSpecificConfig (frameLengthFlag, three resilience
+     * flags, ldSbrPresentFlag, 4 bits ELDEXT_TERM), 2 bits epConfig.
+     *
+     * @param frameSamples 512, or 480 (frameLengthFlag = 1)
+     */
+    fun eldAudioSpecificConfig(sampleRate: Int, channelCount: Int, frameSamples: Int = 512): ByteArray {
+        require(channelCount in 1..7) { "Unsupported channel count: $channelCount" }
+        require(frameSamples == 512 || frameSamples == 480) { "AAC-ELD frame must be 480 or 512: $frameSamples" }
+        val bits = BitWriter()
+        bits.write(31, 5)
+        bits.write(AOT_ER_AAC_ELD - 32, 6)
+        bits.write(frequencyIndex(sampleRate), 4)
+        bits.write(channelCount, 4)
+        bits.write(if (frameSamples == 480) 1 else 0, 1) // frameLengthFlag
+        bits.write(0, 3) // section/scalefactor/spectral data resilience
+        bits.write(0, 1) // ldSbrPresentFlag
+        bits.write(0, 4) // eldExtType = ELDEXT_TERM
+        bits.write(0, 2) // epConfig
+        return bits.toByteArray()
+    }
+
+    /**
+     * AudioSpecificConfig for HE-AAC (SBR) or HE-AAC v2 (SBR + PS) with
+     * explicit hierarchical signalling, 25 bits padded to 4 bytes: 5 bits objectType (5 = SBR,
+     * 29 = PS), 4 bits core (half-rate) frequency index, 4 bits core channels,
+     * 4 bits extension (output) frequency index, 5 bits core objectType
+     * (AAC-LC), 3 bits GASpecificConfig (all zero).
+     *
+     * Decoders that don't understand SBR/PS still play the half-rate AAC-LC
+     * core (and, for v2, its mono downmix).
+     *
+     * @param parametricStereo HE-AAC v2: the core is mono, stereo is rebuilt
+     *        from PS parameters, so [channelCount] must be 2.
+     */
+    fun heAacAudioSpecificConfig(sampleRate: Int, channelCount: Int, parametricStereo: Boolean = false): ByteArray {
+        require(channelCount in 1..7) { "Unsupported channel count: $channelCount" }
+        require(!parametricStereo || channelCount == 2) { "Parametric stereo needs stereo output: $channelCount" }
+        require(sampleRate % 2 == 0) { "Unsupported HE-AAC sample rate: $sampleRate" }
+        val bits = BitWriter()
+        bits.write(if (parametricStereo) AOT_PS else AOT_SBR, 5)
+        bits.write(frequencyIndex(sampleRate / 2), 4)
+        bits.write(if (parametricStereo) 1 else channelCount, 4)
+        bits.write(frequencyIndex(sampleRate), 4) // extensionSamplingFrequencyIndex
+        bits.write(AOT_AAC_LC, 5)
+        bits.write(0, 3) // frameLengthFlag, dependsOnCoreCoder, extensionFlag
+        return bits.toByteArray()
+    }
+
+    /** MSB-first bit packer for AudioSpecificConfig fields; pads the last byte with zeros. */
+    internal class BitWriter {
+        private val out = java.io.ByteArrayOutputStream()
+        private var current = 0
+        private var used = 0
+
+        fun write(value: Int, bitCount: Int) {
+            for (i in bitCount - 1 downTo 0) {
+                current = (current shl 1) or ((value shr i) and 1)
+                if (++used == 8) {
+                    out.write(current)
+                    current = 0
+                    used = 0
+                }
+            }
+        }
+
+        fun toByteArray(): ByteArray {
+            if (used > 0) {
+                out.write(current shl (8 - used))
+                current = 0
+                used = 0
+            }
+            return out.toByteArray()
+        }
+    }
 }
@@ -7,9 +7,21 @@ import java.nio.ByteBuffer
  *
  * @param seq monotonically increasing sequence number (unsigned 32-bit on the wire)
  * @param ptsUs presentation timestamp in microseconds since stream start
+ * @param tier simulcast tier the frame was encoded for (0 = primary, see [Simulcast])
+ * @param type [AudioPacketCodec.TYPE_AUDIO], or [AudioPacketCodec.TYPE_SILENCE] for a
+ *             DTX marker (empty payload; [seq] is where the intentional pause begins)
  */
-class AudioPacket(val seq: Long, val ptsUs: Long, val payload: ByteArray) {
-    override fun toString(): String = "AudioPacket(seq=$seq, ptsUs=$ptsUs, ${payload.size}B)"
+class AudioPacket(
+    val seq: Long,
+    val ptsUs: Long,
+    val payload: ByteArray,
+    val tier: Int = 0,
+    val type: Int = AudioPacketCodec.TYPE_AUDIO,
+) {
+    val isSilence: Boolean get() = type == AudioPacketCodec.TYPE_SILENCE
+
+    override fun toString(): String =
+        "AudioPacket(seq=$seq, ptsUs=$ptsUs, tier=$tier, type=$type, ${payload.size}B)"
 }
 
 /**
@@ -19,24 +31,38 @@ class AudioPacket(val seq: Long, val ptsUs: Long, val payload: ByteArray) {
  * offset  size  field
  * 0       2     magic 0x5753 ("WS")
  * 2       1     protocol version
- * 3       1     packet type (1 = audio)
+ * 3       1     packet type (1 = audio, 2 = silence marker)
  * 4       4     sequence number (u32)
  * 8       8     presentation timestamp, microseconds (u64)
- * 16      n     encoded audio frame
+ * 16      1     simulcast tier (0 = primary)
+ * 17      n     encoded audio frame
  * ```
  */
 object AudioPacketCodec {
-    const val HEADER_SIZE = 16
+    const val HEADER_SIZE = 17
     const val TYPE_AUDIO = 1
 
-    fun encode(seq: Long, ptsUs: Long, payload: ByteArray, offset: Int = 0, length: Int = payload.size): ByteArray {
+    /** Host is intentionally not sending audio (DTX); see [DtxGate]. */
+    const val TYPE_SILENCE = 2
+
+    fun encode(
+        seq: Long,
+        ptsUs: Long,
+        payload: ByteArray,
+        offset: Int = 0,
+        length: Int = payload.size,
+        tier: Int = 0,
+        type: Int = TYPE_AUDIO,
+    ): ByteArray {
         require(length in 0..Protocol.MAX_AUDIO_PAYLOAD) { "Payload too large: $length" }
+        require(tier in 0..0xFF) { "Invalid tier: $tier" }
         val buf = ByteBuffer.allocate(HEADER_SIZE + length)
         buf.putShort(Protocol.MAGIC.toShort())
         buf.put(Protocol.VERSION.toByte())
-        buf.put(TYPE_AUDIO.toByte())
+        buf.put(type.toByte())
         buf.putInt((seq and 0xFFFFFFFFL).toInt())
         buf.putLong(ptsUs)
+        buf.put(tier.toByte())
         buf.put(payload, offset, length)
         return buf.array()
     }
@@ -50,11 +76,16 @@ object AudioPacketCodec {
         val version = buf.get().toInt() and 0xFF
         if (version != Protocol.VERSION) return null
         val type = buf.get().toInt() and 0xFF
-        if (type != TYPE_AUDIO) return null
+        if (type != TYPE_AUDIO && type != TYPE_SILENCE) return null
         val seq = buf.int.toLong() and 0xFFFFFFFFL
         val ptsUs = buf.long
+        val tier = buf.get().toInt() and 0xFF
         val payload = ByteArray(length - HEADER_SIZE)
         buf.get(payload)
-        return AudioPacket(seq, ptsUs, payload)
+        return AudioPacket(seq, ptsUs, payload, tier, type)
     }
+
+    /** A DTX silence marker: the stream pauses at [seq] and resumes when sound returns. */
+    fun encodeSilence(seq: Long, ptsUs: Long): ByteArray =
+        encode(seq, ptsUs, ByteArray(0), type = TYPE_SILENCE)
 }
@@ -0,0 +1,64 @@
+package app.wifisoundthing.core
+
+import kotlin.math.ceil
+
+/**
+ * Codec profiles a host can stream with. The id travels in [AudioConfig.codec];
+ * frame size and AudioSpecificConfig are derived here so host and client agree
+ * without waiting for the encoder to emit a config buffer.
+ *
+ * @param algorithmicDelaySamples encoder + decoder algorithmic delay (frame plus
+ *        filterbank overlap), the floor any implementation adds on top of the
+ *        network and jitter buffer.
+ * @param maxBitrate highest bitrate the profile is meant for, 0 if unlimited;
+ *        SBR/PS profiles only pay off at low rates.
+ */
+enum class CodecProfile(
+    val label: String,
+    val codecId: Int,
+    val frameSamples: Int,
+    val algorithmicDelaySamples: Int,
+    val maxBitrate: Int = 0,
+) {
+    /** 1024-sample frames, sine/KBD MDCT with 50% overlap: 2048 samples (~43 ms at 48 kHz). */
+    AAC_LC("AAC-LC", Protocol.CODEC_AAC_LC, AacCsd.LC_FRAME_SAMPLES, 2048),
+
+    /** 512-sample frames, low-delay filterbank: 768 samples (16 ms at 48 kHz). */
+    AAC_ELD("AAC-ELD", Protocol.CODEC_AAC_ELD, 512, 768),
+
+    /**
+     * AAC-LC core at half the sample rate plus SBR: 2048 output samples per frame,
+     * twice the LC delay plus the QMF filterbanks (~99 ms at 48 kHz).
+     */
+    HE_AAC("HE-AAC", Protocol.CODEC_HE_AAC, 2048, 4736, maxBitrate = 64_000),
+
+    /** HE-AAC with a mono core and parametric stereo, which adds the hybrid filterbank (~107 ms). */
+    HE_AAC_V2("HE-AAC v2", Protocol.CODEC_HE_AAC_V2, 2048, 5120, maxBitrate = 48_000),
+    ;
+
+    fun csd(sampleRate: Int, channelCount: Int): ByteArray = when (this) {
+        AAC_LC -> AacCsd.audioSpecificConfig(sampleRate, channelCount)
+        AAC_ELD -> AacCsd.eldAudioSpecificConfig(sampleRate, channelCount, frameSamples)
+        HE_AAC -> AacCsd.heAacAudioSpecificConfig(sampleRate, channelCount)
+        HE_AAC_V2 -> AacCsd.heAacAudioSpecificConfig(sampleRate, channelCount, parametricStereo = true)
+    }
+
+    /** The bitrate to encode at when the user asked for [requested]. */
+    fun bitrateFor(requested: Int): Int = if (maxBitrate > 0) minOf(requested, maxBitrate) else requested
+
+    fun audioConfig(sampleRate: Int, channelCount: Int): AudioConfig =
+        AudioConfig(sampleRate, channelCount, codecId, csd(sampleRate, channelCount), frameSamples)
+
+    fun algorithmicLatencyMs(sampleRate: Int): Double = algorithmicDelaySamples * 1000.0 / sampleRate
+
+    companion object {
+        fun forCodecId(codecId: Int): CodecProfile? = entries.firstOrNull { it.codecId == codecId }
+
+        /**
+         * Jitter buffer depth, in frames of [frameSamples], covering the same time as
+         * [lcFrames] AAC-LC frames — the user's buffer setting is a duration, not a count.
+         */
+        fun scaledDepth(lcFrames: Int, frameSamples: Int): Int =
+            ceil(lcFrames.toDouble() * AacCsd.LC_FRAME_SAMPLES / frameSamples).toInt().coerceAtLeast(1)
+    }
+}
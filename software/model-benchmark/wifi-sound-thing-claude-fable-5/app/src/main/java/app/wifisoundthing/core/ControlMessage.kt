@@ -15,11 +15,22 @@ sealed class ControlMessage {
     /** Client -> host, first message after connecting. */
     data class Hello(val protocolVersion: Int, val udpPort: Int, val clientName: String) : ControlMessage()
 
-    /** Host -> client, reply to [Hello]; carries everything needed to decode the stream. */
-    data class Welcome(val sessionId: Int, val config: AudioConfig) : ControlMessage() {
+    /**
+     * Host -> client, reply to [Hello]; carries everything needed to decode the stream.
+     * [hops] is the number of relays between the capturing host and the receiver
+     * (0 = connected to the host directly) and [upstreamDelayMs] the latency those
+     * relays add in total, as measured when the receiver connected.
+     */
+    data class Welcome(
+        val sessionId: Int,
+        val config: AudioConfig,
+        val hops: Int = 0,
+        val upstreamDelayMs: Int = 0,
+    ) : ControlMessage() {
         override fun equals(other: Any?): Boolean =
-            other is Welcome && other.sessionId == sessionId && other.config == config
-        override fun hashCode(): Int = 31 * sessionId + config.hashCode()
+            other is Welcome && other.sessionId == sessionId && other.config == config &&
+                other.hops == hops && other.upstreamDelayMs == upstreamDelayMs
+        override fun hashCode(): Int = 31 * (31 * (31 * sessionId + config.hashCode()) + hops) + upstreamDelayMs
     }
 
     /** Client -> host keepalive; [timeMs] is the sender's clock, echoed back in [Pong]. */
@@ -28,6 +39,13 @@ sealed class ControlMessage {
     /** Host -> client keepalive reply. */
     data class Pong(val timeMs: Long) : ControlMessage()
 
+    /**
+     * Client -> host receiver report, sent with every [Ping]. Counters are
+     * cumulative for the session; the host works out per-interval deltas
+     * (see [TierPolicy]).
+     */
+    data class Report(val received: Long, val lost: Long, val underruns: Long) : ControlMessage()
+
     /** Either side announces a clean shutdown. */
     object Bye : ControlMessage() {
         override fun toString(): String = "Bye"
@@ -52,6 +70,9 @@ sealed class ControlMessage {
                 out.writeByte(config.codec)
                 out.writeShort(config.csd.size)
                 out.write(config.csd)
+                out.writeShort(config.frameSamples)
+                out.writeByte(hops)
+                out.writeShort(upstreamDelayMs.coerceIn(0, 0xFFFF))
             }
             is Ping -> {
                 type = TYPE_PING
@@ -61,6 +82,12 @@ sealed class ControlMessage {
                 type = TYPE_PONG
                 out.writeLong(timeMs)
             }
+            is Report -> {
+                type = TYPE_REPORT
+                out.writeLong(received)
+                out.writeLong(lost)
+                out.writeLong(underruns)
+            }
             is Bye -> type = TYPE_BYE
         }
         val body = payload.toByteArray()
@@ -78,6 +105,7 @@ sealed class ControlMessage {
         const val TYPE_PING = 3
         const val TYPE_PONG = 4
         const val TYPE_BYE = 5
+        const val TYPE_REPORT = 6
 
         /**
          * Reads one framed message. Throws [IOException] on EOF, unknown type,
@@ -104,11 +132,22 @@ sealed class ControlMessage {
                     val codec = data.readUnsignedByte()
                     val csd = ByteArray(data.readUnsignedShort())
                     data.readFully(csd)
-                    Welcome(sessionId, AudioConfig(sampleRate, channels, codec, csd))
+                    val frameSamples = data.readUnsignedShort()
+                    Welcome(
+                        sessionId = sessionId,
+                        config = AudioConfig(sampleRate, channels, codec, csd, frameSamples),
+                        hops = data.readUnsignedByte(),
+                        upstreamDelayMs = data.readUnsignedShort(),
+                    )
                 }
                 TYPE_PING -> Ping(data.readLong())
                 TYPE_PONG -> Pong(data.readLong())
                 TYPE_BYE -> Bye
+                TYPE_REPORT -> Report(
+                    received = data.readLong(),
+                    lost = data.readLong(),
+                    underruns = data.readLong(),
+                )
                 else -> throw IOException("Unknown control message type: $type")
             }
         }
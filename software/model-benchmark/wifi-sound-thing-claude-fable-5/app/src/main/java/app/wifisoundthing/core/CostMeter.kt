@@ -0,0 +1,44 @@
+package app.wifisoundthing.core
+
+/**
+ * Accumulates the processing time a pipeline stage spends per block of audio,
+ * so its CPU cost can be shown as a share of real time (e.g. "encoding the
+ * reduced tier takes 0.8% of one core"). The caller does the timing and
+ * leaves out the time spent sending, so only the encoder's own work counts.
+ */
+class CostMeter {
+    @Volatile
+    var calls = 0L
+        private set
+
+    @Volatile
+    var totalNanos = 0L
+        private set
+
+    @Volatile
+    var totalAudioUs = 0L
+        private set
+
+    /** Records one call that took [elapsedNanos] to process [audioUs] of audio. */
+    @Synchronized
+    fun record(elapsedNanos: Long, audioUs: Long) {
+        calls++
+        totalNanos += elapsedNanos
+        totalAudioUs += audioUs
+    }
+
+    /** Mean processing time per call, in microseconds. */
+    val averageMicros: Long
+        get() = synchronized(this) { if (calls == 0L) 0 else totalNanos / calls / 1000 }
+
+    /** Processing time as a fraction of the audio duration handled (1.0 = one full core). */
+    val load: Double
+        get() = synchronized(this) { if (totalAudioUs == 0L) 0.0 else totalNanos / 1000.0 / totalAudioUs }
+
+    @Synchronized
+    fun reset() {
+        calls = 0
+        totalNanos = 0
+        totalAudioUs = 0
+    }
+}
@@ -0,0 +1,40 @@
+package app.wifisoundthing.core
+
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.TimeUnit
+
+/**
+ * Bounded hand-off from a real-time producer to a background consumer. The
+ * producer never blocks: when the queue is full the new item is dropped and
+ * counted in [dropped], so a slow consumer (e.g. a stalled disk) shows up in
+ * stats instead of stalling capture.
+ */
+class DroppingQueue<T : Any>(capacity: Int) {
+    private val queue = ArrayBlockingQueue<T>(capacity)
+
+    @Volatile
+    var offered = 0L
+        private set
+
+    @Volatile
+    var dropped = 0L
+        private set
+
+    val size: Int get() = queue.size
+
+    /** Adds [item] if there is room; returns false (and counts a drop) otherwise. Never blocks. */
+    @Synchronized
+    fun offer(item: T): Boolean {
+        offered++
+        if (queue.offer(item)) return true
+        dropped++
+        return false
+    }
+
+    /** Next item, waiting up to [timeoutMs]; null if none arrived. */
+    @Throws(InterruptedException::class)
+    fun poll(timeoutMs: Long): T? = queue.poll(timeoutMs, TimeUnit.MILLISECONDS)
+
+    /** Next item without waiting, or null. */
+    fun poll(): T? = queue.poll()
+}
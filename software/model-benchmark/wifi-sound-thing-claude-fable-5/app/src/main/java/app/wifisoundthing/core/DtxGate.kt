@@ -0,0 +1,102 @@
+package app.wifisoundthing.core
+
+/**
+ * Discontinuous transmission: decides per captured PCM block whether the host
+ * should encode and send it.
+ *
+ * A block counts as silent when no 16-bit sample exceeds [thresholdPeak]
+ * (default ≈ -66 dBFS, i.e. digital silence plus dither/noise floor). Sending
+ * stops only after [hangoverMs] of continuous silence, so pauses between words
+ * or notes are never cut; while suppressed a [Decision.MARKER] is emitted for
+ * the first few blocks and then every [keepaliveMs], telling clients the gap is
+ * intentional. The first non-silent block resumes sending immediately.
+ *
+ * Time is counted in captured audio (the `blockUs` of each [process] call),
+ * not on a clock, so a capture stall never counts towards the hangover.
+ */
+class DtxGate(
+    private val thresholdPeak: Int = DEFAULT_THRESHOLD_PEAK,
+    private val hangoverMs: Long = DEFAULT_HANGOVER_MS,
+    private val keepaliveMs: Long = DEFAULT_KEEPALIVE_MS,
+    private val initialMarkers: Int = DEFAULT_INITIAL_MARKERS,
+) {
+    enum class Decision {
+        /** Encode and send this block. */
+        SEND,
+
+        /** Don't encode; send a silence marker instead. */
+        MARKER,
+
+        /** Don't encode or send anything. */
+        SKIP,
+    }
+
+    private var silentUs = 0L
+    private var sinceMarkerUs = 0L
+    private var markersSent = 0
+
+    /** True while transmission is suppressed. */
+    @Volatile
+    var suppressing = false
+        private set
+
+    /** Blocks that were not encoded, over the gate's lifetime. */
+    @Volatile
+    var suppressedBlocks = 0L
+        private set
+
+    @Volatile
+    var totalBlocks = 0L
+        private set
+
+    /** Share of captured blocks that were not encoded. */
+    val suppressedRatio: Double
+        get() = if (totalBlocks == 0L) 0.0 else suppressedBlocks.toDouble() / totalBlocks
+
+    fun process(pcm: ByteArray, length: Int, blockUs: Long): Decision {
+        totalBlocks++
+        if (peak(pcm, length) > thresholdPeak) {
+            silentUs = 0
+            suppressing = false
+            return Decision.SEND
+        }
+        silentUs += blockUs
+        if (!suppressing) {
+            if (silentUs < hangoverMs * 1000) return Decision.SEND
+            suppressing = true
+            markersSent = 0
+            sinceMarkerUs = 0
+        } else {
+            sinceMarkerUs += blockUs
+        }
+        suppressedBlocks++
+        if (markersSent < initialMarkers || sinceMarkerUs >= keepaliveMs * 1000) {
+            markersSent++
+            sinceMarkerUs = 0
+            return Decision.MARKER
+        }
+        return Decision.SKIP
+    }
+
+    companion object {
+        const val DEFAULT_THRESHOLD_PEAK = 16
+        const val DEFAULT_HANGOVER_MS = 600L
+        const val DEFAULT_KEEPALIVE_MS = 500L
+
+        /** Markers are repeated for the first blocks of a pause in case one is lost. */
+        const val DEFAULT_INITIAL_MARKERS = 3
+
+        /** Largest absolute sample value in little-endian 16-bit PCM. */
+        fun peak(pcm: ByteArray, length: Int): Int {
+            var max = 0
+            var i = 0
+            while (i + 1 < length) {
+                val sample = (pcm[i].toInt() and 0xFF) or (pcm[i + 1].toInt() shl 8)
+                val abs = if (sample < 0) -sample else sample
+                if (abs > max) max = abs
+                i += 2
+            }
+            return max
+        }
+    }
+}
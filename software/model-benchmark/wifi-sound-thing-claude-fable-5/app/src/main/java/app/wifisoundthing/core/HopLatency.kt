@@ -0,0 +1,52 @@
+package app.wifisoundthing.core
+
+/**
+ * Estimates the latency one network hop adds to the stream: half the smoothed
+ * round-trip time to the upstream sender (PING/PONG on the control channel),
+ * plus — on a relay — the time taken to forward a datagram downstream.
+ *
+ * Both inputs are smoothed like TCP's SRTT (gain 1/8) so one slow sample
+ * does not swing the figure. Each relay adds its own figure to the delay it
+ * was told by its upstream, so the total grows hop by hop.
+ */
+class HopLatency {
+    private var smoothedRttMs = -1.0
+    private var smoothedForwardNanos = -1.0
+
+    @Synchronized
+    fun onRoundTrip(rttMs: Long) {
+        if (rttMs < 0) return
+        smoothedRttMs = smooth(smoothedRttMs, rttMs.toDouble())
+    }
+
+    @Synchronized
+    fun onForward(elapsedNanos: Long) {
+        if (elapsedNanos < 0) return
+        smoothedForwardNanos = smooth(smoothedForwardNanos, elapsedNanos.toDouble())
+    }
+
+    /** Estimated one-way transit from upstream in milliseconds, or 0 before the first PONG. */
+    val oneWayMs: Double
+        get() = synchronized(this) { if (smoothedRttMs < 0) 0.0 else smoothedRttMs / 2 }
+
+    /** Mean time to forward one datagram in microseconds (0 when not relaying). */
+    val forwardMicros: Long
+        get() = synchronized(this) { if (smoothedForwardNanos < 0) 0 else (smoothedForwardNanos / 1000).toLong() }
+
+    /** Latency this hop adds: transit plus forwarding. */
+    val addedMs: Double
+        get() = oneWayMs + forwardMicros / 1000.0
+
+    @Synchronized
+    fun reset() {
+        smoothedRttMs = -1.0
+        smoothedForwardNanos = -1.0
+    }
+
+    private fun smooth(current: Double, sample: Double): Double =
+        if (current < 0) sample else current + (sample - current) * GAIN
+
+    private companion object {
+        const val GAIN = 0.125
+    }
+}
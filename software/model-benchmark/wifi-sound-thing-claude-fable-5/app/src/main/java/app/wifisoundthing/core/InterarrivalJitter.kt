@@ -0,0 +1,36 @@
+package app.wifisoundthing.core
+
+import kotlin.math.abs
+
+/**
+ * Interarrival jitter as defined for RTP (RFC 3550 §6.4.1): the smoothed
+ * deviation between how far apart two frames were in media time and how far
+ * apart they were actually sent or received. Used on the host to compare
+ * encoder output timing with paced send timing.
+ */
+class InterarrivalJitter {
+    private var lastPtsUs = Long.MIN_VALUE
+    private var lastTimeNanos = 0L
+    private var jitterNanos = 0.0
+
+    /** Records a frame with [ptsUs] seen at [timeNanos]; frames not after the previous one are ignored. */
+    @Synchronized
+    fun record(ptsUs: Long, timeNanos: Long) {
+        if (lastPtsUs != Long.MIN_VALUE) {
+            if (ptsUs <= lastPtsUs) return
+            val d = (timeNanos - lastTimeNanos) - (ptsUs - lastPtsUs) * 1000
+            jitterNanos += (abs(d) - jitterNanos) / 16
+        }
+        lastPtsUs = ptsUs
+        lastTimeNanos = timeNanos
+    }
+
+    val micros: Long
+        get() = synchronized(this) { (jitterNanos / 1000).toLong() }
+
+    @Synchronized
+    fun reset() {
+        lastPtsUs = Long.MIN_VALUE
+        jitterNanos = 0.0
+    }
+}
@@ -10,27 +10,50 @@ import java.util.TreeMap
  * [targetDepth] packets have accumulated, which gives late/reordered packets
  * `targetDepth * frameDuration` to arrive before their slot is played.
  *
+ * The very first start may use a shallower [startDepth] so audio begins sooner;
+ * the playback engine then lets the buffer grow to [targetDepth] (by playing
+ * slightly slow), and any later re-buffering waits for the full [targetDepth].
+ *
  * If the buffer grows past [maxDepth] (host kept sending while we stalled),
  * old frames are skipped so latency stays bounded instead of drifting upward.
+ *
+ * A silence marker (host DTX) means the host stopped sending on purpose: the
+ * buffered frames are played out, then [Event.Silence] is returned instead of
+ * counting underruns, and sequence numbers the host skipped during the pause
+ * are not counted as gaps. The first audio packet from the marker on resumes
+ * the stream; a marker for a stretch already played, or audio from before the
+ * marker arriving late, is a reordered leftover and changes nothing.
  */
 class JitterBuffer(
     val targetDepth: Int = DEFAULT_TARGET_DEPTH,
     private val maxDepth: Int = targetDepth * 3 + 2,
+    val startDepth: Int = targetDepth,
 ) {
     sealed class Event {
         /** Play this frame. */
-        class Frame(val payload: ByteArray, val ptsUs: Long) : Event()
+        class Frame(val payload: ByteArray, val ptsUs: Long, val seq: Long) : Event()
 
         /** Packet was lost — conceal (e.g. play one frame of silence). */
         object Gap : Event()
 
         /** Not enough buffered data — wait roughly one frame duration and poll again. */
         object Buffering : Event()
+
+        /** Host paused transmission on purpose (nothing is playing) — output silence and poll again. */
+        object Silence : Event()
     }
 
     private val packets = TreeMap<Long, AudioPacket>()
     private var nextSeq = NO_SEQ
     private var playing = false
+    private var started = false
+
+    // DTX: marker received and no audio since / playback drained during the pause
+    private var paused = false
+    private var idle = false
+    private var pauseSeq = NO_SEQ
+    private var holeStart = NO_SEQ
+    private var holeEnd = NO_SEQ
 
     // Statistics (reads are approximate; written under lock)
     @Volatile var received = 0L; private set
@@ -39,10 +62,14 @@ class JitterBuffer(
     @Volatile var gaps = 0L; private set
     @Volatile var underruns = 0L; private set
     @Volatile var latencySkips = 0L; private set
+    @Volatile var silenceMarkers = 0L; private set
 
     val depth: Int get() = synchronized(this) { packets.size }
     val isPlaying: Boolean get() = synchronized(this) { playing }
 
+    /** True while the host has intentionally paused the stream (DTX). */
+    val isHostSilent: Boolean get() = synchronized(this) { paused || idle }
+
     /** Fraction of expected packets that never made it to playback, over the whole session. */
     val lossRatio: Double
         get() {
@@ -52,7 +79,24 @@ class JitterBuffer(
 
     @Synchronized
     fun put(packet: AudioPacket) {
+        if (packet.isSilence) {
+            silenceMarkers++
+            if (nextSeq != NO_SEQ && packet.seq < nextSeq) return // that pause is long over
+            if (!paused) {
+                paused = true
+                pauseSeq = packet.seq
+            }
+            return
+        }
         received++
+        if (paused && packet.seq >= pauseSeq) {
+            paused = false
+            // Still playing out pre-pause frames: skip the sequence numbers the host never sent.
+            if (playing && packet.seq > pauseSeq) {
+                holeStart = maxOf(pauseSeq, nextSeq)
+                holeEnd = packet.seq
+            }
+        }
         if (nextSeq != NO_SEQ && packet.seq < nextSeq) {
             late++
             return
@@ -74,19 +118,30 @@ class JitterBuffer(
     @Synchronized
     fun poll(): Event {
         if (!playing) {
-            if (packets.size < targetDepth) return Event.Buffering
+            val needed = if (started) targetDepth else startDepth
+            if (packets.size < needed) return if (paused || idle) Event.Silence else Event.Buffering
             playing = true
+            started = true
+            idle = false
             nextSeq = packets.firstKey()
         }
         if (packets.isEmpty()) {
             playing = false
+            if (paused) {
+                idle = true
+                return Event.Silence
+            }
             underruns++
             return Event.Buffering
         }
+        if (holeEnd != NO_SEQ && nextSeq >= holeStart) {
+            if (nextSeq < holeEnd) nextSeq = holeEnd
+            holeEnd = NO_SEQ
+        }
         val packet = packets.remove(nextSeq)
         nextSeq++
         return if (packet != null) {
-            Event.Frame(packet.payload, packet.ptsUs)
+            Event.Frame(packet.payload, packet.ptsUs, packet.seq)
         } else {
             gaps++
             Event.Gap
@@ -98,10 +153,17 @@ class JitterBuffer(
         packets.clear()
         nextSeq = NO_SEQ
         playing = false
+        started = false
+        paused = false
+        idle = false
+        holeEnd = NO_SEQ
     }
 
     companion object {
         const val DEFAULT_TARGET_DEPTH = 5
+
+        /** Frames buffered before the very first start (see [startDepth]). */
+        const val FAST_START_DEPTH = 2
         private const val NO_SEQ = -1L
     }
 }
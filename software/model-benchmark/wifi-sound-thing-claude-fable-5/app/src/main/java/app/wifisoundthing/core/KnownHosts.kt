@@ -0,0 +1,45 @@
+package app.wifisoundthing.core
+
+/** A host the client has successfully connected to before. */
+data class KnownHost(
+    val serviceName: String,
+    val address: String,
+    val port: Int,
+    val lastSeenMs: Long,
+)
+
+/**
+ * The last [MAX_HOSTS] hosts the client connected to, most recent first.
+ * Probed directly at startup so yesterday's host shows up (and can be tapped)
+ * before mDNS has answered. Persisted as one line per host in [encode].
+ */
+object KnownHosts {
+    const val MAX_HOSTS = 5
+
+    /**
+     * Returns [hosts] with [host] moved to the front, replacing any entry with the
+     * same service name or the same address and port, capped at [max] entries.
+     */
+    fun remember(hosts: List<KnownHost>, host: KnownHost, max: Int = MAX_HOSTS): List<KnownHost> {
+        val rest = hosts.filterNot {
+            it.serviceName == host.serviceName || (it.address == host.address && it.port == host.port)
+        }
+        return (listOf(host) + rest).take(max)
+    }
+
+    /** Tab-separated "lastSeen, port, address, name" lines; tabs and newlines in names become spaces. */
+    fun encode(hosts: List<KnownHost>): String = hosts.joinToString("\n") {
+        val name = it.serviceName.replace('\t', ' ').replace('\n', ' ')
+        "${it.lastSeenMs}\t${it.port}\t${it.address}\t$name"
+    }
+
+    /** Parses [encode] output; malformed lines are skipped. */
+    fun decode(text: String): List<KnownHost> = text.lineSequence().mapNotNull { line ->
+        val parts = line.split('\t', limit = 4)
+        if (parts.size != 4) return@mapNotNull null
+        val lastSeen = parts[0].toLongOrNull() ?: return@mapNotNull null
+        val port = parts[1].toIntOrNull()?.takeIf { it in 1..65535 } ?: return@mapNotNull null
+        if (parts[2].isEmpty()) return@mapNotNull null
+        KnownHost(parts[3], parts[2], port, lastSeen)
+    }.take(MAX_HOSTS).toList()
+}
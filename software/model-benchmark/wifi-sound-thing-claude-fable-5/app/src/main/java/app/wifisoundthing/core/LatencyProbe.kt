@@ -0,0 +1,62 @@
+package app.wifisoundthing.core
+
+/**
+ * Measures how long a codec holds audio: the caller marks when the PCM block
+ * starting at a timestamp went in, and when a frame with a timestamp came out;
+ * the latency of that frame is measured against the block that contained it.
+ * Only the last [capacity] inputs are remembered, so a codec that holds more
+ * than that many blocks goes unmeasured rather than growing the table.
+ */
+class LatencyProbe(private val capacity: Int = 64) {
+    private val inputPts = LongArray(capacity)
+    private val inputNanos = LongArray(capacity)
+    private var count = 0
+    private var head = 0
+
+    @Volatile
+    var samples = 0L
+        private set
+
+    private var totalNanos = 0L
+
+    @Volatile
+    var lastMicros = 0L
+        private set
+
+    /** Mean measured latency in microseconds (0 until the first output). */
+    val averageMicros: Long
+        get() = synchronized(this) { if (samples == 0L) 0 else totalNanos / samples / 1000 }
+
+    @Synchronized
+    fun markInput(ptsUs: Long, nowNanos: Long) {
+        inputPts[head] = ptsUs
+        inputNanos[head] = nowNanos
+        head = (head + 1) % capacity
+        if (count < capacity) count++
+    }
+
+    /** Returns the measured latency in microseconds, or -1 if no matching input is remembered. */
+    @Synchronized
+    fun markOutput(ptsUs: Long, nowNanos: Long): Long {
+        var best = -1
+        for (i in 0 until count) {
+            val idx = (head - 1 - i + capacity) % capacity
+            if (inputPts[idx] <= ptsUs && (best < 0 || inputPts[idx] > inputPts[best])) best = idx
+        }
+        if (best < 0) return -1
+        val nanos = nowNanos - inputNanos[best]
+        samples++
+        totalNanos += nanos
+        lastMicros = nanos / 1000
+        return lastMicros
+    }
+
+    @Synchronized
+    fun reset() {
+        count = 0
+        head = 0
+        samples = 0
+        totalNanos = 0
+        lastMicros = 0
+    }
+}
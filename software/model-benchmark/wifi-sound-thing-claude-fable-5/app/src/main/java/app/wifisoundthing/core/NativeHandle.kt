@@ -0,0 +1,27 @@
+package app.wifisoundthing.core
+
+/**
+ * A pointer to native memory that more than one thread calls into, such as
+ * an AAudio stream written by the playback thread while the stats thread
+ * asks for its latency. Calls go through [use] and freeing through [close],
+ * all under one lock, and [close] zeroes the pointer, so a call racing with
+ * [close] sees a closed handle rather than freed memory.
+ */
+class NativeHandle(handle: Long, private val free: (Long) -> Unit) {
+    private var handle = handle
+
+    val isClosed: Boolean
+        @Synchronized get() = handle == 0L
+
+    /** Runs [block] with the live pointer, or returns [ifClosed] once [close]d. Keep [block] short. */
+    @Synchronized
+    fun <T> use(ifClosed: T, block: (Long) -> T): T = if (handle == 0L) ifClosed else block(handle)
+
+    /** Frees the native memory once; later calls do nothing. */
+    @Synchronized
+    fun close() {
+        if (handle == 0L) return
+        free(handle)
+        handle = 0L
+    }
+}
@@ -0,0 +1,53 @@
+package app.wifisoundthing.core
+
+/**
+ * Turns raw connectivity callbacks into "reconnect now" decisions for the
+ * client. Networks are identified by an opaque id (Android's network handle)
+ * and described by their local addresses; [app.wifisoundthing.net.NetworkWatcher]
+ * feeds in the ConnectivityManager callbacks.
+ *
+ * - The first network seen is the baseline: nothing to do.
+ * - Losing the network in use is [Action.LINK_DOWN]: stop waiting for
+ *   timeouts, the session is already dead.
+ * - A different network appearing, or the current one coming back, or its
+ *   addresses changing (roam to another subnet, DHCP renew) is
+ *   [Action.RECONNECT]: re-handshake immediately, without backoff.
+ * - The current network losing all its addresses is [Action.LINK_DOWN].
+ */
+class NetworkChangeTracker {
+    enum class Action { NONE, RECONNECT, LINK_DOWN }
+
+    private var currentId: Long? = null
+    private var currentAddresses: Set<String> = emptySet()
+    private var seenAny = false
+
+    @Synchronized
+    fun onAvailable(id: Long, addresses: Set<String>): Action {
+        if (!seenAny) {
+            seenAny = true
+            currentId = id
+            currentAddresses = addresses
+            return Action.NONE
+        }
+        if (id == currentId && addresses == currentAddresses) return Action.NONE
+        currentId = id
+        currentAddresses = addresses
+        return Action.RECONNECT
+    }
+
+    @Synchronized
+    fun onLinkPropertiesChanged(id: Long, addresses: Set<String>): Action {
+        if (id != currentId) return onAvailable(id, addresses)
+        if (addresses == currentAddresses) return Action.NONE
+        currentAddresses = addresses
+        return if (addresses.isEmpty()) Action.LINK_DOWN else Action.RECONNECT
+    }
+
+    @Synchronized
+    fun onLost(id: Long): Action {
+        if (id != currentId) return Action.NONE
+        currentId = null
+        currentAddresses = emptySet()
+        return Action.LINK_DOWN
+    }
+}
@@ -0,0 +1,47 @@
+package app.wifisoundthing.core
+
+/**
+ * Write-to-speaker latency of an audio output, from its presentation
+ * timestamps (AudioTrack.getTimestamp: the frame that was at the speaker at
+ * a given nanoTime). A frame written now is heard once every frame before it
+ * has been presented:
+ *
+ *     latency = (framesWritten − framePosition) / (sampleRate × speed) − (now − timestampTime)
+ *
+ * Both positions count content frames, so at a playback speed other than 1
+ * (growing the buffer, catching up) the queued frames take 1/speed as long.
+ *
+ * This covers the AudioTrack buffer, the mixer, the HAL and — where the
+ * platform reports it — the Bluetooth codec and radio, which alone can be
+ * 150–250 ms. Samples are smoothed like [HopLatency] (gain 1/8).
+ */
+class OutputLatency(private val sampleRate: Int) {
+    private var smoothedNanos = -1.0
+
+    /**
+     * Adds one sample, taken while playing at [speed]. Timestamps from before
+     * playback started (position 0) or that would give a negative latency
+     * (stale position) are ignored.
+     */
+    @Synchronized
+    fun onTimestamp(framesWritten: Long, framePosition: Long, timestampNanos: Long, nowNanos: Long, speed: Float = 1f) {
+        if (framePosition <= 0 || framesWritten < framePosition || speed <= 0f) return
+        val latency = (framesWritten - framePosition) * 1_000_000_000.0 / (sampleRate * speed.toDouble()) -
+            (nowNanos - timestampNanos)
+        if (latency < 0) return
+        smoothedNanos = if (smoothedNanos < 0) latency else smoothedNanos + (latency - smoothedNanos) * GAIN
+    }
+
+    /** Smoothed latency in microseconds, or 0 before the first usable timestamp. */
+    val micros: Long
+        get() = synchronized(this) { if (smoothedNanos < 0) 0 else (smoothedNanos / 1000).toLong() }
+
+    @Synchronized
+    fun reset() {
+        smoothedNanos = -1.0
+    }
+
+    private companion object {
+        const val GAIN = 0.125
+    }
+}
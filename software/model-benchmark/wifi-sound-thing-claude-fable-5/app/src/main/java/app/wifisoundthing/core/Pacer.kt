@@ -0,0 +1,64 @@
+package app.wifisoundthing.core
+
+import kotlin.math.abs
+
+/**
+ * Token-bucket pacing of outgoing audio datagrams at the media rate.
+ *
+ * MediaCodec often hands frames over in bursts (several at once after an
+ * internal delay); sending each burst back-to-back overfills the Wi-Fi driver
+ * queue and reaches clients as arrival jitter. The pacer schedules frame
+ * `pts` for `pts + offset`, where `offset` tracks the most delayed recent
+ * arrival, so frames leave one frame-duration apart. The bucket holds
+ * [burstUs] of media time: a frame may go out up to that much ahead of its
+ * slot, trading a little smoothness for less added delay (0 = strict pacing).
+ *
+ * The offset is re-evaluated every [windowUs] of media time, so a one-off
+ * encoder stall does not delay the stream for good and slow drift between
+ * the capture clock and the monotonic clock is followed.
+ */
+class Pacer(
+    private val burstUs: Long = DEFAULT_BURST_US,
+    private val windowUs: Long = DEFAULT_WINDOW_US,
+) {
+    private var offsetNanos = UNSET
+    private var windowMaxNanos = UNSET
+    private var windowStartPtsUs = 0L
+
+    /** Monotonic time at which the frame with [ptsUs], queued at [nowNanos], should be sent. */
+    @Synchronized
+    fun releaseAt(ptsUs: Long, nowNanos: Long): Long {
+        val arrival = nowNanos - ptsUs * 1000
+        if (offsetNanos == UNSET || abs(arrival - offsetNanos) > RESYNC_NANOS) {
+            // First frame, or the timestamps jumped (new capture session): start over.
+            offsetNanos = arrival
+            windowMaxNanos = arrival
+            windowStartPtsUs = ptsUs
+        } else {
+            if (arrival > offsetNanos) offsetNanos = arrival // can't send before it arrived
+            windowMaxNanos = maxOf(windowMaxNanos, arrival)
+            if (ptsUs - windowStartPtsUs >= windowUs) {
+                offsetNanos = windowMaxNanos
+                windowMaxNanos = arrival
+                windowStartPtsUs = ptsUs
+            }
+        }
+        val slot = ptsUs * 1000 + offsetNanos
+        return maxOf(nowNanos, slot - burstUs * 1000)
+    }
+
+    @Synchronized
+    fun reset() {
+        offsetNanos = UNSET
+        windowMaxNanos = UNSET
+    }
+
+    companion object {
+        /** One AAC-LC frame at 48 kHz may go out early; bursts beyond that are spread. */
+        const val DEFAULT_BURST_US = 21_333L
+        const val DEFAULT_WINDOW_US = 2_000_000L
+
+        private const val RESYNC_NANOS = 1_000_000_000L
+        private const val UNSET = Long.MIN_VALUE
+    }
+}
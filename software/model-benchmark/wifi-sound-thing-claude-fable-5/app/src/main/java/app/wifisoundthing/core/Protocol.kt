@@ -9,19 +9,31 @@ package app.wifisoundthing.core
  */
 object Protocol {
     /** Bump when the wire format changes incompatibly. */
-    const val VERSION: Int = 1
+    const val VERSION: Int = 4
 
     /** Default TCP port the host listens on for control connections. */
     const val DEFAULT_CONTROL_PORT: Int = 46464
 
+    /** TCP port a client in relay mode listens on, so it can run next to a host. */
+    const val RELAY_CONTROL_PORT: Int = 46465
+
     /** mDNS/NSD service type used for host discovery. */
     const val SERVICE_TYPE: String = "_wifisoundthing._tcp."
 
+    /** DNS-SD TXT attribute carrying a relay's hop count (absent = the capturing host). */
+    const val TXT_HOPS: String = "hops"
+
+    /** Relays refuse to chain deeper than this; each hop adds a Wi-Fi transit. */
+    const val MAX_HOPS: Int = 4
+
     /** First two bytes of every UDP audio datagram: "WS". */
     const val MAGIC: Int = 0x5753
 
-    /** Audio codec ids carried in [AudioConfig.codec]. */
+    /** Audio codec ids carried in [AudioConfig.codec]; see [CodecProfile]. */
     const val CODEC_AAC_LC: Int = 1
+    const val CODEC_AAC_ELD: Int = 2
+    const val CODEC_HE_AAC: Int = 3
+    const val CODEC_HE_AAC_V2: Int = 4
 
     /** Datagrams larger than this are rejected as garbage. */
     const val MAX_AUDIO_PAYLOAD: Int = 4096
@@ -29,7 +41,7 @@ object Protocol {
     /** Control frames larger than this are rejected as garbage. */
     const val MAX_CONTROL_PAYLOAD: Int = 4096
 
-    /** How often the client sends a PING on the control channel. */
+    /** How often the client sends a PING (and a receiver REPORT) on the control channel. */
     const val PING_INTERVAL_MS: Long = 2000
 
     /** Peer is considered dead when silent for this long. */
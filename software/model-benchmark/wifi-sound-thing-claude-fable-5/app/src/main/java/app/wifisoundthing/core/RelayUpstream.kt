@@ -0,0 +1,46 @@
+package app.wifisoundthing.core
+
+/**
+ * Decides, for each WELCOME a relay gets from upstream, whether its own
+ * server can keep running. Downstream clients only need a new handshake when
+ * what they are decoding changes: the stream format, their hop count, or the
+ * upstream session. A new session means the capturing host restarted, so
+ * sequence numbers and timestamps start over, and a downstream jitter buffer
+ * would drop every packet as late.
+ *
+ * - Within [Protocol.MAX_HOPS] and nothing changed: [Action.KEEP].
+ * - Anything changed, or nothing served yet: [Action.RESTART].
+ * - Too many hops: [Action.REFUSE].
+ */
+class RelayUpstream {
+    enum class Action { KEEP, RESTART, REFUSE }
+
+    private var sessionId: Int? = null
+    private var config: AudioConfig? = null
+    private var hops = 0
+
+    /** Hops from the capturing host to our downstream clients for [welcome]. */
+    fun hopsFor(welcome: ControlMessage.Welcome): Int = welcome.hops + 1
+
+    @Synchronized
+    fun onWelcome(welcome: ControlMessage.Welcome): Action {
+        val hops = hopsFor(welcome)
+        if (hops > Protocol.MAX_HOPS) {
+            reset()
+            return Action.REFUSE
+        }
+        if (welcome.sessionId == sessionId && welcome.config == config && hops == this.hops) return Action.KEEP
+        sessionId = welcome.sessionId
+        config = welcome.config
+        this.hops = hops
+        return Action.RESTART
+    }
+
+    /** Forgets the upstream stream, e.g. after our server stopped or failed to start. */
+    @Synchronized
+    fun reset() {
+        sessionId = null
+        config = null
+        hops = 0
+    }
+}
@@ -0,0 +1,108 @@
+package app.wifisoundthing.core
+
+/**
+ * Simulcast: the host optionally encodes the same PCM twice (a primary and a
+ * reduced-bitrate tier) and sends each client only the tier it can sustain.
+ *
+ * Both tiers share one AudioSpecificConfig and one sequence space — the
+ * sequence number of a frame is derived from its timestamp, so frame `n` of
+ * every tier covers the same PCM. A client therefore sees one continuous
+ * stream no matter which tier each individual packet came from.
+ */
+object Simulcast {
+    const val TIER_PRIMARY = 0
+    const val TIER_REDUCED = 1
+    const val MAX_TIERS = 2
+
+    /** Sequence number shared by all tiers for the frame starting at [ptsUs]. */
+    fun sequenceFor(ptsUs: Long, sampleRate: Int, samplesPerFrame: Int = AacCsd.LC_FRAME_SAMPLES): Long {
+        val frameUs = samplesPerFrame * 1_000_000.0 / sampleRate
+        return Math.round(ptsUs / frameUs)
+    }
+}
+
+/**
+ * Chooses a client's tier from its receiver reports ([ControlMessage.Report]).
+ *
+ * Steps down one tier as soon as an interval shows noticeable loss or an
+ * underrun; steps back up only after [upgradeAfter] consecutive clean
+ * intervals, so a marginal link does not flap between tiers.
+ */
+class TierPolicy(
+    private val tierCount: Int,
+    private val downgradeLoss: Double = DEFAULT_DOWNGRADE_LOSS,
+    private val upgradeLoss: Double = DEFAULT_UPGRADE_LOSS,
+    private val upgradeAfter: Int = DEFAULT_UPGRADE_AFTER,
+) {
+    var tier = Simulcast.TIER_PRIMARY
+        private set
+
+    private var lastReceived = 0L
+    private var lastLost = 0L
+    private var lastUnderruns = 0L
+    private var cleanIntervals = 0
+
+    /** Feeds one report (cumulative counters) and returns the tier to use from now on. */
+    @Synchronized
+    fun onReport(received: Long, lost: Long, underruns: Long): Int {
+        val dReceived = (received - lastReceived).coerceAtLeast(0)
+        val dLost = (lost - lastLost).coerceAtLeast(0)
+        val dUnderruns = (underruns - lastUnderruns).coerceAtLeast(0)
+        lastReceived = received
+        lastLost = lost
+        lastUnderruns = underruns
+        if (tierCount <= 1) return tier
+
+        val expected = dReceived + dLost
+        val loss = if (expected == 0L) 0.0 else dLost.toDouble() / expected
+        when {
+            dUnderruns > 0 || loss > downgradeLoss -> {
+                cleanIntervals = 0
+                if (tier < tierCount - 1) tier++
+            }
+            loss <= upgradeLoss && expected > 0 -> {
+                if (++cleanIntervals >= upgradeAfter && tier > Simulcast.TIER_PRIMARY) {
+                    tier--
+                    cleanIntervals = 0
+                }
+            }
+            else -> cleanIntervals = 0
+        }
+        return tier
+    }
+
+    companion object {
+        const val DEFAULT_DOWNGRADE_LOSS = 0.02
+        const val DEFAULT_UPGRADE_LOSS = 0.005
+        const val DEFAULT_UPGRADE_AFTER = 5 // ~10 s of clean reports
+    }
+}
+
+/**
+ * Per-client filter deciding which tier's packets are sent to it.
+ *
+ * A switch takes effect at a sequence boundary rather than "now": the two
+ * encoders emit frame `n` at slightly different moments, so switching by
+ * wall-clock would drop or duplicate the frames in flight. Frames below the
+ * boundary come from the old tier, frames at or above it from the new one.
+ */
+class TierSwitch(initialTier: Int = Simulcast.TIER_PRIMARY) {
+    private var fromTier = initialTier
+    private var toTier = initialTier
+    private var boundarySeq = 0L
+
+    /** The tier this client is (or is about to be) receiving. */
+    val tier: Int get() = synchronized(this) { toTier }
+
+    /** Switches to [tier] starting with sequence number [atSeq]; a no-op if already there. */
+    @Synchronized
+    fun switchTo(tier: Int, atSeq: Long) {
+        if (tier == toTier) return
+        fromTier = toTier
+        toTier = tier
+        boundarySeq = atSeq
+    }
+
+    @Synchronized
+    fun accepts(tier: Int, seq: Long): Boolean = tier == if (seq < boundarySeq) fromTier else toTier
+}
@@ -0,0 +1,58 @@
+package app.wifisoundthing.core
+
+/**
+ * Records when each phase of a client connection was reached, relative to
+ * the moment Connect started, so the time to first audio can be broken down
+ * ("where do the startup milliseconds go"). Phases may complete in any order
+ * because they overlap; only the first mark of each phase counts. All marks
+ * and [startNanos] must come from the same clock (System.nanoTime()).
+ */
+class StartupTimeline(private val startNanos: Long) {
+    enum class Phase(val label: String) {
+        /** TCP connection to the host established. */
+        CONNECTED("connect"),
+
+        /** WELCOME received: the stream config is known. */
+        WELCOMED("handshake"),
+
+        /** Decoder and AudioTrack created and started (overlaps the handshake). */
+        OUTPUT_READY("output ready"),
+
+        /** First audio datagram received. */
+        FIRST_PACKET("first packet"),
+
+        /** First decoded frame handed to the AudioTrack. */
+        FIRST_AUDIO("first audio"),
+    }
+
+    private val marks = LongArray(Phase.entries.size) { NOT_REACHED }
+
+    /** Records [phase] at [nowNanos]; returns false if it was already recorded. */
+    @Synchronized
+    fun mark(phase: Phase, nowNanos: Long): Boolean {
+        if (marks[phase.ordinal] != NOT_REACHED) return false
+        marks[phase.ordinal] = nowNanos - startNanos
+        return true
+    }
+
+    /** Milliseconds from start to [phase], or -1 if not reached yet. */
+    @Synchronized
+    fun elapsedMs(phase: Phase): Long {
+        val nanos = marks[phase.ordinal]
+        return if (nanos == NOT_REACHED) -1 else nanos / 1_000_000
+    }
+
+    val isComplete: Boolean
+        get() = synchronized(this) { marks.none { it == NOT_REACHED } }
+
+    /** "connect 31 ms · handshake 44 ms · …" listing the phases reached so far, in time order. */
+    @Synchronized
+    fun summary(): String = Phase.entries
+        .filter { marks[it.ordinal] != NOT_REACHED }
+        .sortedBy { marks[it.ordinal] }
+        .joinToString(" · ") { "${it.label} ${marks[it.ordinal] / 1_000_000} ms" }
+
+    private companion object {
+        const val NOT_REACHED = Long.MIN_VALUE
+    }
+}
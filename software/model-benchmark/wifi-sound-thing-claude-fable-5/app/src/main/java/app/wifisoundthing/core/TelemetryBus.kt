@@ -0,0 +1,67 @@
+package app.wifisoundthing.core
+
+import java.util.concurrent.CopyOnWriteArrayList
+
+/**
+ * Holds the latest immutable snapshot of a session's status and pushes each
+ * new, *different* snapshot to its subscribers, replacing polling of mutable
+ * fields. Publishers are expected to publish at a bounded rate (on events,
+ * plus a periodic stats tick); publishing an equal snapshot is a no-op.
+ *
+ * Subscribers are called on the publishing thread, in publish order, with the
+ * previous and the new snapshot; UI subscribers hop to the main thread
+ * themselves. [distinct] builds a subscriber that only fires when the part of
+ * the snapshot it displays changes.
+ */
+class TelemetryBus<T : Any>(initial: T) {
+    fun interface Subscriber<T> {
+        /** [previous] is null for the first call, made from [subscribe]. */
+        fun onSnapshot(previous: T?, current: T)
+    }
+
+    @Volatile
+    var current: T = initial
+        private set
+
+    private val subscribers = CopyOnWriteArrayList<Subscriber<T>>()
+
+    /** Publishes [snapshot]; returns false if it equals the current one. */
+    fun publish(snapshot: T): Boolean = update { snapshot }
+
+    /** Atomically derives the next snapshot from the current one and publishes it. */
+    @Synchronized
+    fun update(transform: (T) -> T): Boolean {
+        val previous = current
+        val next = transform(previous)
+        if (next == previous) return false
+        current = next
+        for (subscriber in subscribers) subscriber.onSnapshot(previous, next)
+        return true
+    }
+
+    /** Adds [subscriber], delivers the current snapshot to it and returns a handle that removes it. */
+    @Synchronized
+    fun subscribe(subscriber: Subscriber<T>): AutoCloseable {
+        subscribers += subscriber
+        subscriber.onSnapshot(null, current)
+        return AutoCloseable { subscribers -= subscriber }
+    }
+
+    val subscriberCount: Int get() = subscribers.size
+
+    companion object {
+        /** A subscriber that calls [onChange] only when [selector]'s value differs from the last one seen. */
+        fun <T : Any, V> distinct(selector: (T) -> V, onChange: (V) -> Unit): Subscriber<T> {
+            var seen = false
+            var last: V? = null
+            return Subscriber { _, current ->
+                val value = selector(current)
+                if (!seen || value != last) {
+                    seen = true
+                    last = value
+                    onChange(value)
+                }
+            }
+        }
+    }
+}
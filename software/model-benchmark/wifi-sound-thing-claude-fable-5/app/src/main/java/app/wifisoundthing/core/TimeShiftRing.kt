@@ -0,0 +1,129 @@
+package app.wifisoundthing.core
+
+import java.io.Closeable
+import java.io.File
+import java.io.RandomAccessFile
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+
+/**
+ * Fixed-size, memory-mapped ring of the encoded frames a client has played,
+ * so a listener can rewind the last few minutes and catch up again. Frames
+ * live in the page cache behind a mapped file rather than on the Java heap.
+ *
+ * The file holds a data region of [dataBytes] (payloads back to back, wrapping
+ * to 0 when the tail is too short for the next one) followed by an index of
+ * [indexSlots] fixed-size entries (seq, ptsUs, offset, length). Entries are
+ * numbered from 0 for the ring's lifetime; the oldest ones are evicted as
+ * their payload bytes or index slot are reused, so [firstEntry] moves up.
+ * Frames must be appended in playout order (increasing pts).
+ */
+class TimeShiftRing(
+    file: File,
+    private val dataBytes: Int = DEFAULT_DATA_BYTES,
+    private val indexSlots: Int = DEFAULT_INDEX_SLOTS,
+) : Closeable {
+    private val raf = RandomAccessFile(file, "rw")
+    private val data: MappedByteBuffer
+    private val index: MappedByteBuffer
+
+    init {
+        raf.setLength(dataBytes.toLong() + indexSlots.toLong() * ENTRY_BYTES)
+        data = raf.channel.map(FileChannel.MapMode.READ_WRITE, 0, dataBytes.toLong())
+        index = raf.channel.map(FileChannel.MapMode.READ_WRITE, dataBytes.toLong(), indexSlots.toLong() * ENTRY_BYTES)
+    }
+
+    /** Number of the oldest entry still held. */
+    var firstEntry = 0L
+        private set
+
+    /** Number the next appended entry will get (one past the newest). */
+    var nextEntry = 0L
+        private set
+
+    private var writePos = 0
+
+    val isEmpty: Boolean get() = synchronized(this) { firstEntry == nextEntry }
+
+    @Synchronized
+    fun append(seq: Long, ptsUs: Long, payload: ByteArray) {
+        val length = payload.size
+        require(length in 1..dataBytes) { "Frame of $length bytes does not fit" }
+        if (writePos + length > dataBytes) {
+            // Tail too short: the oldest frames sit there; drop them and wrap.
+            while (firstEntry < nextEntry && offsetOf(firstEntry) >= writePos) firstEntry++
+            writePos = 0
+        }
+        while (firstEntry < nextEntry && (nextEntry - firstEntry >= indexSlots || overlaps(firstEntry, writePos, length))) {
+            firstEntry++
+        }
+        data.position(writePos)
+        data.put(payload)
+        val slot = slotOf(nextEntry)
+        index.putLong(slot, seq)
+        index.putLong(slot + 8, ptsUs)
+        index.putInt(slot + 16, writePos)
+        index.putInt(slot + 20, length)
+        writePos += length
+        nextEntry++
+    }
+
+    /** The frame stored as [entry], or null if it was evicted or not written yet. */
+    @Synchronized
+    fun read(entry: Long): AudioPacket? {
+        if (entry < firstEntry || entry >= nextEntry) return null
+        val slot = slotOf(entry)
+        val payload = ByteArray(index.getInt(slot + 20))
+        data.position(index.getInt(slot + 16))
+        data.get(payload)
+        return AudioPacket(index.getLong(slot), index.getLong(slot + 8), payload)
+    }
+
+    @Synchronized
+    fun ptsOf(entry: Long): Long = index.getLong(slotOf(entry.coerceIn(firstEntry, maxOf(firstEntry, nextEntry - 1))) + 8)
+
+    /** First entry with a timestamp at or after [ptsUs], clamped to what is held. */
+    @Synchronized
+    fun entryFor(ptsUs: Long): Long {
+        var lo = firstEntry
+        var hi = nextEntry
+        while (lo < hi) {
+            val mid = (lo + hi) ushr 1
+            if (index.getLong(slotOf(mid) + 8) < ptsUs) lo = mid + 1 else hi = mid
+        }
+        return lo.coerceAtMost(maxOf(firstEntry, nextEntry - 1))
+    }
+
+    /** Media time held, from the oldest to the newest frame, in microseconds. */
+    val spanUs: Long
+        get() = synchronized(this) { if (firstEntry == nextEntry) 0 else ptsOf(nextEntry - 1) - ptsOf(firstEntry) }
+
+    @Synchronized
+    fun clear() {
+        firstEntry = nextEntry
+        writePos = 0
+    }
+
+    override fun close() {
+        raf.close()
+    }
+
+    private fun slotOf(entry: Long): Int = (entry % indexSlots).toInt() * ENTRY_BYTES
+
+    private fun offsetOf(entry: Long): Int = index.getInt(slotOf(entry) + 16)
+
+    private fun overlaps(entry: Long, start: Int, length: Int): Boolean {
+        val offset = offsetOf(entry)
+        return offset < start + length && offset + index.getInt(slotOf(entry) + 20) > start
+    }
+
+    companion object {
+        /** ~7 minutes of 160 kbps AAC. */
+        const val DEFAULT_DATA_BYTES = 8 * 1024 * 1024
+
+        /** ~11 minutes of AAC-LC frames at 48 kHz (~5.5 for AAC-ELD). */
+        const val DEFAULT_INDEX_SLOTS = 32_768
+
+        private const val ENTRY_BYTES = 24
+    }
+}
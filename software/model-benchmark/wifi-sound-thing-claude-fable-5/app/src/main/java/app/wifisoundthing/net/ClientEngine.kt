@@ -1,15 +1,24 @@
 package app.wifisoundthing.net
 
+import android.net.Network
 import android.util.Log
 import app.wifisoundthing.audio.PlaybackEngine
+import app.wifisoundthing.audio.PlaybackOutput
+import app.wifisoundthing.core.AudioConfig
+import app.wifisoundthing.core.AudioPacket
 import app.wifisoundthing.core.AudioPacketCodec
 import app.wifisoundthing.core.Backoff
+import app.wifisoundthing.core.CodecProfile
 import app.wifisoundthing.core.ControlMessage
+import app.wifisoundthing.core.HopLatency
 import app.wifisoundthing.core.JitterBuffer
 import app.wifisoundthing.core.Protocol
 import app.wifisoundthing.core.RateMeter
+import app.wifisoundthing.core.StartupTimeline
+import app.wifisoundthing.core.TimeShiftRing
 import java.io.DataInputStream
 import java.io.DataOutputStream
+import java.io.File
 import java.net.DatagramPacket
 import java.net.DatagramSocket
 import java.net.InetSocketAddress
@@ -23,7 +32,23 @@ import kotlin.concurrent.thread
  *
  * A supervisor thread keeps the session alive: when the connection drops for
  * any reason it reconnects automatically with exponential backoff until
- * [stop] is called (NFR-4).
+ * [stop] is called (NFR-4). Network changes reported through
+ * [onNetworkChanged] (see [NetworkWatcher]) skip both the keepalive timeout
+ * and the backoff: the session is torn down and re-handshaken at once, with
+ * its sockets bound to the new network.
+ *
+ * Connecting is pipelined to shorten the time to first audio: the decoder and
+ * AudioTrack for the expected config are built while the TCP handshake is in
+ * flight, the UDP receiver is listening before HELLO is sent, and playback
+ * starts at [JitterBuffer.FAST_START_DEPTH] frames and grows to the configured
+ * depth while playing. Each phase is recorded in a [StartupTimeline].
+ *
+ * With a [timeShiftFile], played frames are kept in a memory-mapped
+ * [TimeShiftRing] there so the listener can [rewind] and [catchUp]; the ring
+ * survives reconnects to the same host session.
+ *
+ * With [nativeOutput], playback goes through AAudio ([NativeOutput]) where
+ * the device supports it, falling back to AudioTrack otherwise.
  */
 class ClientEngine(
     private val hostAddress: String,
@@ -31,16 +56,52 @@ class ClientEngine(
     private val clientName: String,
     private val jitterDepth: Int,
     private val listener: Listener,
+    private val timeShiftFile: File? = null,
+    private val nativeOutput: Boolean = false,
 ) {
     enum class State { CONNECTING, BUFFERING, PLAYING, RECONNECTING, STOPPED, FAILED }
 
-    class Stats(
+    data class Stats(
         val bitsPerSecond: Long,
         val totalBytes: Long,
         val bufferDepth: Int,
         val bufferTarget: Int,
         val lossRatio: Double,
         val underruns: Long,
+        /** Simulcast tier of the most recent packet (0 = primary quality). */
+        val tier: Int,
+        /** Host has paused sending because nothing is playing (DTX). */
+        val hostSilent: Boolean,
+        /** Codec profile negotiated in WELCOME, or null if unknown to this build. */
+        val codec: CodecProfile?,
+        /** Algorithmic (encoder + decoder) delay of [codec] in milliseconds. */
+        val codecAlgorithmicMs: Double,
+        /** Measured decoder latency in milliseconds. */
+        val decodeLatencyMs: Double,
+        /** Where the time to first audio went for this connection, see [StartupTimeline.summary]. */
+        val startupSummary: String,
+        /** Relays between the capturing host and this client (0 = direct). */
+        val hops: Int,
+        /** Latency the upstream relays add in total, as reported in WELCOME. */
+        val upstreamDelayMs: Int,
+        /** Estimated transit time of our own hop (half the smoothed PING round trip). */
+        val hopLatencyMs: Double,
+        /** Time shift: how far playback is behind live, and how much can be rewound. */
+        val behindLiveMs: Long,
+        val timeShiftSpanMs: Long,
+        /**
+         * Measured write-to-speaker latency of the audio output, from its
+         * presentation timestamps (0 while unknown). Includes Bluetooth where
+         * the platform reports it.
+         */
+        val outputLatencyMs: Double,
+        /** PCM is played through AAudio rather than an AudioTrack. */
+        val nativeOutput: Boolean,
+        /**
+         * Estimated capture-to-speaker delay: upstream relays, our hop, codec,
+         * decoder, the jitter buffer as it stands, and [outputLatencyMs].
+         */
+        val endToEndMs: Double,
     )
 
     interface Listener {
@@ -48,6 +109,15 @@ class ClientEngine(
         fun onStateChanged(state: State, detail: String?)
 
         fun onStatsUpdated(stats: Stats)
+
+        /** Handshake done for a new session; [welcome] describes the stream. */
+        fun onStreamStarted(welcome: ControlMessage.Welcome) {}
+
+        /**
+         * Called on the receive thread for every valid audio datagram, exactly as
+         * received. [data] is reused for the next datagram once this returns.
+         */
+        fun onAudioDatagram(data: ByteArray, length: Int) {}
     }
 
     @Volatile
@@ -59,6 +129,70 @@ class ClientEngine(
 
     private val receiveMeter = RateMeter()
 
+    private var timeShift: TimeShiftRing? = null
+    private var timeShiftSessionId: Int? = null
+
+    /** Latency of the link to the current upstream sender; relays add their forwarding time. */
+    val hopLatency = HopLatency()
+
+    /** Network to bind new sessions' sockets to, or null for the system default. */
+    @Volatile
+    private var boundNetwork: Network? = null
+
+    /** Guards the backoff wait so a link-up can cut it short. */
+    private val backoffLock = Object()
+    private var skipBackoff = false
+
+    /**
+     * Config of the last stream played; the output for it is built during the
+     * next handshake. Hosts default to 48 kHz stereo AAC-LC.
+     */
+    @Volatile
+    private var expectedConfig: AudioConfig = CodecProfile.AAC_LC.audioConfig(48_000, 2)
+
+    /** When the connection was last lost, for measuring how long recovery takes (0 = not recovering). */
+    @Volatile
+    private var lostAtMs = 0L
+
+    /**
+     * The Wi-Fi network switched, came back or changed address: drop the current
+     * session now and reconnect over [network] without waiting out the backoff.
+     */
+    fun onNetworkChanged(network: Network) {
+        if (!running) return
+        Log.i(TAG, "Network changed, reconnecting immediately")
+        boundNetwork = network
+        if (lostAtMs == 0L) lostAtMs = System.currentTimeMillis()
+        synchronized(backoffLock) {
+            skipBackoff = true
+            backoffLock.notifyAll()
+        }
+        currentSession?.fail("Network changed")
+    }
+
+    /** The Wi-Fi link went away: end the session now rather than after the keepalive timeout. */
+    fun onNetworkLost() {
+        if (!running) return
+        Log.i(TAG, "Network lost")
+        boundNetwork = null
+        if (lostAtMs == 0L) lostAtMs = System.currentTimeMillis()
+        currentSession?.fail("Wi-Fi connection lost")
+    }
+
+    /** Plays from [seconds] further back (time shift); no-op without a [timeShiftFile]. */
+    fun rewind(seconds: Int) {
+        currentSession?.player?.rewind(seconds * 1_000_000L)
+    }
+
+    /** Plays faster until back at live. */
+    fun catchUp() {
+        currentSession?.player?.catchUp()
+    }
+
+    fun goLive() {
+        currentSession?.player?.goLive()
+    }
+
     fun start() {
         if (running) return
         running = true
@@ -71,6 +205,8 @@ class ClientEngine(
         supervisorThread?.interrupt()
         supervisorThread?.join(3000)
         supervisorThread = null
+        timeShift?.close()
+        timeShift = null
         listener.onStateChanged(State.STOPPED, null)
     }
 
@@ -95,10 +231,17 @@ class ClientEngine(
                 currentSession = null
             }
             if (!running) return
+            if (lostAtMs == 0L) lostAtMs = System.currentTimeMillis()
             // A session that lasted a while was a working connection: restart backoff.
             if (System.currentTimeMillis() - startedAt > STABLE_SESSION_MS) attempt = 0
             attempt++
             if (failure != null) Log.i(TAG, "Session ended: $failure")
+            val immediate = synchronized(backoffLock) { skipBackoff.also { skipBackoff = false } }
+            if (immediate) {
+                // Link-up after a network change: the host is most likely reachable again right away.
+                attempt = 1
+                continue
+            }
             if (attempt >= MAX_ATTEMPTS_BEFORE_FAIL) {
                 listener.onStateChanged(
                     State.FAILED,
@@ -107,7 +250,9 @@ class ClientEngine(
                 // Keep trying in the background, but at the slowest pace.
             }
             try {
-                Thread.sleep(Backoff.delayMs(attempt - 1))
+                synchronized(backoffLock) {
+                    if (!skipBackoff) backoffLock.wait(Backoff.delayMs(attempt - 1))
+                }
             } catch (e: InterruptedException) {
                 return
             }
@@ -127,40 +272,105 @@ class ClientEngine(
         private var udpSocket: DatagramSocket? = null
         private var output: DataOutputStream? = null
         private var playback: PlaybackEngine? = null
+        val player: PlaybackEngine? get() = playback
         private val threads = mutableListOf<Thread>()
 
         @Volatile
         private var lastPongMs = System.currentTimeMillis()
 
+        @Volatile
+        private var lastTier = 0
+
+        private val timeline = StartupTimeline(System.nanoTime())
+
+        /** Set once the handshake is done; packets arriving earlier wait in [earlyPackets]. */
+        @Volatile
+        private var jitterBuffer: JitterBuffer? = null
+        private val earlyPackets = ArrayList<AudioPacket>()
+
         /** Blocks until the session dies; returns the failure reason or null on clean stop. */
         fun run(): String? {
+            val network = boundNetwork
             val udp = DatagramSocket()
             udpSocket = udp
             val socket = Socket()
             tcpSocket = socket
+            // After a network switch, pin both sockets to the new network so they
+            // don't keep using a stale route while the default network settles.
+            network?.bindSocket(udp)
+            network?.bindSocket(socket)
             socket.tcpNoDelay = true
-            socket.connect(InetSocketAddress(hostAddress, controlPort), CONNECT_TIMEOUT_MS)
-            socket.soTimeout = HANDSHAKE_TIMEOUT_MS
-
-            val input = DataInputStream(socket.getInputStream().buffered())
-            val out = DataOutputStream(socket.getOutputStream().buffered())
-            output = out
-            out.write(ControlMessage.Hello(Protocol.VERSION, udp.localPort, clientName).encode())
-            out.flush()
-            val welcome = ControlMessage.read(input) as? ControlMessage.Welcome
-                ?: throw IllegalStateException("Host did not answer the handshake correctly")
-            Log.i(TAG, "Connected to $hostAddress: ${welcome.config}")
-
-            val jitterBuffer = JitterBuffer(jitterDepth)
+
+            // Build the output for the config we expect while the handshake runs;
+            // PlaybackEngine rebuilds it if WELCOME announces something else.
+            val expected = expectedConfig
+            var prepared: PlaybackOutput? = null
+            val preparer = thread(name = "client-prepare") {
+                prepared = try {
+                    PlaybackOutput(expected, nativeOutput)
+                } catch (e: Exception) {
+                    Log.w(TAG, "Could not prepare audio output: ${e.message}")
+                    null
+                }
+                timeline.mark(StartupTimeline.Phase.OUTPUT_READY, System.nanoTime())
+            }
+            // Listen before HELLO so no datagram is missed between WELCOME and the receiver starting.
+            threads += thread(name = "client-udp-rx") { udpReceiveLoop(udp) }
+
+            val input: DataInputStream
+            val out: DataOutputStream
+            val welcome: ControlMessage.Welcome
+            try {
+                socket.connect(InetSocketAddress(hostAddress, controlPort), CONNECT_TIMEOUT_MS)
+                timeline.mark(StartupTimeline.Phase.CONNECTED, System.nanoTime())
+                socket.soTimeout = HANDSHAKE_TIMEOUT_MS
+
+                input = DataInputStream(socket.getInputStream().buffered())
+                out = DataOutputStream(socket.getOutputStream().buffered())
+                output = out
+                out.write(ControlMessage.Hello(Protocol.VERSION, udp.localPort, clientName).encode())
+                out.flush()
+                welcome = ControlMessage.read(input) as? ControlMessage.Welcome
+                    ?: throw IllegalStateException("Host did not answer the handshake correctly")
+                timeline.mark(StartupTimeline.Phase.WELCOMED, System.nanoTime())
+                preparer.join()
+            } catch (e: Exception) {
+                preparer.join()
+                prepared?.release()
+                throw e
+            }
+            Log.i(TAG, "Connected to $hostAddress: ${welcome.config}, ${welcome.hops} relay hop(s)")
+            expectedConfig = welcome.config
+            hopLatency.reset()
+            listener.onStreamStarted(welcome)
+
+            // jitterDepth is in AAC-LC frames; keep the same buffer duration for shorter frames.
+            val targetDepth = CodecProfile.scaledDepth(jitterDepth, welcome.config.frameSamples)
+            val jitterBuffer = JitterBuffer(
+                targetDepth = targetDepth,
+                startDepth = minOf(JitterBuffer.FAST_START_DEPTH, targetDepth),
+            )
+            attach(jitterBuffer)
+            val codec = CodecProfile.forCodecId(welcome.config.codec)
             val player = PlaybackEngine(
                 config = welcome.config,
                 jitterBuffer = jitterBuffer,
                 onStateChanged = { buffering ->
                     if (running && !closed) {
+                        if (!buffering && timeline.mark(StartupTimeline.Phase.FIRST_AUDIO, System.nanoTime())) {
+                            Log.i(TAG, "Startup: ${timeline.summary()}")
+                        }
+                        if (!buffering && lostAtMs != 0L) {
+                            Log.i(TAG, "Recovered in ${System.currentTimeMillis() - lostAtMs} ms")
+                            lostAtMs = 0
+                        }
                         listener.onStateChanged(if (buffering) State.BUFFERING else State.PLAYING, null)
                     }
                 },
                 onError = { message -> fail(message) },
+                prepared = prepared,
+                timeShift = timeShiftFor(welcome.sessionId),
+                nativeOutput = nativeOutput,
             )
             playback = player
             player.start()
@@ -168,15 +378,15 @@ class ClientEngine(
             lastPongMs = System.currentTimeMillis()
             socket.soTimeout = 0
 
-            threads += thread(name = "client-udp-rx") { udpReceiveLoop(udp, jitterBuffer) }
             threads += thread(name = "client-control-rx") { controlReadLoop(input) }
-            threads += thread(name = "client-ping") { pingLoop(out, jitterBuffer) }
+            val algorithmicMs = codec?.algorithmicLatencyMs(welcome.config.sampleRate) ?: 0.0
+            threads += thread(name = "client-ping") { pingLoop(out, jitterBuffer, player, codec, algorithmicMs, welcome) }
 
             done.await()
             return failureReason
         }
 
-        private fun udpReceiveLoop(udp: DatagramSocket, jitterBuffer: JitterBuffer) {
+        private fun udpReceiveLoop(udp: DatagramSocket) {
             val buffer = ByteArray(AudioPacketCodec.HEADER_SIZE + Protocol.MAX_AUDIO_PAYLOAD)
             val datagram = DatagramPacket(buffer, buffer.size)
             while (!closed) {
@@ -188,7 +398,33 @@ class ClientEngine(
                 }
                 val packet = AudioPacketCodec.decode(datagram.data, datagram.length) ?: continue
                 receiveMeter.record(System.currentTimeMillis(), datagram.length)
-                jitterBuffer.put(packet)
+                lastTier = packet.tier
+                timeline.mark(StartupTimeline.Phase.FIRST_PACKET, System.nanoTime())
+                listener.onAudioDatagram(datagram.data, datagram.length)
+                deliver(packet)
+            }
+        }
+
+        private fun deliver(packet: AudioPacket) {
+            jitterBuffer?.let {
+                it.put(packet)
+                return
+            }
+            synchronized(earlyPackets) {
+                val buffer = jitterBuffer
+                if (buffer != null) {
+                    buffer.put(packet)
+                } else if (earlyPackets.size < MAX_EARLY_PACKETS) {
+                    earlyPackets += packet
+                }
+            }
+        }
+
+        private fun attach(buffer: JitterBuffer) {
+            synchronized(earlyPackets) {
+                earlyPackets.forEach(buffer::put)
+                earlyPackets.clear()
+                jitterBuffer = buffer
             }
         }
 
@@ -201,7 +437,10 @@ class ClientEngine(
                     return
                 }
                 when (message) {
-                    is ControlMessage.Pong -> lastPongMs = System.currentTimeMillis()
+                    is ControlMessage.Pong -> {
+                        lastPongMs = System.currentTimeMillis()
+                        hopLatency.onRoundTrip(lastPongMs - message.timeMs)
+                    }
                     is ControlMessage.Bye -> {
                         fail("The host stopped broadcasting")
                         return
@@ -211,11 +450,25 @@ class ClientEngine(
             }
         }
 
-        private fun pingLoop(out: DataOutputStream, jitterBuffer: JitterBuffer) {
+        private fun pingLoop(
+            out: DataOutputStream,
+            jitterBuffer: JitterBuffer,
+            player: PlaybackEngine,
+            codec: CodecProfile?,
+            algorithmicMs: Double,
+            welcome: ControlMessage.Welcome,
+        ) {
             while (!closed) {
                 try {
                     synchronized(out) {
                         out.write(ControlMessage.Ping(System.currentTimeMillis()).encode())
+                        out.write(
+                            ControlMessage.Report(
+                                received = jitterBuffer.received,
+                                lost = jitterBuffer.gaps,
+                                underruns = jitterBuffer.underruns,
+                            ).encode(),
+                        )
                         out.flush()
                     }
                 } catch (e: Exception) {
@@ -226,6 +479,9 @@ class ClientEngine(
                     fail("The host is not responding")
                     return
                 }
+                val decodeLatencyMs = player.decodeLatencyMicros / 1000.0
+                val outputLatencyMs = player.outputLatencyMicros / 1000.0
+                val bufferedMs = jitterBuffer.depth * welcome.config.frameSamples * 1000.0 / welcome.config.sampleRate
                 listener.onStatsUpdated(
                     Stats(
                         bitsPerSecond = receiveMeter.bitsPerSecond(System.currentTimeMillis()),
@@ -234,6 +490,21 @@ class ClientEngine(
                         bufferTarget = jitterBuffer.targetDepth,
                         lossRatio = jitterBuffer.lossRatio,
                         underruns = jitterBuffer.underruns,
+                        tier = lastTier,
+                        hostSilent = jitterBuffer.isHostSilent,
+                        codec = codec,
+                        codecAlgorithmicMs = algorithmicMs,
+                        decodeLatencyMs = decodeLatencyMs,
+                        startupSummary = timeline.summary(),
+                        hops = welcome.hops,
+                        upstreamDelayMs = welcome.upstreamDelayMs,
+                        hopLatencyMs = hopLatency.oneWayMs,
+                        behindLiveMs = player.behindLiveUs / 1000,
+                        timeShiftSpanMs = (timeShift?.spanUs ?: 0) / 1000,
+                        outputLatencyMs = outputLatencyMs,
+                        nativeOutput = player.isNativeOutput,
+                        endToEndMs = welcome.upstreamDelayMs + hopLatency.oneWayMs + algorithmicMs +
+                            decodeLatencyMs + bufferedMs + outputLatencyMs,
                     ),
                 )
                 try {
@@ -244,7 +515,7 @@ class ClientEngine(
             }
         }
 
-        private fun fail(reason: String) {
+        fun fail(reason: String) {
             if (closed) return
             failureReason = reason
             close(sendBye = false)
@@ -274,11 +545,28 @@ class ClientEngine(
         }
     }
 
+    /** The ring for [sessionId], emptied when the host started a new stream (timestamps restart). */
+    private fun timeShiftFor(sessionId: Int): TimeShiftRing? {
+        val file = timeShiftFile ?: return null
+        val ring = timeShift ?: try {
+            TimeShiftRing(file).also { timeShift = it }
+        } catch (e: Exception) {
+            Log.w(TAG, "Time shift unavailable: ${e.message}")
+            return null
+        }
+        if (timeShiftSessionId != sessionId) ring.clear()
+        timeShiftSessionId = sessionId
+        return ring
+    }
+
     companion object {
         private const val TAG = "ClientEngine"
         private const val CONNECT_TIMEOUT_MS = 4000
         private const val HANDSHAKE_TIMEOUT_MS = 5000
         private const val MAX_ATTEMPTS_BEFORE_FAIL = 5
         private const val STABLE_SESSION_MS = 10_000L
+
+        /** Datagrams kept while the jitter buffer is being created (a few frames at most in practice). */
+        private const val MAX_EARLY_PACKETS = 64
     }
 }
@@ -3,10 +3,19 @@ package app.wifisoundthing.net
 import android.content.Context
 import android.net.nsd.NsdManager
 import android.net.nsd.NsdServiceInfo
+import android.os.Build
 import android.util.Log
+import androidx.annotation.RequiresApi
+import app.wifisoundthing.core.KnownHost
 import app.wifisoundthing.core.Protocol
+import java.net.Inet4Address
+import java.net.InetSocketAddress
+import java.net.Socket
+import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.ConcurrentLinkedQueue
-import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.concurrent.thread
 
 /**
  * Zero-configuration host discovery via Android's Network Service Discovery
@@ -16,8 +25,16 @@ import java.util.concurrent.atomic.AtomicBoolean
 object Discovery {
     private const val TAG = "Discovery"
 
-    /** Advertises the running host on the local network. */
-    class Advertiser(context: Context, private val serviceName: String, private val port: Int) {
+    /**
+     * Advertises the running host on the local network. A client in relay mode
+     * advertises too, with its [hops] from the capturing host in the TXT record.
+     */
+    class Advertiser(
+        context: Context,
+        private val serviceName: String,
+        private val port: Int,
+        private val hops: Int = 0,
+    ) {
         private val nsdManager = context.getSystemService(Context.NSD_SERVICE) as NsdManager
         private var listener: NsdManager.RegistrationListener? = null
 
@@ -26,6 +43,7 @@ object Discovery {
                 serviceName = this@Advertiser.serviceName
                 serviceType = Protocol.SERVICE_TYPE
                 port = this@Advertiser.port
+                if (hops > 0) setAttribute(Protocol.TXT_HOPS, hops.toString())
             }
             val l = object : NsdManager.RegistrationListener {
                 override fun onServiceRegistered(info: NsdServiceInfo) {
@@ -55,9 +73,28 @@ object Discovery {
         }
     }
 
-    class FoundHost(val serviceName: String, val hostAddress: String, val port: Int)
+    /**
+     * @param remembered true when found by probing [KnownHosts], not (yet) confirmed by mDNS.
+     * @param hops relays between this service and the capturing host (0 = the host itself).
+     */
+    class FoundHost(
+        val serviceName: String,
+        val hostAddress: String,
+        val port: Int,
+        val remembered: Boolean = false,
+        val hops: Int = 0,
+    )
 
-    /** Browses for hosts. Resolves services one at a time (NsdManager cannot resolve concurrently). */
+    private fun hopsOf(info: NsdServiceInfo): Int =
+        info.attributes[Protocol.TXT_HOPS]?.let { String(it).toIntOrNull() } ?: 0
+
+    /**
+     * Browses for hosts and resolves them concurrently. On Android 14+ each
+     * service gets its own ServiceInfoCallback; before that up to
+     * [MAX_CONCURRENT_RESOLVES] resolves run in parallel, and a resolve the
+     * platform refuses as busy is put back in the queue and retried when
+     * another one finishes.
+     */
     class Browser(context: Context, private val callback: Callback) {
         interface Callback {
             /** Called from NSD binder threads. */
@@ -69,7 +106,9 @@ object Discovery {
         private val nsdManager = context.getSystemService(Context.NSD_SERVICE) as NsdManager
         private var discoveryListener: NsdManager.DiscoveryListener? = null
         private val resolveQueue = ConcurrentLinkedQueue<NsdServiceInfo>()
-        private val resolving = AtomicBoolean(false)
+        private val inFlight = AtomicInteger(0)
+        private val infoCallbacks = ConcurrentHashMap<String, NsdManager.ServiceInfoCallback>()
+        private val callbackExecutor = Executors.newSingleThreadExecutor()
         @Volatile
         private var stopped = false
 
@@ -80,12 +119,17 @@ object Discovery {
 
                 override fun onServiceFound(info: NsdServiceInfo) {
                     if (info.serviceType.trimEnd('.') == Protocol.SERVICE_TYPE.trimEnd('.')) {
-                        resolveQueue.add(info)
-                        resolveNext()
+                        if (Build.VERSION.SDK_INT >= 34) {
+                            watch(info)
+                        } else {
+                            resolveQueue.add(info)
+                            resolveNext()
+                        }
                     }
                 }
 
                 override fun onServiceLost(info: NsdServiceInfo) {
+                    if (Build.VERSION.SDK_INT >= 34) unwatch(info.serviceName)
                     callback.onHostLost(info.serviceName)
                 }
 
@@ -101,30 +145,83 @@ object Discovery {
             nsdManager.discoverServices(Protocol.SERVICE_TYPE, NsdManager.PROTOCOL_DNS_SD, l)
         }
 
+        /** API 34+: resolves and keeps following address changes, concurrently per service. */
+        @RequiresApi(34)
+        private fun watch(info: NsdServiceInfo) {
+            if (stopped || infoCallbacks.containsKey(info.serviceName)) return
+            val cb = object : NsdManager.ServiceInfoCallback {
+                override fun onServiceUpdated(updated: NsdServiceInfo) {
+                    val address = updated.hostAddresses.firstOrNull { it is Inet4Address }
+                        ?: updated.hostAddresses.firstOrNull()
+                    if (address != null && !stopped) {
+                        callback.onHostFound(
+                            FoundHost(updated.serviceName, address.hostAddress ?: return, updated.port, hops = hopsOf(updated)),
+                        )
+                    }
+                }
+
+                override fun onServiceLost() {}
+                override fun onServiceInfoCallbackUnregistered() {}
+
+                override fun onServiceInfoCallbackRegistrationFailed(errorCode: Int) {
+                    Log.w(TAG, "Resolve failed for ${info.serviceName}: $errorCode")
+                    infoCallbacks.remove(info.serviceName)
+                }
+            }
+            infoCallbacks[info.serviceName] = cb
+            nsdManager.registerServiceInfoCallback(info, callbackExecutor, cb)
+        }
+
+        @RequiresApi(34)
+        private fun unwatch(serviceName: String) {
+            infoCallbacks.remove(serviceName)?.let {
+                try {
+                    nsdManager.unregisterServiceInfoCallback(it)
+                } catch (e: Exception) {
+                    Log.w(TAG, "unregisterServiceInfoCallback: ${e.message}")
+                }
+            }
+        }
+
         private fun resolveNext() {
-            if (stopped || !resolving.compareAndSet(false, true)) return
-            val next = resolveQueue.poll()
-            if (next == null) {
-                resolving.set(false)
-                return
+            while (!stopped) {
+                val slots = inFlight.get()
+                if (slots >= MAX_CONCURRENT_RESOLVES) return
+                if (!inFlight.compareAndSet(slots, slots + 1)) continue
+                val next = resolveQueue.poll()
+                if (next == null) {
+                    inFlight.decrementAndGet()
+                    return
+                }
+                resolve(next)
             }
+        }
+
+        private fun resolve(service: NsdServiceInfo) {
             @Suppress("DEPRECATION") // replacement requires API 34; minSdk is 29
             nsdManager.resolveService(
-                next,
+                service,
                 object : NsdManager.ResolveListener {
                     override fun onServiceResolved(info: NsdServiceInfo) {
                         val address = info.host?.hostAddress
                         if (address != null && !stopped) {
-                            callback.onHostFound(FoundHost(info.serviceName, address, info.port))
+                            callback.onHostFound(FoundHost(info.serviceName, address, info.port, hops = hopsOf(info)))
                         }
-                        resolving.set(false)
+                        inFlight.decrementAndGet()
                         resolveNext()
                     }
 
                     override fun onResolveFailed(info: NsdServiceInfo, errorCode: Int) {
-                        Log.w(TAG, "Resolve failed for ${info.serviceName}: $errorCode")
-                        resolving.set(false)
-                        resolveNext()
+                        inFlight.decrementAndGet()
+                        if (errorCode == NsdManager.FAILURE_ALREADY_ACTIVE) {
+                            // Older platforms may serialise resolves internally; try again
+                            // once one of the in-flight resolves completes.
+                            resolveQueue.add(service)
+                            if (inFlight.get() == 0) resolveNext()
+                        } else {
+                            Log.w(TAG, "Resolve failed for ${info.serviceName}: $errorCode")
+                            resolveNext()
+                        }
                     }
                 },
             )
@@ -133,6 +230,7 @@ object Discovery {
         fun stop() {
             stopped = true
             resolveQueue.clear()
+            if (Build.VERSION.SDK_INT >= 34) infoCallbacks.keys.toList().forEach { unwatch(it) }
             discoveryListener?.let {
                 try {
                     nsdManager.stopServiceDiscovery(it)
@@ -141,6 +239,42 @@ object Discovery {
                 }
             }
             discoveryListener = null
+            callbackExecutor.shutdown()
         }
     }
+
+    /**
+     * Checks the remembered hosts ([KnownHosts]) with a short TCP connect, all in
+     * parallel, and reports each one that answers. Runs alongside [Browser] so a
+     * host used before appears within milliseconds instead of after the mDNS
+     * round-trip.
+     */
+    class Prober(private val hosts: List<KnownHost>, private val callback: (FoundHost) -> Unit) {
+        @Volatile
+        private var stopped = false
+
+        fun start() {
+            for (host in hosts) {
+                thread(name = "probe-${host.address}", isDaemon = true) {
+                    if (probe(host.address, host.port) && !stopped) {
+                        callback(FoundHost(host.serviceName, host.address, host.port, remembered = true))
+                    }
+                }
+            }
+        }
+
+        fun stop() {
+            stopped = true
+        }
+
+        private fun probe(address: String, port: Int): Boolean = try {
+            Socket().use { it.connect(InetSocketAddress(address, port), PROBE_TIMEOUT_MS) }
+            true
+        } catch (_: Exception) {
+            false
+        }
+    }
+
+    private const val MAX_CONCURRENT_RESOLVES = 4
+    private const val PROBE_TIMEOUT_MS = 400
 }
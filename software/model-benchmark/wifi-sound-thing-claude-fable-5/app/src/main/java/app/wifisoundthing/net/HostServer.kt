@@ -3,8 +3,13 @@ package app.wifisoundthing.net
 import android.util.Log
 import app.wifisoundthing.core.AudioConfig
 import app.wifisoundthing.core.ControlMessage
+import app.wifisoundthing.core.InterarrivalJitter
+import app.wifisoundthing.core.Pacer
 import app.wifisoundthing.core.Protocol
 import app.wifisoundthing.core.RateMeter
+import app.wifisoundthing.core.Simulcast
+import app.wifisoundthing.core.TierPolicy
+import app.wifisoundthing.core.TierSwitch
 import java.io.DataInputStream
 import java.io.DataOutputStream
 import java.net.DatagramPacket
@@ -14,6 +19,8 @@ import java.net.ServerSocket
 import java.net.Socket
 import java.net.SocketTimeoutException
 import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.locks.LockSupport
 import kotlin.concurrent.thread
 import kotlin.random.Random
 
@@ -21,11 +28,26 @@ import kotlin.random.Random
  * Host side of the network: accepts client control connections over TCP,
  * answers keepalives, and fans encoded audio out to every connected client
  * over UDP.
+ *
+ * With [tierCount] > 1 (simulcast) every frame arrives once per tier and each
+ * client is sent only the tier its receiver reports say it can sustain.
+ *
+ * A client in relay mode runs one too (see [Relay]); [hops] and
+ * [upstreamDelayMs] are then passed on to its clients in WELCOME.
+ *
+ * With a [pacer], [broadcast] only queues the datagram; a sender thread
+ * releases it at its paced time (see [Pacer]) so encoder bursts don't reach
+ * the Wi-Fi queue back-to-back. [encoderJitterMicros] and [sendJitterMicros]
+ * show how much timing jitter that removes.
  */
 class HostServer(
     private val controlPort: Int,
     private val audioConfig: AudioConfig,
     private val listener: Listener,
+    private val tierCount: Int = 1,
+    private val hops: Int = 0,
+    private val upstreamDelayMs: () -> Int = { 0 },
+    private val pacer: Pacer? = null,
 ) {
     interface Listener {
         /** Called from network threads whenever a client joins or leaves. */
@@ -40,11 +62,19 @@ class HostServer(
         val udpTarget: InetSocketAddress,
         val output: DataOutputStream,
         @Volatile var lastSeenMs: Long,
+        val tierPolicy: TierPolicy,
+        val tierSwitch: TierSwitch = TierSwitch(),
     ) {
         val name: String = socket.inetAddress.hostAddress ?: "?"
     }
 
+    private class Outgoing(val datagram: ByteArray, val seq: Long, val tier: Int, val ptsUs: Long, val releaseAtNanos: Long)
+
     private val peers = CopyOnWriteArrayList<Peer>()
+    private val sendQueue = LinkedBlockingQueue<Outgoing>(MAX_QUEUED_DATAGRAMS)
+    private var senderThread: Thread? = null
+    private val encoderJitter = InterarrivalJitter()
+    private val sendJitter = InterarrivalJitter()
     private var serverSocket: ServerSocket? = null
     private var udpSocket: DatagramSocket? = null
     private val sessionId = Random.nextInt()
@@ -52,6 +82,19 @@ class HostServer(
     val sendMeter = RateMeter()
     val clientCount: Int get() = peers.size
 
+    /** Highest sequence number broadcast on any tier; tier switches take effect after it. */
+    @Volatile
+    private var highestSeq = -1L
+
+    /** Timing jitter of frames as handed over by the encoder (primary tier), in µs. */
+    val encoderJitterMicros: Long get() = encoderJitter.micros
+
+    /** Timing jitter of frames as actually sent (primary tier), in µs; lower than the above when paced. */
+    val sendJitterMicros: Long get() = sendJitter.micros
+
+    /** Number of connected clients currently receiving [tier]. */
+    fun clientsOnTier(tier: Int): Int = peers.count { it.tierSwitch.tier == tier }
+
     @Volatile
     var running = false
         private set
@@ -63,14 +106,53 @@ class HostServer(
         running = true
         thread(name = "host-accept") { acceptLoop() }
         thread(name = "host-reaper") { reaperLoop() }
+        if (pacer != null) senderThread = thread(name = "host-pacer", priority = Thread.MAX_PRIORITY) { senderLoop() }
+    }
+
+    /**
+     * Sends one encoded audio datagram, carrying frame [seq] of [tier] at
+     * [ptsUs], to every connected client currently assigned to that tier —
+     * immediately, or at its paced time when a [pacer] is set.
+     */
+    fun broadcast(datagram: ByteArray, seq: Long, tier: Int = Simulcast.TIER_PRIMARY, ptsUs: Long = 0) {
+        if (seq > highestSeq) highestSeq = seq
+        val now = System.nanoTime()
+        if (tier == Simulcast.TIER_PRIMARY) encoderJitter.record(ptsUs, now)
+        if (pacer == null) {
+            send(datagram, seq, tier, ptsUs)
+            return
+        }
+        val outgoing = Outgoing(datagram, seq, tier, ptsUs, pacer.releaseAt(ptsUs, now))
+        if (!sendQueue.offer(outgoing)) Log.w(TAG, "Send queue full, dropping frame $seq")
+    }
+
+    private fun senderLoop() {
+        while (running) {
+            val next = try {
+                sendQueue.take()
+            } catch (e: InterruptedException) {
+                return
+            }
+            var wait = next.releaseAtNanos - System.nanoTime()
+            while (wait > 0 && running) {
+                LockSupport.parkNanos(wait)
+                wait = next.releaseAtNanos - System.nanoTime()
+            }
+            if (next.tier == ALL_TIERS) {
+                broadcastToAll(next.datagram)
+            } else {
+                send(next.datagram, next.seq, next.tier, next.ptsUs)
+            }
+        }
     }
 
-    /** Sends one encoded audio datagram to every connected client. */
-    fun broadcast(datagram: ByteArray) {
+    private fun send(datagram: ByteArray, seq: Long, tier: Int, ptsUs: Long) {
         val socket = udpSocket ?: return
+        if (tier == Simulcast.TIER_PRIMARY) sendJitter.record(ptsUs, System.nanoTime())
         if (peers.isEmpty()) return
         val now = System.currentTimeMillis()
         for (peer in peers) {
+            if (!peer.tierSwitch.accepts(tier, seq)) continue
             try {
                 socket.send(DatagramPacket(datagram, datagram.size, peer.udpTarget))
                 sendMeter.record(now, datagram.size)
@@ -80,8 +162,43 @@ class HostServer(
         }
     }
 
+    /**
+     * Sends a DTX silence marker for sequence [seq] to every client. With a
+     * [pacer] it joins the send queue behind the frames still waiting there,
+     * so it reaches clients after them, in sequence order.
+     */
+    fun broadcastSilence(datagram: ByteArray, seq: Long) {
+        if (pacer == null) {
+            broadcastToAll(datagram)
+            return
+        }
+        // The queue is FIFO: due now, it still leaves right after the frames ahead of it.
+        val outgoing = Outgoing(datagram, seq, ALL_TIERS, 0, System.nanoTime())
+        if (!sendQueue.offer(outgoing)) Log.w(TAG, "Send queue full, dropping silence marker $seq")
+    }
+
+    /**
+     * Sends a datagram that is not tier-specific (e.g. a packet a relay
+     * forwards as received) to every client, immediately.
+     */
+    fun broadcastToAll(datagram: ByteArray, length: Int = datagram.size) {
+        val socket = udpSocket ?: return
+        val now = System.currentTimeMillis()
+        for (peer in peers) {
+            try {
+                socket.send(DatagramPacket(datagram, length, peer.udpTarget))
+                sendMeter.record(now, length)
+            } catch (e: Exception) {
+                Log.w(TAG, "UDP send to ${peer.udpTarget} failed: ${e.message}")
+            }
+        }
+    }
+
     fun stop() {
         running = false
+        senderThread?.interrupt()
+        senderThread = null
+        sendQueue.clear()
         for (peer in peers) {
             try {
                 peer.output.write(ControlMessage.Bye.encode())
@@ -127,7 +244,7 @@ class HostServer(
             if (hello.protocolVersion != Protocol.VERSION) {
                 throw IllegalStateException("Client protocol version ${hello.protocolVersion} != ${Protocol.VERSION}")
             }
-            output.write(ControlMessage.Welcome(sessionId, audioConfig).encode())
+            output.write(ControlMessage.Welcome(sessionId, audioConfig, hops, upstreamDelayMs()).encode())
             output.flush()
 
             peer = Peer(
@@ -135,6 +252,7 @@ class HostServer(
                 udpTarget = InetSocketAddress(socket.inetAddress, hello.udpPort),
                 output = output,
                 lastSeenMs = System.currentTimeMillis(),
+                tierPolicy = TierPolicy(tierCount),
             )
             peers.add(peer)
             listener.onClientCountChanged(peers.size)
@@ -150,6 +268,13 @@ class HostServer(
                             peer.output.flush()
                         }
                     }
+                    is ControlMessage.Report -> {
+                        val tier = peer.tierPolicy.onReport(message.received, message.lost, message.underruns)
+                        if (tier != peer.tierSwitch.tier) {
+                            Log.i(TAG, "Moving ${peer.name} to simulcast tier $tier")
+                            peer.tierSwitch.switchTo(tier, highestSeq + 1)
+                        }
+                    }
                     is ControlMessage.Bye -> break
                     else -> Log.w(TAG, "Unexpected message from ${peer.name}: $message")
                 }
@@ -200,5 +325,11 @@ class HostServer(
         private const val TAG = "HostServer"
         private const val HANDSHAKE_TIMEOUT_MS = 5000
         private const val REAPER_INTERVAL_MS = 2000L
+
+        /** Several seconds of audio; only reached if sending stalls completely. */
+        private const val MAX_QUEUED_DATAGRAMS = 512
+
+        /** [Outgoing.tier] of a queued datagram for every client (a silence marker). */
+        private const val ALL_TIERS = -1
     }
 }
@@ -0,0 +1,74 @@
+package app.wifisoundthing.net
+
+import android.content.Context
+import android.net.ConnectivityManager
+import android.net.LinkProperties
+import android.net.Network
+import android.net.NetworkCapabilities
+import android.net.NetworkRequest
+import android.util.Log
+import app.wifisoundthing.core.NetworkChangeTracker
+
+/**
+ * Follows the Wi-Fi network the client streams over and tells [ClientEngine]
+ * the moment it switches, changes address or disappears, instead of the
+ * engine discovering it through an 8 s keepalive timeout.
+ *
+ * Requests Wi-Fi without requiring internet access, so a phone hotspot or an
+ * offline travel router counts as a usable network.
+ */
+class NetworkWatcher(context: Context, private val engine: ClientEngine) {
+    private val connectivity = context.applicationContext.getSystemService(ConnectivityManager::class.java)
+    private val tracker = NetworkChangeTracker()
+    private var registered = false
+
+    private val callback = object : ConnectivityManager.NetworkCallback() {
+        override fun onAvailable(network: Network) {
+            val addresses = addressesOf(connectivity.getLinkProperties(network))
+            handle(tracker.onAvailable(network.networkHandle, addresses), network)
+        }
+
+        override fun onLinkPropertiesChanged(network: Network, linkProperties: LinkProperties) {
+            handle(tracker.onLinkPropertiesChanged(network.networkHandle, addressesOf(linkProperties)), network)
+        }
+
+        override fun onLost(network: Network) {
+            handle(tracker.onLost(network.networkHandle), network)
+        }
+    }
+
+    fun start() {
+        if (registered) return
+        val request = NetworkRequest.Builder()
+            .addTransportType(NetworkCapabilities.TRANSPORT_WIFI)
+            .removeCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+            .build()
+        connectivity.registerNetworkCallback(request, callback)
+        registered = true
+    }
+
+    fun stop() {
+        if (!registered) return
+        registered = false
+        try {
+            connectivity.unregisterNetworkCallback(callback)
+        } catch (e: Exception) {
+            Log.w(TAG, "unregisterNetworkCallback: ${e.message}")
+        }
+    }
+
+    private fun handle(action: NetworkChangeTracker.Action, network: Network) {
+        when (action) {
+            NetworkChangeTracker.Action.RECONNECT -> engine.onNetworkChanged(network)
+            NetworkChangeTracker.Action.LINK_DOWN -> engine.onNetworkLost()
+            NetworkChangeTracker.Action.NONE -> {}
+        }
+    }
+
+    private fun addressesOf(properties: LinkProperties?): Set<String> =
+        properties?.linkAddresses?.mapNotNull { it.address?.hostAddress }?.toSet() ?: emptySet()
+
+    private companion object {
+        const val TAG = "NetworkWatcher"
+    }
+}
@@ -0,0 +1,122 @@
+package app.wifisoundthing.net
+
+import android.content.Context
+import android.util.Log
+import app.wifisoundthing.core.ControlMessage
+import app.wifisoundthing.core.HopLatency
+import app.wifisoundthing.core.Protocol
+import app.wifisoundthing.core.RelayUpstream
+import kotlin.math.roundToInt
+
+/**
+ * Client relay mode: a listening client also serves the stream to clients of
+ * its own, so a group can grow past what one host phone's CPU and airtime
+ * allow. Datagrams are forwarded exactly as received from upstream — no
+ * decode or re-encode — through a [HostServer] on [Protocol.RELAY_CONTROL_PORT],
+ * advertised with its hop count from the capturing host.
+ *
+ * Downstream clients learn in WELCOME how many relays they are behind and how
+ * much latency those add: everything upstream of us plus our own hop
+ * ([hopLatency]: transit from upstream plus forwarding time).
+ *
+ * Driven by [ClientEngine.Listener.onStreamStarted] and
+ * [ClientEngine.Listener.onAudioDatagram]; the server survives upstream
+ * reconnects to the same session and is restarted when [RelayUpstream] says
+ * downstream clients need a fresh handshake (new format or a restarted host).
+ */
+class Relay(
+    context: Context,
+    private val serviceName: String,
+    private val hopLatency: HopLatency,
+    private val onError: (message: String) -> Unit,
+) {
+    private val context = context.applicationContext
+
+    @Volatile
+    private var server: HostServer? = null
+    private var advertiser: Discovery.Advertiser? = null
+    private val upstream = RelayUpstream()
+
+    /** Hops from the capturing host to our downstream clients (0 while not serving). */
+    @Volatile
+    var hops = 0
+        private set
+
+    @Volatile
+    private var upstreamDelayMs = 0
+
+    val clientCount: Int get() = server?.clientCount ?: 0
+
+    /** Latency added between the capturing host and our downstream clients, in ms. */
+    val totalDelayMs: Int get() = upstreamDelayMs + hopLatency.addedMs.roundToInt()
+
+    @Synchronized
+    fun onStreamStarted(welcome: ControlMessage.Welcome) {
+        val hops = upstream.hopsFor(welcome)
+        upstreamDelayMs = welcome.upstreamDelayMs
+        when (upstream.onWelcome(welcome)) {
+            RelayUpstream.Action.KEEP -> if (server != null) return
+            RelayUpstream.Action.RESTART -> {}
+            RelayUpstream.Action.REFUSE -> {
+                stopServer()
+                onError("Not relaying: this phone is already $hops hops from the host")
+                return
+            }
+        }
+        // Downstream clients get a Bye and handshake again with the new server.
+        stopServer()
+        val srv = HostServer(
+            controlPort = Protocol.RELAY_CONTROL_PORT,
+            audioConfig = welcome.config,
+            listener = object : HostServer.Listener {
+                override fun onClientCountChanged(count: Int) {
+                    Log.i(TAG, "$count downstream client(s)")
+                }
+
+                override fun onServerError(message: String) {
+                    onError("Relay stopped: $message")
+                }
+            },
+            hops = hops,
+            upstreamDelayMs = { totalDelayMs },
+        )
+        try {
+            srv.start()
+        } catch (e: Exception) {
+            upstream.reset()
+            onError("Could not start relaying on port ${Protocol.RELAY_CONTROL_PORT}: ${e.message}")
+            return
+        }
+        server = srv
+        this.hops = hops
+        advertiser = Discovery.Advertiser(context, serviceName, Protocol.RELAY_CONTROL_PORT, hops).also { it.start() }
+        Log.i(TAG, "Relaying ${welcome.config} as hop $hops")
+    }
+
+    /** Forwards one datagram, unchanged, to every downstream client. */
+    fun forward(data: ByteArray, length: Int) {
+        val srv = server ?: return
+        if (srv.clientCount == 0) return
+        val start = System.nanoTime()
+        srv.broadcastToAll(data, length)
+        hopLatency.onForward(System.nanoTime() - start)
+    }
+
+    @Synchronized
+    fun stop() {
+        stopServer()
+        upstream.reset()
+    }
+
+    private fun stopServer() {
+        advertiser?.stop()
+        advertiser = null
+        server?.stop()
+        server = null
+        hops = 0
+    }
+
+    private companion object {
+        const val TAG = "Relay"
+    }
+}
@@ -17,23 +17,40 @@ import android.os.PowerManager
 import androidx.core.app.NotificationCompat
 import app.wifisoundthing.R
 import app.wifisoundthing.app.ClientSession
+import app.wifisoundthing.app.ClientTelemetry
+import app.wifisoundthing.app.Prefs
+import app.wifisoundthing.core.ControlMessage
 import app.wifisoundthing.core.JitterBuffer
+import app.wifisoundthing.core.KnownHost
 import app.wifisoundthing.core.Protocol
+import app.wifisoundthing.core.TelemetryBus
 import app.wifisoundthing.net.ClientEngine
+import app.wifisoundthing.net.NetworkWatcher
+import app.wifisoundthing.net.Relay
 import app.wifisoundthing.ui.ClientActivity
+import java.io.File
 
 /**
  * Foreground service (type mediaPlayback) that receives and plays the stream,
  * so playback continues with the screen off or the app in the background.
+ * In relay mode it also forwards the stream to clients of its own ([Relay]).
  */
 class ClientService : Service() {
 
     private var engine: ClientEngine? = null
+    private var networkWatcher: NetworkWatcher? = null
+    private var relay: Relay? = null
     private var wakeLock: PowerManager.WakeLock? = null
     private var wifiLock: WifiManager.WifiLock? = null
     private val handler = Handler(Looper.getMainLooper())
     private var running = false
 
+    /** Re-posts the notification only when its text (state + host) changes, not on every stats update. */
+    private val notificationSubscriber = TelemetryBus.distinct(
+        { t: ClientTelemetry -> if (t.state == ClientEngine.State.STOPPED) null else notificationText(t.state, t.hostLabel ?: "") },
+    ) { text -> if (text != null) handler.post { postNotification(text) } }
+    private var notificationSubscription: AutoCloseable? = null
+
     override fun onBind(intent: Intent?): IBinder? = null
 
     override fun onStartCommand(intent: Intent?, flags: Int, startId: Int): Int {
@@ -43,6 +60,9 @@ class ClientService : Service() {
                 startListening(intent)
             }
             ACTION_STOP -> stopEverything()
+            ACTION_REWIND -> engine?.rewind(REWIND_STEP_S)
+            ACTION_CATCH_UP -> engine?.catchUp()
+            ACTION_LIVE -> engine?.goLive()
         }
         return START_NOT_STICKY
     }
@@ -52,6 +72,8 @@ class ClientService : Service() {
         val port = intent.getIntExtra(EXTRA_PORT, Protocol.DEFAULT_CONTROL_PORT)
         val label = intent.getStringExtra(EXTRA_LABEL) ?: host
         val jitterDepth = intent.getIntExtra(EXTRA_JITTER_DEPTH, JitterBuffer.DEFAULT_TARGET_DEPTH)
+        val relayMode = intent.getBooleanExtra(EXTRA_RELAY, false)
+        val nativeOutput = intent.getBooleanExtra(EXTRA_NATIVE_OUTPUT, false)
 
         createChannel()
         startForeground(
@@ -61,39 +83,75 @@ class ClientService : Service() {
         )
         acquireLocks()
 
-        ClientSession.hostLabel = label
-        ClientSession.stats = null
+        ClientSession.update { it.copy(hostLabel = label, stats = null, relayHops = 0, relayClients = 0, relayDelayMs = 0) }
+        if (notificationSubscription == null) {
+            notificationSubscription = ClientSession.bus.subscribe(notificationSubscriber)
+        }
 
+        var newRelay: Relay? = null
         val newEngine = ClientEngine(
             hostAddress = host,
             controlPort = port,
             clientName = Build.MODEL ?: "Android",
             jitterDepth = jitterDepth,
+            timeShiftFile = File(cacheDir, TIME_SHIFT_FILE),
+            nativeOutput = nativeOutput,
             listener = object : ClientEngine.Listener {
                 override fun onStateChanged(state: ClientEngine.State, detail: String?) {
-                    ClientSession.state = state
-                    ClientSession.stateDetail = detail
+                    if (state == ClientEngine.State.PLAYING && ClientSession.current.state != state) {
+                        Prefs(this@ClientService).rememberHost(KnownHost(label, host, port, System.currentTimeMillis()))
+                    }
+                    ClientSession.update { it.copy(state = state, stateDetail = detail) }
                     if (detail != null && state != ClientEngine.State.STOPPED) {
                         ClientSession.postError(detail)
                     }
-                    handler.post { updateNotification(state, label) }
                 }
 
                 override fun onStatsUpdated(stats: ClientEngine.Stats) {
-                    ClientSession.stats = stats
+                    val r = newRelay
+                    ClientSession.update {
+                        it.copy(
+                            stats = stats,
+                            relayHops = r?.hops ?: 0,
+                            relayClients = r?.clientCount ?: 0,
+                            relayDelayMs = r?.totalDelayMs ?: 0,
+                        )
+                    }
+                }
+
+                override fun onStreamStarted(welcome: ControlMessage.Welcome) {
+                    newRelay?.onStreamStarted(welcome)
+                }
+
+                override fun onAudioDatagram(data: ByteArray, length: Int) {
+                    newRelay?.forward(data, length)
                 }
             },
         )
+        if (relayMode) {
+            newRelay = Relay(this, getString(R.string.relay_service_name, Build.MODEL), newEngine.hopLatency) { message ->
+                ClientSession.postError(message)
+            }
+        }
+        relay = newRelay
         engine = newEngine
         newEngine.start()
+        networkWatcher = NetworkWatcher(this, newEngine).also { it.start() }
         running = true
     }
 
     private fun stopEngineOnly() {
+        networkWatcher?.stop()
+        networkWatcher = null
+        val currentRelay = relay
+        relay = null
         engine?.let { current ->
             engine = null
             // Engine teardown does blocking joins; keep it off the main thread.
-            Thread { current.stop() }.start()
+            Thread {
+                current.stop()
+                currentRelay?.stop()
+            }.start()
         }
     }
 
@@ -101,8 +159,9 @@ class ClientService : Service() {
         running = false
         stopEngineOnly()
         releaseLocks()
-        ClientSession.state = ClientEngine.State.STOPPED
-        ClientSession.stateDetail = null
+        notificationSubscription?.close()
+        notificationSubscription = null
+        ClientSession.update { it.copy(state = ClientEngine.State.STOPPED, stateDetail = null) }
         stopForeground(STOP_FOREGROUND_REMOVE)
         stopSelf()
     }
@@ -175,9 +234,8 @@ class ClientService : Service() {
             .build()
     }
 
-    private fun updateNotification(state: ClientEngine.State, label: String) {
-        if (!running && state != ClientEngine.State.CONNECTING) return
-        val text = when (state) {
+    private fun notificationText(state: ClientEngine.State, label: String): String =
+        when (state) {
             ClientEngine.State.CONNECTING -> getString(R.string.client_state_connecting, label)
             ClientEngine.State.BUFFERING -> getString(R.string.client_state_buffering)
             ClientEngine.State.PLAYING -> getString(R.string.client_state_playing, label)
@@ -185,6 +243,9 @@ class ClientService : Service() {
             ClientEngine.State.FAILED -> getString(R.string.client_state_failed)
             ClientEngine.State.STOPPED -> getString(R.string.client_state_stopped)
         }
+
+    private fun postNotification(text: String) {
+        if (notificationSubscription == null) return
         val manager = getSystemService(Context.NOTIFICATION_SERVICE) as NotificationManager
         manager.notify(NOTIFICATION_ID, buildNotification(text))
     }
@@ -193,24 +254,38 @@ class ClientService : Service() {
         private const val CHANNEL_ID = "client"
         private const val NOTIFICATION_ID = 2
         private const val WAKELOCK_TIMEOUT_MS = 6 * 60 * 60 * 1000L
+        private const val TIME_SHIFT_FILE = "timeshift.ring"
+        private const val REWIND_STEP_S = 30
 
         const val ACTION_START = "app.wifisoundthing.client.START"
         const val ACTION_STOP = "app.wifisoundthing.client.STOP"
+        const val ACTION_REWIND = "app.wifisoundthing.client.REWIND"
+        const val ACTION_CATCH_UP = "app.wifisoundthing.client.CATCH_UP"
+        const val ACTION_LIVE = "app.wifisoundthing.client.LIVE"
         const val EXTRA_HOST = "host"
         const val EXTRA_PORT = "port"
         const val EXTRA_LABEL = "label"
         const val EXTRA_JITTER_DEPTH = "jitter_depth"
+        const val EXTRA_RELAY = "relay"
+        const val EXTRA_NATIVE_OUTPUT = "native_output"
 
-        fun start(context: Context, host: String, port: Int, label: String, jitterDepth: Int) {
+        fun start(context: Context, host: String, port: Int, label: String, jitterDepth: Int, relay: Boolean, nativeOutput: Boolean) {
             val intent = Intent(context, ClientService::class.java)
                 .setAction(ACTION_START)
                 .putExtra(EXTRA_HOST, host)
                 .putExtra(EXTRA_PORT, port)
                 .putExtra(EXTRA_LABEL, label)
                 .putExtra(EXTRA_JITTER_DEPTH, jitterDepth)
+                .putExtra(EXTRA_RELAY, relay)
+                .putExtra(EXTRA_NATIVE_OUTPUT, nativeOutput)
             context.startForegroundService(intent)
         }
 
+        /** Sends a time-shift [action] ([ACTION_REWIND], [ACTION_CATCH_UP], [ACTION_LIVE]) to the running client. */
+        fun timeShift(context: Context, action: String) {
+            context.startService(Intent(context, ClientService::class.java).setAction(action))
+        }
+
         fun stop(context: Context) {
             context.startService(Intent(context, ClientService::class.java).setAction(ACTION_STOP))
         }
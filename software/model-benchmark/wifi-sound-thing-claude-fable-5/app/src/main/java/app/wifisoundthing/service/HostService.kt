@@ -5,32 +5,44 @@ import android.app.NotificationChannel
 import android.app.NotificationManager
 import android.app.PendingIntent
 import android.app.Service
+import android.content.ContentValues
 import android.content.Context
 import android.content.Intent
 import android.content.pm.ServiceInfo
 import android.media.projection.MediaProjection
 import android.media.projection.MediaProjectionManager
+import android.net.Uri
 import android.net.wifi.WifiManager
 import android.os.Build
+import android.os.Environment
 import android.os.Handler
 import android.os.IBinder
 import android.os.Looper
+import android.os.ParcelFileDescriptor
 import android.os.PowerManager
+import android.provider.MediaStore
 import android.util.Log
 import androidx.core.app.NotificationCompat
 import app.wifisoundthing.R
 import app.wifisoundthing.app.HostSession
-import app.wifisoundthing.app.NetInfo
+import app.wifisoundthing.app.HostTelemetry
 import app.wifisoundthing.app.Prefs
 import app.wifisoundthing.audio.CaptureEngine
-import app.wifisoundthing.core.AacCsd
+import app.wifisoundthing.audio.StreamRecorder
 import app.wifisoundthing.core.AudioConfig
 import app.wifisoundthing.core.AudioPacketCodec
+import app.wifisoundthing.core.CodecProfile
 import app.wifisoundthing.core.Format
+import app.wifisoundthing.core.Pacer
 import app.wifisoundthing.core.Protocol
+import app.wifisoundthing.core.Simulcast
+import app.wifisoundthing.core.TelemetryBus
 import app.wifisoundthing.net.Discovery
 import app.wifisoundthing.net.HostServer
 import app.wifisoundthing.ui.HostActivity
+import java.text.SimpleDateFormat
+import java.util.Date
+import java.util.Locale
 import java.util.concurrent.atomic.AtomicLong
 
 /**
@@ -44,6 +56,9 @@ class HostService : Service() {
     private var captureEngine: CaptureEngine? = null
     private var server: HostServer? = null
     private var advertiser: Discovery.Advertiser? = null
+    private var recorder: StreamRecorder? = null
+    private var recordingUri: Uri? = null
+    private var recordingFd: ParcelFileDescriptor? = null
     private var wakeLock: PowerManager.WakeLock? = null
     private var wifiLock: WifiManager.WifiLock? = null
     private val handler = Handler(Looper.getMainLooper())
@@ -60,18 +75,38 @@ class HostService : Service() {
         }
     }
 
+    /** Publishes a stats snapshot at a fixed, bounded rate; subscribers see only changes. */
     private val statsUpdater = object : Runnable {
         override fun run() {
             val srv = server ?: return
-            HostSession.clientCount = srv.clientCount
-            HostSession.totalBytesSent = srv.sendMeter.totalBytes
-            HostSession.bitsPerSecond = srv.sendMeter.bitsPerSecond(System.currentTimeMillis())
-            HostSession.displayAddress = NetInfo.displayAddress()
-            updateNotification()
+            val capture = captureEngine
+            HostSession.update {
+                it.copy(
+                    clientCount = srv.clientCount,
+                    totalBytesSent = srv.sendMeter.totalBytes,
+                    bitsPerSecond = srv.sendMeter.bitsPerSecond(System.currentTimeMillis()),
+                    tierEncodeLoad = capture?.encodeCost?.map { c -> c.load } ?: emptyList(),
+                    tierEncodeMicros = capture?.encodeCost?.map { c -> c.averageMicros } ?: emptyList(),
+                    tierClients = List(capture?.encodeCost?.size ?: 0) { tier -> srv.clientsOnTier(tier) },
+                    dtxSilent = capture?.dtxGate?.suppressing == true,
+                    dtxSuppressedRatio = capture?.dtxGate?.suppressedRatio ?: 0.0,
+                    encodeLatencyMicros = capture?.encodeLatencyMicros ?: 0,
+                    encoderJitterMicros = srv.encoderJitterMicros,
+                    sendJitterMicros = srv.sendJitterMicros,
+                    recordedBytes = recorder?.bytesWritten ?: 0,
+                    recordDroppedFrames = recorder?.droppedFrames ?: 0,
+                )
+            }
             handler.postDelayed(this, STATS_INTERVAL_MS)
         }
     }
 
+    /** Re-posts the notification only when its text changes (uptime is a system chronometer). */
+    private val notificationSubscriber = TelemetryBus.distinct(
+        { t: HostTelemetry -> if (t.state == HostSession.State.RUNNING) notificationText(t) else null },
+    ) { text -> if (text != null) postNotification(text) }
+    private var notificationSubscription: AutoCloseable? = null
+
     override fun onBind(intent: Intent?): IBinder? = null
 
     override fun onStartCommand(intent: Intent?, flags: Int, startId: Int): Int {
@@ -118,21 +153,22 @@ class HostService : Service() {
         projection.registerCallback(projectionCallback, handler)
         mediaProjection = projection
 
-        val bitrate = intent.getIntExtra(EXTRA_BITRATE, Prefs.DEFAULT_BITRATE)
-        val audioConfig = AudioConfig(
-            sampleRate = SAMPLE_RATE,
-            channelCount = CHANNELS,
-            codec = Protocol.CODEC_AAC_LC,
-            csd = AacCsd.audioSpecificConfig(SAMPLE_RATE, CHANNELS),
-        )
+        val profile = CodecProfile.forCodecId(intent.getIntExtra(EXTRA_CODEC, Protocol.CODEC_AAC_LC))
+            ?: CodecProfile.AAC_LC
+        val bitrate = profile.bitrateFor(intent.getIntExtra(EXTRA_BITRATE, Prefs.DEFAULT_BITRATE))
+        val bitrates = if (intent.getBooleanExtra(EXTRA_SIMULCAST, false)) {
+            intArrayOf(bitrate, Prefs.simulcastReducedBitrate(bitrate))
+        } else {
+            intArrayOf(bitrate)
+        }
+        val audioConfig = profile.audioConfig(SAMPLE_RATE, CHANNELS)
 
         val srv = HostServer(
             controlPort = Protocol.DEFAULT_CONTROL_PORT,
             audioConfig = audioConfig,
             listener = object : HostServer.Listener {
                 override fun onClientCountChanged(count: Int) {
-                    HostSession.clientCount = count
-                    handler.post { updateNotification() }
+                    HostSession.update { it.copy(clientCount = count) }
                 }
 
                 override fun onServerError(message: String) {
@@ -140,6 +176,8 @@ class HostService : Service() {
                     handler.post { stopEverything() }
                 }
             },
+            tierCount = bitrates.size,
+            pacer = Pacer(),
         )
         try {
             srv.start()
@@ -149,19 +187,39 @@ class HostService : Service() {
             return
         }
         server = srv
+        val rec = if (intent.getBooleanExtra(EXTRA_RECORD, false)) startRecording(audioConfig, bitrate) else null
 
         val capture = CaptureEngine(
             mediaProjection = projection,
             sampleRate = SAMPLE_RATE,
             channelCount = CHANNELS,
-            bitrate = bitrate,
-            onFrame = { frame, ptsUs ->
-                srv.broadcast(AudioPacketCodec.encode(sequence.getAndIncrement(), ptsUs, frame))
+            bitrates = bitrates,
+            profile = profile,
+            onFrame = { tier, frame, ptsUs ->
+                // With several tiers the sequence number is derived from the timestamp so
+                // frame n of every tier shares it; a single tier keeps the plain counter.
+                val seq = if (bitrates.size > 1) {
+                    Simulcast.sequenceFor(ptsUs, SAMPLE_RATE, profile.frameSamples)
+                } else {
+                    sequence.getAndIncrement()
+                }
+                srv.broadcast(AudioPacketCodec.encode(seq, ptsUs, frame, tier = tier), seq, tier, ptsUs)
+                if (tier == Simulcast.TIER_PRIMARY) rec?.offer(frame, ptsUs)
             },
             onError = { message ->
                 HostSession.postError(message)
                 handler.post { stopEverything() }
             },
+            dtx = intent.getBooleanExtra(EXTRA_DTX, true),
+            onSilence = { ptsUs ->
+                // Marks where the pause starts in the same sequence space as the audio.
+                val seq = if (bitrates.size > 1) {
+                    Simulcast.sequenceFor(ptsUs, SAMPLE_RATE, profile.frameSamples)
+                } else {
+                    sequence.get()
+                }
+                srv.broadcastSilence(AudioPacketCodec.encodeSilence(seq, ptsUs), seq)
+            },
         )
         capture.start()
         captureEngine = capture
@@ -176,13 +234,84 @@ class HostService : Service() {
 
         running = true
         sequence.set(0)
-        HostSession.resetStats()
-        HostSession.state = HostSession.State.RUNNING
-        HostSession.startedAtMs = System.currentTimeMillis()
-        HostSession.controlPort = Protocol.DEFAULT_CONTROL_PORT
-        HostSession.displayAddress = NetInfo.displayAddress()
+        HostSession.update {
+            // Fresh stats, but keep the error serial so old errors are not shown again.
+            HostTelemetry(
+                state = HostSession.State.RUNNING,
+                startedAtMs = System.currentTimeMillis(),
+                controlPort = Protocol.DEFAULT_CONTROL_PORT,
+                codecLabel = profile.label,
+                codecAlgorithmicMs = profile.algorithmicLatencyMs(SAMPLE_RATE),
+                recording = rec != null,
+                errorSerial = it.errorSerial,
+                lastError = it.lastError,
+            )
+        }
+        notificationSubscription = HostSession.bus.subscribe(notificationSubscriber)
         handler.post(statsUpdater)
-        Log.i(TAG, "Hosting started on port ${Protocol.DEFAULT_CONTROL_PORT}")
+        Log.i(TAG, "Hosting started on port ${Protocol.DEFAULT_CONTROL_PORT} with ${profile.label}")
+    }
+
+    /**
+     * Opens a new `.m4a` in Music/WiFi Sound Thing (MediaStore, so it shows up in
+     * music apps once finished) and starts a [StreamRecorder] writing to it.
+     * Recording is optional: on failure the broadcast goes ahead without it.
+     */
+    private fun startRecording(config: AudioConfig, bitrate: Int): StreamRecorder? {
+        val stamp = SimpleDateFormat("yyyy-MM-dd HH.mm.ss", Locale.US).format(Date())
+        val values = ContentValues().apply {
+            put(MediaStore.Audio.Media.DISPLAY_NAME, getString(R.string.host_recording_name, stamp))
+            put(MediaStore.Audio.Media.MIME_TYPE, "audio/mp4")
+            put(MediaStore.Audio.Media.RELATIVE_PATH, "${Environment.DIRECTORY_MUSIC}/$RECORDING_FOLDER")
+            put(MediaStore.Audio.Media.IS_PENDING, 1)
+        }
+        return try {
+            val uri = contentResolver.insert(MediaStore.Audio.Media.getContentUri(MediaStore.VOLUME_EXTERNAL_PRIMARY), values)
+                ?: throw IllegalStateException("MediaStore refused the file")
+            recordingUri = uri
+            val fd = contentResolver.openFileDescriptor(uri, "rw") ?: throw IllegalStateException("Cannot open $uri")
+            recordingFd = fd
+            StreamRecorder(fd.fileDescriptor, config, bitrate).also {
+                it.start()
+                recorder = it
+            }
+        } catch (e: Exception) {
+            Log.e(TAG, "Recording start failed", e)
+            HostSession.postError(getString(R.string.host_error_recording, e.message ?: ""))
+            finishRecording(keep = false)
+            null
+        }
+    }
+
+    /**
+     * Finalises the current recording; empty recordings are deleted. Stopping the
+     * recorder joins its writer and finishes the MP4, which can take seconds on slow
+     * storage, so that runs on a thread of its own, like the client engine's teardown.
+     */
+    private fun finishRecording(keep: Boolean = true) {
+        val rec = recorder
+        recorder = null
+        val fd = recordingFd
+        recordingFd = null
+        val uri = recordingUri
+        recordingUri = null
+        if (rec == null && fd == null && uri == null) return
+        val resolver = applicationContext.contentResolver
+        Thread({
+            rec?.stop()
+            try {
+                fd?.close()
+            } catch (_: Exception) {
+            }
+            when {
+                uri == null -> {}
+                !keep || rec == null || rec.framesWritten == 0L -> resolver.delete(uri, null, null)
+                else -> {
+                    resolver.update(uri, ContentValues().apply { put(MediaStore.Audio.Media.IS_PENDING, 0) }, null, null)
+                    Log.i(TAG, "Recorded ${rec.framesWritten} frames, ${rec.droppedFrames} dropped")
+                }
+            }
+        }, "recording-finish").start()
     }
 
     private fun fail(message: String) {
@@ -192,11 +321,14 @@ class HostService : Service() {
 
     private fun stopEverything() {
         handler.removeCallbacks(statsUpdater)
+        notificationSubscription?.close()
+        notificationSubscription = null
         running = false
         advertiser?.stop()
         advertiser = null
         captureEngine?.stop()
         captureEngine = null
+        finishRecording()
         server?.stop()
         server = null
         mediaProjection?.let {
@@ -208,7 +340,7 @@ class HostService : Service() {
         }
         mediaProjection = null
         releaseLocks()
-        HostSession.state = HostSession.State.IDLE
+        HostSession.update { it.copy(state = HostSession.State.IDLE) }
         stopForeground(STOP_FOREGROUND_REMOVE)
         stopSelf()
     }
@@ -253,7 +385,7 @@ class HostService : Service() {
         (getSystemService(Context.NOTIFICATION_SERVICE) as NotificationManager).createNotificationChannel(channel)
     }
 
-    private fun buildNotification(text: String): Notification {
+    private fun buildNotification(text: String, startedAtMs: Long = 0): Notification {
         val openIntent = PendingIntent.getActivity(
             this,
             0,
@@ -274,27 +406,30 @@ class HostService : Service() {
             .addAction(0, getString(R.string.action_stop), stopIntent)
             .setOngoing(true)
             .setOnlyAlertOnce(true)
+            .apply {
+                if (startedAtMs > 0) {
+                    setWhen(startedAtMs)
+                    setShowWhen(true)
+                    setUsesChronometer(true)
+                }
+            }
             .build()
     }
 
-    private fun updateNotification() {
+    private fun notificationText(t: HostTelemetry): String =
+        getString(R.string.host_notification_status, t.clientCount, Format.bytes(t.totalBytesSent))
+
+    private fun postNotification(text: String) {
         if (!running) return
-        val uptime = Format.duration(System.currentTimeMillis() - HostSession.startedAtMs)
-        val text = getString(
-            R.string.host_notification_status,
-            HostSession.clientCount,
-            uptime,
-            Format.bytes(HostSession.totalBytesSent),
-        )
         val manager = getSystemService(Context.NOTIFICATION_SERVICE) as NotificationManager
-        manager.notify(NOTIFICATION_ID, buildNotification(text))
+        manager.notify(NOTIFICATION_ID, buildNotification(text, HostSession.current.startedAtMs))
     }
 
     companion object {
         private const val TAG = "HostService"
         private const val CHANNEL_ID = "host"
         private const val NOTIFICATION_ID = 1
-        private const val STATS_INTERVAL_MS = 2000L
+        private const val STATS_INTERVAL_MS = 1000L
         private const val WAKELOCK_TIMEOUT_MS = 6 * 60 * 60 * 1000L // safety cap: 6 hours
 
         const val ACTION_START = "app.wifisoundthing.host.START"
@@ -302,16 +437,35 @@ class HostService : Service() {
         const val EXTRA_RESULT_CODE = "result_code"
         const val EXTRA_RESULT_DATA = "result_data"
         const val EXTRA_BITRATE = "bitrate"
+        const val EXTRA_CODEC = "codec"
+        const val EXTRA_SIMULCAST = "simulcast"
+        const val EXTRA_DTX = "dtx"
+        const val EXTRA_RECORD = "record"
+
+        private const val RECORDING_FOLDER = "WiFi Sound Thing"
 
         const val SAMPLE_RATE = 48_000
         const val CHANNELS = 2
 
-        fun start(context: Context, resultCode: Int, resultData: Intent, bitrate: Int) {
+        fun start(
+            context: Context,
+            resultCode: Int,
+            resultData: Intent,
+            bitrate: Int,
+            codec: CodecProfile,
+            simulcast: Boolean,
+            dtx: Boolean,
+            record: Boolean,
+        ) {
             val intent = Intent(context, HostService::class.java)
                 .setAction(ACTION_START)
                 .putExtra(EXTRA_RESULT_CODE, resultCode)
                 .putExtra(EXTRA_RESULT_DATA, resultData)
                 .putExtra(EXTRA_BITRATE, bitrate)
+                .putExtra(EXTRA_CODEC, codec.codecId)
+                .putExtra(EXTRA_SIMULCAST, simulcast)
+                .putExtra(EXTRA_DTX, dtx)
+                .putExtra(EXTRA_RECORD, record)
             context.startForegroundService(intent)
         }
 
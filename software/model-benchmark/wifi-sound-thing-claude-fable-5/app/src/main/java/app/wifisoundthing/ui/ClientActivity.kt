@@ -15,6 +15,7 @@ import androidx.appcompat.app.AppCompatActivity
 import androidx.core.content.ContextCompat
 import app.wifisoundthing.R
 import app.wifisoundthing.app.ClientSession
+import app.wifisoundthing.app.ClientTelemetry
 import app.wifisoundthing.app.Prefs
 import app.wifisoundthing.core.Format
 import app.wifisoundthing.core.NetUtils
@@ -34,25 +35,21 @@ class ClientActivity : AppCompatActivity() {
     private var seenErrorSerial = 0L
 
     private var browser: Discovery.Browser? = null
+    private var prober: Discovery.Prober? = null
     private var multicastLock: WifiManager.MulticastLock? = null
     private val foundHosts = LinkedHashMap<String, Discovery.FoundHost>()
 
     private val notificationPermissionLauncher =
         registerForActivityResult(ActivityResultContracts.RequestPermission()) { /* optional */ }
 
-    private val uiUpdater = object : Runnable {
-        override fun run() {
-            refreshUi()
-            handler.postDelayed(this, UI_INTERVAL_MS)
-        }
-    }
+    private var subscription: AutoCloseable? = null
 
     override fun onCreate(savedInstanceState: Bundle?) {
         super.onCreate(savedInstanceState)
         binding = ActivityClientBinding.inflate(layoutInflater)
         setContentView(binding.root)
         prefs = Prefs(this)
-        seenErrorSerial = ClientSession.errorSerial
+        seenErrorSerial = ClientSession.current.errorSerial
 
         val labels = resources.getStringArray(R.array.latency_labels)
         binding.spinnerLatency.setAdapter(ArrayAdapter(this, android.R.layout.simple_list_item_1, labels))
@@ -61,6 +58,10 @@ class ClientActivity : AppCompatActivity() {
         binding.spinnerLatency.setOnItemClickListener { _, _, position, _ ->
             prefs.jitterDepth = Prefs.JITTER_OPTIONS[position]
         }
+        binding.switchRelay.isChecked = prefs.clientRelay
+        binding.switchRelay.setOnCheckedChangeListener { _, checked -> prefs.clientRelay = checked }
+        binding.switchNativeOutput.isChecked = prefs.clientNativeOutput
+        binding.switchNativeOutput.setOnCheckedChangeListener { _, checked -> prefs.clientNativeOutput = checked }
 
         binding.editManualAddress.setText(prefs.lastManualAddress)
         binding.buttonManualConnect.setOnClickListener {
@@ -74,6 +75,9 @@ class ClientActivity : AppCompatActivity() {
         }
 
         binding.buttonDisconnect.setOnClickListener { ClientService.stop(this) }
+        binding.buttonRewind.setOnClickListener { ClientService.timeShift(this, ClientService.ACTION_REWIND) }
+        binding.buttonCatchUp.setOnClickListener { ClientService.timeShift(this, ClientService.ACTION_CATCH_UP) }
+        binding.buttonLive.setOnClickListener { ClientService.timeShift(this, ClientService.ACTION_LIVE) }
 
         if (Build.VERSION.SDK_INT >= 33 &&
             ContextCompat.checkSelfPermission(this, Manifest.permission.POST_NOTIFICATIONS) != PackageManager.PERMISSION_GRANTED
@@ -85,17 +89,19 @@ class ClientActivity : AppCompatActivity() {
     override fun onStart() {
         super.onStart()
         startDiscovery()
-        handler.post(uiUpdater)
+        subscription = ClientSession.bus.subscribe { _, t -> handler.post { render(t) } }
     }
 
     override fun onStop() {
-        handler.removeCallbacks(uiUpdater)
+        subscription?.close()
+        subscription = null
+        handler.removeCallbacksAndMessages(null)
         stopDiscovery()
         super.onStop()
     }
 
     private fun connect(host: String, port: Int, label: String) {
-        ClientService.start(this, host, port, label, prefs.jitterDepth)
+        ClientService.start(this, host, port, label, prefs.jitterDepth, prefs.clientRelay, prefs.clientNativeOutput)
     }
 
     private fun startDiscovery() {
@@ -104,14 +110,15 @@ class ClientActivity : AppCompatActivity() {
             setReferenceCounted(false)
             acquire()
         }
+        // Remembered hosts are probed directly and merged with mDNS results as both arrive.
+        prober = Discovery.Prober(prefs.knownHosts) { host ->
+            runOnUiThread { mergeHost(host) }
+        }.also { it.start() }
         browser = Discovery.Browser(
             this,
             object : Discovery.Browser.Callback {
                 override fun onHostFound(host: Discovery.FoundHost) {
-                    runOnUiThread {
-                        foundHosts[host.serviceName] = host
-                        rebuildHostList()
-                    }
+                    runOnUiThread { mergeHost(host) }
                 }
 
                 override fun onHostLost(serviceName: String) {
@@ -124,7 +131,21 @@ class ClientActivity : AppCompatActivity() {
         ).also { it.start() }
     }
 
+    /** An mDNS result replaces a probed entry for the same address; a probe never replaces mDNS. */
+    private fun mergeHost(host: Discovery.FoundHost) {
+        if (browser == null) return
+        val sameAddress = foundHosts.entries.firstOrNull {
+            it.value.hostAddress == host.hostAddress && it.value.port == host.port
+        }
+        if (host.remembered && (foundHosts.containsKey(host.serviceName) || sameAddress != null)) return
+        sameAddress?.let { foundHosts.remove(it.key) }
+        foundHosts[host.serviceName] = host
+        rebuildHostList()
+    }
+
     private fun stopDiscovery() {
+        prober?.stop()
+        prober = null
         browser?.stop()
         browser = null
         try {
@@ -144,49 +165,117 @@ class ClientActivity : AppCompatActivity() {
         for (host in foundHosts.values) {
             val item = ItemHostBinding.inflate(inflater, binding.hostList, false)
             item.hostName.text = host.serviceName
-            item.hostAddress.text = getString(R.string.host_address_format, host.hostAddress, host.port)
+            item.hostAddress.text = when {
+                host.remembered -> getString(R.string.client_host_remembered, host.hostAddress, host.port)
+                host.hops > 0 -> getString(R.string.client_host_relay, host.hostAddress, host.port, host.hops)
+                else -> getString(R.string.host_address_format, host.hostAddress, host.port)
+            }
             item.root.setOnClickListener { connect(host.hostAddress, host.port, host.serviceName) }
             binding.hostList.addView(item.root)
         }
     }
 
-    private fun refreshUi() {
-        val state = ClientSession.state
+    private fun render(t: ClientTelemetry) {
+        val state = t.state
         val connected = state != ClientEngine.State.STOPPED
 
         binding.buttonDisconnect.isEnabled = connected
         binding.statusDot.isActivated = state == ClientEngine.State.PLAYING
-        binding.statusText.text = when (state) {
-            ClientEngine.State.STOPPED -> getString(R.string.client_state_stopped)
-            ClientEngine.State.CONNECTING -> getString(R.string.client_state_connecting, ClientSession.hostLabel ?: "")
-            ClientEngine.State.BUFFERING -> getString(R.string.client_state_buffering)
-            ClientEngine.State.PLAYING -> getString(R.string.client_state_playing, ClientSession.hostLabel ?: "")
-            ClientEngine.State.RECONNECTING -> getString(R.string.client_state_reconnecting)
-            ClientEngine.State.FAILED -> getString(R.string.client_state_failed)
-        }
+        binding.statusText.showText(
+            when (state) {
+                ClientEngine.State.STOPPED -> getString(R.string.client_state_stopped)
+                ClientEngine.State.CONNECTING -> getString(R.string.client_state_connecting, t.hostLabel ?: "")
+                ClientEngine.State.BUFFERING -> getString(R.string.client_state_buffering)
+                ClientEngine.State.PLAYING -> if (t.stats?.hostSilent == true) {
+                    getString(R.string.client_state_host_silent, t.hostLabel ?: "")
+                } else {
+                    getString(R.string.client_state_playing, t.hostLabel ?: "")
+                }
+                ClientEngine.State.RECONNECTING -> getString(R.string.client_state_reconnecting)
+                ClientEngine.State.FAILED -> getString(R.string.client_state_failed)
+            },
+        )
 
-        val stats = if (connected) ClientSession.stats else null
+        val stats = if (connected) t.stats else null
         if (stats != null) {
-            binding.statBitrate.text = Format.bitrate(stats.bitsPerSecond)
-            binding.statBuffer.text = getString(R.string.client_stat_buffer_format, stats.bufferDepth, stats.bufferTarget)
-            binding.statLoss.text = Format.percent(stats.lossRatio)
-            binding.statReceived.text = Format.bytes(stats.totalBytes)
+            binding.statBitrate.showText(
+                if (stats.tier > 0) {
+                    getString(R.string.client_stat_bitrate_reduced, Format.bitrate(stats.bitsPerSecond))
+                } else {
+                    Format.bitrate(stats.bitsPerSecond)
+                },
+            )
+            binding.statBuffer.showText(getString(R.string.client_stat_buffer_format, stats.bufferDepth, stats.bufferTarget))
+            binding.statLoss.showText(Format.percent(stats.lossRatio))
+            binding.statReceived.showText(Format.bytes(stats.totalBytes))
+            val codec = stats.codec
+            if (codec != null) {
+                binding.statLatency.showText(
+                    getString(
+                        R.string.client_stat_latency,
+                        codec.label,
+                        stats.codecAlgorithmicMs,
+                        stats.decodeLatencyMs,
+                    ),
+                )
+            }
+            binding.statLatency.showIf(codec != null)
+            if (stats.startupSummary.isNotEmpty()) {
+                binding.statStartup.showText(getString(R.string.client_stat_startup, stats.startupSummary))
+            }
+            binding.statStartup.showIf(stats.startupSummary.isNotEmpty())
+            if (stats.outputLatencyMs > 0) {
+                binding.statOutput.showText(
+                    getString(
+                        R.string.client_stat_output,
+                        getString(if (stats.nativeOutput) R.string.client_output_native else R.string.client_output_track),
+                        stats.outputLatencyMs,
+                        stats.endToEndMs,
+                    ),
+                )
+            }
+            binding.statOutput.showIf(stats.outputLatencyMs > 0)
+            if (stats.hops > 0) {
+                binding.statHops.showText(
+                    getString(R.string.client_stat_hops, stats.hops, stats.upstreamDelayMs, stats.hopLatencyMs),
+                )
+            }
+            binding.statHops.showIf(stats.hops > 0)
+            if (t.relayHops > 0) {
+                binding.statRelay.showText(getString(R.string.client_stat_relay, t.relayClients, t.relayDelayMs))
+            }
+            binding.statRelay.showIf(t.relayHops > 0)
+            val spanS = (stats.timeShiftSpanMs / 1000).toInt()
+            binding.statTimeShift.showText(
+                if (stats.behindLiveMs > 0) {
+                    getString(R.string.client_time_shift_behind, (stats.behindLiveMs / 1000).toInt(), spanS)
+                } else {
+                    getString(R.string.client_time_shift_live, spanS)
+                },
+            )
+            binding.statTimeShift.showIf(stats.timeShiftSpanMs > 0)
+            binding.timeShiftControls.showIf(stats.timeShiftSpanMs > 0)
+            binding.buttonCatchUp.isEnabled = stats.behindLiveMs > 0
+            binding.buttonLive.isEnabled = stats.behindLiveMs > 0
         } else {
-            binding.statBitrate.text = "–"
-            binding.statBuffer.text = "–"
-            binding.statLoss.text = "–"
-            binding.statReceived.text = "–"
+            binding.statLatency.showIf(false)
+            binding.statStartup.showIf(false)
+            binding.statOutput.showIf(false)
+            binding.statHops.showIf(false)
+            binding.statRelay.showIf(false)
+            binding.statTimeShift.showIf(false)
+            binding.timeShiftControls.showIf(false)
+            binding.statBitrate.showText("–")
+            binding.statBuffer.showText("–")
+            binding.statLoss.showText("–")
+            binding.statReceived.showText("–")
         }
 
-        if (ClientSession.errorSerial != seenErrorSerial) {
-            seenErrorSerial = ClientSession.errorSerial
-            ClientSession.lastError?.let {
+        if (t.errorSerial != seenErrorSerial) {
+            seenErrorSerial = t.errorSerial
+            t.lastError?.let {
                 Snackbar.make(binding.root, it, Snackbar.LENGTH_LONG).show()
             }
         }
     }
-
-    private companion object {
-        const val UI_INTERVAL_MS = 500L
-    }
 }
@@ -8,6 +8,7 @@ import android.os.Build
 import android.os.Bundle
 import android.os.Handler
 import android.os.Looper
+import android.os.SystemClock
 import android.widget.ArrayAdapter
 import androidx.activity.result.contract.ActivityResultContracts
 import androidx.appcompat.app.AppCompatActivity
@@ -15,9 +16,11 @@ import androidx.core.content.ContextCompat
 import android.content.pm.PackageManager
 import app.wifisoundthing.R
 import app.wifisoundthing.app.HostSession
+import app.wifisoundthing.app.HostTelemetry
 import app.wifisoundthing.app.NetInfo
 import app.wifisoundthing.app.Prefs
 import app.wifisoundthing.core.Format
+import app.wifisoundthing.core.Protocol
 import app.wifisoundthing.databinding.ActivityHostBinding
 import app.wifisoundthing.service.HostService
 import com.google.android.material.snackbar.Snackbar
@@ -34,7 +37,16 @@ class HostActivity : AppCompatActivity() {
         registerForActivityResult(ActivityResultContracts.StartActivityForResult()) { result ->
             val data = result.data
             if (result.resultCode == Activity.RESULT_OK && data != null) {
-                HostService.start(this, result.resultCode, data, prefs.hostBitrate)
+                HostService.start(
+                    this,
+                    result.resultCode,
+                    data,
+                    prefs.hostBitrate,
+                    prefs.hostCodec,
+                    prefs.hostSimulcast,
+                    prefs.hostDtx,
+                    prefs.hostRecord,
+                )
             } else {
                 Snackbar.make(binding.root, R.string.host_error_consent_denied, Snackbar.LENGTH_LONG).show()
             }
@@ -49,19 +61,16 @@ class HostActivity : AppCompatActivity() {
             }
         }
 
-    private val uiUpdater = object : Runnable {
-        override fun run() {
-            refreshUi()
-            handler.postDelayed(this, UI_INTERVAL_MS)
-        }
-    }
+    private var subscription: AutoCloseable? = null
+    private var addressMonitor: NetInfo.AddressMonitor? = null
+    private var chronometerStartMs = 0L
 
     override fun onCreate(savedInstanceState: Bundle?) {
         super.onCreate(savedInstanceState)
         binding = ActivityHostBinding.inflate(layoutInflater)
         setContentView(binding.root)
         prefs = Prefs(this)
-        seenErrorSerial = HostSession.errorSerial
+        seenErrorSerial = HostSession.current.errorSerial
 
         val labels = resources.getStringArray(R.array.bitrate_labels)
         binding.spinnerBitrate.setAdapter(ArrayAdapter(this, android.R.layout.simple_list_item_1, labels))
@@ -70,9 +79,22 @@ class HostActivity : AppCompatActivity() {
         binding.spinnerBitrate.setOnItemClickListener { _, _, position, _ ->
             prefs.hostBitrate = Prefs.BITRATE_OPTIONS[position]
         }
+        val codecLabels = resources.getStringArray(R.array.codec_labels)
+        binding.spinnerCodec.setAdapter(ArrayAdapter(this, android.R.layout.simple_list_item_1, codecLabels))
+        binding.spinnerCodec.setText(codecLabels[Prefs.CODEC_OPTIONS.indexOf(prefs.hostCodec).coerceAtLeast(0)], false)
+        binding.spinnerCodec.setOnItemClickListener { _, _, position, _ ->
+            prefs.hostCodec = Prefs.CODEC_OPTIONS[position]
+            updateControls(HostSession.current.state == HostSession.State.RUNNING)
+        }
+        binding.switchSimulcast.isChecked = prefs.hostSimulcast
+        binding.switchSimulcast.setOnCheckedChangeListener { _, checked -> prefs.hostSimulcast = checked }
+        binding.switchDtx.isChecked = prefs.hostDtx
+        binding.switchDtx.setOnCheckedChangeListener { _, checked -> prefs.hostDtx = checked }
+        binding.switchRecord.isChecked = prefs.hostRecord
+        binding.switchRecord.setOnCheckedChangeListener { _, checked -> prefs.hostRecord = checked }
 
         binding.buttonToggle.setOnClickListener {
-            if (HostSession.state == HostSession.State.RUNNING) {
+            if (HostSession.current.state == HostSession.State.RUNNING) {
                 HostService.stop(this)
             } else {
                 startFlow()
@@ -82,11 +104,18 @@ class HostActivity : AppCompatActivity() {
 
     override fun onStart() {
         super.onStart()
-        handler.post(uiUpdater)
+        // Redraw only when the service publishes a changed snapshot; the address
+        // follows connectivity changes instead of being re-read on a timer.
+        subscription = HostSession.bus.subscribe { _, t -> handler.post { render(t) } }
+        addressMonitor = NetInfo.AddressMonitor(this) { renderAddress(it) }.also { it.start() }
     }
 
     override fun onStop() {
-        handler.removeCallbacks(uiUpdater)
+        subscription?.close()
+        subscription = null
+        addressMonitor?.stop()
+        addressMonitor = null
+        handler.removeCallbacksAndMessages(null)
         super.onStop()
     }
 
@@ -109,42 +138,108 @@ class HostActivity : AppCompatActivity() {
         projectionLauncher.launch(manager.createScreenCaptureIntent())
     }
 
-    private fun refreshUi() {
-        val running = HostSession.state == HostSession.State.RUNNING
-
-        binding.buttonToggle.text = getString(if (running) R.string.host_button_stop else R.string.host_button_start)
-        binding.statusText.text = getString(if (running) R.string.host_status_running else R.string.host_status_idle)
+    private fun render(t: HostTelemetry) {
+        val running = t.state == HostSession.State.RUNNING
+
+        binding.buttonToggle.showText(getString(if (running) R.string.host_button_stop else R.string.host_button_start))
+        binding.statusText.showText(
+            getString(
+                when {
+                    !running -> R.string.host_status_idle
+                    t.dtxSilent -> R.string.host_status_silent
+                    else -> R.string.host_status_running
+                },
+            ),
+        )
         binding.statusDot.isActivated = running
-        binding.spinnerBitrateLayout.isEnabled = !running
-
-        val address = if (running) HostSession.displayAddress else NetInfo.displayAddress()
-        binding.addressText.text = if (address != null) {
-            getString(R.string.host_address_format, address, app.wifisoundthing.core.Protocol.DEFAULT_CONTROL_PORT)
-        } else {
-            getString(R.string.host_address_unknown)
-        }
+        updateControls(running)
 
         if (running) {
-            binding.statPeers.text = HostSession.clientCount.toString()
-            binding.statUptime.text = Format.duration(System.currentTimeMillis() - HostSession.startedAtMs)
-            binding.statSent.text = Format.bytes(HostSession.totalBytesSent)
-            binding.statBitrate.text = Format.bitrate(HostSession.bitsPerSecond)
+            binding.statPeers.showText(t.clientCount.toString())
+            if (t.startedAtMs != chronometerStartMs) {
+                chronometerStartMs = t.startedAtMs
+                binding.statUptime.base = SystemClock.elapsedRealtime() - (System.currentTimeMillis() - t.startedAtMs)
+                binding.statUptime.start()
+            }
+            binding.statSent.showText(Format.bytes(t.totalBytesSent))
+            binding.statBitrate.showText(Format.bitrate(t.bitsPerSecond))
+            binding.statLatency.showText(
+                getString(
+                    R.string.host_stat_latency,
+                    t.codecLabel ?: "",
+                    t.codecAlgorithmicMs,
+                    t.encodeLatencyMicros / 1000.0,
+                ),
+            )
+            binding.statLatency.showIf(true)
+            binding.statPacing.showText(
+                getString(R.string.host_stat_pacing, t.sendJitterMicros / 1000.0, t.encoderJitterMicros / 1000.0),
+            )
+            binding.statPacing.showIf(t.clientCount > 0)
+            if (t.recording) {
+                binding.statRecording.showText(
+                    if (t.recordDroppedFrames > 0) {
+                        getString(R.string.host_stat_recording_dropped, Format.bytes(t.recordedBytes), t.recordDroppedFrames)
+                    } else {
+                        getString(R.string.host_stat_recording, Format.bytes(t.recordedBytes))
+                    },
+                )
+            }
+            binding.statRecording.showIf(t.recording)
+            val load = t.tierEncodeLoad
+            val micros = t.tierEncodeMicros
+            val clients = t.tierClients
+            if (load.size > 1 && micros.size > 1 && clients.size > 1) {
+                binding.statTiers.showText(
+                    getString(
+                        R.string.host_stat_tiers,
+                        Format.percent(load[0]), micros[0].toInt(), clients[0],
+                        Format.percent(load[1]), micros[1].toInt(), clients[1],
+                    ),
+                )
+                binding.statTiers.showIf(true)
+            } else {
+                binding.statTiers.showIf(false)
+            }
         } else {
-            binding.statPeers.text = "–"
-            binding.statUptime.text = "–"
-            binding.statSent.text = "–"
-            binding.statBitrate.text = "–"
+            binding.statTiers.showIf(false)
+            binding.statLatency.showIf(false)
+            binding.statPacing.showIf(false)
+            binding.statRecording.showIf(false)
+            binding.statPeers.showText("–")
+            if (chronometerStartMs != 0L) {
+                chronometerStartMs = 0
+                binding.statUptime.stop()
+            }
+            binding.statUptime.showText("–")
+            binding.statSent.showText("–")
+            binding.statBitrate.showText("–")
         }
 
-        if (HostSession.errorSerial != seenErrorSerial) {
-            seenErrorSerial = HostSession.errorSerial
-            HostSession.lastError?.let {
+        if (t.errorSerial != seenErrorSerial) {
+            seenErrorSerial = t.errorSerial
+            t.lastError?.let {
                 Snackbar.make(binding.root, it, Snackbar.LENGTH_LONG).show()
             }
         }
     }
 
-    private companion object {
-        const val UI_INTERVAL_MS = 500L
+    private fun updateControls(running: Boolean) {
+        // SBR/PS profiles pick their own (low) bitrate.
+        binding.spinnerBitrateLayout.isEnabled = !running && prefs.hostCodec.maxBitrate == 0
+        binding.spinnerCodecLayout.isEnabled = !running
+        binding.switchSimulcast.isEnabled = !running
+        binding.switchDtx.isEnabled = !running
+        binding.switchRecord.isEnabled = !running
+    }
+
+    private fun renderAddress(address: String?) {
+        binding.addressText.showText(
+            if (address != null) {
+                getString(R.string.host_address_format, address, Protocol.DEFAULT_CONTROL_PORT)
+            } else {
+                getString(R.string.host_address_unknown)
+            },
+        )
     }
 }
@@ -0,0 +1,14 @@
+package app.wifisoundthing.ui
+
+import android.view.View
+import android.widget.TextView
+
+/** Sets the text only when it differs, so an unchanged stat costs no relayout. */
+internal fun TextView.showText(value: CharSequence) {
+    if (text.toString() != value.toString()) text = value
+}
+
+internal fun View.showIf(visible: Boolean) {
+    val wanted = if (visible) View.VISIBLE else View.GONE
+    if (visibility != wanted) visibility = wanted
+}
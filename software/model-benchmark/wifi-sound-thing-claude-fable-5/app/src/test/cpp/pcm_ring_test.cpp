@@ -0,0 +1,86 @@
+// Host test for pcm_ring.h, run on the build machine by `./gradlew nativeHostTest`
+// (part of `check`) through CMakeLists.txt here. No Android needed.
+#include "pcm_ring.h"
+
+#include <cstdio>
+#include <cstdlib>
+#include <thread>
+#include <vector>
+
+#define CHECK(cond)                                                        \
+    do {                                                                   \
+        if (!(cond)) {                                                     \
+            std::fprintf(stderr, "%s:%d: CHECK(%s)\n", __FILE__, __LINE__, #cond); \
+            std::exit(1);                                                  \
+        }                                                                  \
+    } while (0)
+
+static void capacityIsRoundedUpToAPowerOfTwo() {
+    CHECK(wst::PcmRing(5).size() == 8);
+    CHECK(wst::PcmRing(1024).size() == 1024);
+}
+
+static void writeStopsWhenFullAndReadWhenEmpty() {
+    wst::PcmRing ring(4);
+    const int16_t in[] = {1, 2, 3, 4, 5, 6};
+    CHECK(ring.write(in, 6) == 4);
+    CHECK(ring.free() == 0);
+    int16_t out[6];
+    CHECK(ring.read(out, 6) == 4);
+    CHECK(out[0] == 1 && out[3] == 4);
+    CHECK(ring.read(out, 6) == 0);
+}
+
+static void writeStopsAtTheLimit() {
+    wst::PcmRing ring(16);
+    ring.setLimit(6);
+    const int16_t in[] = {1, 2, 3, 4, 5, 6, 7, 8};
+    CHECK(ring.write(in, 8) == 6);
+    CHECK(ring.free() == 0);
+    int16_t out[4];
+    CHECK(ring.read(out, 4) == 4);
+    CHECK(ring.free() == 4);
+    CHECK(ring.write(in, 8) == 4);
+    ring.setLimit(100); // never beyond the storage
+    CHECK(ring.free() == 16 - 6);
+}
+
+static void wrapsAroundTheEndOfTheStorage() {
+    wst::PcmRing ring(4);
+    for (int16_t round = 0; round < 10; ++round) {
+        const int16_t in[] = {static_cast<int16_t>(round * 3), static_cast<int16_t>(round * 3 + 1), static_cast<int16_t>(round * 3 + 2)};
+        int16_t out[3];
+        CHECK(ring.write(in, 3) == 3);
+        CHECK(ring.read(out, 3) == 3);
+        CHECK(out[0] == in[0] && out[1] == in[1] && out[2] == in[2]);
+    }
+}
+
+static void producerAndConsumerThreadsSeeEverySampleOnce() {
+    wst::PcmRing ring(256);
+    const size_t total = 2000000;
+    std::vector<int16_t> received(total);
+    std::thread consumer([&] {
+        size_t got = 0;
+        while (got < total) got += ring.read(received.data() + got, std::min<size_t>(37, total - got));
+    });
+    std::vector<int16_t> chunk(53);
+    for (size_t sent = 0; sent < total;) {
+        const size_t n = std::min(chunk.size(), total - sent);
+        for (size_t i = 0; i < n; ++i) chunk[i] = static_cast<int16_t>(sent + i);
+        for (size_t done = 0; done < n;) done += ring.write(chunk.data() + done, n - done);
+        sent += n;
+    }
+    consumer.join();
+    for (size_t i = 0; i < total; ++i) CHECK(received[i] == static_cast<int16_t>(i));
+}
+
+int main() {
+    capacityIsRoundedUpToAPowerOfTwo();
+    writeStopsWhenFullAndReadWhenEmpty();
+    writeStopsAtTheLimit();
+    wrapsAroundTheEndOfTheStorage();
+    producerAndConsumerThreadsSeeEverySampleOnce();
+    std::puts("pcm_ring_test: OK");
+    return 0;
+}
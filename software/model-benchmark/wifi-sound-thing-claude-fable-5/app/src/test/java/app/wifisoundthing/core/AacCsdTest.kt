@@ -24,6 +24,44 @@ class AacCsdTest {
         assertArrayEquals(byteArrayOf(0x11, 0x88.toByte()), AacCsd.audioSpecificConfig(48000, 1))
     }
 
+    @Test
+    fun `48kHz stereo AAC-ELD config signals 512-sample frames`() {
+        // AOT escape 31 + 7 (=39), freqIndex 3, channels 2, frameLengthFlag 0, no SBR, ELDEXT_TERM, epConfig 0
+        val expected = byteArrayOf(0xF8.toByte(), 0xE6.toByte(), 0x40, 0x00)
+        assertArrayEquals(expected, AacCsd.eldAudioSpecificConfig(48000, 2))
+    }
+
+    @Test
+    fun `AAC-ELD frameLengthFlag selects 480-sample frames`() {
+        val expected = byteArrayOf(0xF8.toByte(), 0xE6.toByte(), 0x50, 0x00)
+        assertArrayEquals(expected, AacCsd.eldAudioSpecificConfig(48000, 2, frameSamples = 480))
+    }
+
+    @Test(expected = IllegalArgumentException::class)
+    fun `AAC-ELD refuses other frame sizes`() {
+        AacCsd.eldAudioSpecificConfig(48000, 2, frameSamples = 1024)
+    }
+
+    @Test
+    fun `48kHz stereo HE-AAC config signals SBR explicitly`() {
+        // AOT 5, core freqIndex 6 (24000), channels 2, ext freqIndex 3 (48000), core AOT 2
+        assertArrayEquals(byteArrayOf(0x2B, 0x11, 0x88.toByte(), 0x00), AacCsd.heAacAudioSpecificConfig(48000, 2))
+        // 44.1 kHz: core 22050 -> the widely seen 2B 92 08 00
+        assertArrayEquals(byteArrayOf(0x2B, 0x92.toByte(), 0x08, 0x00), AacCsd.heAacAudioSpecificConfig(44100, 2))
+    }
+
+    @Test
+    fun `48kHz HE-AAC v2 config signals PS with a mono core`() {
+        // AOT 29, core freqIndex 6, channels 1, ext freqIndex 3, core AOT 2
+        val expected = byteArrayOf(0xEB.toByte(), 0x09, 0x88.toByte(), 0x00)
+        assertArrayEquals(expected, AacCsd.heAacAudioSpecificConfig(48000, 2, parametricStereo = true))
+    }
+
+    @Test(expected = IllegalArgumentException::class)
+    fun `parametric stereo refuses mono output`() {
+        AacCsd.heAacAudioSpecificConfig(48000, 1, parametricStereo = true)
+    }
+
     @Test
     fun `frequency index table matches the MPEG-4 spec`() {
         assertEquals(3, AacCsd.frequencyIndex(48000))
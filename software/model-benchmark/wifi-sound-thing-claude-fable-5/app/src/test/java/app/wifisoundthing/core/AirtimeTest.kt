@@ -0,0 +1,49 @@
+package app.wifisoundthing.core
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class AirtimeTest {
+
+    @Test
+    fun `AAC-LC at 160 kbps for one client`() {
+        val e = Airtime.estimate(CodecProfile.AAC_LC, 160_000, clients = 1)
+        assertEquals(46.875, e.packetsPerSecond, 1e-9)
+        assertEquals(427 + AudioPacketCodec.HEADER_SIZE + Airtime.UDP_IP_OVERHEAD, e.datagramBytes)
+        // (150 µs + 508 B at 54 Mbps) × 46.875/s
+        assertEquals(0.01056, e.share, 1e-4)
+    }
+
+    @Test
+    fun `airtime scales with the number of listeners`() {
+        val one = Airtime.estimate(CodecProfile.AAC_LC, 160_000, clients = 1)
+        val six = Airtime.estimate(CodecProfile.AAC_LC, 160_000, clients = 6)
+        assertEquals(one.share * 6, six.share, 1e-12)
+    }
+
+    @Test
+    fun `HE-AAC profiles cap the bitrate and need less than half the airtime of AAC-LC`() {
+        val lc = Airtime.estimate(CodecProfile.AAC_LC, 160_000, clients = 6)
+        val he = Airtime.estimate(CodecProfile.HE_AAC, 160_000, clients = 6)
+        val v2 = Airtime.estimate(CodecProfile.HE_AAC_V2, 160_000, clients = 6)
+        assertEquals(64_000, he.bitrate)
+        assertEquals(48_000, v2.bitrate)
+        assertTrue(he.share < lc.share / 2)
+        assertTrue(v2.share < he.share)
+    }
+
+    @Test
+    fun `low-delay profile costs more airtime for the shorter frames`() {
+        val lc = Airtime.estimate(CodecProfile.AAC_LC, 160_000, clients = 6)
+        val eld = Airtime.estimate(CodecProfile.AAC_ELD, 160_000, clients = 6)
+        assertTrue(eld.share > lc.share)
+    }
+
+    @Test
+    fun `report lists every profile`() {
+        val lines = Airtime.report(clients = 6, requestedBitrate = 160_000)
+        assertEquals(CodecProfile.entries.size, lines.size)
+        assertTrue(lines[2], lines[2].startsWith("HE-AAC ") && lines[2].contains(" 64 kbps"))
+    }
+}
@@ -2,7 +2,9 @@ package app.wifisoundthing.core
 
 import org.junit.Assert.assertArrayEquals
 import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
 import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
 import org.junit.Test
 
 class AudioPacketCodecTest {
@@ -17,6 +19,23 @@ class AudioPacketCodecTest {
         assertArrayEquals(payload, packet.payload)
     }
 
+    @Test
+    fun `simulcast tier round-trips and defaults to primary`() {
+        val tagged = AudioPacketCodec.decode(AudioPacketCodec.encode(1L, 2L, byteArrayOf(3), tier = 1))!!
+        assertEquals(1, tagged.tier)
+        val plain = AudioPacketCodec.decode(AudioPacketCodec.encode(1L, 2L, byteArrayOf(3)))!!
+        assertEquals(0, plain.tier)
+    }
+
+    @Test
+    fun `silence marker round-trips with an empty payload`() {
+        val packet = AudioPacketCodec.decode(AudioPacketCodec.encodeSilence(77L, 1_000L))!!
+        assertTrue(packet.isSilence)
+        assertEquals(77L, packet.seq)
+        assertEquals(0, packet.payload.size)
+        assertFalse(AudioPacketCodec.decode(AudioPacketCodec.encode(1L, 2L, byteArrayOf(3)))!!.isSilence)
+    }
+
     @Test
     fun `sequence numbers survive the unsigned 32-bit boundary`() {
         val bigSeq = 0xFFFF_FFF0L
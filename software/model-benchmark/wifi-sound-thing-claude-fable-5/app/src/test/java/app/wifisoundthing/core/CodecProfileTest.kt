@@ -0,0 +1,47 @@
+package app.wifisoundthing.core
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertSame
+import org.junit.Test
+
+class CodecProfileTest {
+
+    @Test
+    fun `profiles are found by their wire codec id`() {
+        assertSame(CodecProfile.AAC_LC, CodecProfile.forCodecId(Protocol.CODEC_AAC_LC))
+        assertSame(CodecProfile.AAC_ELD, CodecProfile.forCodecId(Protocol.CODEC_AAC_ELD))
+        assertSame(CodecProfile.HE_AAC, CodecProfile.forCodecId(Protocol.CODEC_HE_AAC))
+        assertSame(CodecProfile.HE_AAC_V2, CodecProfile.forCodecId(Protocol.CODEC_HE_AAC_V2))
+        assertNull(CodecProfile.forCodecId(99))
+    }
+
+    @Test
+    fun `audio config carries codec id, csd and frame size`() {
+        val config = CodecProfile.AAC_ELD.audioConfig(48000, 2)
+        assertEquals(Protocol.CODEC_AAC_ELD, config.codec)
+        assertEquals(512, config.frameSamples)
+        assertEquals(AudioConfig(48000, 2, Protocol.CODEC_AAC_ELD, AacCsd.eldAudioSpecificConfig(48000, 2), 512), config)
+    }
+
+    @Test
+    fun `ELD algorithmic delay is well under LC`() {
+        assertEquals(42.67, CodecProfile.AAC_LC.algorithmicLatencyMs(48000), 0.01)
+        assertEquals(16.0, CodecProfile.AAC_ELD.algorithmicLatencyMs(48000), 0.01)
+    }
+
+    @Test
+    fun `SBR profiles cap the bitrate, others keep it`() {
+        assertEquals(64_000, CodecProfile.HE_AAC.bitrateFor(160_000))
+        assertEquals(48_000, CodecProfile.HE_AAC_V2.bitrateFor(160_000))
+        assertEquals(40_000, CodecProfile.HE_AAC_V2.bitrateFor(40_000))
+        assertEquals(256_000, CodecProfile.AAC_LC.bitrateFor(256_000))
+    }
+
+    @Test
+    fun `buffer depth keeps the same duration for shorter frames`() {
+        assertEquals(5, CodecProfile.scaledDepth(5, 1024))
+        assertEquals(10, CodecProfile.scaledDepth(5, 512))
+        assertEquals(11, CodecProfile.scaledDepth(5, 480)) // 10.67 rounded up
+    }
+}
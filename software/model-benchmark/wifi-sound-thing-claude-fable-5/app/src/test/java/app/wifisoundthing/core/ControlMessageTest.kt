@@ -31,6 +31,21 @@ class ControlMessageTest {
         assertEquals(welcome, roundTrip(welcome))
     }
 
+    @Test
+    fun `welcome carries the frame size of low-delay codecs`() {
+        val config = CodecProfile.AAC_ELD.audioConfig(48000, 2)
+        val decoded = roundTrip(ControlMessage.Welcome(sessionId = 1, config = config)) as ControlMessage.Welcome
+        assertEquals(512, decoded.config.frameSamples)
+        assertEquals(Protocol.CODEC_AAC_ELD, decoded.config.codec)
+    }
+
+    @Test
+    fun `welcome from a relay carries hop count and upstream delay`() {
+        val config = CodecProfile.AAC_LC.audioConfig(48000, 2)
+        val welcome = ControlMessage.Welcome(sessionId = 3, config = config, hops = 2, upstreamDelayMs = 17)
+        assertEquals(welcome, roundTrip(welcome))
+    }
+
     @Test
     fun `ping pong and bye round-trip`() {
         assertEquals(ControlMessage.Ping(Long.MAX_VALUE), roundTrip(ControlMessage.Ping(Long.MAX_VALUE)))
@@ -38,6 +53,12 @@ class ControlMessageTest {
         assertEquals(ControlMessage.Bye, roundTrip(ControlMessage.Bye))
     }
 
+    @Test
+    fun `receiver report round-trips`() {
+        val report = ControlMessage.Report(received = 123_456, lost = 78, underruns = 2)
+        assertEquals(report, roundTrip(report))
+    }
+
     @Test
     fun `messages can be read back-to-back from one stream`() {
         val buffer = ByteArrayOutputStream()
@@ -0,0 +1,34 @@
+package app.wifisoundthing.core
+
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+class CostMeterTest {
+
+    @Test
+    fun `load is processing time over audio time`() {
+        val meter = CostMeter()
+        // 2 ms of work per 20 ms block = 10% of real time
+        meter.record(elapsedNanos = 2_000_000, audioUs = 20_000)
+        meter.record(elapsedNanos = 2_000_000, audioUs = 20_000)
+        assertEquals(0.1, meter.load, 1e-9)
+        assertEquals(2000L, meter.averageMicros)
+        assertEquals(2L, meter.calls)
+    }
+
+    @Test
+    fun `empty meter reports zero`() {
+        val meter = CostMeter()
+        assertEquals(0.0, meter.load, 0.0)
+        assertEquals(0L, meter.averageMicros)
+    }
+
+    @Test
+    fun `reset clears everything`() {
+        val meter = CostMeter()
+        meter.record(1000, 1000)
+        meter.reset()
+        assertEquals(0L, meter.calls)
+        assertEquals(0.0, meter.load, 0.0)
+    }
+}
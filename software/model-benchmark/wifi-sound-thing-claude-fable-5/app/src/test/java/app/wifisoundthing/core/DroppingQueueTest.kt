@@ -0,0 +1,38 @@
+package app.wifisoundthing.core
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class DroppingQueueTest {
+
+    @Test
+    fun `items come out in order`() {
+        val queue = DroppingQueue<Int>(4)
+        queue.offer(1)
+        queue.offer(2)
+        assertEquals(1, queue.poll())
+        assertEquals(2, queue.poll(10))
+        assertNull(queue.poll())
+    }
+
+    @Test
+    fun `a full queue drops new items and counts them`() {
+        val queue = DroppingQueue<Int>(2)
+        assertTrue(queue.offer(1))
+        assertTrue(queue.offer(2))
+        assertFalse(queue.offer(3))
+        assertEquals(3L, queue.offered)
+        assertEquals(1L, queue.dropped)
+        assertEquals(1, queue.poll())
+        assertTrue(queue.offer(4))
+        assertEquals(2, queue.size)
+    }
+
+    @Test
+    fun `poll times out when empty`() {
+        assertNull(DroppingQueue<Int>(1).poll(5))
+    }
+}
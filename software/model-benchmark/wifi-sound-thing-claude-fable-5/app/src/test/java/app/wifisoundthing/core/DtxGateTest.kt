@@ -0,0 +1,71 @@
+package app.wifisoundthing.core
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class DtxGateTest {
+
+    private val blockUs = 21_333L
+    private val silence = ByteArray(4096)
+    private val music = ByteArray(4096) { if (it % 2 == 1) 0x10 else 0 } // samples of 0x1000
+
+    private fun gate() = DtxGate(hangoverMs = 100, keepaliveMs = 200, initialMarkers = 2)
+
+    @Test
+    fun `peak reads little-endian signed samples`() {
+        assertEquals(0, DtxGate.peak(silence, silence.size))
+        assertEquals(0x1000, DtxGate.peak(music, music.size))
+        // 0x8000 = -32768
+        assertEquals(32768, DtxGate.peak(byteArrayOf(0x00, 0x80.toByte()), 2))
+    }
+
+    @Test
+    fun `audio is always sent`() {
+        val gate = gate()
+        repeat(100) { assertEquals(DtxGate.Decision.SEND, gate.process(music, music.size, blockUs)) }
+        assertFalse(gate.suppressing)
+    }
+
+    @Test
+    fun `silence is sent until the hangover has passed`() {
+        val gate = gate()
+        // 100 ms hangover = 4 full blocks of 21.3 ms are still sent
+        repeat(4) { assertEquals(DtxGate.Decision.SEND, gate.process(silence, silence.size, blockUs)) }
+        assertEquals(DtxGate.Decision.MARKER, gate.process(silence, silence.size, blockUs))
+        assertTrue(gate.suppressing)
+    }
+
+    @Test
+    fun `markers repeat at first and then at the keepalive rate`() {
+        val gate = gate()
+        repeat(4) { gate.process(silence, silence.size, blockUs) }
+        val decisions = List(20) { gate.process(silence, silence.size, blockUs) }
+        assertEquals(DtxGate.Decision.MARKER, decisions[0])
+        assertEquals(DtxGate.Decision.MARKER, decisions[1])
+        // 200 ms keepalive ≈ one marker every 10 blocks after the initial ones
+        assertEquals(DtxGate.Decision.SKIP, decisions[2])
+        assertEquals(DtxGate.Decision.MARKER, decisions[11])
+        assertEquals(3, decisions.count { it == DtxGate.Decision.MARKER })
+    }
+
+    @Test
+    fun `sound resumes sending immediately`() {
+        val gate = gate()
+        repeat(30) { gate.process(silence, silence.size, blockUs) }
+        assertTrue(gate.suppressing)
+        assertEquals(DtxGate.Decision.SEND, gate.process(music, music.size, blockUs))
+        assertFalse(gate.suppressing)
+        // and the hangover starts over
+        assertEquals(DtxGate.Decision.SEND, gate.process(silence, silence.size, blockUs))
+    }
+
+    @Test
+    fun `near-silence below the threshold counts as silence`() {
+        val gate = DtxGate(thresholdPeak = 16, hangoverMs = 0)
+        val hiss = ByteArray(4096) { if (it % 2 == 0) 9 else 0 }
+        assertEquals(DtxGate.Decision.MARKER, gate.process(hiss, hiss.size, blockUs))
+        assertEquals(1.0, gate.suppressedRatio, 1e-9)
+    }
+}
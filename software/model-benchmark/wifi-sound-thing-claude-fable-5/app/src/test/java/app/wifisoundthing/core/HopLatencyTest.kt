@@ -0,0 +1,47 @@
+package app.wifisoundthing.core
+
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+class HopLatencyTest {
+
+    @Test
+    fun `nothing measured yet adds nothing`() {
+        val hop = HopLatency()
+        assertEquals(0.0, hop.addedMs, 0.0)
+        assertEquals(0L, hop.forwardMicros)
+    }
+
+    @Test
+    fun `one way transit is half the round trip`() {
+        val hop = HopLatency()
+        hop.onRoundTrip(12)
+        assertEquals(6.0, hop.oneWayMs, 1e-9)
+    }
+
+    @Test
+    fun `a single slow round trip moves the estimate by an eighth`() {
+        val hop = HopLatency()
+        hop.onRoundTrip(10)
+        hop.onRoundTrip(90)
+        assertEquals(10.0, hop.oneWayMs, 1e-9) // smoothed RTT 10 + (90 - 10) / 8 = 20 ms
+    }
+
+    @Test
+    fun `added latency includes forwarding time`() {
+        val hop = HopLatency()
+        hop.onRoundTrip(8)
+        hop.onForward(500_000)
+        assertEquals(500L, hop.forwardMicros)
+        assertEquals(4.5, hop.addedMs, 1e-9)
+    }
+
+    @Test
+    fun `reset forgets the estimates`() {
+        val hop = HopLatency()
+        hop.onRoundTrip(8)
+        hop.onForward(1_000)
+        hop.reset()
+        assertEquals(0.0, hop.addedMs, 0.0)
+    }
+}
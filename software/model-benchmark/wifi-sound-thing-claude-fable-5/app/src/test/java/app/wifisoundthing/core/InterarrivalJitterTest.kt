@@ -0,0 +1,32 @@
+package app.wifisoundthing.core
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class InterarrivalJitterTest {
+
+    @Test
+    fun `perfectly spaced frames have no jitter`() {
+        val jitter = InterarrivalJitter()
+        for (i in 0L until 50) jitter.record(i * 20_000, i * 20_000_000)
+        assertEquals(0L, jitter.micros)
+    }
+
+    @Test
+    fun `bursty frames show jitter`() {
+        val jitter = InterarrivalJitter()
+        // Pairs of frames arrive together every 40 ms: deviations of 20 ms each time.
+        for (i in 0L until 200) jitter.record(i * 20_000, (i / 2) * 40_000_000)
+        assertTrue("was ${jitter.micros}", jitter.micros in 19_000L..20_000L)
+    }
+
+    @Test
+    fun `repeated timestamps are ignored`() {
+        val jitter = InterarrivalJitter()
+        jitter.record(0, 0)
+        jitter.record(0, 5_000_000) // second simulcast tier of the same frame
+        jitter.record(20_000, 20_000_000)
+        assertEquals(0L, jitter.micros)
+    }
+}
@@ -27,6 +27,21 @@ class JitterBufferTest {
         assertEquals(12L, frameSeqOf(buffer.poll()))
     }
 
+    @Test
+    fun `first start uses the shallow start depth, rebuffering the full target`() {
+        val buffer = JitterBuffer(targetDepth = 4, startDepth = 2)
+        buffer.put(packet(0))
+        assertTrue(buffer.poll() is JitterBuffer.Event.Buffering)
+        buffer.put(packet(1))
+        assertEquals(0L, frameSeqOf(buffer.poll()))
+        assertEquals(1L, frameSeqOf(buffer.poll()))
+        assertTrue(buffer.poll() is JitterBuffer.Event.Buffering) // underrun
+        for (seq in 2L..4L) buffer.put(packet(seq))
+        assertTrue(buffer.poll() is JitterBuffer.Event.Buffering)
+        buffer.put(packet(5))
+        assertEquals(2L, frameSeqOf(buffer.poll()))
+    }
+
     @Test
     fun `reordered packets play in sequence order`() {
         val buffer = JitterBuffer(targetDepth = 3)
@@ -134,4 +149,93 @@ class JitterBufferTest {
         buffer.put(packet(1))
         assertEquals(0L, frameSeqOf(buffer.poll()))
     }
+
+    private fun marker(seq: Long) = AudioPacket(seq, 0, ByteArray(0), type = AudioPacketCodec.TYPE_SILENCE)
+
+    @Test
+    fun `host silence drains the buffer without counting an underrun`() {
+        val buffer = JitterBuffer(targetDepth = 2)
+        buffer.put(packet(0))
+        buffer.put(packet(1))
+        buffer.put(marker(2))
+        assertEquals(0L, frameSeqOf(buffer.poll()))
+        assertEquals(1L, frameSeqOf(buffer.poll()))
+        assertTrue(buffer.poll() is JitterBuffer.Event.Silence)
+        assertTrue(buffer.poll() is JitterBuffer.Event.Silence)
+        assertEquals(0L, buffer.underruns)
+        assertEquals(0L, buffer.gaps)
+        assertTrue(buffer.isHostSilent)
+    }
+
+    @Test
+    fun `stream resumes after host silence without gaps`() {
+        val buffer = JitterBuffer(targetDepth = 2)
+        buffer.put(packet(0))
+        buffer.put(packet(1))
+        buffer.put(marker(2))
+        repeat(4) { buffer.poll() }
+        // host resumes at a later sequence number (timestamp-derived)
+        buffer.put(packet(40))
+        assertTrue(buffer.poll() is JitterBuffer.Event.Silence) // refilling, still quiet
+        buffer.put(packet(41))
+        assertEquals(40L, frameSeqOf(buffer.poll()))
+        assertEquals(41L, frameSeqOf(buffer.poll()))
+        assertEquals(0L, buffer.gaps)
+        assertEquals(0L, buffer.underruns)
+        assertEquals(4L, buffer.received)
+    }
+
+    @Test
+    fun `short pause skips the unsent sequence numbers while still playing`() {
+        val buffer = JitterBuffer(targetDepth = 2)
+        buffer.put(packet(0))
+        buffer.put(packet(1))
+        buffer.put(packet(2))
+        assertEquals(0L, frameSeqOf(buffer.poll()))
+        buffer.put(marker(3))
+        buffer.put(packet(10)) // sound returned before the buffer drained
+        assertEquals(1L, frameSeqOf(buffer.poll()))
+        assertEquals(2L, frameSeqOf(buffer.poll()))
+        assertEquals(10L, frameSeqOf(buffer.poll()))
+        assertEquals(0L, buffer.gaps)
+    }
+
+    @Test
+    fun `silence markers are not counted as received audio`() {
+        val buffer = JitterBuffer(targetDepth = 1)
+        buffer.put(marker(0))
+        buffer.put(marker(0))
+        assertEquals(0L, buffer.received)
+        assertEquals(2L, buffer.silenceMarkers)
+    }
+
+    @Test
+    fun `a marker for a pause already played out is ignored`() {
+        val buffer = JitterBuffer(targetDepth = 2)
+        for (seq in 0L..3L) buffer.put(packet(seq))
+        repeat(3) { buffer.poll() } // 0..2 played
+        buffer.put(marker(1)) // reordered from an earlier pause
+        assertTrue(!buffer.isHostSilent)
+        buffer.put(packet(5)) // 4 is lost, not a skipped pause
+        assertEquals(3L, frameSeqOf(buffer.poll()))
+        assertTrue(buffer.poll() is JitterBuffer.Event.Gap)
+        assertEquals(5L, frameSeqOf(buffer.poll()))
+    }
+
+    @Test
+    fun `late audio from before the marker does not end the pause`() {
+        val buffer = JitterBuffer(targetDepth = 2)
+        buffer.put(packet(0))
+        buffer.put(packet(1))
+        assertEquals(0L, frameSeqOf(buffer.poll()))
+        buffer.put(marker(3))
+        buffer.put(packet(2)) // overtaken by the marker
+        assertTrue(buffer.isHostSilent)
+        buffer.put(packet(10)) // sound returns
+        assertTrue(!buffer.isHostSilent)
+        assertEquals(1L, frameSeqOf(buffer.poll()))
+        assertEquals(2L, frameSeqOf(buffer.poll()))
+        assertEquals(10L, frameSeqOf(buffer.poll()))
+        assertEquals(0L, buffer.gaps)
+    }
 }
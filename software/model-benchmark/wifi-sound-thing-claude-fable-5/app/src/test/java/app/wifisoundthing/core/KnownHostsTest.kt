@@ -0,0 +1,57 @@
+package app.wifisoundthing.core
+
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+class KnownHostsTest {
+
+    private fun host(name: String, address: String = "192.168.1.10", port: Int = 46464, seen: Long = 0) =
+        KnownHost(name, address, port, seen)
+
+    @Test
+    fun `remembered host moves to the front`() {
+        val list = listOf(host("A", "10.0.0.1"), host("B", "10.0.0.2"))
+        val updated = KnownHosts.remember(list, host("B", "10.0.0.2", seen = 5))
+        assertEquals(listOf("B", "A"), updated.map { it.serviceName })
+        assertEquals(5L, updated[0].lastSeenMs)
+    }
+
+    @Test
+    fun `same address or same name replaces the old entry`() {
+        val list = listOf(host("Old name", "10.0.0.1"), host("Phone", "10.0.0.2"))
+        val renamed = KnownHosts.remember(list, host("New name", "10.0.0.1"))
+        assertEquals(listOf("New name", "Phone"), renamed.map { it.serviceName })
+        val moved = KnownHosts.remember(renamed, host("Phone", "10.0.0.9"))
+        assertEquals(listOf("Phone", "New name"), moved.map { it.serviceName })
+        assertEquals("10.0.0.9", moved[0].address)
+    }
+
+    @Test
+    fun `list is capped`() {
+        var list = emptyList<KnownHost>()
+        for (i in 1..8) list = KnownHosts.remember(list, host("H$i", "10.0.0.$i"), max = 3)
+        assertEquals(listOf("H8", "H7", "H6"), list.map { it.serviceName })
+    }
+
+    @Test
+    fun `encode and decode round-trip`() {
+        val list = listOf(
+            host("WiFi Sound Thing (Pixel 8)", "192.168.43.1", 46464, 1_700_000_000_000),
+            host("Manual", "10.0.0.5", 5000, 42),
+        )
+        assertEquals(list, KnownHosts.decode(KnownHosts.encode(list)))
+    }
+
+    @Test
+    fun `tabs in names do not break the format`() {
+        val decoded = KnownHosts.decode(KnownHosts.encode(listOf(host("a\tb"))))
+        assertEquals("a b", decoded.single().serviceName)
+    }
+
+    @Test
+    fun `malformed lines are skipped`() {
+        val text = "garbage\n1\t70000\t10.0.0.1\tX\n2\t80\t10.0.0.2\tY\n\n"
+        assertEquals(listOf(host("Y", "10.0.0.2", 80, 2)), KnownHosts.decode(text))
+        assertEquals(emptyList<KnownHost>(), KnownHosts.decode(""))
+    }
+}
@@ -0,0 +1,36 @@
+package app.wifisoundthing.core
+
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+class LatencyProbeTest {
+
+    @Test
+    fun `output is measured against the input block that contains it`() {
+        val probe = LatencyProbe()
+        // Two 20 ms input blocks; the codec emits a frame from inside the first one.
+        probe.markInput(ptsUs = 0, nowNanos = 1_000_000)
+        probe.markInput(ptsUs = 20_000, nowNanos = 21_000_000)
+        assertEquals(25_000L, probe.markOutput(ptsUs = 10_667, nowNanos = 26_000_000))
+        assertEquals(10_000L, probe.markOutput(ptsUs = 21_333, nowNanos = 31_000_000))
+        assertEquals(17_500L, probe.averageMicros)
+        assertEquals(2L, probe.samples)
+    }
+
+    @Test
+    fun `output before any matching input is ignored`() {
+        val probe = LatencyProbe()
+        probe.markInput(ptsUs = 50_000, nowNanos = 0)
+        assertEquals(-1L, probe.markOutput(ptsUs = 10_000, nowNanos = 5_000_000))
+        assertEquals(0L, probe.averageMicros)
+    }
+
+    @Test
+    fun `old inputs fall out of the ring`() {
+        val probe = LatencyProbe(capacity = 2)
+        probe.markInput(0, 0)
+        probe.markInput(100, 0)
+        probe.markInput(200, 0)
+        assertEquals(-1L, probe.markOutput(50, 1_000))
+    }
+}
@@ -0,0 +1,47 @@
+package app.wifisoundthing.core
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.concurrent.thread
+
+class NativeHandleTest {
+
+    @Test
+    fun `calls reach the pointer until it is closed`() {
+        val handle = NativeHandle(42L) {}
+        assertEquals(42L, handle.use(-1L) { it })
+        handle.close()
+        assertTrue(handle.isClosed)
+        assertEquals(-1L, handle.use(-1L) { throw AssertionError("used after close") })
+    }
+
+    @Test
+    fun `the pointer is freed exactly once`() {
+        val frees = AtomicInteger()
+        val handle = NativeHandle(7L) { frees.incrementAndGet() }
+        assertFalse(handle.isClosed)
+        handle.close()
+        handle.close()
+        assertEquals(1, frees.get())
+    }
+
+    @Test
+    fun `a call racing with close never sees freed memory`() {
+        repeat(200) {
+            val freed = AtomicBoolean(false)
+            val usedAfterFree = AtomicBoolean(false)
+            val handle = NativeHandle(1L) { freed.set(true) }
+            val caller = thread {
+                while (handle.use(false) { if (freed.get()) usedAfterFree.set(true); true }) Thread.yield()
+            }
+            Thread.yield()
+            handle.close()
+            caller.join()
+            assertFalse(usedAfterFree.get())
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package app.wifisoundthing.core
+
+import app.wifisoundthing.core.NetworkChangeTracker.Action
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+class NetworkChangeTrackerTest {
+
+    private val home = setOf("192.168.1.23")
+
+    @Test
+    fun `first network is the baseline`() {
+        val tracker = NetworkChangeTracker()
+        assertEquals(Action.NONE, tracker.onAvailable(100, home))
+        assertEquals(Action.NONE, tracker.onLinkPropertiesChanged(100, home))
+    }
+
+    @Test
+    fun `switching to another network reconnects`() {
+        val tracker = NetworkChangeTracker()
+        tracker.onAvailable(100, home)
+        assertEquals(Action.RECONNECT, tracker.onAvailable(101, setOf("192.168.43.7")))
+    }
+
+    @Test
+    fun `address change on the same network reconnects`() {
+        val tracker = NetworkChangeTracker()
+        tracker.onAvailable(100, home)
+        assertEquals(Action.RECONNECT, tracker.onLinkPropertiesChanged(100, setOf("192.168.1.99")))
+    }
+
+    @Test
+    fun `losing the current network is link down and its return reconnects`() {
+        val tracker = NetworkChangeTracker()
+        tracker.onAvailable(100, home)
+        assertEquals(Action.LINK_DOWN, tracker.onLost(100))
+        assertEquals(Action.RECONNECT, tracker.onAvailable(100, home))
+    }
+
+    @Test
+    fun `losing an unrelated network is ignored`() {
+        val tracker = NetworkChangeTracker()
+        tracker.onAvailable(100, home)
+        assertEquals(Action.NONE, tracker.onLost(7))
+    }
+
+    @Test
+    fun `current network losing its addresses is link down`() {
+        val tracker = NetworkChangeTracker()
+        tracker.onAvailable(100, home)
+        assertEquals(Action.LINK_DOWN, tracker.onLinkPropertiesChanged(100, emptySet()))
+        assertEquals(Action.RECONNECT, tracker.onLinkPropertiesChanged(100, home))
+    }
+}
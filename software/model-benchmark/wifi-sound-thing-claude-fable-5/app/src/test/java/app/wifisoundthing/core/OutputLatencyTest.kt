@@ -0,0 +1,63 @@
+package app.wifisoundthing.core
+
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+class OutputLatencyTest {
+
+    @Test
+    fun `nothing measured yet reports zero`() {
+        assertEquals(0L, OutputLatency(48_000).micros)
+    }
+
+    @Test
+    fun `frames not yet presented count as latency`() {
+        val output = OutputLatency(48_000)
+        // 9600 frames written, 2400 presented right now: 7200 frames = 150 ms still queued.
+        output.onTimestamp(framesWritten = 9_600, framePosition = 2_400, timestampNanos = 1_000_000_000, nowNanos = 1_000_000_000)
+        assertEquals(150_000L, output.micros)
+    }
+
+    @Test
+    fun `time since the timestamp is subtracted`() {
+        val output = OutputLatency(48_000)
+        // Same position, but sampled 20 ms ago: the speaker has moved on since.
+        output.onTimestamp(9_600, 2_400, timestampNanos = 1_000_000_000, nowNanos = 1_020_000_000)
+        assertEquals(130_000L, output.micros)
+    }
+
+    @Test
+    fun `queued frames drain faster or slower with the playback speed`() {
+        val fast = OutputLatency(48_000)
+        // 7200 frames queued at 1.5x (catching up) take 100 ms, not 150.
+        fast.onTimestamp(9_600, 2_400, 1_000_000_000, 1_000_000_000, speed = 1.5f)
+        assertEquals(100_000L, fast.micros)
+        val slow = OutputLatency(48_000)
+        // At 0.96x (growing the buffer) the same 7200 frames take 156.25 ms.
+        slow.onTimestamp(9_600, 2_400, 1_000_000_000, 1_000_000_000, speed = 0.96f)
+        assertEquals(156_250L, slow.micros)
+    }
+
+    @Test
+    fun `timestamps before playback starts are ignored`() {
+        val output = OutputLatency(48_000)
+        output.onTimestamp(4_800, 0, 0, 1_000_000_000)
+        assertEquals(0L, output.micros)
+    }
+
+    @Test
+    fun `a single outlier moves the estimate by an eighth`() {
+        val output = OutputLatency(48_000)
+        output.onTimestamp(9_600, 2_400, 0, 0) // 150 ms
+        output.onTimestamp(19_200, 2_400, 0, 0) // 350 ms
+        assertEquals(175_000L, output.micros)
+    }
+
+    @Test
+    fun `reset forgets the estimate`() {
+        val output = OutputLatency(48_000)
+        output.onTimestamp(9_600, 2_400, 0, 0)
+        output.reset()
+        assertEquals(0L, output.micros)
+    }
+}
@@ -0,0 +1,63 @@
+package app.wifisoundthing.core
+
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+class PacerTest {
+
+    private val frameUs = 20_000L
+    private fun ms(value: Long) = value * 1_000_000
+
+    @Test
+    fun `evenly arriving frames are sent at once`() {
+        val pacer = Pacer(burstUs = 0)
+        for (i in 0L until 10) {
+            val now = ms(100) + i * frameUs * 1000
+            assertEquals(now, pacer.releaseAt(i * frameUs, now))
+        }
+    }
+
+    @Test
+    fun `a burst is spread one frame apart`() {
+        val pacer = Pacer(burstUs = 0)
+        // Frames 0..3 all arrive together at 100 ms.
+        val releases = (0L until 4).map { pacer.releaseAt(it * frameUs, ms(100)) }
+        assertEquals(listOf(ms(100), ms(120), ms(140), ms(160)), releases)
+    }
+
+    @Test
+    fun `burst allowance lets frames go out early`() {
+        val pacer = Pacer(burstUs = frameUs)
+        val releases = (0L until 4).map { pacer.releaseAt(it * frameUs, ms(100)) }
+        assertEquals(listOf(ms(100), ms(100), ms(120), ms(140)), releases)
+    }
+
+    @Test
+    fun `a late frame moves the schedule back`() {
+        val pacer = Pacer(burstUs = 0)
+        pacer.releaseAt(0, ms(100))
+        assertEquals(ms(125), pacer.releaseAt(frameUs, ms(125))) // 5 ms late
+        assertEquals(ms(145), pacer.releaseAt(2 * frameUs, ms(130))) // now paced against the later slot
+    }
+
+    @Test
+    fun `the added delay decays after the window`() {
+        val pacer = Pacer(burstUs = 0, windowUs = 100_000)
+        pacer.releaseAt(0, ms(100))
+        pacer.releaseAt(frameUs, ms(130)) // one 10 ms stall
+        var pts = 2 * frameUs
+        while (pts <= 12 * frameUs) {
+            pacer.releaseAt(pts, ms(100) + pts * 1000)
+            pts += frameUs
+        }
+        // Two windows later the schedule is back to the on-time arrivals.
+        assertEquals(ms(100) + pts * 1000, pacer.releaseAt(pts, ms(100) + pts * 1000))
+    }
+
+    @Test
+    fun `timestamp jump resynchronises`() {
+        val pacer = Pacer(burstUs = 0)
+        pacer.releaseAt(5_000_000, ms(100))
+        assertEquals(ms(200), pacer.releaseAt(0, ms(200)))
+    }
+}
@@ -0,0 +1,57 @@
+package app.wifisoundthing.core
+
+import app.wifisoundthing.core.RelayUpstream.Action
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+class RelayUpstreamTest {
+
+    private val config = AudioConfig(48000, 2, Protocol.CODEC_AAC_LC, byteArrayOf(0x11, 0x90.toByte()))
+
+    @Test
+    fun `first welcome starts the server`() {
+        assertEquals(Action.RESTART, RelayUpstream().onWelcome(ControlMessage.Welcome(1, config)))
+    }
+
+    @Test
+    fun `reconnecting to the same session keeps the server`() {
+        val upstream = RelayUpstream()
+        upstream.onWelcome(ControlMessage.Welcome(1, config, upstreamDelayMs = 10))
+        // The measured delay may differ after a reconnect; that alone needs no new handshake.
+        assertEquals(Action.KEEP, upstream.onWelcome(ControlMessage.Welcome(1, config, upstreamDelayMs = 30)))
+    }
+
+    @Test
+    fun `an upstream restart restarts the server`() {
+        val upstream = RelayUpstream()
+        upstream.onWelcome(ControlMessage.Welcome(1, config))
+        // Same format and hops, but the capturing host started a new stream.
+        assertEquals(Action.RESTART, upstream.onWelcome(ControlMessage.Welcome(2, config)))
+        assertEquals(Action.KEEP, upstream.onWelcome(ControlMessage.Welcome(2, config)))
+    }
+
+    @Test
+    fun `a format or hop change restarts the server`() {
+        val upstream = RelayUpstream()
+        upstream.onWelcome(ControlMessage.Welcome(1, config))
+        val other = AudioConfig(44100, 2, Protocol.CODEC_AAC_LC, byteArrayOf(0x12, 0x10))
+        assertEquals(Action.RESTART, upstream.onWelcome(ControlMessage.Welcome(1, other)))
+        assertEquals(Action.RESTART, upstream.onWelcome(ControlMessage.Welcome(1, other, hops = 1)))
+    }
+
+    @Test
+    fun `too many hops refuses and forgets the stream`() {
+        val upstream = RelayUpstream()
+        upstream.onWelcome(ControlMessage.Welcome(1, config))
+        assertEquals(Action.REFUSE, upstream.onWelcome(ControlMessage.Welcome(1, config, hops = Protocol.MAX_HOPS)))
+        assertEquals(Action.RESTART, upstream.onWelcome(ControlMessage.Welcome(1, config)))
+    }
+
+    @Test
+    fun `after a reset the same session starts the server again`() {
+        val upstream = RelayUpstream()
+        upstream.onWelcome(ControlMessage.Welcome(1, config))
+        upstream.reset()
+        assertEquals(Action.RESTART, upstream.onWelcome(ControlMessage.Welcome(1, config)))
+    }
+}
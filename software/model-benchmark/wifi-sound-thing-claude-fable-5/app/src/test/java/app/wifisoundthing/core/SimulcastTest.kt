@@ -0,0 +1,85 @@
+package app.wifisoundthing.core
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class SimulcastTest {
+
+    @Test
+    fun `sequence number is the frame index of the timestamp`() {
+        assertEquals(0L, Simulcast.sequenceFor(0, 48000))
+        // 1024 samples at 48 kHz = 21333.33 us; truncated timestamps still map to the right frame
+        assertEquals(1L, Simulcast.sequenceFor(21_333, 48000))
+        assertEquals(1000L, Simulcast.sequenceFor(21_333_333, 48000))
+    }
+
+    @Test
+    fun `policy stays on the primary tier while reports are clean`() {
+        val policy = TierPolicy(tierCount = 2)
+        assertEquals(0, policy.onReport(received = 100, lost = 0, underruns = 0))
+        assertEquals(0, policy.onReport(received = 200, lost = 0, underruns = 0))
+    }
+
+    @Test
+    fun `loss above the threshold steps down one tier`() {
+        val policy = TierPolicy(tierCount = 2)
+        policy.onReport(received = 100, lost = 0, underruns = 0)
+        // 10 of the next 100 expected packets lost = 10%
+        assertEquals(1, policy.onReport(received = 190, lost = 10, underruns = 0))
+        // already on the lowest tier: stays there
+        assertEquals(1, policy.onReport(received = 280, lost = 20, underruns = 0))
+    }
+
+    @Test
+    fun `an underrun steps down even without loss`() {
+        val policy = TierPolicy(tierCount = 2)
+        assertEquals(1, policy.onReport(received = 100, lost = 0, underruns = 1))
+    }
+
+    @Test
+    fun `upgrade needs several consecutive clean intervals`() {
+        val policy = TierPolicy(tierCount = 2, upgradeAfter = 3)
+        policy.onReport(received = 100, lost = 0, underruns = 1)
+        assertEquals(1, policy.tier)
+        assertEquals(1, policy.onReport(received = 200, lost = 0, underruns = 1))
+        assertEquals(1, policy.onReport(received = 300, lost = 0, underruns = 1))
+        // a lossy interval in between resets the count
+        assertEquals(1, policy.onReport(received = 390, lost = 10, underruns = 1))
+        assertEquals(1, policy.onReport(received = 490, lost = 10, underruns = 1))
+        assertEquals(1, policy.onReport(received = 590, lost = 10, underruns = 1))
+        assertEquals(0, policy.onReport(received = 690, lost = 10, underruns = 1))
+    }
+
+    @Test
+    fun `single tier policy never moves`() {
+        val policy = TierPolicy(tierCount = 1)
+        assertEquals(0, policy.onReport(received = 10, lost = 90, underruns = 5))
+    }
+
+    @Test
+    fun `switch takes effect at the sequence boundary`() {
+        val switch = TierSwitch()
+        assertTrue(switch.accepts(0, 5))
+        assertFalse(switch.accepts(1, 5))
+        switch.switchTo(1, atSeq = 10)
+        assertEquals(1, switch.tier)
+        // frames before the boundary still come from the old tier...
+        assertTrue(switch.accepts(0, 9))
+        assertFalse(switch.accepts(1, 9))
+        // ...and from the boundary on only from the new one
+        assertFalse(switch.accepts(0, 10))
+        assertTrue(switch.accepts(1, 10))
+    }
+
+    @Test
+    fun `every sequence number is accepted exactly once across a switch`() {
+        val switch = TierSwitch()
+        switch.switchTo(1, atSeq = 50)
+        for (seq in 0L until 100L) {
+            val sent = (0 until Simulcast.MAX_TIERS).count { switch.accepts(it, seq) }
+            assertEquals("seq $seq", 1, sent)
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package app.wifisoundthing.core
+
+import app.wifisoundthing.core.StartupTimeline.Phase
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class StartupTimelineTest {
+
+    private fun ms(value: Long) = value * 1_000_000
+
+    @Test
+    fun `phases are measured from the start`() {
+        val timeline = StartupTimeline(startNanos = ms(1000))
+        timeline.mark(Phase.CONNECTED, ms(1030))
+        assertEquals(30L, timeline.elapsedMs(Phase.CONNECTED))
+        assertEquals(-1L, timeline.elapsedMs(Phase.FIRST_AUDIO))
+    }
+
+    @Test
+    fun `only the first mark of a phase counts`() {
+        val timeline = StartupTimeline(0)
+        assertTrue(timeline.mark(Phase.FIRST_PACKET, ms(80)))
+        assertFalse(timeline.mark(Phase.FIRST_PACKET, ms(90)))
+        assertEquals(80L, timeline.elapsedMs(Phase.FIRST_PACKET))
+    }
+
+    @Test
+    fun `summary lists reached phases in time order`() {
+        val timeline = StartupTimeline(0)
+        timeline.mark(Phase.WELCOMED, ms(45))
+        timeline.mark(Phase.OUTPUT_READY, ms(38)) // overlapped with the handshake
+        timeline.mark(Phase.CONNECTED, ms(30))
+        assertEquals("connect 30 ms · output ready 38 ms · handshake 45 ms", timeline.summary())
+        assertFalse(timeline.isComplete)
+    }
+
+    @Test
+    fun `complete once every phase is reached`() {
+        val timeline = StartupTimeline(0)
+        Phase.entries.forEachIndexed { i, phase -> timeline.mark(phase, ms(i.toLong())) }
+        assertTrue(timeline.isComplete)
+    }
+}
@@ -0,0 +1,66 @@
+package app.wifisoundthing.core
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class TelemetryBusTest {
+
+    private data class Snapshot(val clients: Int = 0, val bytes: Long = 0)
+
+    @Test
+    fun `subscriber gets the current snapshot immediately`() {
+        val bus = TelemetryBus(Snapshot(clients = 2))
+        var previous: Snapshot? = Snapshot()
+        var current: Snapshot? = null
+        bus.subscribe { p, c ->
+            previous = p
+            current = c
+        }
+        assertNull(previous)
+        assertEquals(2, current?.clients)
+    }
+
+    @Test
+    fun `equal snapshots are not delivered`() {
+        val bus = TelemetryBus(Snapshot())
+        var calls = 0
+        bus.subscribe { _, _ -> calls++ }
+        assertFalse(bus.publish(Snapshot()))
+        assertTrue(bus.publish(Snapshot(clients = 1)))
+        assertFalse(bus.publish(Snapshot(clients = 1)))
+        assertEquals(2, calls)
+    }
+
+    @Test
+    fun `update derives from the current snapshot`() {
+        val bus = TelemetryBus(Snapshot(clients = 1))
+        bus.update { it.copy(bytes = 10) }
+        bus.update { it.copy(clients = it.clients + 1) }
+        assertEquals(Snapshot(clients = 2, bytes = 10), bus.current)
+    }
+
+    @Test
+    fun `distinct subscriber fires only when its field changes`() {
+        val bus = TelemetryBus(Snapshot())
+        val seen = mutableListOf<Int>()
+        bus.subscribe(TelemetryBus.distinct({ s: Snapshot -> s.clients }) { seen += it })
+        bus.publish(Snapshot(clients = 0, bytes = 100))
+        bus.publish(Snapshot(clients = 1, bytes = 200))
+        bus.publish(Snapshot(clients = 1, bytes = 300))
+        assertEquals(listOf(0, 1), seen)
+    }
+
+    @Test
+    fun `closed subscription receives nothing more`() {
+        val bus = TelemetryBus(Snapshot())
+        var calls = 0
+        val handle = bus.subscribe { _, _ -> calls++ }
+        handle.close()
+        bus.publish(Snapshot(clients = 5))
+        assertEquals(1, calls)
+        assertEquals(0, bus.subscriberCount)
+    }
+}
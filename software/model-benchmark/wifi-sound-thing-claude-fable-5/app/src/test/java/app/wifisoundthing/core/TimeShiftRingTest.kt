@@ -0,0 +1,88 @@
+package app.wifisoundthing.core
+
+import org.junit.After
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.io.File
+
+class TimeShiftRingTest {
+
+    private val file: File = File.createTempFile("timeshift", ".ring")
+    private val frameUs = 20_000L
+
+    @After
+    fun cleanUp() {
+        file.delete()
+    }
+
+    private fun payload(seq: Long, size: Int = 10) = ByteArray(size) { (seq + it).toByte() }
+
+    @Test
+    fun `frames read back with seq pts and payload`() {
+        TimeShiftRing(file, dataBytes = 1024, indexSlots = 16).use { ring ->
+            for (seq in 0L until 5) ring.append(seq, seq * frameUs, payload(seq))
+            val packet = ring.read(3)!!
+            assertEquals(3L, packet.seq)
+            assertEquals(3 * frameUs, packet.ptsUs)
+            assertArrayEquals(payload(3), packet.payload)
+            assertNull(ring.read(5))
+        }
+    }
+
+    @Test
+    fun `oldest frames are evicted when the data region wraps`() {
+        TimeShiftRing(file, dataBytes = 100, indexSlots = 64).use { ring ->
+            for (seq in 0L until 25) ring.append(seq, seq * frameUs, payload(seq, 30))
+            // Three 30-byte frames fit; the tail of 10 bytes is skipped.
+            assertEquals(22L, ring.firstEntry)
+            assertEquals(25L, ring.nextEntry)
+            assertNull(ring.read(21))
+            for (entry in 22L until 25) assertArrayEquals(payload(entry, 30), ring.read(entry)!!.payload)
+        }
+    }
+
+    @Test
+    fun `oldest frames are evicted when the index is full`() {
+        TimeShiftRing(file, dataBytes = 4096, indexSlots = 8).use { ring ->
+            for (seq in 0L until 20) ring.append(seq, seq * frameUs, payload(seq))
+            assertEquals(12L, ring.firstEntry)
+            assertEquals(19L, ring.read(19)!!.seq)
+            assertEquals(7 * frameUs, ring.spanUs)
+        }
+    }
+
+    @Test
+    fun `frames of varying size survive many wraps`() {
+        TimeShiftRing(file, dataBytes = 500, indexSlots = 32).use { ring ->
+            for (seq in 0L until 1000) ring.append(seq, seq * frameUs, payload(seq, 5 + (seq % 47).toInt()))
+            assertTrue(ring.nextEntry - ring.firstEntry > 5)
+            for (entry in ring.firstEntry until ring.nextEntry) {
+                assertArrayEquals(payload(entry, 5 + (entry % 47).toInt()), ring.read(entry)!!.payload)
+            }
+        }
+    }
+
+    @Test
+    fun `entry lookup by timestamp`() {
+        TimeShiftRing(file, dataBytes = 4096, indexSlots = 64).use { ring ->
+            for (seq in 0L until 50) ring.append(seq, seq * frameUs, payload(seq))
+            assertEquals(10L, ring.entryFor(10 * frameUs))
+            assertEquals(11L, ring.entryFor(10 * frameUs + 1))
+            assertEquals(0L, ring.entryFor(-5))
+            assertEquals(49L, ring.entryFor(1_000 * frameUs))
+        }
+    }
+
+    @Test
+    fun `clear forgets everything`() {
+        TimeShiftRing(file, dataBytes = 1024, indexSlots = 16).use { ring ->
+            ring.append(0, 0, payload(0))
+            ring.clear()
+            assertTrue(ring.isEmpty)
+            assertEquals(0L, ring.spanUs)
+        }
+    }
+}